@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.JsonFormat;
+
+/**
+ * Compares the map based device states with DeviceState on the operations of a QUERY or EXECUTE
+ * request: reading the Firestore document, reading a state, and building the ReportState Struct
+ * and the MQTT payload. Also measures reading and writing states kept in an {@link
+ * OffHeapStateTable}. Run with {@code ./gradlew jmh}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeviceStateBenchmark {
+  private static final Gson GSON = new Gson();
+
+  private Map<String, Object> document;
+  private Map<String, Object> map;
+  private DeviceState typed;
+  private OffHeapStateTable offHeap;
+
+  /** Returns the states of a curtain as read from Firestore, which returns integers as Long. */
+  static Map<String, Object> sampleStates() {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", true);
+    states.put("openPercent", 40L);
+    states.put("brightness", 80L);
+    states.put("isRunning", false);
+    states.put("isPaused", false);
+    states.put("timerRemainingSec", -1L);
+    states.put("thermostatMode", "heat");
+    states.put("thermostatTemperatureSetpoint", 21.5);
+    states.put("thermostatTemperatureAmbient", 19.0);
+    Map<String, Object> color = new HashMap<>();
+    color.put("spectrumRgb", 16711680L);
+    states.put("color", color);
+    return states;
+  }
+
+  @Setup
+  public void setUp() {
+    document = sampleStates();
+    map = new HashMap<>(document);
+    typed = DeviceState.fromMap(document);
+    offHeap = new OffHeapStateTable(1024);
+    for (int i = 0; i < 1000; i++) {
+      offHeap.put("benchmark-user", "device-" + i, typed);
+    }
+  }
+
+  @Benchmark
+  public Map<String, Object> fromFirestoreMap() {
+    return new HashMap<>(document);
+  }
+
+  @Benchmark
+  public DeviceState fromFirestoreTyped() {
+    return DeviceState.fromMap(document);
+  }
+
+  @Benchmark
+  public int readStateMap() {
+    return Boolean.TRUE.equals(map.get("online"))
+        ? ((Number) map.get("openPercent")).intValue()
+        : -1;
+  }
+
+  @Benchmark
+  public int readStateTyped() {
+    return typed.isOnline() ? typed.getOpenPercent() : -1;
+  }
+
+  /** Reads a device's states from the off-heap table, which decodes a new DeviceState. */
+  @Benchmark
+  public int readStateOffHeap() {
+    DeviceState states = offHeap.get("benchmark-user", "device-500");
+    return states.isOnline() ? states.getOpenPercent() : -1;
+  }
+
+  @Benchmark
+  public void writeStateOffHeap() {
+    offHeap.put("benchmark-user", "device-500", typed);
+  }
+
+  /** The conversion ReportState made before DeviceState: Map to JSON to JsonObject to Struct. */
+  @Benchmark
+  public Struct toStructMap() throws InvalidProtocolBufferException {
+    JsonObject json = (JsonObject) JsonParser.parseString(GSON.toJson(map));
+    JsonObject color = json.getAsJsonObject("color");
+    if (color != null && color.has("spectrumRgb")) {
+      color.add("spectrumRGB", color.get("spectrumRgb"));
+      color.remove("spectrumRgb");
+    }
+    Struct.Builder struct = Struct.newBuilder();
+    JsonFormat.parser().ignoringUnknownFields().merge(GSON.toJson(json), struct);
+    return struct.build();
+  }
+
+  @Benchmark
+  public Struct toStructTyped() {
+    return typed.toStruct();
+  }
+
+  @Benchmark
+  public String toJsonMap() {
+    return GSON.toJson(map);
+  }
+
+  @Benchmark
+  public String toJsonTyped() {
+    return typed.toJson();
+  }
+}
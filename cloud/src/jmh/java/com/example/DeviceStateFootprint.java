@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Prints the retained heap size of the states of one device, as a map and as a DeviceState, and
+ * the heap and off-heap size per device of an {@link OffHeapStateTable}, including its index and
+ * device IDs. Run with {@code ./gradlew deviceStateFootprint}.
+ */
+public final class DeviceStateFootprint {
+  /** Enough devices that the state keys and values shared between devices do not count. */
+  private static final int DEVICES = 1000;
+
+  private DeviceStateFootprint() {
+  }
+
+  public static void main(String[] args) {
+    List<Map<String, Object>> maps = new ArrayList<>(DEVICES);
+    List<DeviceState> typed = new ArrayList<>(DEVICES);
+    OffHeapStateTable offHeap = new OffHeapStateTable(DEVICES);
+    for (int i = 0; i < DEVICES; i++) {
+      Map<String, Object> document = DeviceStateBenchmark.sampleStates();
+      maps.add(document);
+      typed.add(DeviceState.fromMap(document));
+      offHeap.put("user-" + i / 10, "device-" + i, typed.get(i));
+    }
+    long mapBytes = GraphLayout.parseInstance(maps).totalSize();
+    long typedBytes = GraphLayout.parseInstance(typed).totalSize();
+    long tableHeapBytes = GraphLayout.parseInstance(offHeap).totalSize();
+    System.out.printf("Map<String, Object>: %d bytes per device%n", mapBytes / DEVICES);
+    System.out.printf("DeviceState:         %d bytes per device%n", typedBytes / DEVICES);
+    System.out.printf(
+        "OffHeapStateTable:   %d heap + %d off-heap bytes per device, IDs included%n",
+        tableHeapBytes / DEVICES, offHeap.offHeapBytes() / DEVICES);
+  }
+}
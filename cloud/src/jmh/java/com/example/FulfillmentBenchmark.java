@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.actions.api.smarthome.ExecuteResponse;
+import com.google.actions.api.smarthome.SmartHomeRequest;
+import com.google.actions.api.smarthome.SyncResponse;
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+
+/**
+ * Benchmarks the per-device work of SYNC, QUERY and EXECUTE fulfillment against in-memory device
+ * documents, without Firestore, MQTT or HomeGraph I/O. Run with {@code ./gradlew jmh}; results are
+ * written as JSON to {@code build/reports/jmh/results.json}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FulfillmentBenchmark {
+  private static final String USER_ID = "benchmark-user";
+  private static final String DEVICE_ID = "curtain";
+
+  @Param({"OnOff", "OpenClose", "BrightnessAbsolute", "ThermostatTemperatureSetpoint"})
+  public String command;
+
+  private Map<String, Object> syncDocument;
+  private Map<String, Object> executeDocument;
+  private String executeBody;
+  private ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+  private ExecutionPlanner.DevicePlan plan;
+
+  @Setup
+  public void setUp() {
+    syncDocument = new HashMap<>();
+    syncDocument.put("type", "action.devices.types.CURTAIN");
+    syncDocument.put("traits", Arrays.asList("action.devices.traits.OpenClose"));
+    syncDocument.put("name", "Patio curtain");
+    syncDocument.put("defaultNames", Arrays.asList("Curtain"));
+    syncDocument.put("nicknames", new ArrayList<String>());
+    syncDocument.put("willReportState", true);
+    syncDocument.put("roomHint", "Patio");
+    syncDocument.put("manufacturer", "L");
+    syncDocument.put("model", "L-1");
+    syncDocument.put("hwVersion", "1.0");
+    syncDocument.put("swVersion", "1.0");
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("discreteOnlyOpenClose", false);
+    attributes.put("queryOnlyOpenClose", false);
+    syncDocument.put("attributes", attributes);
+
+    executeDocument = new HashMap<>();
+    executeDocument.put("states", DeviceStateBenchmark.sampleStates());
+
+    executeBody = executeBody(command);
+    ExecuteRequest request = (ExecuteRequest) SmartHomeRequest.Companion.create(executeBody);
+    execution = ((ExecuteRequest.Inputs) request.inputs[0]).payload.commands[0].execution[0];
+    plan = ExecutionPlanner.plan(DEVICE_ID, executeDocument, execution);
+    if (plan.rejection != null) {
+      throw new IllegalStateException(command + " was rejected: " + plan.rejection.errorCode);
+    }
+  }
+
+  private static String executeBody(String command) {
+    String params;
+    switch (command) {
+      case "OnOff":
+        params = "{\"on\":true}";
+        break;
+      case "OpenClose":
+        params = "{\"openPercent\":75}";
+        break;
+      case "BrightnessAbsolute":
+        params = "{\"brightness\":30}";
+        break;
+      case "ThermostatTemperatureSetpoint":
+        params = "{\"thermostatTemperatureSetpoint\":22.5}";
+        break;
+      default:
+        throw new IllegalArgumentException(command);
+    }
+    return "{\"requestId\":\"ff36a3cc-ec34-11e6-b1a0-64510650abcf\",\"inputs\":[{"
+        + "\"intent\":\"action.devices.EXECUTE\",\"payload\":{\"commands\":[{"
+        + "\"devices\":[{\"id\":\""
+        + DEVICE_ID
+        + "\"}],\"execution\":[{\"command\":\"action.devices.commands."
+        + command
+        + "\",\"params\":"
+        + params
+        + "}]}]}}]}";
+  }
+
+  @Benchmark
+  public SyncResponse.Payload.Device syncDevice() {
+    return FulfillmentPayloads.syncDevice(DEVICE_ID, syncDocument);
+  }
+
+  /** The per-device work of onQuery once the device document has been read. */
+  @Benchmark
+  public void queryDevice(Blackhole blackhole) {
+    DeviceState states = DeviceState.fromMap((Map<String, Object>) executeDocument.get("states"));
+    states.setOnline(true);
+    blackhole.consume(states.toMap());
+    blackhole.consume(ReportState.buildRequest(USER_ID, DEVICE_ID, states));
+  }
+
+  /** The dispatch of MyDataStore.execute for one command. */
+  @Benchmark
+  public ExecutionPlanner.DevicePlan planExecution() {
+    return ExecutionPlanner.plan(DEVICE_ID, executeDocument, execution);
+  }
+
+  /** The per-device work of onExecute once the device document has been read. */
+  @Benchmark
+  public void executeDevice(Blackhole blackhole) {
+    ExecutionPlanner.DevicePlan devicePlan =
+        ExecutionPlanner.plan(DEVICE_ID, executeDocument, execution);
+    ExecutionOutcome outcome = devicePlan.committed();
+    ExecuteResponse.Payload.Commands response =
+        FulfillmentPayloads.executeCommand(DEVICE_ID, outcome);
+    blackhole.consume(response);
+    blackhole.consume(ReportState.buildRequest(USER_ID, DEVICE_ID, outcome.states));
+    blackhole.consume(devicePlan.messages.toJson());
+  }
+
+  @Benchmark
+  public HomeGraphApiServiceProto.ReportStateAndNotificationRequest reportStateRequest() {
+    return ReportState.buildRequest(USER_ID, DEVICE_ID, plan.states);
+  }
+
+  @Benchmark
+  public String mqttPayload() {
+    return plan.messages.toJson();
+  }
+
+  /** The request parsing SmartHomeApp.handleRequest does for the body SmartHomeServlet reads. */
+  @Benchmark
+  public SmartHomeRequest parseExecuteBody() {
+    return SmartHomeRequest.Companion.create(executeBody);
+  }
+}
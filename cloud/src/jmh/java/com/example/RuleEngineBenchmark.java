@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks evaluating a reported state change against many rules, spread over thermostats that
+ * each have a few rules on their temperature and their mode. A rule runs, and is rearmed, on every
+ * other report, so both sides of the condition are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleEngineBenchmark {
+  private static final int RULES_PER_DEVICE = 10;
+
+  @Param({"10000"})
+  public int rules;
+
+  private RuleEngine engine;
+  private DeviceKey[] devices;
+  private Map<String, Object> hot;
+  private Map<String, Object> cold;
+  private Map<String, Object> unwatched;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    // Only evaluating the rules is measured, not running them
+    engine = new RuleEngine((userId, met) -> {});
+    devices = new DeviceKey[rules / RULES_PER_DEVICE];
+    for (int i = 0; i < devices.length; i++) {
+      devices[i] = new DeviceKey("user" + i % 100, "thermostat" + i);
+      List<Rule> watching = new ArrayList<>();
+      for (int j = 0; j < RULES_PER_DEVICE; j++) {
+        Map<String, Object> fields = new HashMap<>();
+        if (j % 2 == 0) {
+          fields.put("state", "thermostatTemperatureAmbient");
+          fields.put("above", 20L + j);
+          fields.put("hysteresis", 1L);
+        } else {
+          fields.put("state", "thermostatMode");
+          fields.put("equals", "mode" + j);
+        }
+        fields.put("deviceIds", Arrays.asList("curtain" + i));
+        fields.put("command", "action.devices.commands.OpenClose");
+        fields.put("params", Collections.singletonMap("openPercent", 0L));
+        watching.add(Rule.parse("rule" + j, fields));
+      }
+      engine.set(devices[i], watching);
+    }
+    hot = Collections.singletonMap("thermostatTemperatureAmbient", 35.0);
+    cold = Collections.singletonMap("thermostatTemperatureAmbient", 10.0);
+    unwatched = Collections.singletonMap("thermostatHumidityAmbient", 40.0);
+  }
+
+  @Benchmark
+  public void watchedStateChange(Blackhole blackhole) {
+    int i = next++;
+    engine.onStates(devices[(i >>> 1) % devices.length], (i & 1) == 0 ? hot : cold, i);
+    blackhole.consume(i);
+  }
+
+  @Benchmark
+  public void unwatchedStateChange(Blackhole blackhole) {
+    int i = next++;
+    engine.onStates(devices[(i >>> 1) % devices.length], unwatched, i);
+    blackhole.consume(i);
+  }
+}
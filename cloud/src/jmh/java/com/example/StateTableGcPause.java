@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Compares garbage collection pauses with the device states of a large fleet kept on the heap, as
+ * maps keyed by DeviceKey, and kept in an {@link OffHeapStateTable}. Fills the store, then updates
+ * random devices while allocating short-lived request garbage, and reports the collections seen
+ * during that phase. Run each store in its own JVM, for example {@code ./gradlew
+ * stateTableGcPause -PgcPauseArgs="--store=offheap --devices=2000000"}.
+ *
+ * <p>Durations are those the collector MXBeans report, which are pauses for the young and full
+ * collections of the default collectors but not for concurrent phases.
+ */
+public final class StateTableGcPause {
+  private static final String USER_PREFIX = "gc-user-";
+  private static final int DEVICES_PER_USER = 10;
+
+  /** Collection counts, total and longest durations, keyed by collector name. */
+  private static final Map<String, long[]> COLLECTIONS = new TreeMap<>();
+
+  static volatile Object sink;
+
+  private StateTableGcPause() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    String store = options.getOrDefault("store", "offheap");
+    int devices = Integer.parseInt(options.getOrDefault("devices", "1000000"));
+    long seconds = Long.parseLong(options.getOrDefault("seconds", "30"));
+
+    Map<String, Object> template = DeviceStateBenchmark.sampleStates();
+    Map<DeviceKey, Map<String, Object>> maps = null;
+    OffHeapStateTable table = null;
+    if (store.equals("map")) {
+      maps = new ConcurrentHashMap<>(devices * 2);
+      for (int i = 0; i < devices; i++) {
+        maps.put(key(i), new HashMap<>(template));
+      }
+    } else if (store.equals("offheap")) {
+      table = new OffHeapStateTable(devices);
+      DeviceState states = DeviceState.fromMap(template);
+      for (int i = 0; i < devices; i++) {
+        DeviceKey key = key(i);
+        table.put(key.userId, key.deviceId, states);
+      }
+    } else {
+      throw new IllegalArgumentException("--store must be map or offheap");
+    }
+
+    System.gc();
+    long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    System.out.printf(
+        "%s: %d devices, %d MB heap in use after a full collection%s%n",
+        store,
+        devices,
+        heapUsed >> 20,
+        table != null ? String.format(", %d MB off-heap", table.offHeapBytes() >> 20) : "");
+
+    listenForCollections();
+    long updates = 0;
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (System.nanoTime() < end) {
+      DeviceKey key = key(random.nextInt(devices));
+      int openPercent = random.nextInt(101);
+      if (maps != null) {
+        // Documents are replaced rather than modified, as in MemoryDeviceStore
+        Map<String, Object> states = new HashMap<>(maps.get(key));
+        states.put("openPercent", (long) openPercent);
+        maps.put(key, states);
+      } else {
+        DeviceState states = table.get(key.userId, key.deviceId);
+        states.put("openPercent", openPercent);
+        table.put(key.userId, key.deviceId, states);
+      }
+      // The garbage of parsing and answering a request
+      sink = new byte[2048];
+      updates++;
+    }
+
+    System.out.printf("%d updates in %ds%n", updates, seconds);
+    synchronized (COLLECTIONS) {
+      COLLECTIONS.forEach(
+          (collector, stats) ->
+              System.out.printf(
+                  "%-24s %6d collections %8d ms total %6d ms max%n",
+                  collector, stats[0], stats[1], stats[2]));
+    }
+  }
+
+  private static DeviceKey key(int device) {
+    return new DeviceKey(USER_PREFIX + device / DEVICES_PER_USER, "device-" + device);
+  }
+
+  private static void listenForCollections() {
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      ((NotificationEmitter) collector)
+          .addNotificationListener(
+              (notification, handback) -> {
+                if (!notification
+                    .getType()
+                    .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                  return;
+                }
+                GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from(
+                        (CompositeData) notification.getUserData());
+                long duration = info.getGcInfo().getDuration();
+                synchronized (COLLECTIONS) {
+                  long[] stats = COLLECTIONS.computeIfAbsent(info.getGcName(), name -> new long[3]);
+                  stats[0]++;
+                  stats[1] += duration;
+                  stats[2] = Math.max(stats[2], duration);
+                }
+              },
+              null,
+              null);
+    }
+  }
+}
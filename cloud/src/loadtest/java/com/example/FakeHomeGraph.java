@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.home.graph.v1.HomeGraphApiServiceGrpc;
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+import com.google.protobuf.Value;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A local HomeGraph API endpoint that accepts every call and records what it received: the number
+ * of calls and the last reported states of each device.
+ */
+final class FakeHomeGraph extends HomeGraphApiServiceGrpc.HomeGraphApiServiceImplBase {
+  final AtomicLong reportStateCalls = new AtomicLong();
+  final AtomicLong requestSyncCalls = new AtomicLong();
+  /** The last reported states, keyed by agent user ID and device ID. */
+  final Map<DeviceKey, Value> reportedStates = new ConcurrentHashMap<>();
+
+  private Server server;
+
+  /** Starts serving on an ephemeral port and returns the port. */
+  int start() throws IOException {
+    server = ServerBuilder.forPort(0).addService(this).build().start();
+    return server.getPort();
+  }
+
+  void stop() {
+    if (server != null) {
+      server.shutdownNow();
+    }
+  }
+
+  @Override
+  public void reportStateAndNotification(
+      HomeGraphApiServiceProto.ReportStateAndNotificationRequest request,
+      StreamObserver<HomeGraphApiServiceProto.ReportStateAndNotificationResponse> response) {
+    reportStateCalls.incrementAndGet();
+    request
+        .getPayload()
+        .getDevices()
+        .getStates()
+        .getFieldsMap()
+        .forEach(
+            (deviceId, states) ->
+                reportedStates.put(new DeviceKey(request.getAgentUserId(), deviceId), states));
+    response.onNext(
+        HomeGraphApiServiceProto.ReportStateAndNotificationResponse.newBuilder()
+            .setRequestId(request.getRequestId())
+            .build());
+    response.onCompleted();
+  }
+
+  @Override
+  public void requestSyncDevices(
+      HomeGraphApiServiceProto.RequestSyncDevicesRequest request,
+      StreamObserver<HomeGraphApiServiceProto.RequestSyncDevicesResponse> response) {
+    requestSyncCalls.incrementAndGet();
+    response.onNext(HomeGraphApiServiceProto.RequestSyncDevicesResponse.getDefaultInstance());
+    response.onCompleted();
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.apache.log4j.Level;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.google.gson.Gson;
+
+/**
+ * Measures the fan-out of one EXECUTE command to many devices: how many messages are published
+ * and how long it takes from the request until every device has its message. Each size is
+ * measured twice, for devices without a group, which are sent the message one by one, and for
+ * devices whose {@link DeviceGroups group} is ready, which are sent it once on the group topic.
+ *
+ * <p>Requests go straight to {@link MySmartHomeApp} against the in-memory store, an embedded MQTT
+ * broker and a fake HomeGraph. Every device is an MQTT client of its own that joins the groups it
+ * is announced and reports joining them, as controller.ino does. Devices without a group are a
+ * different set of devices in every round, so that their group never becomes ready.
+ *
+ * <p>Run with {@code ./gradlew groupFanout}, or {@code -PgroupFanoutArgs="1 10 100 500"} for other
+ * numbers of devices. {@code -Pfanout.rounds} sets how many commands of each kind are measured.
+ */
+public final class GroupFanout {
+  private static final Gson GSON = new Gson();
+  /** How long the members of a new group are given to join it. */
+  private static final long JOIN_MS = 500;
+
+  /** The devices that have yet to receive the message of the current round. */
+  private static volatile CountDownLatch pending = new CountDownLatch(0);
+
+  private GroupFanout() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<Integer> sizes = new ArrayList<>();
+    for (String arg : args.length > 0 ? args : new String[] {"1", "10", "50", "100", "500"}) {
+      sizes.add(Integer.parseInt(arg));
+    }
+    int rounds = Integer.getInteger("fanout.rounds", 20);
+    int largest = Collections.max(sizes);
+
+    org.apache.log4j.Logger.getRootLogger().setLevel(Level.WARN);
+    // Tokens are issued and verified in this JVM, unless TOKEN_SIGNING_KEY is set
+    System.setProperty("smarthome.tokenKey.ephemeral", "true");
+    System.setProperty("smarthome.storage", "memory");
+    System.setProperty("smarthome.storage.dir", "");
+    // Only the fan-out is measured, not how long messages wait for newer ones
+    System.setProperty("smarthome.mailbox.lingerMs", "0");
+    int brokerPort = LoadTest.freePort();
+    io.moquette.broker.Server broker = LoadTest.startBroker(brokerPort);
+    FakeHomeGraph homeGraph = new FakeHomeGraph();
+    System.setProperty("smarthome.homegraph.target", "localhost:" + homeGraph.start());
+
+    LoadDriver.User user = LoadTest.seed(1, largest + rounds).get(0);
+    ExecutorService subscriber = Executors.newSingleThreadExecutor();
+    List<MqttClient> devices = new ArrayList<>();
+    for (String deviceId : user.deviceIds) {
+      devices.add(connect(brokerPort, deviceId, subscriber));
+    }
+    AtomicLong published = new AtomicLong();
+    MqttClient listener = listen(brokerPort, published);
+
+    SmartHomeApp app = new MySmartHomeApp();
+    System.out.printf(
+        "%8s %-10s %12s %10s %10s%n", "devices", "topics", "publishes", "p50 ms", "p99 ms");
+    int requestId = 0;
+    for (int size : sizes) {
+      Histogram individual = new Histogram(3);
+      Histogram grouped = new Histogram(3);
+      long individualPublishes = 0;
+      long groupPublishes = 0;
+      for (int round = 0; round < rounds; round++) {
+        List<String> fresh = user.deviceIds.subList(round, round + size);
+        individualPublishes += execute(app, user, fresh, ++requestId, published, individual);
+      }
+      List<String> members = user.deviceIds.subList(0, size);
+      // The first command creates the group, the next ones use it once its members have joined
+      execute(app, user, members, ++requestId, published, new Histogram(3));
+      Thread.sleep(JOIN_MS);
+      for (int round = 0; round < rounds; round++) {
+        groupPublishes += execute(app, user, members, ++requestId, published, grouped);
+      }
+      report(size, "device", individualPublishes, rounds, individual);
+      report(size, "group", groupPublishes, rounds, grouped);
+    }
+
+    listener.disconnect();
+    for (MqttClient device : devices) {
+      device.disconnect();
+    }
+    subscriber.shutdown();
+    homeGraph.stop();
+    broker.stopServer();
+    // MQTT and gRPC client threads would keep the JVM alive
+    System.exit(0);
+  }
+
+  /**
+   * Sends one command to some devices and waits until each has its message.
+   *
+   * @return the number of messages published for the command
+   */
+  private static long execute(
+      SmartHomeApp app,
+      LoadDriver.User user,
+      List<String> deviceIds,
+      int requestId,
+      AtomicLong published,
+      Histogram micros)
+      throws Exception {
+    StringBuilder devices = new StringBuilder();
+    for (String deviceId : deviceIds) {
+      devices.append(devices.length() > 0 ? "," : "").append("{\"id\":\"").append(deviceId);
+      devices.append("\"}");
+    }
+    String body =
+        "{\"requestId\":\""
+            + requestId
+            + "\",\"inputs\":[{\"intent\":\"action.devices.EXECUTE\",\"payload\":{\"commands\":"
+            + "[{\"devices\":["
+            + devices
+            + "],\"execution\":[{\"command\":\"action.devices.commands.OpenClose\","
+            + "\"params\":{\"openPercent\":"
+            + (requestId % 2 == 0 ? 0 : 100)
+            + "}}]}]}}]}";
+    // MySmartHomeApp looks the header up in lower case
+    Map<String, String> headers =
+        Collections.singletonMap("authorization", "Bearer " + user.accessToken);
+
+    long publishedBefore = published.get();
+    CountDownLatch received = new CountDownLatch(deviceIds.size());
+    pending = received;
+    long start = System.nanoTime();
+    String response = app.handleRequest(body, headers).get();
+    if (response.contains("\"errorCode\"")) {
+      throw new IllegalStateException("EXECUTE failed: " + response);
+    }
+    if (!received.await(30, TimeUnit.SECONDS)) {
+      throw new IllegalStateException(received.getCount() + " devices got no message");
+    }
+    micros.recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+    // The listener sees the messages after the devices do
+    Thread.sleep(20);
+    return published.get() - publishedBefore;
+  }
+
+  private static void report(
+      int size, String topics, long publishes, int rounds, Histogram micros) {
+    System.out.printf(
+        "%8d %-10s %12.1f %10.2f %10.2f%n",
+        size,
+        topics,
+        (double) publishes / rounds,
+        micros.getValueAtPercentile(50) / 1000.0,
+        micros.getValueAtPercentile(99) / 1000.0);
+  }
+
+  /**
+   * Connects a device that counts its messages, and joins and reports joining the groups it is
+   * announced.
+   */
+  private static MqttClient connect(int brokerPort, String deviceId, ExecutorService subscriber)
+      throws MqttException {
+    MqttClient device =
+        new MqttClient("tcp://localhost:" + brokerPort, deviceId, new MemoryPersistence());
+    device.connect();
+    device.subscribe(deviceId + "-client", (topic, message) -> pending.countDown());
+    // Only touched on the subscriber thread
+    Set<String> joined = new LinkedHashSet<>();
+    device.subscribe(
+        deviceId + "-groups/#",
+        (topic, message) -> {
+          if (message.getPayload().length == 0) {
+            return;
+          }
+          String groupTopic = new String(message.getPayload(), StandardCharsets.UTF_8);
+          // A client cannot subscribe from its own callback thread
+          subscriber.execute(
+              () -> {
+                try {
+                  device.subscribe(groupTopic, (group, groupMessage) -> pending.countDown());
+                  joined.add(groupTopic);
+                  String report = "{\"" + DeviceGroups.JOINED + "\":" + GSON.toJson(joined) + "}";
+                  device.publish(
+                      "reported/" + deviceId, report.getBytes(StandardCharsets.UTF_8), 1, false);
+                } catch (MqttException e) {
+                  throw new IllegalStateException(e);
+                }
+              });
+        });
+    return device;
+  }
+
+  /** Counts the messages published to device and group topics. */
+  private static MqttClient listen(int brokerPort, AtomicLong published) throws MqttException {
+    MqttClient client =
+        new MqttClient(
+            "tcp://localhost:" + brokerPort, "fanout-listener", new MemoryPersistence());
+    client.connect();
+    client.subscribe(
+        "#",
+        (topic, message) -> {
+          if (topic.endsWith("-client") || topic.startsWith("groups/")) {
+            published.incrementAndGet();
+          }
+        });
+    return client;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.apache.log4j.Level;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Holds each fulfillment intent to the budgets in {@code intent-budgets.properties}: the median
+ * bytes allocated per request and the 99th percentile latency.
+ *
+ * <p>Requests go straight to {@link MySmartHomeApp}, one at a time on the main thread, against the
+ * in-memory store, an embedded MQTT broker and a fake HomeGraph. Allocation is read from the
+ * thread's counter, so it covers parsing the request, the intent handler and serializing the
+ * response, but not work handed to other threads such as MQTT publishing.
+ *
+ * <p>Run with {@code ./gradlew intentBudget}, which {@code check} depends on. It prints a report
+ * per intent and fails if an allocation budget is exceeded. Latency depends on the machine, so
+ * its budgets are only enforced with {@code -Pbudget.latency=true}. A budget can be overridden
+ * with its name prefixed by {@code budget.}, such as {@code
+ * -Pbudget.execute.allocatedBytes=200000}; {@code -Pbudget.requests} sets how many requests of
+ * each intent are measured, after as many again of warmup.
+ */
+public final class IntentBudget {
+  private static final int USERS = 10;
+  private static final int DEVICES_PER_USER = 5;
+
+  private IntentBudget() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int requests = Integer.getInteger("budget.requests", 2000);
+    boolean enforceLatency = Boolean.getBoolean("budget.latency");
+    Properties budgets = budgets();
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      System.err.println("This JVM does not count the bytes allocated by a thread");
+      System.exit(2);
+    }
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    org.apache.log4j.Logger.getRootLogger().setLevel(Level.WARN);
+    // Tokens are issued and verified in this JVM, unless TOKEN_SIGNING_KEY is set
+    System.setProperty("smarthome.tokenKey.ephemeral", "true");
+    System.setProperty("smarthome.storage", "memory");
+    // Nothing on disk, so that only the fulfillment code is measured
+    System.setProperty("smarthome.storage.dir", "");
+    io.moquette.broker.Server broker = LoadTest.startBroker(LoadTest.freePort());
+    FakeHomeGraph homeGraph = new FakeHomeGraph();
+    System.setProperty("smarthome.homegraph.target", "localhost:" + homeGraph.start());
+
+    List<LoadDriver.User> users = LoadTest.seed(USERS, DEVICES_PER_USER);
+    SmartHomeApp app = new MySmartHomeApp();
+    System.out.printf(
+        "%-8s %10s %12s %12s %12s %10s %10s %12s%n",
+        "intent",
+        "requests",
+        "p50 bytes",
+        "p99 bytes",
+        "budget",
+        "p50 ms",
+        "p99 ms",
+        "budget ms");
+    boolean withinBudget = true;
+    for (LoadDriver.Intent intent : LoadDriver.Intent.values()) {
+      Histogram bytes = new Histogram(3);
+      Histogram micros = new Histogram(3);
+      // Warm up, then measure
+      send(app, users, intent, requests, threads, new Histogram(3), new Histogram(3));
+      send(app, users, intent, requests, threads, bytes, micros);
+
+      String name = intent.name().toLowerCase();
+      long bytesBudget = budget(budgets, name + ".allocatedBytes");
+      long millisBudget = budget(budgets, name + ".p99Millis");
+      long medianBytes = bytes.getValueAtPercentile(50);
+      double p99Millis = micros.getValueAtPercentile(99) / 1000.0;
+      System.out.printf(
+          "%-8s %10d %12d %12d %12d %10.2f %10.2f %12d%n",
+          intent,
+          bytes.getTotalCount(),
+          medianBytes,
+          bytes.getValueAtPercentile(99),
+          bytesBudget,
+          micros.getValueAtPercentile(50) / 1000.0,
+          p99Millis,
+          millisBudget);
+      if (medianBytes > bytesBudget) {
+        System.out.printf(
+            "%s allocates %d bytes per request, over its budget of %d%n",
+            intent, medianBytes, bytesBudget);
+        withinBudget = false;
+      }
+      if (enforceLatency && p99Millis > millisBudget) {
+        System.out.printf(
+            "%s takes %.2f ms at p99, over its budget of %d ms%n",
+            intent, p99Millis, millisBudget);
+        withinBudget = false;
+      }
+    }
+
+    homeGraph.stop();
+    broker.stopServer();
+    // MQTT and gRPC client threads would keep the JVM alive
+    System.exit(withinBudget ? 0 : 1);
+  }
+
+  /** Handles requests of one intent and records the bytes each allocated and how long it took. */
+  private static void send(
+      SmartHomeApp app,
+      List<LoadDriver.User> users,
+      LoadDriver.Intent intent,
+      int requests,
+      ThreadMXBean threads,
+      Histogram bytes,
+      Histogram micros)
+      throws Exception {
+    long threadId = Thread.currentThread().getId();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < requests; i++) {
+      LoadDriver.User user = users.get(i % users.size());
+      String deviceId = user.deviceIds.get(random.nextInt(user.deviceIds.size()));
+      String body = LoadDriver.body(intent, Integer.toString(i), deviceId, random);
+      // MySmartHomeApp looks the header up in lower case
+      Map<String, String> headers =
+          Collections.singletonMap("authorization", "Bearer " + user.accessToken);
+
+      long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+      String response = app.handleRequest(body, headers).get();
+      long nanos = System.nanoTime() - start;
+      long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+      if (response.contains("\"errorCode\"")) {
+        throw new IllegalStateException(intent + " failed: " + response);
+      }
+      bytes.recordValue(allocated);
+      micros.recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+  }
+
+  private static Properties budgets() throws IOException {
+    Properties budgets = new Properties();
+    try (InputStream in = IntentBudget.class.getResourceAsStream("/intent-budgets.properties")) {
+      budgets.load(in);
+    }
+    return budgets;
+  }
+
+  private static long budget(Properties budgets, String name) {
+    String value = System.getProperty("budget." + name, budgets.getProperty(name));
+    if (value == null) {
+      throw new IllegalArgumentException("no budget " + name + " in intent-budgets.properties");
+    }
+    return Long.parseLong(value);
+  }
+}
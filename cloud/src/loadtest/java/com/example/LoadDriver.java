@@ -0,0 +1,279 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Sends fulfillment requests at a fixed rate, independent of how fast they complete, and records
+ * the latency of each intent. Latency is measured from the time a request was due rather than
+ * from the time it was sent, so that a stalled server is not hidden by a stalled client.
+ */
+final class LoadDriver {
+  enum Intent {
+    SYNC,
+    QUERY,
+    EXECUTE
+  }
+
+  /** One agent user with its access token and devices. */
+  static final class User {
+    final String userId;
+    final String accessToken;
+    final List<String> deviceIds;
+
+    User(String userId, String accessToken, List<String> deviceIds) {
+      this.userId = userId;
+      this.accessToken = accessToken;
+      this.deviceIds = deviceIds;
+    }
+  }
+
+  private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+  private final URL endpoint;
+  private final List<User> users;
+  private final Map<Intent, Integer> mix;
+  private final int totalWeight;
+  /** How many devices of a user each QUERY asks for. */
+  private final int queryDevices;
+  private final Map<Intent, Recorder> latencies = new EnumMap<>(Intent.class);
+  private final Map<Intent, LongAdder> errors = new EnumMap<>(Intent.class);
+  private final AtomicLong requestIds = new AtomicLong();
+
+  LoadDriver(URL endpoint, List<User> users, Map<Intent, Integer> mix, int queryDevices) {
+    this.endpoint = endpoint;
+    this.users = users;
+    this.mix = mix;
+    this.queryDevices = queryDevices;
+    int total = 0;
+    for (int weight : mix.values()) {
+      total += weight;
+    }
+    this.totalWeight = total;
+    for (Intent intent : Intent.values()) {
+      latencies.put(intent, new Recorder(MAX_LATENCY_MICROS, 3));
+      errors.put(intent, new LongAdder());
+    }
+  }
+
+  /**
+   * Sends requests at the given rate and returns the latencies recorded after the warmup.
+   *
+   * @param rate requests per second
+   * @param threads the number of requests that may be in flight at once
+   */
+  Map<Intent, Histogram> run(double rate, int threads, long warmupSec, long durationSec)
+      throws InterruptedException {
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSec);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSec);
+    for (long due = start; due < end; due += intervalNanos) {
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      Intent intent = nextIntent();
+      long dueAt = due;
+      boolean measured = due >= measureFrom;
+      workers.execute(() -> send(intent, dueAt, measured));
+    }
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+
+    Map<Intent, Histogram> histograms = new EnumMap<>(Intent.class);
+    for (Intent intent : Intent.values()) {
+      histograms.put(intent, latencies.get(intent).getIntervalHistogram());
+    }
+    return histograms;
+  }
+
+  long errors(Intent intent) {
+    return errors.get(intent).sum();
+  }
+
+  /** Prints throughput and latency percentiles per intent. */
+  void report(PrintStream out, Map<Intent, Histogram> histograms, long durationSec) {
+    out.printf(
+        "%-8s %10s %8s %12s %10s %10s %10s %10s%n",
+        "intent", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+    for (Intent intent : Intent.values()) {
+      Histogram histogram = histograms.get(intent);
+      long count = histogram.getTotalCount();
+      if (count == 0) {
+        continue;
+      }
+      out.printf(
+          "%-8s %10d %8d %12.1f %10.2f %10.2f %10.2f %10.2f%n",
+          intent,
+          count,
+          errors(intent),
+          (double) count / durationSec,
+          histogram.getValueAtPercentile(50) / 1000.0,
+          histogram.getValueAtPercentile(99) / 1000.0,
+          histogram.getValueAtPercentile(99.9) / 1000.0,
+          histogram.getMaxValue() / 1000.0);
+    }
+  }
+
+  private Intent nextIntent() {
+    int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (Map.Entry<Intent, Integer> entry : mix.entrySet()) {
+      pick -= entry.getValue();
+      if (pick < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new AssertionError();
+  }
+
+  private void send(Intent intent, long dueAt, boolean measured) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    User user = users.get(random.nextInt(users.size()));
+    int first = random.nextInt(user.deviceIds.size());
+    String body;
+    if (intent == Intent.QUERY && queryDevices > 1) {
+      List<String> deviceIds = new ArrayList<>(queryDevices);
+      for (int i = 0; i < queryDevices && i < user.deviceIds.size(); i++) {
+        deviceIds.add(user.deviceIds.get((first + i) % user.deviceIds.size()));
+      }
+      body = queryBody(Long.toString(requestIds.incrementAndGet()), deviceIds);
+    } else {
+      body = body(intent, user.deviceIds.get(first), random);
+    }
+    boolean ok;
+    try {
+      String response = post(user.accessToken, body);
+      ok = response != null && !response.contains("\"errorCode\"");
+    } catch (IOException e) {
+      ok = false;
+    }
+    if (!measured) {
+      return;
+    }
+    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueAt);
+    latencies.get(intent).recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+    if (!ok) {
+      errors.get(intent).increment();
+    }
+  }
+
+  private String body(Intent intent, String deviceId, ThreadLocalRandom random) {
+    return body(intent, Long.toString(requestIds.incrementAndGet()), deviceId, random);
+  }
+
+  /** Returns the body of a request for one device, executing a random command. */
+  static String body(Intent intent, String requestId, String deviceId, ThreadLocalRandom random) {
+    switch (intent) {
+      case SYNC:
+        return "{\"requestId\":\""
+            + requestId
+            + "\",\"inputs\":[{\"intent\":\"action.devices.SYNC\"}]}";
+      case QUERY:
+        return queryBody(requestId, Collections.singletonList(deviceId));
+      case EXECUTE:
+        String execution =
+            random.nextBoolean()
+                ? "{\"command\":\"action.devices.commands.OnOff\",\"params\":{\"on\":"
+                    + random.nextBoolean()
+                    + "}}"
+                : "{\"command\":\"action.devices.commands.OpenClose\",\"params\":{\"openPercent\":"
+                    + random.nextInt(101)
+                    + "}}";
+        return "{\"requestId\":\""
+            + requestId
+            + "\",\"inputs\":[{\"intent\":\"action.devices.EXECUTE\",\"payload\":{\"commands\":"
+            + "[{\"devices\":[{\"id\":\""
+            + deviceId
+            + "\"}],\"execution\":["
+            + execution
+            + "]}]}}]}";
+      default:
+        throw new AssertionError(intent);
+    }
+  }
+
+  /** Returns the body of a QUERY for several devices. */
+  static String queryBody(String requestId, List<String> deviceIds) {
+    StringBuilder devices = new StringBuilder();
+    for (String deviceId : deviceIds) {
+      if (devices.length() > 0) {
+        devices.append(',');
+      }
+      devices.append("{\"id\":\"").append(deviceId).append("\"}");
+    }
+    return "{\"requestId\":\""
+        + requestId
+        + "\",\"inputs\":[{\"intent\":\"action.devices.QUERY\",\"payload\":{\"devices\":["
+        + devices
+        + "]}}]}";
+  }
+
+  /** Posts a request and returns the response body, or null if the status is not 200. */
+  private String post(String accessToken, String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json");
+    // MySmartHomeApp looks the header up in lower case
+    connection.setRequestProperty("authorization", "Bearer " + accessToken);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    int status = connection.getResponseCode();
+    try (InputStream in =
+        status == HttpURLConnection.HTTP_OK
+            ? connection.getInputStream()
+            : connection.getErrorStream()) {
+      // Drain the response so that the connection can be reused
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      if (in != null) {
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+          response.write(buffer, 0, n);
+        }
+      }
+      return status == HttpURLConnection.HTTP_OK
+          ? new String(response.toByteArray(), StandardCharsets.UTF_8)
+          : null;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.apache.log4j.Level;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import io.moquette.broker.config.MemoryConfig;
+
+/**
+ * Boots the fulfillment servlet in-process against local stand-ins of its dependencies and drives
+ * a mix of SYNC, QUERY and EXECUTE requests at a fixed rate:
+ *
+ * <ul>
+ *   <li>the Firestore emulator, at FIRESTORE_EMULATOR_HOST or {@code --firestore=host:port}, or
+ *       with {@code --storage=memory} the in-process store in a temporary directory
+ *   <li>an embedded Moquette MQTT broker
+ *   <li>a fake HomeGraph gRPC endpoint that records the reported states
+ * </ul>
+ *
+ * <p>Run with {@code ./gradlew loadTest -PloadTestArgs="--rate=200 --duration=60"}. Options:
+ * {@code --rate} requests per second, {@code --duration} and {@code --warmup} in seconds, {@code
+ * --mix=sync:1,query:5,execute:4}, {@code --users}, {@code --devices} per user, {@code
+ * --queryDevices} per QUERY, {@code --threads} in flight, and {@code --threadMode=platform} or
+ * {@code virtual}, which sets {@code smarthome.threads} and needs Java 21. The report ends with the
+ * most platform threads that were live at once, which virtual threads do not count towards;
+ * {@code ./gradlew threadModeComparison -Pjava21} runs the test in both modes.
+ */
+public final class LoadTest {
+  private LoadTest() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+    long durationSec = Long.parseLong(options.getOrDefault("duration", "30"));
+    long warmupSec = Long.parseLong(options.getOrDefault("warmup", "10"));
+    int userCount = Integer.parseInt(options.getOrDefault("users", "10"));
+    int devicesPerUser = Integer.parseInt(options.getOrDefault("devices", "5"));
+    int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+    int queryDevices = Integer.parseInt(options.getOrDefault("queryDevices", "1"));
+    String threadMode = options.getOrDefault("threadMode", "platform");
+    // Read once, when the first request is handled
+    System.setProperty("smarthome.threads", threadMode);
+    Map<LoadDriver.Intent, Integer> mix =
+        parseMix(options.getOrDefault("mix", "sync:1,query:5,execute:4"));
+
+    // Logging every request would dominate the measurements
+    org.apache.log4j.Logger.getRootLogger().setLevel(Level.WARN);
+
+    // Tokens are issued and verified in this JVM, unless TOKEN_SIGNING_KEY is set
+    System.setProperty("smarthome.tokenKey.ephemeral", "true");
+    String storage = options.getOrDefault("storage", "firestore");
+    System.setProperty("smarthome.storage", storage);
+    if (storage.equals("memory")) {
+      System.setProperty(
+          "smarthome.storage.dir", Files.createTempDirectory("smarthome-store").toString());
+    } else {
+      String firestore =
+          options.getOrDefault("firestore", System.getenv("FIRESTORE_EMULATOR_HOST"));
+      if (firestore == null) {
+        System.err.println(
+            "Start the Firestore emulator and set FIRESTORE_EMULATOR_HOST or pass --firestore,"
+                + " or pass --storage=memory");
+        System.exit(2);
+      }
+      System.setProperty("smarthome.firestore.emulatorHost", firestore);
+    }
+
+    int brokerPort = freePort();
+    io.moquette.broker.Server broker = startBroker(brokerPort);
+
+    FakeHomeGraph homeGraph = new FakeHomeGraph();
+    System.setProperty("smarthome.homegraph.target", "localhost:" + homeGraph.start());
+
+    Server jetty = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    ServletHolder servlet = new ServletHolder(new SmartHomeServlet());
+    // Deployed, the annotation of the servlet allows it
+    servlet.setAsyncSupported(true);
+    context.addServlet(servlet, "/smarthome");
+    jetty.setHandler(context);
+    jetty.start();
+    int port = ((ServerConnector) jetty.getConnectors()[0]).getLocalPort();
+
+    List<LoadDriver.User> users = seed(userCount, devicesPerUser);
+    AtomicLong mqttMessages = new AtomicLong();
+    MqttClient deviceListener = listen(brokerPort, mqttMessages);
+
+    System.out.printf(
+        "%d users x %d devices on %s, %.0f req/s for %ds after %ds warmup, mix %s, %s threads%n",
+        userCount, devicesPerUser, storage, rate, durationSec, warmupSec, mix, threadMode);
+    LoadDriver driver =
+        new LoadDriver(
+            new URL("http://localhost:" + port + "/smarthome"), users, mix, queryDevices);
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    threadBean.resetPeakThreadCount();
+    long threadsStarted = threadBean.getTotalStartedThreadCount();
+    Map<LoadDriver.Intent, Histogram> histograms =
+        driver.run(rate, threads, warmupSec, durationSec);
+    driver.report(System.out, histograms, durationSec);
+    // Counts the threads of the driver, Jetty and the stand-ins too, which are alike in both modes
+    System.out.printf(
+        "Platform threads: %d peak live, %d started during the run%n",
+        threadBean.getPeakThreadCount(),
+        threadBean.getTotalStartedThreadCount() - threadsStarted);
+    System.out.printf(
+        "HomeGraph: %d reportState, %d requestSync calls; MQTT: %d device messages%n",
+        homeGraph.reportStateCalls.get(), homeGraph.requestSyncCalls.get(), mqttMessages.get());
+
+    deviceListener.disconnect();
+    jetty.stop();
+    homeGraph.stop();
+    broker.stopServer();
+    // Firestore and MQTT client threads would keep the JVM alive
+    System.exit(0);
+  }
+
+  /** Starts an embedded MQTT broker on a port and points MyDataStore's MQTT client at it. */
+  static io.moquette.broker.Server startBroker(int port) throws IOException {
+    io.moquette.broker.Server broker = new io.moquette.broker.Server();
+    Properties brokerConfig = new Properties();
+    brokerConfig.setProperty("host", "localhost");
+    brokerConfig.setProperty("port", Integer.toString(port));
+    brokerConfig.setProperty("allow_anonymous", "true");
+    File brokerStore = Files.createTempFile("moquette", ".db").toFile();
+    brokerStore.deleteOnExit();
+    brokerConfig.setProperty("persistent_store", brokerStore.getAbsolutePath());
+    broker.startServer(new MemoryConfig(brokerConfig));
+    System.setProperty("mqtt.broker", "tcp://localhost:" + port);
+    System.setProperty("mqtt.clientid", "smarthome-loadtest");
+    System.setProperty("mqtt.cleansession", "true");
+    System.setProperty("mqtt.quietmode", "true");
+    return broker;
+  }
+
+  /** Creates the users and their devices, and issues an access token for each user. */
+  static List<LoadDriver.User> seed(int userCount, int devicesPerUser)
+      throws Exception {
+    MyDataStore database = MyDataStore.getInstance();
+    List<LoadDriver.User> users = new ArrayList<>(userCount);
+    for (int u = 0; u < userCount; u++) {
+      String userId = "loadtest-user-" + u;
+      Map<String, Object> user = new HashMap<>();
+      user.put("homegraph", true);
+      database.createUser(userId, user);
+      List<String> deviceIds = new ArrayList<>(devicesPerUser);
+      for (int d = 0; d < devicesPerUser; d++) {
+        String deviceId = "loadtest-u" + u + "-d" + d;
+        database.addDevice(userId, curtain(deviceId));
+        deviceIds.add(deviceId);
+      }
+      users.add(
+          new LoadDriver.User(
+              userId, TokenService.getInstance().issueAccessToken(userId), deviceIds));
+    }
+    return users;
+  }
+
+  private static Map<String, Object> curtain(String deviceId) {
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("name", deviceId);
+    device.put("type", "action.devices.types.CURTAIN");
+    device.put(
+        "traits",
+        Arrays.asList("action.devices.traits.OnOff", "action.devices.traits.OpenClose"));
+    device.put("defaultNames", new ArrayList<String>());
+    device.put("nicknames", new ArrayList<String>());
+    device.put("willReportState", true);
+    device.put("roomHint", "Patio");
+    device.put("manufacturer", "loadtest");
+    device.put("model", "loadtest");
+    device.put("hwVersion", "1.0");
+    device.put("swVersion", "1.0");
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("on", false);
+    states.put("openPercent", 0);
+    device.put("states", states);
+    return device;
+  }
+
+  /** Subscribes to every device topic and counts the messages the devices would receive. */
+  private static MqttClient listen(int brokerPort, AtomicLong messages) throws MqttException {
+    MqttClient client =
+        new MqttClient(
+            "tcp://localhost:" + brokerPort, "loadtest-devices", new MemoryPersistence());
+    client.connect();
+    client.subscribe("#", (topic, message) -> messages.incrementAndGet());
+    return client;
+  }
+
+  static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("expected --name=value, got " + arg);
+      }
+      int equals = arg.indexOf('=');
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    return options;
+  }
+
+  private static Map<LoadDriver.Intent, Integer> parseMix(String mix) {
+    Map<LoadDriver.Intent, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(",")) {
+      String[] weight = part.split(":");
+      weights.put(
+          LoadDriver.Intent.valueOf(weight[0].trim().toUpperCase()),
+          Integer.parseInt(weight[1].trim()));
+    }
+    return weights;
+  }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves reads from an in-memory copy of the users of another store, and writes through to it.
+ *
+ * <p>A user is copied in full the first time it is read. Every {@code
+ * smarthome.cache.snapshotIntervalMs} milliseconds the copies are written to a {@link
+ * MappedSnapshot}. A restarted instance serves the users of that snapshot at once, and reads them
+ * again from the other store one by one in the background; until a user has been read again, its
+ * reads may return what the previous instance saw.
+ *
+ * <p>The copies are only kept current by writes made through this store, so it suits a single
+ * instance writing to the other store. Writes of one user are serialized, so the asynchronous
+ * operations keep their blocking defaults: reads of a loaded user are answered from memory, and a
+ * write waits for the other store while it holds the lock of its user.
+ */
+final class CachingDeviceStore implements DeviceStore {
+  /** A write to the cache, which keeps nothing on disk and so only fails on a missing document. */
+  private interface CacheWrite {
+    void apply() throws ExecutionException;
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final long RECONCILE_RETRY_MS = 5_000;
+
+  private final DeviceStore delegate;
+  private final MemoryDeviceStore cache;
+  /** Where the copies are written, or null to write no snapshots. */
+  private final Path snapshotFile;
+  private final ScheduledExecutorService background;
+  /** Serializes loading and writing each user, by hash of the user ID. */
+  private final Object[] locks = new Object[64];
+
+  /** Users whose complete documents are in the cache. */
+  private final Set<String> loaded = ConcurrentHashMap.newKeySet();
+  /** Loaded users that came from the snapshot and have yet to be read again. */
+  private final Set<String> fromSnapshot = ConcurrentHashMap.newKeySet();
+  /** Users of the snapshot that have been neither loaded nor written. */
+  private final Set<String> inSnapshot = ConcurrentHashMap.newKeySet();
+  /** The snapshot found on startup, until its users have been read again. */
+  private volatile MappedSnapshot snapshot;
+  private volatile boolean reconciled;
+  private final AtomicLong writes = new AtomicLong();
+  private final Object snapshotLock = new Object();
+  // Guarded by snapshotLock
+  private long snapshotWrites;
+
+  /**
+   * @param snapshotFile where to keep the snapshot, or null to keep nothing on disk
+   * @param snapshotIntervalMs how often to write the snapshot, or 0 to only write it on close
+   */
+  CachingDeviceStore(
+      DeviceStore delegate,
+      MemoryDeviceStore cache,
+      Path snapshotFile,
+      long snapshotIntervalMs)
+      throws IOException {
+    this.delegate = delegate;
+    this.cache = cache;
+    this.snapshotFile = snapshotFile;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+    background =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "device-cache");
+              thread.setDaemon(true);
+              return thread;
+            });
+    if (snapshotFile != null) {
+      snapshot = MappedSnapshot.open(snapshotFile);
+    }
+    if (snapshot != null) {
+      inSnapshot.addAll(snapshot.userIds());
+      LOGGER.info(
+          "serving {} users from the snapshot taken at {}",
+          inSnapshot.size(),
+          snapshot.createdMillis());
+      background.execute(this::reconcile);
+    } else {
+      reconciled = true;
+    }
+    if (snapshotFile != null && snapshotIntervalMs > 0) {
+      background.scheduleWithFixedDelay(
+          this::snapshotQuietly, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Caches the given store, with the snapshot in {@code smarthome.cache.snapshotFile} unless that
+   * property is empty, and writes the snapshot when the JVM shuts down.
+   */
+  static CachingDeviceStore fromSystemProperties(DeviceStore delegate) throws IOException {
+    String snapshotFile =
+        System.getProperty(
+            "smarthome.cache.snapshotFile",
+            Paths.get(System.getProperty("java.io.tmpdir"), "smarthome-cache.snapshot")
+                .toString());
+    CachingDeviceStore store =
+        new CachingDeviceStore(
+            delegate,
+            new MemoryDeviceStore(
+                null,
+                0,
+                false,
+                Boolean.getBoolean("smarthome.storage.offHeapStates")
+                    ? new OffHeapStateTable(Integer.getInteger("smarthome.storage.devices", 1024))
+                    : null),
+            snapshotFile.isEmpty() ? null : Paths.get(snapshotFile),
+            Long.getLong("smarthome.cache.snapshotIntervalMs", 60_000L));
+    Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+    return store;
+  }
+
+  @Override
+  public String findUserIdByFakeToken(String fakeAccessToken)
+      throws ExecutionException, InterruptedException {
+    // Only loaded users are indexed
+    String userId = cache.findUserIdByFakeToken(fakeAccessToken);
+    return userId != null ? userId : delegate.findUserIdByFakeToken(fakeAccessToken);
+  }
+
+  @Override
+  public String findUserIdByDevice(String deviceId)
+      throws ExecutionException, InterruptedException {
+    // Only loaded users are searched
+    String userId = cache.findUserIdByDevice(deviceId);
+    return userId != null ? userId : delegate.findUserIdByDevice(deviceId);
+  }
+
+  @Override
+  public Map<DeviceKey, Map<String, Object>> findDevicesWith(String flag)
+      throws ExecutionException, InterruptedException {
+    // Only read at startup, so not worth loading every user for
+    return delegate.findDevicesWith(flag);
+  }
+
+  @Override
+  public Map<String, Object> getUser(String userId)
+      throws ExecutionException, InterruptedException {
+    load(userId);
+    return cache.getUser(userId);
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      delegate.setUser(userId, data);
+      written(userId, () -> cache.setUser(userId, data));
+    }
+  }
+
+  @Override
+  public void updateUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      delegate.updateUser(userId, fields);
+      written(userId, () -> cache.updateUser(userId, fields));
+    }
+  }
+
+  @Override
+  public boolean compareAndSetUserField(
+      String userId, String field, Object expected, Object value)
+      throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      if (!delegate.compareAndSetUserField(userId, field, expected, value)) {
+        return false;
+      }
+      Map<String, Object> fields = new LinkedHashMap<>();
+      fields.put(field, value);
+      written(userId, () -> cache.updateUser(userId, fields));
+      return true;
+    }
+  }
+
+  @Override
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      delegate.deleteUser(userId);
+      written(userId, () -> cache.deleteUser(userId));
+    }
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException {
+    load(userId);
+    return cache.getDevices(userId);
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    load(userId);
+    return cache.getDevices(userId, deviceIds);
+  }
+
+  @Override
+  public void setDevice(String userId, String deviceId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      delegate.setDevice(userId, deviceId, data);
+      written(userId, () -> cache.setDevice(userId, deviceId, data));
+    }
+  }
+
+  @Override
+  public void updateDevices(String userId, Map<String, Map<String, Object>> updates)
+      throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      delegate.updateDevices(userId, updates);
+      written(userId, () -> cache.updateDevices(userId, updates));
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> commitDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return Futures.call(
+        () -> {
+          synchronized (lock(userId)) {
+            Futures.await(delegate.commitDevicesAsync(userId, updates));
+            written(userId, () -> cache.updateDevices(userId, updates));
+          }
+          return null;
+        });
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    synchronized (lock(userId)) {
+      delegate.deleteDevice(userId, deviceId);
+      written(userId, () -> cache.deleteDevice(userId, deviceId));
+    }
+  }
+
+  /** Writes the snapshot if anything was written since the last one, unless still reconciling. */
+  void snapshot() throws IOException {
+    synchronized (snapshotLock) {
+      long current = writes.get();
+      if (snapshotFile == null || !reconciled || current == snapshotWrites) {
+        return;
+      }
+      MappedSnapshot.write(snapshotFile, cache.export());
+      snapshotWrites = current;
+      LOGGER.debug("device cache snapshot holds {} users", loaded.size());
+    }
+  }
+
+  /** Writes a final snapshot and stops the background work. */
+  void close() {
+    background.shutdown();
+    snapshotQuietly();
+  }
+
+  /** Whether the users of the snapshot found on startup have been read again. */
+  boolean isReconciled() {
+    return reconciled;
+  }
+
+  private void snapshotQuietly() {
+    try {
+      snapshot();
+    } catch (IOException e) {
+      LOGGER.error("failed to snapshot the device cache", e);
+    }
+  }
+
+  /** Copies a user into the cache, from the snapshot if it holds the user, unless loaded. */
+  private void load(String userId) throws ExecutionException, InterruptedException {
+    if (loaded.contains(userId)) {
+      return;
+    }
+    synchronized (lock(userId)) {
+      if (loaded.contains(userId)) {
+        return;
+      }
+      MappedSnapshot current = snapshot;
+      if (current != null && inSnapshot.remove(userId)) {
+        cache.replaceUser(userId, current.user(userId));
+        fromSnapshot.add(userId);
+      } else {
+        cache.replaceUser(userId, read(userId));
+      }
+      loaded.add(userId);
+    }
+  }
+
+  /** Reads a user from the other store in the shape of {@link MemoryDeviceStore#export}. */
+  private Map<String, Object> read(String userId)
+      throws ExecutionException, InterruptedException {
+    Map<String, Object> data = delegate.getUser(userId);
+    Map<String, Map<String, Object>> devices = delegate.getDevices(userId);
+    if (data == null && devices.isEmpty()) {
+      return null;
+    }
+    Map<String, Object> entry = new LinkedHashMap<>();
+    entry.put("data", data);
+    entry.put("devices", devices);
+    return entry;
+  }
+
+  /**
+   * Reads every user of the snapshot again from the other store, except those written since, and
+   * then drops the snapshot. Retries later if the other store fails.
+   */
+  private void reconcile() {
+    try {
+      for (String userId : snapshot.userIds()) {
+        // Under the lock, so that no write of the user lands between the read and the copy
+        synchronized (lock(userId)) {
+          boolean neverLoaded = inSnapshot.remove(userId);
+          if (fromSnapshot.remove(userId) || neverLoaded) {
+            cache.replaceUser(userId, read(userId));
+            loaded.add(userId);
+          }
+        }
+      }
+    } catch (ExecutionException | RuntimeException e) {
+      LOGGER.warn("failed to reconcile the device cache, retrying", e);
+      background.schedule(this::reconcile, RECONCILE_RETRY_MS, TimeUnit.MILLISECONDS);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    snapshot = null;
+    reconciled = true;
+    LOGGER.info("device cache reconciled");
+  }
+
+  /**
+   * Applies a write that the other store has accepted to the copy of the user, if it is loaded.
+   * If the copy does not take the write, it is dropped and read again when next used. Caller
+   * holds the lock of the user.
+   */
+  private void written(String userId, CacheWrite write) {
+    // The copy in the snapshot is out of date now
+    inSnapshot.remove(userId);
+    writes.incrementAndGet();
+    if (!loaded.contains(userId)) {
+      return;
+    }
+    try {
+      write.apply();
+    } catch (ExecutionException | RuntimeException e) {
+      LOGGER.warn("dropping the cached copy of user {}", userId, e);
+      loaded.remove(userId);
+      fromSnapshot.remove(userId);
+      cache.replaceUser(userId, null);
+    }
+  }
+
+  private Object lock(String userId) {
+    return locks[(userId.hashCode() & 0x7fffffff) % locks.length];
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the messages for each device topic until they are published, so that a device only
+ * receives the latest target of a burst of commands, such as those of a slider being dragged.
+ *
+ * <p>The first message to a quiet topic is published at once. Messages wait while their topic has
+ * a message being published, and until {@code smarthome.mailbox.lingerMs} milliseconds, 0 by
+ * default, have passed since its last publish. Messages posted to a topic in the meantime are
+ * merged, the newer value of each state replacing the older one, and published together. Each
+ * topic has at most one message being published at a time, so its messages are published in the
+ * order they were posted. A device's own topic and the topics of its {@link DeviceGroups groups}
+ * are independent of each other.
+ *
+ * <p>Messages are published by {@code smarthome.mailbox.threads} threads of the mailbox.
+ */
+final class CommandMailbox {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final ScheduledExecutorService LINGER =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "command-mailbox");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static final ExecutorService PUBLISHERS =
+      Executors.newFixedThreadPool(
+          Integer.getInteger("smarthome.mailbox.threads", 4),
+          runnable -> {
+            Thread thread = new Thread(runnable, "command-mailbox-publish");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** The messages of one topic that wait or are being published. */
+  private static final class Slot {
+    // Guarded by this
+    private DeviceState pending;
+    private boolean draining;
+    /** Whether a message was published, and when the last publish ended. */
+    private boolean published;
+    private long publishedAtNanos;
+    /** Set once the slot has been removed, so that nothing more is posted to it. */
+    private boolean retired;
+  }
+
+  private final BiConsumer<String, DeviceState> sender;
+  private final long lingerNanos;
+  private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+  /**
+   * @param sender publishes the messages of a topic, on a thread of the mailbox
+   * @param lingerMillis how long after a publish to its topic a message waits for newer ones
+   */
+  CommandMailbox(BiConsumer<String, DeviceState> sender, long lingerMillis) {
+    this.sender = sender;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+  }
+
+  static CommandMailbox fromSystemProperties(BiConsumer<String, DeviceState> sender) {
+    return new CommandMailbox(sender, Long.getLong("smarthome.mailbox.lingerMs", 0L));
+  }
+
+  /**
+   * Queues messages to publish to a topic.
+   *
+   * @return true if they supersede a waiting message, by setting a state it sets
+   */
+  boolean post(String topic, DeviceState messages) {
+    while (true) {
+      Slot slot = slots.computeIfAbsent(topic, key -> new Slot());
+      boolean superseded;
+      boolean drain;
+      long delayNanos = 0;
+      synchronized (slot) {
+        if (slot.retired) {
+          continue;
+        }
+        superseded = slot.pending != null && overlaps(slot.pending, messages);
+        if (slot.pending == null) {
+          slot.pending = new DeviceState();
+          Metrics.MQTT_QUEUE_DEPTH.increment();
+        }
+        slot.pending.putAll(messages);
+        drain = !slot.draining;
+        slot.draining = true;
+        if (drain && slot.published) {
+          delayNanos = slot.publishedAtNanos + lingerNanos - System.nanoTime();
+        }
+      }
+      if (superseded) {
+        Metrics.MQTT_SUPERSEDED.increment();
+      }
+      if (drain) {
+        if (delayNanos > 0) {
+          LINGER.schedule(
+              () -> PUBLISHERS.execute(() -> drain(topic, slot)),
+              delayNanos,
+              TimeUnit.NANOSECONDS);
+        } else {
+          PUBLISHERS.execute(() -> drain(topic, slot));
+        }
+      }
+      return superseded;
+    }
+  }
+
+  /** Publishes the messages of a topic until none is left. */
+  private void drain(String topic, Slot slot) {
+    while (true) {
+      DeviceState messages;
+      synchronized (slot) {
+        messages = slot.pending;
+        slot.pending = null;
+        if (messages == null) {
+          slot.draining = false;
+          if (lingerNanos == 0) {
+            retire(topic, slot);
+          } else {
+            // Kept so that messages posted within the linger wait for it
+            slot.published = true;
+            slot.publishedAtNanos = System.nanoTime();
+            LINGER.schedule(() -> retireIfQuiet(topic, slot), lingerNanos, TimeUnit.NANOSECONDS);
+          }
+          return;
+        }
+      }
+      Metrics.MQTT_QUEUE_DEPTH.decrement();
+      // Messages posted while this one is published wait for it, however long it takes
+      try {
+        sender.accept(topic, messages);
+      } catch (RuntimeException e) {
+        LOGGER.error("failed to publish to {}", topic, e);
+      }
+    }
+  }
+
+  /** Removes the slot of a topic once it has been quiet for the linger since its last publish. */
+  private void retireIfQuiet(String topic, Slot slot) {
+    synchronized (slot) {
+      // A later publish schedules its own check
+      if (!slot.draining && System.nanoTime() - slot.publishedAtNanos >= lingerNanos) {
+        retire(topic, slot);
+      }
+    }
+  }
+
+  // Called holding the lock of the slot
+  private void retire(String topic, Slot slot) {
+    slot.retired = true;
+    slots.remove(topic, slot);
+  }
+
+  /** Returns true if the newer messages set a state that the older ones set. */
+  static boolean overlaps(DeviceState older, DeviceState newer) {
+    for (String key : newer.toMap().keySet()) {
+      if (older.containsKey(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
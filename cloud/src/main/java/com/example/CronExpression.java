@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.BitSet;
+
+/**
+ * A standard five-field cron expression: minute, hour, day of month, month and day of week, each
+ * a {@code *}, a value, a range such as {@code 1-5}, a step such as {@code *}{@code /15} or
+ * {@code 8-18/2}, or a comma-separated list of those. Days of week go from 0 for Sunday to 7,
+ * also Sunday. As in cron, a day matches if either day field matches when both are restricted.
+ */
+final class CronExpression {
+  /** How far ahead to look for a matching day, which covers every leap day. */
+  private static final int MAX_DAYS = 366 * 8;
+
+  private final BitSet minutes;
+  private final BitSet hours;
+  private final BitSet daysOfMonth;
+  private final BitSet months;
+  private final BitSet daysOfWeek;
+  private final boolean daysOfMonthRestricted;
+  private final boolean daysOfWeekRestricted;
+
+  private CronExpression(String[] fields) {
+    minutes = parseField(fields[0], 0, 59);
+    hours = parseField(fields[1], 0, 23);
+    daysOfMonth = parseField(fields[2], 1, 31);
+    months = parseField(fields[3], 1, 12);
+    daysOfWeek = parseField(fields[4], 0, 7);
+    if (daysOfWeek.get(7)) {
+      daysOfWeek.set(0);
+    }
+    daysOfMonthRestricted = !fields[2].equals("*");
+    daysOfWeekRestricted = !fields[4].equals("*");
+  }
+
+  /** Parses a cron expression, throwing IllegalArgumentException if it is malformed. */
+  static CronExpression parse(String expression) {
+    String[] fields = expression.trim().split("\\s+");
+    if (fields.length != 5) {
+      throw new IllegalArgumentException("cron expression needs 5 fields: " + expression);
+    }
+    return new CronExpression(fields);
+  }
+
+  private static BitSet parseField(String field, int min, int max) {
+    BitSet values = new BitSet(max + 1);
+    for (String part : field.split(",")) {
+      int step = 1;
+      int slash = part.indexOf('/');
+      if (slash >= 0) {
+        step = parseValue(part.substring(slash + 1), 1, max);
+        part = part.substring(0, slash);
+      }
+      int from;
+      int to;
+      if (part.equals("*")) {
+        from = min;
+        to = max;
+      } else {
+        int dash = part.indexOf('-');
+        from = parseValue(dash >= 0 ? part.substring(0, dash) : part, min, max);
+        to = dash >= 0 ? parseValue(part.substring(dash + 1), min, max) : slash >= 0 ? max : from;
+        if (to < from) {
+          throw new IllegalArgumentException("empty cron range " + part);
+        }
+      }
+      for (int value = from; value <= to; value += step) {
+        values.set(value);
+      }
+    }
+    return values;
+  }
+
+  private static int parseValue(String text, int min, int max) {
+    int value;
+    try {
+      value = Integer.parseInt(text);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("bad cron value " + text, e);
+    }
+    if (value < min || value > max) {
+      throw new IllegalArgumentException("cron value " + value + " not in " + min + "-" + max);
+    }
+    return value;
+  }
+
+  /**
+   * Returns the first minute after a time that matches, in a time zone, or null if none does
+   * within eight years, as for February 30.
+   */
+  ZonedDateTime nextAfter(ZonedDateTime after, ZoneId zone) {
+    LocalDateTime start = after.withZoneSameInstant(zone).toLocalDateTime();
+    LocalDate date = start.toLocalDate();
+    for (int day = 0; day < MAX_DAYS; day++, date = date.plusDays(1)) {
+      if (!matches(date)) {
+        continue;
+      }
+      for (int hour = hours.nextSetBit(0); hour >= 0; hour = hours.nextSetBit(hour + 1)) {
+        for (int minute = minutes.nextSetBit(0);
+            minute >= 0;
+            minute = minutes.nextSetBit(minute + 1)) {
+          // A time skipped by a daylight saving change moves forward, as in cron
+          ZonedDateTime candidate = ZonedDateTime.of(date, LocalTime.of(hour, minute), zone);
+          if (candidate.isAfter(after)) {
+            return candidate;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private boolean matches(LocalDate date) {
+    if (!months.get(date.getMonthValue())) {
+      return false;
+    }
+    boolean dayOfMonth = daysOfMonth.get(date.getDayOfMonth());
+    DayOfWeek dayOfWeek = date.getDayOfWeek();
+    boolean weekday = daysOfWeek.get(dayOfWeek == DayOfWeek.SUNDAY ? 0 : dayOfWeek.getValue());
+    if (daysOfMonthRestricted && daysOfWeekRestricted) {
+      return dayOfMonth || weekday;
+    }
+    return dayOfMonth && weekday;
+  }
+}
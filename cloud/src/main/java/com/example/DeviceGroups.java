@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups of devices with an MQTT topic each, so that a message for every device of a group is
+ * published once rather than once per device.
+ *
+ * <p>The topic of a group is {@code groups/<hash>}, where the hash is taken over its sorted device
+ * IDs, so every instance derives the same topic for the same devices. A group is created the first
+ * time the same message is sent to its devices, if there are at least {@code
+ * smarthome.groups.minSize} of them. Each member is then sent a retained message on {@code
+ * <deviceId>-groups/<hash>} whose payload is the group topic; devices subscribe to {@code
+ * <deviceId>-groups/#} and to every group topic they are sent. A device lists the group topics it
+ * subscribed to in the {@value #JOINED} field of each report; a group is only used once every
+ * member has listed it, and its members are sent messages one by one until then. A device that
+ * reconnects reports an empty list, so its groups are not used until it has joined them again.
+ *
+ * <p>At most {@code smarthome.groups.max} groups are kept. The least recently used one is dropped
+ * first, and its members are told to unsubscribe with an empty retained message.
+ */
+final class DeviceGroups {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final String TOPIC_PREFIX = "groups/";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** The field of a device report that lists the group topics the device subscribed to. */
+  static final String JOINED = "joinedGroups";
+
+  /** Publishes a retained message, or clears one with an empty payload. */
+  interface Announcer {
+    void retain(String topic, byte[] payload) throws Exception;
+  }
+
+  private static final class Group {
+    final String topic;
+    final List<String> deviceIds;
+    /** The members that have yet to report joining the group. */
+    // Guarded by the DeviceGroups
+    final Set<String> unconfirmed;
+
+    Group(String topic, List<String> deviceIds) {
+      this.topic = topic;
+      this.deviceIds = deviceIds;
+      this.unconfirmed = new HashSet<>(deviceIds);
+    }
+  }
+
+  private final Announcer announcer;
+  private final Executor executor;
+  private final int minSize;
+  private final int maxGroups;
+  /** Groups by topic, in access order so that the least recently used one comes first. */
+  // Guarded by this
+  private final LinkedHashMap<String, Group> groups = new LinkedHashMap<>(16, 0.75f, true);
+  /** The groups of each device, by device ID. */
+  // Guarded by this
+  private final Map<String, List<Group>> groupsOf = new HashMap<>();
+
+  /**
+   * Creates the groups of one instance, which announces them itself.
+   *
+   * @param announcer publishes the retained announcements, which may block
+   * @param executor runs the announcements
+   */
+  DeviceGroups(Announcer announcer, Executor executor, int minSize, int maxGroups) {
+    this.announcer = announcer;
+    this.executor = executor;
+    this.minSize = minSize;
+    this.maxGroups = maxGroups;
+  }
+
+  static DeviceGroups fromSystemProperties(Announcer announcer, Executor executor) {
+    return new DeviceGroups(
+        announcer,
+        executor,
+        Integer.getInteger("smarthome.groups.minSize", 2),
+        Integer.getInteger("smarthome.groups.max", 1000));
+  }
+
+  /**
+   * Returns the topic of the group of exactly these devices, or null if the message should be
+   * sent to each of them: because there are too few, or because some have yet to join their
+   * group. Creates and announces the group if there is none.
+   */
+  String topicFor(Collection<String> deviceIds) {
+    if (deviceIds.size() < minSize) {
+      return null;
+    }
+    String topic = topic(deviceIds);
+    Group created;
+    Group evicted = null;
+    synchronized (this) {
+      Group group = groups.get(topic);
+      if (group != null) {
+        return group.unconfirmed.isEmpty() ? topic : null;
+      }
+      created = new Group(topic, new ArrayList<>(deviceIds));
+      groups.put(topic, created);
+      for (String deviceId : created.deviceIds) {
+        groupsOf.computeIfAbsent(deviceId, id -> new ArrayList<>()).add(created);
+      }
+      if (groups.size() > maxGroups) {
+        Iterator<Group> oldest = groups.values().iterator();
+        evicted = oldest.next();
+        oldest.remove();
+        for (String deviceId : evicted.deviceIds) {
+          List<Group> memberOf = groupsOf.get(deviceId);
+          memberOf.remove(evicted);
+          if (memberOf.isEmpty()) {
+            groupsOf.remove(deviceId);
+          }
+        }
+      }
+    }
+    Group dropped = evicted;
+    executor.execute(
+        () -> {
+          announce(created, true);
+          if (dropped != null) {
+            announce(dropped, false);
+          }
+        });
+    return null;
+  }
+
+  /**
+   * Records the groups a device reported it subscribed to. Its other groups are not used until it
+   * reports joining them.
+   *
+   * @param joined the topics of the groups the device subscribed to
+   */
+  synchronized void onJoined(String deviceId, Collection<?> joined) {
+    for (Group group : groupsOf.getOrDefault(deviceId, Collections.emptyList())) {
+      if (joined.contains(group.topic)) {
+        group.unconfirmed.remove(deviceId);
+      } else {
+        group.unconfirmed.add(deviceId);
+      }
+    }
+  }
+
+  /** Returns the topic of the group of some devices, which does not depend on their order. */
+  static String topic(Collection<String> deviceIds) {
+    List<String> sorted = new ArrayList<>(deviceIds);
+    Collections.sort(sorted);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    for (String deviceId : sorted) {
+      digest.update(deviceId.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) '\n');
+    }
+    // 128 bits are plenty to keep the groups of different devices apart
+    byte[] hash = digest.digest();
+    StringBuilder topic = new StringBuilder(TOPIC_PREFIX.length() + 32).append(TOPIC_PREFIX);
+    for (int i = 0; i < 16; i++) {
+      topic.append(HEX[(hash[i] >> 4) & 0xf]).append(HEX[hash[i] & 0xf]);
+    }
+    return topic.toString();
+  }
+
+  /** Tells the members of a group to subscribe to its topic, or to unsubscribe from it. */
+  private void announce(Group group, boolean join) {
+    String hash = group.topic.substring(TOPIC_PREFIX.length());
+    byte[] payload = join ? group.topic.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    for (String deviceId : group.deviceIds) {
+      try {
+        announcer.retain(deviceId + "-groups/" + hash, payload);
+      } catch (Exception e) {
+        LOGGER.error("failed to announce group {} to device {}", group.topic, deviceId, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+/** Identifies a device document, users/{userId}/devices/{deviceId}. */
+final class DeviceKey {
+  final String userId;
+  final String deviceId;
+
+  DeviceKey(String userId, String deviceId) {
+    this.userId = userId;
+    this.deviceId = deviceId;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DeviceKey)) {
+      return false;
+    }
+    DeviceKey other = (DeviceKey) o;
+    return userId.equals(other.userId) && deviceId.equals(other.deviceId);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * userId.hashCode() + deviceId.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "users/" + userId + "/devices/" + deviceId;
+  }
+}
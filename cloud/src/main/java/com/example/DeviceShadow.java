@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shadow of a device: the states it was told to reach, the states it says it has, and a
+ * version of each state it was told to reach. Only the states it has yet to reach are sent to it,
+ * both when it is sent a command and when it reports its states, for instance after reconnecting.
+ *
+ * <p>The shadow is kept in the device document, keyed by the keys of the device messages: {@code
+ * shadow.desired.<key>}, {@code shadow.reported.<key>} and {@code shadow.versions.<key>}, where a
+ * version grows by one every time the desired state changes. The {@code states} field stays what
+ * Google is told. A device that never reports is sent every message, as before.
+ *
+ * <p>A shadow reads a snapshot of the device document and does no I/O; the changes it computes are
+ * written by the caller.
+ */
+final class DeviceShadow {
+  private static final String DESIRED = "shadow.desired.";
+  private static final String REPORTED = "shadow.reported.";
+  private static final String VERSIONS = "shadow.versions.";
+
+  /** What a command or a report changes in the shadow, and what the device has yet to reach. */
+  static final class Change {
+    /** Field updates of the device document, keyed by field path. */
+    final Map<String, Object> updates = new LinkedHashMap<>();
+    /** The desired states that differ from the reported ones, to send to the device. */
+    final DeviceState delta = new DeviceState();
+    /** The versions of the states in the delta. */
+    final Map<String, Long> versions = new HashMap<>();
+
+    private Change() {
+    }
+  }
+
+  private final Map<String, Object> desired;
+  private final Map<String, Object> reported;
+  private final Map<String, Object> versions;
+
+  private DeviceShadow(
+      Map<String, Object> desired, Map<String, Object> reported, Map<String, Object> versions) {
+    this.desired = desired;
+    this.reported = reported;
+    this.versions = versions;
+  }
+
+  /** Returns the shadow kept in a device document, which is empty if the device has none. */
+  static DeviceShadow of(Map<String, Object> document) {
+    return new DeviceShadow(
+        field(document, "shadow.desired"),
+        field(document, "shadow.reported"),
+        field(document, "shadow.versions"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> field(Map<String, Object> document, String path) {
+    Object value = document != null ? FieldPaths.get(document, path) : null;
+    return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+  }
+
+  /**
+   * Makes the messages of a command the desired states. The delta holds the messages the device
+   * has not reported reaching already.
+   */
+  Change desire(DeviceState messages) {
+    Change change = new Change();
+    for (Map.Entry<String, Object> message : messages.toMap().entrySet()) {
+      String key = message.getKey();
+      Object value = message.getValue();
+      long version = version(key);
+      if (!same(desired.get(key), value)) {
+        version++;
+        change.updates.put(DESIRED + key, value);
+        change.updates.put(VERSIONS + key, version);
+      }
+      if (!same(reported.get(key), value)) {
+        change.delta.put(key, value);
+        change.versions.put(key, version);
+      }
+    }
+    return change;
+  }
+
+  /**
+   * Records the states a device reports. The delta holds every desired state that still differs
+   * from what it reported.
+   */
+  Change report(Map<String, Object> states) {
+    Change change = new Change();
+    Map<String, Object> reached = new HashMap<>(reported);
+    for (Map.Entry<String, Object> state : states.entrySet()) {
+      if (!same(reported.get(state.getKey()), state.getValue())) {
+        change.updates.put(REPORTED + state.getKey(), state.getValue());
+      }
+      reached.put(state.getKey(), state.getValue());
+    }
+    for (Map.Entry<String, Object> target : desired.entrySet()) {
+      if (!same(reached.get(target.getKey()), target.getValue())) {
+        change.delta.put(target.getKey(), target.getValue());
+        change.versions.put(target.getKey(), version(target.getKey()));
+      }
+    }
+    return change;
+  }
+
+  private long version(String key) {
+    Object version = versions.get(key);
+    return version instanceof Number ? ((Number) version).longValue() : 0;
+  }
+
+  /**
+   * Whether two state values are the same, comparing numbers by value whatever their type, as
+   * Firestore returns whole numbers as longs and Gson parses every number as a double.
+   */
+  static boolean same(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    if (a instanceof Map && b instanceof Map) {
+      Map<?, ?> left = (Map<?, ?>) a;
+      Map<?, ?> right = (Map<?, ?>) b;
+      if (left.size() != right.size()) {
+        return false;
+      }
+      for (Map.Entry<?, ?> entry : left.entrySet()) {
+        if (!right.containsKey(entry.getKey())
+            || !same(entry.getValue(), right.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> left = (List<?>) a;
+      List<?> right = (List<?>) b;
+      if (left.size() != right.size()) {
+        return false;
+      }
+      Iterator<?> others = right.iterator();
+      for (Object value : left) {
+        if (!same(value, others.next())) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return Objects.equals(a, b);
+  }
+
+  /**
+   * Limits how often the same delta is sent again to a device that keeps reporting states it was
+   * told to leave, such as a curtain whose motor is stuck. A delta with other versions is always
+   * sent.
+   */
+  static final class Resends {
+    private static final class Sent {
+      final Map<String, Long> versions;
+      final long atNanos;
+
+      Sent(Map<String, Long> versions, long atNanos) {
+        this.versions = versions;
+        this.atNanos = atNanos;
+      }
+    }
+
+    private final long intervalNanos;
+    private final Map<String, Sent> sent = new ConcurrentHashMap<>();
+
+    Resends(long intervalMillis) {
+      this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    static Resends fromSystemProperties() {
+      return new Resends(Long.getLong("smarthome.shadow.resendMs", 10_000L));
+    }
+
+    /**
+     * Returns true, and remembers the versions as sent, if a delta with these versions should be
+     * sent to the device now.
+     */
+    boolean claim(String deviceId, Map<String, Long> versions) {
+      long now = System.nanoTime();
+      boolean[] claimed = {false};
+      sent.compute(
+          deviceId,
+          (id, previous) -> {
+            if (previous != null
+                && previous.versions.equals(versions)
+                && now - previous.atNanos < intervalNanos) {
+              return previous;
+            }
+            claimed[0] = true;
+            return new Sent(new HashMap<>(versions), now);
+          });
+      return claimed[0];
+    }
+  }
+}
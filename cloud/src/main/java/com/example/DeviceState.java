@@ -0,0 +1,739 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+/**
+ * The states of one device. The states of the traits this project uses most are kept in primitive
+ * fields; any other state is kept as is in a map.
+ *
+ * <p>Instances are not thread-safe.
+ */
+final class DeviceState {
+  // Slots of the typed states. Booleans are stored as bits of the same index in booleans.
+  private static final int ONLINE = 0;
+  private static final int ON = 1;
+  private static final int OPEN_PERCENT = 2;
+  private static final int BRIGHTNESS = 3;
+  private static final int IS_RUNNING = 4;
+  private static final int IS_PAUSED = 5;
+  private static final int IS_DOCKED = 6;
+  private static final int IS_LOCKED = 7;
+  private static final int IS_JAMMED = 8;
+  private static final int IS_ARMED = 9;
+  private static final int IS_MUTED = 10;
+  private static final int CURRENT_VOLUME = 11;
+  private static final int TIMER_REMAINING_SEC = 12;
+  private static final int TIMER_PAUSED = 13;
+  private static final int THERMOSTAT_MODE = 14;
+  private static final int THERMOSTAT_TEMPERATURE_SETPOINT = 15;
+  private static final int THERMOSTAT_TEMPERATURE_AMBIENT = 16;
+  private static final int THERMOSTAT_HUMIDITY_AMBIENT = 17;
+  private static final int THERMOSTAT_TEMPERATURE_SETPOINT_HIGH = 18;
+  private static final int THERMOSTAT_TEMPERATURE_SETPOINT_LOW = 19;
+  private static final int COLOR_SPECTRUM_RGB = 20;
+  private static final int COLOR_TEMPERATURE_K = 21;
+
+  private static final String[] KEYS = {
+    "online",
+    "on",
+    "openPercent",
+    "brightness",
+    "isRunning",
+    "isPaused",
+    "isDocked",
+    "isLocked",
+    "isJammed",
+    "isArmed",
+    "isMuted",
+    "currentVolume",
+    "timerRemainingSec",
+    "timerPaused",
+    "thermostatMode",
+    "thermostatTemperatureSetpoint",
+    "thermostatTemperatureAmbient",
+    "thermostatHumidityAmbient",
+    "thermostatTemperatureSetpointHigh",
+    "thermostatTemperatureSetpointLow",
+  };
+
+  /** The thermostat modes of the TemperatureSetting trait, encoded as their index plus one. */
+  private static final String[] THERMOSTAT_MODES = {
+    "off", "heat", "cool", "on", "heatcool", "auto", "fan-only", "purifier", "eco", "dry"
+  };
+
+  /** The size in bytes of the fixed layout written by {@link #writeTo}. */
+  static final int ENCODED_BYTES = 73;
+
+  private static final int BOOLEAN_SLOTS =
+      1 << ONLINE
+          | 1 << ON
+          | 1 << IS_RUNNING
+          | 1 << IS_PAUSED
+          | 1 << IS_DOCKED
+          | 1 << IS_LOCKED
+          | 1 << IS_JAMMED
+          | 1 << IS_ARMED
+          | 1 << IS_MUTED
+          | 1 << TIMER_PAUSED;
+  private static final int COLOR_SLOTS = 1 << COLOR_SPECTRUM_RGB | 1 << COLOR_TEMPERATURE_K;
+
+  private static final Gson GSON = new Gson();
+
+  /** Bit i is set if the state in slot i is present. */
+  private int present;
+  private int booleans;
+  private int openPercent;
+  private int brightness;
+  private int currentVolume;
+  private int timerRemainingSec;
+  private int spectrumRgb;
+  private int temperatureK;
+  private double thermostatTemperatureSetpoint;
+  private double thermostatTemperatureAmbient;
+  private double thermostatHumidityAmbient;
+  private double thermostatTemperatureSetpointHigh;
+  private double thermostatTemperatureSetpointLow;
+  private String thermostatMode;
+  /** States without a typed slot, or null if there are none. */
+  private Map<String, Object> extras;
+
+  /** Creates a device state from a states map, as stored in Firestore or parsed by Gson. */
+  static DeviceState fromMap(Map<String, ?> states) {
+    DeviceState state = new DeviceState();
+    if (states != null) {
+      for (Map.Entry<String, ?> entry : states.entrySet()) {
+        state.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return state;
+  }
+
+  /** Creates a device state from a protobuf Struct, as used by the HomeGraph API. */
+  static DeviceState fromStruct(Struct states) {
+    DeviceState state = new DeviceState();
+    for (Map.Entry<String, Value> entry : states.getFieldsMap().entrySet()) {
+      state.put(entry.getKey(), fromValue(entry.getValue()));
+    }
+    return state;
+  }
+
+  boolean isOnline() {
+    return getBoolean(ONLINE);
+  }
+
+  void setOnline(boolean online) {
+    setBoolean(ONLINE, online);
+  }
+
+  boolean isOn() {
+    return getBoolean(ON);
+  }
+
+  /** Returns the open percent, or 0 if it is not known. */
+  int getOpenPercent() {
+    return has(OPEN_PERCENT) ? openPercent : 0;
+  }
+
+  /** Returns the current volume, or 0 if it is not known. */
+  int getCurrentVolume() {
+    return has(CURRENT_VOLUME) ? currentVolume : 0;
+  }
+
+  /** Returns the remaining time of the timer, or -1 if there is no timer. */
+  int getTimerRemainingSec() {
+    return has(TIMER_REMAINING_SEC) ? timerRemainingSec : -1;
+  }
+
+  /** Returns the thermostat setpoint, or NaN if it is not known. */
+  double getThermostatTemperatureSetpoint() {
+    return has(THERMOSTAT_TEMPERATURE_SETPOINT) ? thermostatTemperatureSetpoint : Double.NaN;
+  }
+
+  boolean containsKey(String key) {
+    int slot = slotOf(key);
+    if (slot == COLOR_SPECTRUM_RGB) {
+      return (present & COLOR_SLOTS) != 0 || extras != null && extras.containsKey(key);
+    }
+    return slot >= 0 ? has(slot) : extras != null && extras.containsKey(key);
+  }
+
+  /** Returns the value of a state, boxed as it would be in a states map, or null if absent. */
+  Object get(String key) {
+    int slot = slotOf(key);
+    if (slot == COLOR_SPECTRUM_RGB) {
+      return (present & COLOR_SLOTS) != 0 ? colorMap() : extra(key);
+    }
+    return slot >= 0 && has(slot) ? boxed(slot) : extra(key);
+  }
+
+  /**
+   * Sets the value of a state. Values of a typed state that have an unexpected type, or that are
+   * not a whole number in its range, are kept as is, and a null value removes the state.
+   */
+  void put(String key, Object value) {
+    if (value == null) {
+      remove(key);
+      return;
+    }
+    int slot = slotOf(key);
+    if (slot == COLOR_SPECTRUM_RGB) {
+      if (putColor(value)) {
+        removeExtra(key);
+        return;
+      }
+    } else if (slot >= 0 && putSlot(slot, value)) {
+      removeExtra(key);
+      return;
+    } else if (slot >= 0) {
+      present &= ~(1 << slot);
+    }
+    if (extras == null) {
+      extras = new HashMap<>();
+    }
+    extras.put(key, value);
+  }
+
+  /** Sets every state of another device state, replacing the states with the same keys. */
+  void putAll(DeviceState states) {
+    for (Map.Entry<String, Object> state : states.toMap().entrySet()) {
+      put(state.getKey(), state.getValue());
+    }
+  }
+
+  void remove(String key) {
+    int slot = slotOf(key);
+    if (slot == COLOR_SPECTRUM_RGB) {
+      present &= ~COLOR_SLOTS;
+    } else if (slot >= 0) {
+      present &= ~(1 << slot);
+    }
+    removeExtra(key);
+  }
+
+  boolean isEmpty() {
+    return present == 0 && (extras == null || extras.isEmpty());
+  }
+
+  /** Returns the states as a map, as stored in Firestore and returned in QUERY responses. */
+  Map<String, Object> toMap() {
+    Map<String, Object> map =
+        new HashMap<>((Integer.bitCount(present) + (extras != null ? extras.size() : 0)) * 2);
+    if (extras != null) {
+      map.putAll(extras);
+    }
+    for (int slot = 0; slot < KEYS.length; slot++) {
+      if (has(slot)) {
+        map.put(KEYS[slot], boxed(slot));
+      }
+    }
+    if ((present & COLOR_SLOTS) != 0) {
+      map.put("color", colorMap());
+    }
+    return map;
+  }
+
+  /**
+   * Returns the states as a protobuf Struct for the HomeGraph API, which expects the spectrumRGB
+   * spelling in color states.
+   */
+  Struct toStruct() {
+    Struct.Builder struct = Struct.newBuilder();
+    if (extras != null) {
+      for (Map.Entry<String, Object> extra : extras.entrySet()) {
+        Object value = extra.getValue();
+        if (extra.getKey().equals("color") && value instanceof Map) {
+          Map<Object, Object> color = new HashMap<>((Map<?, ?>) value);
+          Object rgb = color.remove("spectrumRgb");
+          if (rgb != null) {
+            color.put("spectrumRGB", rgb);
+          }
+          value = color;
+        }
+        struct.putFields(extra.getKey(), toValue(value));
+      }
+    }
+    for (int slot = 0; slot < KEYS.length; slot++) {
+      if (!has(slot)) {
+        continue;
+      }
+      Value.Builder value = Value.newBuilder();
+      if ((BOOLEAN_SLOTS & 1 << slot) != 0) {
+        value.setBoolValue(getBoolean(slot));
+      } else if (slot == THERMOSTAT_MODE) {
+        value.setStringValue(thermostatMode);
+      } else {
+        value.setNumberValue(number(slot));
+      }
+      struct.putFields(KEYS[slot], value.build());
+    }
+    if ((present & COLOR_SLOTS) != 0) {
+      Struct.Builder color = Struct.newBuilder();
+      if (has(COLOR_SPECTRUM_RGB)) {
+        color.putFields("spectrumRGB", Value.newBuilder().setNumberValue(spectrumRgb).build());
+      }
+      if (has(COLOR_TEMPERATURE_K)) {
+        color.putFields("temperatureK", Value.newBuilder().setNumberValue(temperatureK).build());
+      }
+      struct.putFields("color", Value.newBuilder().setStructValue(color).build());
+    }
+    return struct.build();
+  }
+
+  /** Returns the states as a JSON object, as published to devices over MQTT. */
+  String toJson() {
+    StringBuilder json = new StringBuilder(128).append('{');
+    for (int slot = 0; slot < KEYS.length; slot++) {
+      if (!has(slot)) {
+        continue;
+      }
+      appendKey(json, KEYS[slot]);
+      if ((BOOLEAN_SLOTS & 1 << slot) != 0) {
+        json.append(getBoolean(slot));
+      } else if (slot == THERMOSTAT_MODE) {
+        json.append(GSON.toJson(thermostatMode));
+      } else if (slot >= THERMOSTAT_TEMPERATURE_SETPOINT) {
+        appendDouble(json, number(slot));
+      } else {
+        json.append((int) number(slot));
+      }
+    }
+    if ((present & COLOR_SLOTS) != 0) {
+      appendKey(json, "color");
+      json.append('{');
+      if (has(COLOR_SPECTRUM_RGB)) {
+        json.append("\"spectrumRgb\":").append(spectrumRgb);
+      }
+      if (has(COLOR_TEMPERATURE_K)) {
+        if (has(COLOR_SPECTRUM_RGB)) {
+          json.append(',');
+        }
+        json.append("\"temperatureK\":").append(temperatureK);
+      }
+      json.append('}');
+    }
+    if (extras != null) {
+      for (Map.Entry<String, Object> extra : extras.entrySet()) {
+        appendKey(json, extra.getKey());
+        json.append(GSON.toJson(extra.getValue()));
+      }
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * Writes the typed states to {@code ENCODED_BYTES} bytes of a buffer, for storage outside the
+   * heap. Booleans take a bit, the other states take an int or a double, and the thermostat mode
+   * takes a byte.
+   *
+   * @return the states the layout has no room for, which {@link #readFrom} takes back, or null
+   */
+  Map<String, Object> writeTo(ByteBuffer buffer, int offset) {
+    Map<String, Object> residual =
+        extras != null && !extras.isEmpty() ? new HashMap<>(extras) : null;
+    int encoded = present;
+    byte mode = 0;
+    if (has(THERMOSTAT_MODE)) {
+      mode = thermostatModeCode(thermostatMode);
+      if (mode == 0) {
+        encoded &= ~(1 << THERMOSTAT_MODE);
+        if (residual == null) {
+          residual = new HashMap<>();
+        }
+        residual.put("thermostatMode", thermostatMode);
+      }
+    }
+    buffer.putInt(offset, encoded);
+    buffer.putInt(offset + 4, booleans);
+    buffer.putInt(offset + 8, openPercent);
+    buffer.putInt(offset + 12, brightness);
+    buffer.putInt(offset + 16, currentVolume);
+    buffer.putInt(offset + 20, timerRemainingSec);
+    buffer.putInt(offset + 24, spectrumRgb);
+    buffer.putInt(offset + 28, temperatureK);
+    buffer.putDouble(offset + 32, thermostatTemperatureSetpoint);
+    buffer.putDouble(offset + 40, thermostatTemperatureAmbient);
+    buffer.putDouble(offset + 48, thermostatHumidityAmbient);
+    buffer.putDouble(offset + 56, thermostatTemperatureSetpointHigh);
+    buffer.putDouble(offset + 64, thermostatTemperatureSetpointLow);
+    buffer.put(offset + 72, mode);
+    return residual;
+  }
+
+  /** Reads states written by {@link #writeTo}, together with the states it returned. */
+  static DeviceState readFrom(ByteBuffer buffer, int offset, Map<String, Object> residual) {
+    DeviceState state = new DeviceState();
+    state.present = buffer.getInt(offset);
+    state.booleans = buffer.getInt(offset + 4);
+    state.openPercent = buffer.getInt(offset + 8);
+    state.brightness = buffer.getInt(offset + 12);
+    state.currentVolume = buffer.getInt(offset + 16);
+    state.timerRemainingSec = buffer.getInt(offset + 20);
+    state.spectrumRgb = buffer.getInt(offset + 24);
+    state.temperatureK = buffer.getInt(offset + 28);
+    state.thermostatTemperatureSetpoint = buffer.getDouble(offset + 32);
+    state.thermostatTemperatureAmbient = buffer.getDouble(offset + 40);
+    state.thermostatHumidityAmbient = buffer.getDouble(offset + 48);
+    state.thermostatTemperatureSetpointHigh = buffer.getDouble(offset + 56);
+    state.thermostatTemperatureSetpointLow = buffer.getDouble(offset + 64);
+    byte mode = buffer.get(offset + 72);
+    if (mode > 0) {
+      state.thermostatMode = THERMOSTAT_MODES[mode - 1];
+    }
+    if (residual != null) {
+      for (Map.Entry<String, Object> entry : residual.entrySet()) {
+        state.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return state;
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+
+  private boolean has(int slot) {
+    return (present & 1 << slot) != 0;
+  }
+
+  private boolean getBoolean(int slot) {
+    return (booleans & 1 << slot) != 0;
+  }
+
+  private void setBoolean(int slot, boolean value) {
+    if (value) {
+      booleans |= 1 << slot;
+    } else {
+      booleans &= ~(1 << slot);
+    }
+    present |= 1 << slot;
+  }
+
+  private Object extra(String key) {
+    return extras != null ? extras.get(key) : null;
+  }
+
+  private void removeExtra(String key) {
+    if (extras != null) {
+      extras.remove(key);
+    }
+  }
+
+  /**
+   * Stores a value in a typed slot, returning false if it has an unexpected type or is out of the
+   * range of the slot.
+   */
+  private boolean putSlot(int slot, Object value) {
+    if ((BOOLEAN_SLOTS & 1 << slot) != 0) {
+      if (!(value instanceof Boolean)) {
+        return false;
+      }
+      setBoolean(slot, (Boolean) value);
+      return true;
+    }
+    if (slot == THERMOSTAT_MODE) {
+      if (!(value instanceof String)) {
+        return false;
+      }
+      thermostatMode = (String) value;
+    } else {
+      if (!(value instanceof Number)) {
+        return false;
+      }
+      Number number = (Number) value;
+      switch (slot) {
+        case OPEN_PERCENT:
+          if (!isWhole(number, 0, 100)) {
+            return false;
+          }
+          openPercent = number.intValue();
+          break;
+        case BRIGHTNESS:
+          if (!isWhole(number, 0, 100)) {
+            return false;
+          }
+          brightness = number.intValue();
+          break;
+        case CURRENT_VOLUME:
+          if (!isWhole(number, 0, Integer.MAX_VALUE)) {
+            return false;
+          }
+          currentVolume = number.intValue();
+          break;
+        case TIMER_REMAINING_SEC:
+          // -1 is what a device reports when it has no timer
+          if (!isWhole(number, -1, Integer.MAX_VALUE)) {
+            return false;
+          }
+          timerRemainingSec = number.intValue();
+          break;
+        case THERMOSTAT_TEMPERATURE_SETPOINT:
+          thermostatTemperatureSetpoint = number.doubleValue();
+          break;
+        case THERMOSTAT_TEMPERATURE_AMBIENT:
+          thermostatTemperatureAmbient = number.doubleValue();
+          break;
+        case THERMOSTAT_HUMIDITY_AMBIENT:
+          thermostatHumidityAmbient = number.doubleValue();
+          break;
+        case THERMOSTAT_TEMPERATURE_SETPOINT_HIGH:
+          thermostatTemperatureSetpointHigh = number.doubleValue();
+          break;
+        case THERMOSTAT_TEMPERATURE_SETPOINT_LOW:
+          thermostatTemperatureSetpointLow = number.doubleValue();
+          break;
+        default:
+          throw new AssertionError(slot);
+      }
+    }
+    present |= 1 << slot;
+    return true;
+  }
+
+  /** Returns true if a number is a whole one from min to max, as JSON numbers parse to doubles. */
+  private static boolean isWhole(Number number, int min, int max) {
+    double value = number.doubleValue();
+    return value == Math.rint(value) && value >= min && value <= max;
+  }
+
+  /**
+   * Stores a color state made of spectrumRgb and temperatureK, returning false if it has any
+   * other content.
+   */
+  private boolean putColor(Object value) {
+    if (!(value instanceof Map)) {
+      return false;
+    }
+    Map<?, ?> color = (Map<?, ?>) value;
+    Object rgb =
+        color.containsKey("spectrumRgb") ? color.get("spectrumRgb") : color.get("spectrumRGB");
+    Object kelvin = color.get("temperatureK");
+    int known = (rgb != null ? 1 : 0) + (kelvin != null ? 1 : 0);
+    if (known == 0
+        || known != color.size()
+        || rgb != null && !(rgb instanceof Number)
+        || kelvin != null && !(kelvin instanceof Number)) {
+      present &= ~COLOR_SLOTS;
+      return false;
+    }
+    present &= ~COLOR_SLOTS;
+    if (rgb != null) {
+      spectrumRgb = ((Number) rgb).intValue();
+      present |= 1 << COLOR_SPECTRUM_RGB;
+    }
+    if (kelvin != null) {
+      temperatureK = ((Number) kelvin).intValue();
+      present |= 1 << COLOR_TEMPERATURE_K;
+    }
+    return true;
+  }
+
+  private Object boxed(int slot) {
+    if ((BOOLEAN_SLOTS & 1 << slot) != 0) {
+      return getBoolean(slot);
+    }
+    if (slot == THERMOSTAT_MODE) {
+      return thermostatMode;
+    }
+    if (slot >= THERMOSTAT_TEMPERATURE_SETPOINT) {
+      return number(slot);
+    }
+    return (int) number(slot);
+  }
+
+  private double number(int slot) {
+    switch (slot) {
+      case OPEN_PERCENT:
+        return openPercent;
+      case BRIGHTNESS:
+        return brightness;
+      case CURRENT_VOLUME:
+        return currentVolume;
+      case TIMER_REMAINING_SEC:
+        return timerRemainingSec;
+      case THERMOSTAT_TEMPERATURE_SETPOINT:
+        return thermostatTemperatureSetpoint;
+      case THERMOSTAT_TEMPERATURE_AMBIENT:
+        return thermostatTemperatureAmbient;
+      case THERMOSTAT_HUMIDITY_AMBIENT:
+        return thermostatHumidityAmbient;
+      case THERMOSTAT_TEMPERATURE_SETPOINT_HIGH:
+        return thermostatTemperatureSetpointHigh;
+      case THERMOSTAT_TEMPERATURE_SETPOINT_LOW:
+        return thermostatTemperatureSetpointLow;
+      default:
+        throw new AssertionError(slot);
+    }
+  }
+
+  private Map<String, Object> colorMap() {
+    Map<String, Object> color = new HashMap<>(4);
+    if (has(COLOR_SPECTRUM_RGB)) {
+      color.put("spectrumRgb", spectrumRgb);
+    }
+    if (has(COLOR_TEMPERATURE_K)) {
+      color.put("temperatureK", temperatureK);
+    }
+    return color;
+  }
+
+  /** Returns the slot of a state key, or -1 if it is untyped. The color state uses one slot. */
+  private static int slotOf(String key) {
+    switch (key) {
+      case "online":
+        return ONLINE;
+      case "on":
+        return ON;
+      case "openPercent":
+        return OPEN_PERCENT;
+      case "brightness":
+        return BRIGHTNESS;
+      case "isRunning":
+        return IS_RUNNING;
+      case "isPaused":
+        return IS_PAUSED;
+      case "isDocked":
+        return IS_DOCKED;
+      case "isLocked":
+        return IS_LOCKED;
+      case "isJammed":
+        return IS_JAMMED;
+      case "isArmed":
+        return IS_ARMED;
+      case "isMuted":
+        return IS_MUTED;
+      case "currentVolume":
+        return CURRENT_VOLUME;
+      case "timerRemainingSec":
+        return TIMER_REMAINING_SEC;
+      case "timerPaused":
+        return TIMER_PAUSED;
+      case "thermostatMode":
+        return THERMOSTAT_MODE;
+      case "thermostatTemperatureSetpoint":
+        return THERMOSTAT_TEMPERATURE_SETPOINT;
+      case "thermostatTemperatureAmbient":
+        return THERMOSTAT_TEMPERATURE_AMBIENT;
+      case "thermostatHumidityAmbient":
+        return THERMOSTAT_HUMIDITY_AMBIENT;
+      case "thermostatTemperatureSetpointHigh":
+        return THERMOSTAT_TEMPERATURE_SETPOINT_HIGH;
+      case "thermostatTemperatureSetpointLow":
+        return THERMOSTAT_TEMPERATURE_SETPOINT_LOW;
+      case "color":
+        return COLOR_SPECTRUM_RGB;
+      default:
+        return -1;
+    }
+  }
+
+  private static byte thermostatModeCode(String mode) {
+    for (int i = 0; i < THERMOSTAT_MODES.length; i++) {
+      if (THERMOSTAT_MODES[i].equals(mode)) {
+        return (byte) (i + 1);
+      }
+    }
+    return 0;
+  }
+
+  private static void appendKey(StringBuilder json, String key) {
+    if (json.length() > 1) {
+      json.append(',');
+    }
+    json.append(GSON.toJson(key)).append(':');
+  }
+
+  private static void appendDouble(StringBuilder json, double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      json.append("null");
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      json.append((long) value);
+    } else {
+      json.append(value);
+    }
+  }
+
+  private static Value toValue(Object value) {
+    Value.Builder builder = Value.newBuilder();
+    if (value == null) {
+      builder.setNullValue(NullValue.NULL_VALUE);
+    } else if (value instanceof Boolean) {
+      builder.setBoolValue((Boolean) value);
+    } else if (value instanceof Number) {
+      builder.setNumberValue(((Number) value).doubleValue());
+    } else if (value instanceof Map) {
+      Struct.Builder struct = Struct.newBuilder();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        struct.putFields(String.valueOf(entry.getKey()), toValue(entry.getValue()));
+      }
+      builder.setStructValue(struct);
+    } else if (value instanceof Iterable) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (Object element : (Iterable<?>) value) {
+        list.addValues(toValue(element));
+      }
+      builder.setListValue(list);
+    } else if (value instanceof Object[]) {
+      ListValue.Builder list = ListValue.newBuilder();
+      for (Object element : (Object[]) value) {
+        list.addValues(toValue(element));
+      }
+      builder.setListValue(list);
+    } else {
+      builder.setStringValue(value.toString());
+    }
+    return builder.build();
+  }
+
+  private static Object fromValue(Value value) {
+    switch (value.getKindCase()) {
+      case BOOL_VALUE:
+        return value.getBoolValue();
+      case NUMBER_VALUE:
+        return value.getNumberValue();
+      case STRING_VALUE:
+        return value.getStringValue();
+      case STRUCT_VALUE:
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, Value> entry : value.getStructValue().getFieldsMap().entrySet()) {
+          map.put(entry.getKey(), fromValue(entry.getValue()));
+        }
+        return map;
+      case LIST_VALUE:
+        List<Object> list = new ArrayList<>();
+        for (Value element : value.getListValue().getValuesList()) {
+          list.add(fromValue(element));
+        }
+        return list;
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The storage behind {@link MyDataStore}: user documents, and the device documents of each user.
+ *
+ * <p>Documents are maps in the shape Firestore returns them, with whole numbers as longs. Maps
+ * returned by a store may be shared with other readers and must not be modified. Updates are keyed
+ * by dotted field path, as in {@link FieldPaths}, and {@link FieldPaths#DELETE} removes a field.
+ *
+ * <p>The backend is chosen with the {@code smarthome.storage} system property: {@code firestore}
+ * (the default), {@code memory}, or {@code cached} for Firestore behind a {@link
+ * CachingDeviceStore}.
+ *
+ * <p>The operations on the request path also have an asynchronous form, which fails as the
+ * blocking form would throw (see {@link Futures}). By default it makes the blocking call, which
+ * suits stores that answer from memory; Firestore sends the request and returns at once.
+ */
+interface DeviceStore {
+
+  /** Creates the store selected by the {@code smarthome.storage} system property. */
+  static DeviceStore fromSystemProperties() throws Exception {
+    String storage = System.getProperty("smarthome.storage", "firestore");
+    switch (storage) {
+      case "firestore":
+        return FirestoreDeviceStore.fromEnvironment();
+      case "memory":
+        return MemoryDeviceStore.fromSystemProperties();
+      case "cached":
+        return CachingDeviceStore.fromSystemProperties(FirestoreDeviceStore.fromEnvironment());
+      default:
+        throw new IllegalArgumentException("unknown smarthome.storage " + storage);
+    }
+  }
+
+  /**
+   * Returns the ID of a user whose {@code fakeAccessToken} field is the given token, or null if
+   * there is none.
+   */
+  String findUserIdByFakeToken(String fakeAccessToken)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Returns the ID of the user with a device of the given ID, or null if there is none. Device IDs
+   * name the MQTT topics of their devices, so no two users have a device with the same ID.
+   */
+  String findUserIdByDevice(String deviceId) throws ExecutionException, InterruptedException;
+
+  /**
+   * Returns every device document whose given field is true, keyed by user and device ID, such as
+   * the devices with a {@link Schedule}.
+   */
+  Map<DeviceKey, Map<String, Object>> findDevicesWith(String flag)
+      throws ExecutionException, InterruptedException;
+
+  /** Returns the user document, or null if it does not exist. */
+  Map<String, Object> getUser(String userId) throws ExecutionException, InterruptedException;
+
+  /** Creates or replaces the user document. */
+  void setUser(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException;
+
+  /** Updates fields of an existing user document. */
+  void updateUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Sets a field of an existing user document if its current value equals {@code expected}.
+   *
+   * @return false, without changing anything, if the current value differs
+   */
+  boolean compareAndSetUserField(String userId, String field, Object expected, Object value)
+      throws ExecutionException, InterruptedException;
+
+  /** Deletes the user document. Its devices are left alone. */
+  void deleteUser(String userId) throws ExecutionException, InterruptedException;
+
+  /** Returns every device of the user keyed by device ID, in device ID order. */
+  Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException;
+
+  /** Returns the given devices of the user keyed by device ID, leaving out missing devices. */
+  Map<String, Map<String, Object>> getDevices(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException;
+
+  /** Creates or replaces a device document. */
+  void setDevice(String userId, String deviceId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException;
+
+  /**
+   * Applies field updates to existing device documents of one user atomically: either every
+   * update is applied or none is.
+   *
+   * @param updates field updates keyed by device ID and then by field path
+   */
+  void updateDevices(String userId, Map<String, Map<String, Object>> updates)
+      throws ExecutionException, InterruptedException;
+
+  void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException;
+
+  /** The asynchronous form of {@link #findUserIdByFakeToken}. */
+  default CompletableFuture<String> findUserIdByFakeTokenAsync(String fakeAccessToken) {
+    return Futures.call(() -> findUserIdByFakeToken(fakeAccessToken));
+  }
+
+  /** The asynchronous form of {@link #findUserIdByDevice}. */
+  default CompletableFuture<String> findUserIdByDeviceAsync(String deviceId) {
+    return Futures.call(() -> findUserIdByDevice(deviceId));
+  }
+
+  /** The asynchronous form of {@link #findDevicesWith}. */
+  default CompletableFuture<Map<DeviceKey, Map<String, Object>>> findDevicesWithAsync(
+      String flag) {
+    return Futures.call(() -> findDevicesWith(flag));
+  }
+
+  /** The asynchronous form of {@link #getUser}. */
+  default CompletableFuture<Map<String, Object>> getUserAsync(String userId) {
+    return Futures.call(() -> getUser(userId));
+  }
+
+  /** The asynchronous form of {@link #setUser}. */
+  default CompletableFuture<Void> setUserAsync(String userId, Map<String, Object> data) {
+    return Futures.call(
+        () -> {
+          setUser(userId, data);
+          return null;
+        });
+  }
+
+  /** The asynchronous form of {@link #updateUser}. */
+  default CompletableFuture<Void> updateUserAsync(String userId, Map<String, Object> fields) {
+    return Futures.call(
+        () -> {
+          updateUser(userId, fields);
+          return null;
+        });
+  }
+
+  /** The asynchronous form of {@link #compareAndSetUserField}. */
+  default CompletableFuture<Boolean> compareAndSetUserFieldAsync(
+      String userId, String field, Object expected, Object value) {
+    return Futures.call(() -> compareAndSetUserField(userId, field, expected, value));
+  }
+
+  /** The asynchronous form of {@link #getDevices(String)}. */
+  default CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(String userId) {
+    return Futures.call(() -> getDevices(userId));
+  }
+
+  /** The asynchronous form of {@link #getDevices(String, Collection)}. */
+  default CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(
+      String userId, Collection<String> deviceIds) {
+    return Futures.call(() -> getDevices(userId, deviceIds));
+  }
+
+  /** The asynchronous form of {@link #setDevice}. */
+  default CompletableFuture<Void> setDeviceAsync(
+      String userId, String deviceId, Map<String, Object> data) {
+    return Futures.call(
+        () -> {
+          setDevice(userId, deviceId, data);
+          return null;
+        });
+  }
+
+  /** The asynchronous form of {@link #updateDevices}. */
+  default CompletableFuture<Void> updateDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return Futures.call(
+        () -> {
+          updateDevices(userId, updates);
+          return null;
+        });
+  }
+
+  /**
+   * Applies field updates like {@link #updateDevicesAsync}, but only completes once they are
+   * committed to the database, where {@code updateDevicesAsync} may acknowledge buffered updates
+   * before. For writes whose outcome is reported, like the state changes of an EXECUTE request.
+   */
+  default CompletableFuture<Void> commitDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return updateDevicesAsync(userId, updates);
+  }
+
+  /** The asynchronous form of {@link #deleteDevice}. */
+  default CompletableFuture<Void> deleteDeviceAsync(String userId, String deviceId) {
+    return Futures.call(
+        () -> {
+          deleteDevice(userId, deviceId);
+          return null;
+        });
+  }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Runs each EXECUTE request once, however often Google retries it. Requests are keyed by agent
+ * user ID and request ID. A retry gets the outcomes of the first attempt without anything being
+ * written, published or reported again, and a retry that arrives while the first attempt runs
+ * waits for it, for up to {@code smarthome.idempotency.waitMs} milliseconds.
+ *
+ * <p>Outcomes are kept for {@code smarthome.idempotency.ttlMs} milliseconds, and for at most
+ * {@code smarthome.idempotency.capacity} requests, the oldest going first. An attempt that ended in
+ * a transient error is not kept, so that a retry runs the request again. With an {@link
+ * ExecuteResultStore}, the same holds across instances. Without one, as with the default {@code
+ * smarthome.idempotency.store} of {@code none}, requests are only deduplicated per instance: a
+ * retry that reaches another instance runs the request again, so deployments with more than one
+ * instance should use the {@code firestore} store.
+ *
+ * <p>{@link #executeAsync} waits for nothing on the calling thread: while another instance runs a
+ * request, the shared store is polled from a scheduler.
+ */
+final class ExecuteDeduplicator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final long POLL_MS = 100;
+  private static final Gson GSON = new Gson();
+  /** Gives up on the attempts that asynchronous retries wait for, and paces polls. */
+  private static final ScheduledExecutorService TIMEOUTS =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "execute-timeouts");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** The attempt of one request, or its outcomes once known. */
+  private static final class Entry {
+    final String key;
+    final long expiresAtNanos;
+    final CompletableFuture<List<ExecutionOutcome>> outcomes = new CompletableFuture<>();
+
+    Entry(String key, long expiresAtNanos) {
+      this.key = key;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  private final int capacity;
+  private final long ttlMillis;
+  private final long waitMillis;
+  /** Shares requests with other instances, or null to only know the requests of this one. */
+  private final ExecuteResultStore shared;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  /** Entries in the order they were added, including replaced ones until they expire. */
+  private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger ordered = new AtomicInteger();
+
+  ExecuteDeduplicator(int capacity, long ttlMillis, long waitMillis, ExecuteResultStore shared) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.waitMillis = waitMillis;
+    this.shared = shared;
+  }
+
+  static ExecuteDeduplicator fromSystemProperties() {
+    ExecuteResultStore shared;
+    try {
+      shared = ExecuteResultStore.fromSystemProperties();
+    } catch (Exception e) {
+      LOGGER.error("failed to open the EXECUTE result store", e);
+      throw new RuntimeException(e);
+    }
+    return new ExecuteDeduplicator(
+        Integer.getInteger("smarthome.idempotency.capacity", 10_000),
+        Long.getLong("smarthome.idempotency.ttlMs", TimeUnit.MINUTES.toMillis(10)),
+        Long.getLong("smarthome.idempotency.waitMs", TimeUnit.SECONDS.toMillis(10)),
+        shared);
+  }
+
+  /**
+   * Returns the outcomes of a request, running {@code attempt} unless this request has run or is
+   * running. If a running attempt does not finish in time, every command fails with a transient
+   * error.
+   *
+   * @param requestId the request ID, or null to always run the attempt
+   * @param commands the number of commands of the request
+   * @param attempt runs the request and returns one outcome per command
+   */
+  List<ExecutionOutcome> execute(
+      String userId, String requestId, int commands, Supplier<List<ExecutionOutcome>> attempt)
+      throws InterruptedException {
+    if (requestId == null) {
+      return attempt.get();
+    }
+    Entry entry = newEntry(userId, requestId);
+    Entry existing = add(entry);
+    if (existing != null) {
+      return await(existing, commands);
+    }
+
+    List<ExecutionOutcome> outcomes;
+    try {
+      outcomes = runOnce(entry.key, commands, attempt);
+    } catch (InterruptedException | RuntimeException | Error e) {
+      finish(entry, null, e);
+      throw e;
+    }
+    finish(entry, outcomes, null);
+    return outcomes;
+  }
+
+  /**
+   * The asynchronous form of {@link #execute}, for an attempt that returns a future of the
+   * outcomes. It fails if the attempt fails.
+   */
+  CompletableFuture<List<ExecutionOutcome>> executeAsync(
+      String userId,
+      String requestId,
+      int commands,
+      Supplier<CompletableFuture<List<ExecutionOutcome>>> attempt) {
+    if (requestId == null) {
+      return attempt.get();
+    }
+    Entry entry = newEntry(userId, requestId);
+    Entry existing = add(entry);
+    if (existing != null) {
+      return awaitAsync(existing, commands);
+    }
+
+    CompletableFuture<List<ExecutionOutcome>> outcomes;
+    try {
+      outcomes = shared != null ? runOnceAsync(entry.key, commands, attempt) : attempt.get();
+    } catch (RuntimeException | Error e) {
+      finish(entry, null, e);
+      throw e;
+    }
+    return outcomes.whenComplete((done, failure) -> finish(entry, done, failure));
+  }
+
+  private Entry newEntry(String userId, String requestId) {
+    return new Entry(
+        userId + '\n' + requestId, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+  }
+
+  /** Adds the entry of a request, or returns the entry of an attempt already made of it. */
+  private Entry add(Entry entry) {
+    long now = System.nanoTime();
+    evict(now);
+    Entry existing;
+    while ((existing = entries.putIfAbsent(entry.key, entry)) != null) {
+      if (existing.expiresAtNanos - now > 0) {
+        return existing;
+      }
+      entries.remove(entry.key, existing);
+    }
+    order.add(entry);
+    ordered.incrementAndGet();
+    return null;
+  }
+
+  /** Completes the entry of an attempt, dropping it if the attempt failed or should be retried. */
+  private void finish(Entry entry, List<ExecutionOutcome> outcomes, Throwable failure) {
+    if (failure != null || isTransientFailure(outcomes)) {
+      entries.remove(entry.key, entry);
+    }
+    if (failure != null) {
+      entry.outcomes.completeExceptionally(failure);
+    } else {
+      entry.outcomes.complete(outcomes);
+    }
+  }
+
+  /** Waits for the attempt of another thread of this instance. */
+  private List<ExecutionOutcome> await(Entry entry, int commands) throws InterruptedException {
+    try {
+      return entry.outcomes.get(waitMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      LOGGER.warn("gave up waiting for the first attempt of an EXECUTE request", e);
+      return transientFailure(commands);
+    }
+  }
+
+  /** The asynchronous form of {@link #await}. */
+  private CompletableFuture<List<ExecutionOutcome>> awaitAsync(Entry entry, int commands) {
+    CompletableFuture<List<ExecutionOutcome>> outcomes = new CompletableFuture<>();
+    ScheduledFuture<?> timeout =
+        TIMEOUTS.schedule(
+            () -> {
+              if (outcomes.complete(transientFailure(commands))) {
+                LOGGER.warn("gave up waiting for the first attempt of an EXECUTE request");
+              }
+            },
+            waitMillis,
+            TimeUnit.MILLISECONDS);
+    entry.outcomes.whenComplete(
+        (done, failure) -> {
+          timeout.cancel(false);
+          if (failure != null) {
+            LOGGER.warn("the first attempt of an EXECUTE request failed", failure);
+            outcomes.complete(transientFailure(commands));
+          } else {
+            outcomes.complete(done);
+          }
+        });
+    return outcomes;
+  }
+
+  /** Runs the attempt, unless the shared store has its outcomes or another instance runs it. */
+  private List<ExecutionOutcome> runOnce(
+      String key, int commands, Supplier<List<ExecutionOutcome>> attempt)
+      throws InterruptedException {
+    if (shared == null) {
+      return attempt.get();
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    try {
+      ExecuteResultStore.Claim claim;
+      while (!(claim = shared.claim(key, waitMillis)).owned) {
+        if (claim.result != null) {
+          return fromJson(claim.result, commands);
+        }
+        if (System.nanoTime() - deadline > 0) {
+          LOGGER.warn("gave up waiting for another instance to run an EXECUTE request");
+          return transientFailure(commands);
+        }
+        Thread.sleep(POLL_MS);
+      }
+    } catch (ExecutionException e) {
+      // Running the request twice is better than not running it
+      LOGGER.warn("failed to claim an EXECUTE request, running it anyway", e);
+      return attempt.get();
+    }
+
+    List<ExecutionOutcome> outcomes = attempt.get();
+    try {
+      if (isTransientFailure(outcomes)) {
+        shared.release(key);
+      } else {
+        shared.complete(key, toJson(outcomes), ttlMillis);
+      }
+    } catch (ExecutionException e) {
+      LOGGER.warn("failed to share the outcome of an EXECUTE request", e);
+    }
+    return outcomes;
+  }
+
+  /** The asynchronous form of {@link #runOnce}, with a shared store. */
+  private CompletableFuture<List<ExecutionOutcome>> runOnceAsync(
+      String key, int commands, Supplier<CompletableFuture<List<ExecutionOutcome>>> attempt) {
+    RequestContext context = RequestContext.current();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    return claimAsync(context, key, deadline)
+        .handle(
+            (claim, failure) -> {
+              if (failure == null) {
+                return claim;
+              }
+              Throwable cause = Futures.unwrap(failure);
+              if (!(cause instanceof ExecutionException)) {
+                throw new CompletionException(cause);
+              }
+              // Running the request twice is better than not running it
+              LOGGER.warn("failed to claim an EXECUTE request, running it anyway", cause);
+              return null;
+            })
+        .thenCompose(
+            claim ->
+                RequestContext.within(
+                    context,
+                    () -> {
+                      if (claim == null) {
+                        return attempt.get();
+                      } else if (claim.result != null) {
+                        return CompletableFuture.completedFuture(
+                            fromJson(claim.result, commands));
+                      } else if (!claim.owned) {
+                        LOGGER.warn(
+                            "gave up waiting for another instance to run an EXECUTE request");
+                        return CompletableFuture.completedFuture(transientFailure(commands));
+                      }
+                      return attempt
+                          .get()
+                          .thenCompose(
+                              outcomes -> shareAsync(key, outcomes).thenApply(stored -> outcomes));
+                    }));
+  }
+
+  /**
+   * Claims a request in the shared store, polling it every POLL_MS while another instance runs
+   * the request.
+   *
+   * @return the claim, still {@link ExecuteResultStore.Claim#RUNNING} if the deadline passed
+   */
+  private CompletableFuture<ExecuteResultStore.Claim> claimAsync(
+      RequestContext context, String key, long deadline) {
+    return shared
+        .claimAsync(key, waitMillis)
+        .thenCompose(
+            claim -> {
+              if (claim.owned || claim.result != null || System.nanoTime() - deadline > 0) {
+                return CompletableFuture.completedFuture(claim);
+              }
+              CompletableFuture<Void> polled = new CompletableFuture<>();
+              TIMEOUTS.schedule(() -> polled.complete(null), POLL_MS, TimeUnit.MILLISECONDS);
+              return polled.thenCompose(
+                  again ->
+                      RequestContext.within(context, () -> claimAsync(context, key, deadline)));
+            });
+  }
+
+  /** Stores the outcomes of a claimed request, or releases it so that a retry runs it again. */
+  private CompletableFuture<Void> shareAsync(String key, List<ExecutionOutcome> outcomes) {
+    CompletableFuture<Void> stored =
+        isTransientFailure(outcomes)
+            ? shared.releaseAsync(key)
+            : shared.completeAsync(key, toJson(outcomes), ttlMillis);
+    return stored.exceptionally(
+        failure -> {
+          LOGGER.warn("failed to share the outcome of an EXECUTE request", Futures.unwrap(failure));
+          return null;
+        });
+  }
+
+  /** Drops expired entries, and the oldest ones while there are too many. */
+  private void evict(long now) {
+    for (Entry oldest = order.peek();
+        oldest != null && (oldest.expiresAtNanos - now <= 0 || ordered.get() > capacity);
+        oldest = order.peek()) {
+      Entry evicted = order.poll();
+      if (evicted != null) {
+        ordered.decrementAndGet();
+        entries.remove(evicted.key, evicted);
+      }
+    }
+  }
+
+  private static boolean isTransientFailure(List<ExecutionOutcome> outcomes) {
+    return outcomes.contains(ExecutionOutcome.TRANSIENT_ERROR);
+  }
+
+  private static List<ExecutionOutcome> transientFailure(int commands) {
+    return Collections.nCopies(commands, ExecutionOutcome.TRANSIENT_ERROR);
+  }
+
+  static String toJson(List<ExecutionOutcome> outcomes) {
+    List<Map<String, Object>> json = new ArrayList<>(outcomes.size());
+    for (ExecutionOutcome outcome : outcomes) {
+      Map<String, Object> fields = new LinkedHashMap<>();
+      fields.put("status", outcome.status.name());
+      if (outcome.challenge != null) {
+        fields.put("challenge", outcome.challenge.get("type"));
+      } else if (outcome.errorCode != null) {
+        fields.put("errorCode", outcome.errorCode);
+      }
+      if (outcome.states != null) {
+        fields.put("states", outcome.states.toMap());
+      }
+      json.add(fields);
+    }
+    return GSON.toJson(json);
+  }
+
+  /** Reads outcomes written by {@link #toJson}, failing every command if they do not fit. */
+  static List<ExecutionOutcome> fromJson(String json, int commands) {
+    List<Map<String, Object>> fields =
+        GSON.fromJson(json, new TypeToken<List<Map<String, Object>>>() {}.getType());
+    if (fields.size() != commands) {
+      LOGGER.warn("stored EXECUTE outcomes do not match the request");
+      return transientFailure(commands);
+    }
+    List<ExecutionOutcome> outcomes = new ArrayList<>(fields.size());
+    for (Map<String, Object> outcome : fields) {
+      switch (ExecutionOutcome.Status.valueOf((String) outcome.get("status"))) {
+        case SUCCESS:
+          @SuppressWarnings("unchecked")
+          Map<String, Object> states = (Map<String, Object>) outcome.get("states");
+          outcomes.add(
+              ExecutionOutcome.success(
+                  DeviceState.fromMap(
+                      states != null ? JsonDocuments.restoreIntegers(states) : null)));
+          break;
+        case PENDING:
+          outcomes.add(ExecutionOutcome.PENDING);
+          break;
+        default:
+          outcomes.add(
+              outcome.containsKey("challenge")
+                  ? ExecutionOutcome.challenge((String) outcome.get("challenge"))
+                  : ExecutionOutcome.error((String) outcome.get("errorCode")));
+      }
+    }
+    return outcomes;
+  }
+}
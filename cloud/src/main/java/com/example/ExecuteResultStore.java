@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Where instances share which EXECUTE requests they are running and the results of those they
+ * ran, so that a retry reaching another instance is not executed again. Used by {@link
+ * ExecuteDeduplicator}; results are opaque strings.
+ *
+ * <p>The store is chosen with the {@code smarthome.idempotency.store} system property: {@code
+ * none} (the default), where each instance only knows its own requests, or {@code firestore}.
+ */
+interface ExecuteResultStore {
+
+  /** Where a request stands in the store. */
+  final class Claim {
+    static final Claim OWNED = new Claim(true, null);
+    static final Claim RUNNING = new Claim(false, null);
+
+    /** Whether the caller now runs the request. */
+    final boolean owned;
+    /** The result of the request, or null if it has none yet. */
+    final String result;
+
+    private Claim(boolean owned, String result) {
+      this.owned = owned;
+      this.result = result;
+    }
+
+    static Claim completed(String result) {
+      return new Claim(false, result);
+    }
+  }
+
+  /** Creates the store selected by the {@code smarthome.idempotency.store} system property. */
+  static ExecuteResultStore fromSystemProperties() throws Exception {
+    String store = System.getProperty("smarthome.idempotency.store", "none");
+    switch (store) {
+      case "none":
+        return null;
+      case "firestore":
+        return new FirestoreExecuteResultStore(FirestoreDeviceStore.connectFromEnvironment());
+      default:
+        throw new IllegalArgumentException("unknown smarthome.idempotency.store " + store);
+    }
+  }
+
+  /**
+   * Claims a request unless another claim of it is live or it has a result. A claim lapses after
+   * {@code leaseMillis}, so that the request is run again if its instance dies.
+   */
+  Claim claim(String key, long leaseMillis) throws ExecutionException, InterruptedException;
+
+  /** Stores the result of a claimed request, to be kept for {@code ttlMillis}. */
+  void complete(String key, String result, long ttlMillis)
+      throws ExecutionException, InterruptedException;
+
+  /** Drops the claim of a request without a result, so that a retry runs it again. */
+  void release(String key) throws ExecutionException, InterruptedException;
+
+  /** The asynchronous form of {@link #claim}. */
+  default CompletableFuture<Claim> claimAsync(String key, long leaseMillis) {
+    return Futures.call(() -> claim(key, leaseMillis));
+  }
+
+  /** The asynchronous form of {@link #complete}. */
+  default CompletableFuture<Void> completeAsync(String key, String result, long ttlMillis) {
+    return Futures.call(
+        () -> {
+          complete(key, result, ttlMillis);
+          return null;
+        });
+  }
+
+  /** The asynchronous form of {@link #release}. */
+  default CompletableFuture<Void> releaseAsync(String key) {
+    return Futures.call(
+        () -> {
+          release(key);
+          return null;
+        });
+  }
+}
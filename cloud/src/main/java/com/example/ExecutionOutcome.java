@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The immutable outcome of executing a command on one device. Expected rejections such as an
+ * offline device or a missing PIN are shared constants, so reporting them allocates nothing.
+ */
+final class ExecutionOutcome {
+
+  enum Status {
+    SUCCESS,
+    PENDING,
+    ERROR
+  }
+
+  static final ExecutionOutcome PENDING = new ExecutionOutcome(Status.PENDING, null, null, null);
+
+  static final ExecutionOutcome DEVICE_OFFLINE = newError("deviceOffline");
+  static final ExecutionOutcome DEVICE_NOT_FOUND = newError("deviceNotFound");
+  static final ExecutionOutcome NOT_SUPPORTED = newError("notSupported");
+  static final ExecutionOutcome NO_TIMER_EXISTS = newError("noTimerExists");
+  static final ExecutionOutcome VALUE_OUT_OF_RANGE = newError("valueOutOfRange");
+  static final ExecutionOutcome NETWORK_PROFILE_NOT_RECOGNIZED =
+      newError("networkProfileNotRecognized");
+  static final ExecutionOutcome TRANSIENT_ERROR = newError("transientError");
+  static final ExecutionOutcome HARD_ERROR = newError("hardError");
+
+  static final ExecutionOutcome ACK_NEEDED = newChallenge("ackNeeded");
+  static final ExecutionOutcome PIN_NEEDED = newChallenge("pinNeeded");
+  static final ExecutionOutcome CHALLENGE_FAILED_PIN_NEEDED =
+      newChallenge("challengeFailedPinNeeded");
+
+  private static final int MAX_CACHED_ERRORS = 64;
+
+  /** Error outcomes by error code, including codes stored on devices. */
+  private static final Map<String, ExecutionOutcome> ERRORS = new ConcurrentHashMap<>();
+
+  static {
+    for (ExecutionOutcome outcome :
+        new ExecutionOutcome[] {
+          DEVICE_OFFLINE,
+          DEVICE_NOT_FOUND,
+          NOT_SUPPORTED,
+          NO_TIMER_EXISTS,
+          VALUE_OUT_OF_RANGE,
+          NETWORK_PROFILE_NOT_RECOGNIZED,
+          TRANSIENT_ERROR,
+          HARD_ERROR
+        }) {
+      ERRORS.put(outcome.errorCode, outcome);
+    }
+  }
+
+  final Status status;
+  /** The Smart Home error code, or null unless the status is ERROR. */
+  final String errorCode;
+  /** The challengeNeeded object of the response, or null if no challenge is needed. */
+  final Map<String, String> challenge;
+  /** The device states to report, or null unless the status is SUCCESS. */
+  final DeviceState states;
+
+  private ExecutionOutcome(
+      Status status, String errorCode, Map<String, String> challenge, DeviceState states) {
+    this.status = status;
+    this.errorCode = errorCode;
+    this.challenge = challenge;
+    this.states = states;
+  }
+
+  static ExecutionOutcome success(DeviceState states) {
+    return new ExecutionOutcome(Status.SUCCESS, null, null, states);
+  }
+
+  /** Returns the shared outcome for an error code. */
+  static ExecutionOutcome error(String errorCode) {
+    ExecutionOutcome outcome = ERRORS.get(errorCode);
+    if (outcome == null) {
+      outcome = newError(errorCode);
+      // Error codes are free-form device data, so keep the cache bounded
+      if (ERRORS.size() < MAX_CACHED_ERRORS) {
+        ERRORS.putIfAbsent(errorCode, outcome);
+      }
+    }
+    return outcome;
+  }
+
+  /** Returns the shared outcome asking for a challenge of the given type. */
+  static ExecutionOutcome challenge(String type) {
+    for (ExecutionOutcome outcome :
+        new ExecutionOutcome[] {ACK_NEEDED, PIN_NEEDED, CHALLENGE_FAILED_PIN_NEEDED}) {
+      if (outcome.challenge.get("type").equals(type)) {
+        return outcome;
+      }
+    }
+    return newChallenge(type);
+  }
+
+  private static ExecutionOutcome newError(String errorCode) {
+    return new ExecutionOutcome(Status.ERROR, errorCode, null, null);
+  }
+
+  private static ExecutionOutcome newChallenge(String type) {
+    return new ExecutionOutcome(
+        Status.ERROR, "challengeNeeded", Collections.singletonMap("type", type), null);
+  }
+}
@@ -0,0 +1,943 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.actions.api.smarthome.SmartHomeRequest;
+import com.google.gson.Gson;
+
+/**
+ * Turns EXECUTE commands into state changes without doing any I/O, so that every command of a
+ * request can be validated before anything is written.
+ */
+final class ExecutionPlanner {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Gson GSON = new Gson();
+
+  /**
+   * The device document field holding when its running timer runs out, in milliseconds since the
+   * epoch, or 0 if it has no running timer. The stored timerRemainingSec state is only current
+   * when the timer is paused; see {@link #withTimerCountdown}.
+   */
+  static final String TIMER_ENDS_AT = "timerEndsAtMs";
+
+  private ExecutionPlanner() {
+  }
+
+  /**
+   * Returns a device document with the remaining time of its running timer counted down to now,
+   * without writing anything. A timer that ran out has no time remaining, which is -1.
+   */
+  static Map<String, Object> withTimerCountdown(Map<String, Object> document, long nowMillis) {
+    long endsAt = timerEndsAt(document);
+    if (endsAt <= 0) {
+      return document;
+    }
+    long remaining = endsAt > nowMillis ? (endsAt - nowMillis + 999) / 1000 : -1;
+    return FieldPaths.apply(
+        document, Collections.singletonMap("states.timerRemainingSec", remaining));
+  }
+
+  /** Returns when the running timer of a device document runs out, or 0 if none is running. */
+  static long timerEndsAt(Map<String, Object> document) {
+    Object endsAt = document != null ? document.get(TIMER_ENDS_AT) : null;
+    return endsAt instanceof Number ? ((Number) endsAt).longValue() : 0;
+  }
+
+  private static boolean isTimerPaused(DeviceState states) {
+    return Boolean.TRUE.equals(states.get("timerPaused"));
+  }
+
+  /** Returns a modifiable copy of a map state, or an empty map if there is none. */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> copyOfMap(Map<String, Object> states, String key) {
+    Object value = states != null ? states.get(key) : null;
+    return value instanceof Map
+        ? new HashMap<>((Map<String, Object>) value)
+        : new HashMap<String, Object>();
+  }
+
+  /** Returns when a timer started now with the given duration runs out. */
+  private static long endsAt(long seconds) {
+    return System.currentTimeMillis() + seconds * 1000;
+  }
+
+  /**
+   * Returns an execution of a command that does not come from Google, such as that of a {@link
+   * Schedule}, as if it came in an EXECUTE request.
+   *
+   * @param params the parameters of the command, or null if it has none
+   */
+  static ExecuteRequest.Inputs.Payload.Commands.Execution execution(
+      String command, Map<String, Object> params) {
+    Map<String, Object> fields = new LinkedHashMap<>();
+    fields.put("command", command);
+    if (params != null) {
+      fields.put("params", params);
+    }
+    // Parsed as part of a request, which is how the library builds executions
+    String body =
+        "{\"requestId\":\"local\",\"inputs\":[{"
+            + "\"intent\":\"action.devices.EXECUTE\",\"payload\":{\"commands\":[{"
+            + "\"devices\":[],\"execution\":["
+            + GSON.toJson(fields)
+            + "]}]}}]}";
+    ExecuteRequest request = (ExecuteRequest) SmartHomeRequest.Companion.create(body);
+    return ((ExecuteRequest.Inputs) request.inputs[0]).payload.commands[0].execution[0];
+  }
+
+  /** One execution targeted at one device. */
+  static final class Command {
+    final String deviceId;
+    final ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+
+    Command(String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution) {
+      this.deviceId = deviceId;
+      this.execution = execution;
+    }
+  }
+
+  /** The changes one execution makes to one device, or the reason it was rejected. */
+  static final class DevicePlan {
+    final String deviceId;
+    /** The device states reported back to Google, or null if rejected. */
+    final DeviceState states;
+    /** Firestore updates of the device document, keyed by field path. */
+    final Map<String, Object> updates;
+    /** The states to send to the device over MQTT, or null if rejected. */
+    final DeviceState messages;
+    /** True if the command completes asynchronously. */
+    final boolean pending;
+    /** The outcome if the execution was rejected, otherwise null. */
+    final ExecutionOutcome rejection;
+
+    DevicePlan(
+        String deviceId,
+        DeviceState states,
+        Map<String, Object> updates,
+        DeviceState messages,
+        boolean pending) {
+      this(deviceId, states, updates, messages, pending, null);
+    }
+
+    private DevicePlan(
+        String deviceId,
+        DeviceState states,
+        Map<String, Object> updates,
+        DeviceState messages,
+        boolean pending,
+        ExecutionOutcome rejection) {
+      this.deviceId = deviceId;
+      this.states = states;
+      this.updates = updates;
+      this.messages = messages;
+      this.pending = pending;
+      this.rejection = rejection;
+    }
+
+    static DevicePlan rejected(String deviceId, ExecutionOutcome rejection) {
+      return new DevicePlan(deviceId, null, Collections.emptyMap(), null, false, rejection);
+    }
+
+    /** Returns the outcome of the execution once its changes have been committed. */
+    ExecutionOutcome committed() {
+      if (rejection != null) {
+        return rejection;
+      }
+      return pending ? ExecutionOutcome.PENDING : ExecutionOutcome.success(states);
+    }
+  }
+
+  /** The plans of the commands of one EXECUTE request, and the changes they make together. */
+  static final class Batch {
+    /** One plan per command, in order. */
+    final List<DevicePlan> plans = new ArrayList<>();
+    /** The field updates to commit, keyed by device ID and then field path. */
+    final Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+    /** The device documents as the updates leave them, keyed by device ID. */
+    final Map<String, Map<String, Object>> devices;
+
+    private Batch(Map<String, Map<String, Object>> read) {
+      devices = new HashMap<>(read);
+    }
+
+    /**
+     * Returns the outcomes of the commands if the updates could not be committed: rejected
+     * commands keep their rejection, and the others fail with a transient error.
+     */
+    List<ExecutionOutcome> uncommitted() {
+      List<ExecutionOutcome> outcomes = new ArrayList<>(plans.size());
+      for (DevicePlan plan : plans) {
+        outcomes.add(plan.rejection != null ? plan.rejection : ExecutionOutcome.TRANSIENT_ERROR);
+      }
+      return outcomes;
+    }
+  }
+
+  /**
+   * Plans the commands of one EXECUTE request on the devices read for it. A rejected command
+   * changes nothing, and later commands for a device see the changes of earlier ones.
+   *
+   * @param commands the commands of the request
+   * @param read the device documents read for the request, keyed by device ID
+   * @param prepare turns the document of a device into the one to plan on, given its ID
+   */
+  static Batch planAll(
+      List<Command> commands,
+      Map<String, Map<String, Object>> read,
+      BiFunction<String, Map<String, Object>, Map<String, Object>> prepare) {
+    Batch batch = new Batch(read);
+    for (Command command : commands) {
+      Map<String, Object> data = batch.devices.get(command.deviceId);
+      DevicePlan plan;
+      if (data == null) {
+        plan = DevicePlan.rejected(command.deviceId, ExecutionOutcome.DEVICE_NOT_FOUND);
+      } else {
+        try {
+          plan = plan(command.deviceId, prepare.apply(command.deviceId, data), command.execution);
+        } catch (RuntimeException e) {
+          // Malformed parameters or device data, not an expected rejection
+          LOGGER.error("failed to plan " + command.execution.command, e);
+          plan = DevicePlan.rejected(command.deviceId, ExecutionOutcome.HARD_ERROR);
+        }
+      }
+      if (plan.rejection == null) {
+        for (Map.Entry<String, Object> update : plan.updates.entrySet()) {
+          // Fields that already have their value are not written again
+          if (!DeviceShadow.same(FieldPaths.get(data, update.getKey()), update.getValue())) {
+            FieldPaths.merge(
+                batch.updates.computeIfAbsent(command.deviceId, id -> new LinkedHashMap<>()),
+                update.getKey(),
+                update.getValue());
+          }
+        }
+        // Later commands for the same device see the changes of this one
+        batch.devices.put(command.deviceId, FieldPaths.apply(data, plan.updates));
+      }
+      batch.plans.add(plan);
+    }
+    return batch;
+  }
+
+  /**
+   * Validates an execution against the current device document and computes its changes.
+   *
+   * @param deviceId the targeted device
+   * @param data the device document, including writes that are not yet flushed
+   * @param execution the execution to apply
+   * @return the planned changes, or a rejected plan if the execution is not allowed
+   */
+  static DevicePlan plan(
+      String deviceId,
+      Map<String, Object> data,
+      ExecuteRequest.Inputs.Payload.Commands.Execution execution) {
+    Map<String, Object> deviceStates = (Map<String, Object>) data.get("states");
+    DeviceState states = DeviceState.fromMap(deviceStates);
+    Map<String, Object> updates = new LinkedHashMap<>();
+    DeviceState messages = new DeviceState();
+
+    if (!states.isOnline()) {
+      return DevicePlan.rejected(deviceId, ExecutionOutcome.DEVICE_OFFLINE);
+    }
+
+    String errorCode = (String) data.get("errorCode");
+    if (errorCode != null && !errorCode.isEmpty()) {
+      return DevicePlan.rejected(deviceId, ExecutionOutcome.error(errorCode));
+    }
+
+    String tfa = (String) data.get("tfa");
+    if (tfa != null) {
+      if (tfa.equals("ack") && execution.getChallenge() == null) {
+        return DevicePlan.rejected(deviceId, ExecutionOutcome.ACK_NEEDED);
+      } else if (!tfa.isEmpty() && execution.getChallenge() == null) {
+        return DevicePlan.rejected(deviceId, ExecutionOutcome.PIN_NEEDED);
+      } else if (!tfa.isEmpty() && execution.getChallenge() != null) {
+        String pin = (String) execution.getChallenge().get("pin");
+        if (pin != null && !pin.equals(tfa)) {
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.CHALLENGE_FAILED_PIN_NEEDED);
+        }
+      }
+    }
+
+    switch (execution.command) {
+      // action.devices.traits.AppSelector
+      case "action.devices.commands.appSelect": {
+        String newApplication = (String) execution.getParams().get("newApplication");
+        String newApplicationName = (String) execution.getParams().get("newApplicationName");
+        String currentApplication = newApplication != null ? newApplication : newApplicationName;
+        updates.put("states.currentApplication", currentApplication);
+        states.put("currentApplication", currentApplication);
+        messages.put("currentApplication", currentApplication);
+        break;
+      }
+
+      case "action.devices.commands.appInstall": {
+        String newApplication = (String) execution.getParams().get("newApplication");
+        String newApplicationName = (String) execution.getParams().get("newApplicationName");
+        String currentApplication = newApplication != null ? newApplication : newApplicationName;
+        LOGGER.info("Install app {}", currentApplication);
+        break;
+      }
+
+      case "action.devices.commands.appSearch": {
+        String newApplication = (String) execution.getParams().get("newApplication");
+        String newApplicationName = (String) execution.getParams().get("newApplicationName");
+        String currentApplication = newApplication != null ? newApplication : newApplicationName;
+        LOGGER.info("Search for app {}", currentApplication);
+        break;
+      }
+
+      // action.devices.traits.ArmDisarm
+      case "action.devices.commands.ArmDisarm":
+        if (execution.getParams().containsKey("arm")) {
+          boolean isArmed = (boolean) execution.getParams().get("arm");
+          states.put("isArmed", isArmed);
+        } else if (execution.getParams().containsKey("cancel")) {
+          // Cancel value is in relation to the arm value
+          boolean isArmed = (boolean) execution.getParams().get("arm");
+          states.put("isArmed", !isArmed);
+        }
+        if (execution.getParams().containsKey("armLevel")) {
+          updates.put("states.isArmed", states.get("isArmed"));
+          updates.put("states.currentArmLevel", execution.getParams().get("armLevel"));
+          states.put("currentArmLevel", execution.getParams().get("armLevel"));
+        } else {
+          updates.put("states.isArmed", states.get("isArmed"));
+        }
+        break;
+
+      // action.devices.traits.Brightness
+      case "action.devices.commands.BrightnessAbsolute":
+        updates.put("states.brightness", execution.getParams().get("brightness"));
+        states.put("brightness", execution.getParams().get("brightness"));
+        messages.put("brightness", execution.getParams().get("brightness"));
+        break;
+
+      // action.devices.traits.CameraStream
+      case "action.devices.commands.GetCameraStream":
+        states.put("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4");
+        messages.put("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4");
+        break;
+
+      // action.devices.traits.ColorSetting
+      case "action.devices.commands.ColorAbsolute":
+        String colorType;
+        Object color;
+        Map<String, Object> colorMap = (Map<String, Object>) execution.getParams().get("color");
+
+        if (colorMap.containsKey("spectrumRGB")) {
+          updates.put("states.color.spectrumRgb", colorMap.get("spectrumRGB"));
+          color = colorMap.get("spectrumRGB");
+          colorType = "spectrumRgb";
+        } else {
+          if (colorMap.containsKey("spectrumHSV")) {
+            updates.put("states.color.spectrumHsv", colorMap.get("spectrumHSV"));
+            colorType = "spectrumHsv";
+            color = colorMap.get("spectrumHSV");
+
+          } else {
+            if (colorMap.containsKey("temperature")) {
+              updates.put("states.color.temperatureK", colorMap.get("temperature"));
+              colorType = "temperatureK";
+              color = colorMap.get("temperature");
+
+            } else {
+              return DevicePlan.rejected(deviceId, ExecutionOutcome.NOT_SUPPORTED);
+            }
+          }
+        }
+        //states.put(colorType, color);
+        messages.put(colorType, color);
+        break;
+
+      // action.devices.traits.Cook
+      case "action.devices.commands.Cook":
+        boolean startCooking = (boolean) execution.getParams().get("start");
+        if (startCooking) {
+          // Start cooking
+          Map<String, Object> dbStates =
+              new HashMap<String, Object>() {
+                {
+                  put("states.currentCookingMode", execution.getParams().get("cookingMode"));
+                }
+              };
+          if (execution.getParams().containsKey("foodPreset")) {
+            dbStates.put("states.currentFoodPreset", execution.getParams().get("foodPreset"));
+          } else {
+            dbStates.put("states.currentFoodPreset", "NONE");
+          }
+          if (execution.getParams().containsKey("quantity")) {
+            dbStates.put("states.currentFoodQuantity", execution.getParams().get("quantity"));
+          } else {
+            dbStates.put("states.currentFoodQuantity", 0);
+          }
+          if (execution.getParams().containsKey("unit")) {
+            dbStates.put("states.currentFoodUnit", execution.getParams().get("unit"));
+          } else {
+            dbStates.put("states.currentFoodUnit", "NONE");
+          }
+          updates.putAll(dbStates);
+          // Server getting response will handle any undefined values
+          states.put("currentCookingMode", execution.getParams().get("cookingMode"));
+          states.put("currentFoodPreset", execution.getParams().get("foodPreset"));
+          states.put("currentFoodQuantity", execution.getParams().get("quantity"));
+          states.put("currentFoodUnit", execution.getParams().get("unit"));
+        } else {
+          // Done cooking, reset
+          updates.put("states.currentCookingMode", "NONE");
+          updates.put("states.currentFoodPreset", "NONE");
+          updates.put("states.currentFoodQuantity", 0);
+          updates.put("states.currentFoodUnit", "NONE");
+          states.put("currentCookingMode", "NONE");
+          states.put("currentFoodPreset", "NONE");
+        }
+        messages.put("start", execution.getParams().get("start"));
+        break;
+
+      case "action.devices.commands.selectChannel":
+        // "params":{"channelCode":"cnn","channelName":"CNN","channelNumber":"200"}
+
+        messages.put("channelNumber", execution.getParams().get("channelNumber"));
+
+        break;
+      // action.devices.traits.Dispense
+      case "action.devices.commands.Dispense":
+        int amount = ((Number) execution.getParams().get("amount")).intValue();
+        String unit = (String) execution.getParams().get("unit");
+        if (execution.getParams().containsKey("presetName")
+            && execution.getParams().get("presetName").equals("cat food bowl")) {
+          // Fill in params
+          amount = 4;
+          unit = "CUPS";
+        }
+        Map<String, Object> amountLastDispensed = new HashMap();
+        amountLastDispensed.put("amount", amount);
+        amountLastDispensed.put("unit", unit);
+        updates.put(
+            "states.dispenseItems",
+            new HashMap[] {
+                new HashMap<String, Object>() {
+                  {
+                    put("itemName", execution.getParams().get("item"));
+                    put("amountLastDispensed", amountLastDispensed);
+                    put("isCurrentlyDispensing", execution.getParams().containsKey("presetName"));
+                  }
+                }
+            });
+        states.put(
+            "dispenseItems",
+            new HashMap[] {
+                new HashMap<String, Object>() {
+                  {
+                    put("itemName", execution.getParams().get("item"));
+                    put("amountLastDispensed", amountLastDispensed);
+                    put("isCurrentlyDispensing", execution.getParams().containsKey("presetName"));
+                  }
+                }
+            });
+        break;
+
+      // action.devices.traits.Dock
+      case "action.devices.commands.Dock":
+        // This has no parameters
+        updates.put("states.isDocked", true);
+        states.put("isDocked", true);
+        break;
+
+      // action.devices.traits.EnergyStorage
+      case "action.devices.commands.Charge":
+        updates.put("states.isCharging", execution.getParams().get("charge"));
+        states.put("isCharging", execution.getParams().get("charge"));
+        break;
+
+      // action.devices.traits.FanSpeed
+      case "action.devices.commands.SetFanSpeed":
+        updates.put("states.currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
+        states.put("currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
+        messages.put("currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
+        break;
+
+      case "action.devices.commands.Reverse":
+        updates.put("states.currentFanSpeedReverse", true);
+        messages.put("currentFanSpeedReverse", true);
+        break;
+
+      // action.devices.traits.Fill
+      case "action.devices.commands.Fill":
+        String currentFillLevel = "none";
+        boolean fill = (boolean) execution.getParams().get("fill");
+        if (fill) {
+          if (execution.getParams().containsKey("fillLevel")) {
+            currentFillLevel = (String) execution.getParams().get("fillLevel");
+          } else {
+            currentFillLevel = "half"; // Default fill level
+          }
+        } // Else the device is draining and the fill level is set to "none" by default
+        updates.put("states.isFilled", fill);
+        updates.put("states.currentFillLevel", currentFillLevel);
+        states.put("isFilled", fill);
+        states.put("currentFillLevel", currentFillLevel);
+        break;
+
+      // action.devices.traits.HumiditySetting
+      case "action.devices.commands.SetHumidity":
+        updates.put(
+            "states.humiditySetpointPercent",
+            execution.getParams().get("humiditySetpointPercent"));
+        states.put("humiditySetpointPercent", execution.getParams().get("humiditySetpointPercent"));
+        messages.put(
+            "humiditySetPointPercent", execution.getParams().get("humiditySetpointPercent"));
+        break;
+
+      // action.devices.traits.InputSelector
+      case "action.devices.commands.SetInput": {
+        String newInput = (String) execution.getParams().get("newInput");
+        updates.put("states.currentInput", newInput);
+        states.put("currentInput", newInput);
+        messages.put("currentInput", newInput);
+        break;
+      }
+
+      case "action.devices.commands.PreviousInput": {
+        Map<String, Object> attributes = (Map<String, Object>) data.get("attributes");
+        String currentInput = (String) states.get("currentInput");
+        Map<String, Object>[] availableInputs =
+            (Map<String, Object>[]) attributes.get("availableInputs");
+        int index = -1;
+        for (int i = 0; i < availableInputs.length; i++) {
+          String input = (String) availableInputs[i].get("key");
+          if (currentInput.equals(input)) {
+            index = i;
+          }
+        }
+        int previousInputIndex = Math.min(index - 1, 0);
+        String newInput = (String) availableInputs[previousInputIndex].get("key");
+
+        updates.put("states.currentInput", newInput);
+        states.put("currentInput", newInput);
+        messages.put("currentInput", newInput);
+        break;
+      }
+
+      case "action.devices.commands.NextInput": {
+        Map<String, Object> attributes = (Map<String, Object>) data.get("attributes");
+        String currentInput = (String) states.get("currentInput");
+        Map<String, Object>[] availableInputs =
+            (Map<String, Object>[]) attributes.get("availableInputs");
+        int index = -1;
+        for (int i = 0; i < availableInputs.length; i++) {
+          String input = (String) availableInputs[i].get("key");
+          if (currentInput.equals(input)) {
+            index = i;
+          }
+        }
+        int nextInputIndex = Math.min(index + 1, availableInputs.length - 1);
+        String newInput = (String) availableInputs[nextInputIndex].get("key");
+
+        updates.put("states.currentInput", newInput);
+        states.put("currentInput", newInput);
+        messages.put("currentInput", newInput);
+        break;
+      }
+
+      // action.devices.traits.Locator
+      case "action.devices.commands.Locate":
+        updates.put("states.silent", execution.getParams().get("silent"));
+        updates.put("states.generatedAlert", true);
+        states.put("generatedAlert", true);
+        messages.put("generatedAlert", true);
+        break;
+
+      // action.devices.traits.LockUnlock
+      case "action.devices.commands.LockUnlock":
+        updates.put("states.isLocked", execution.getParams().get("lock"));
+        states.put("isLocked", execution.getParams().get("lock"));
+        messages.put("isLocked", execution.getParams().get("lock"));
+        break;
+
+      // action.devices.traits.NetworkControl
+      case "action.devices.commands.EnableDisableGuestNetwork": {
+        updates.put("states.guestNetworkEnabled", execution.getParams().get("enable"));
+        states.put("guestNetworkEnabled", execution.getParams().get("enable"));
+        break;
+      }
+
+      case "action.devices.commands.EnableDisableNetworkProfile": {
+        List<String> profiles =
+            (List<String>) ((Map<String, Object>) data.get("attributes")).get("networkProfiles");
+        boolean profileExists =
+            profiles.stream()
+              .anyMatch(
+                  (String profile) -> profile.equals(execution.getParams().get("profile")));
+        if (!profileExists) {
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.NETWORK_PROFILE_NOT_RECOGNIZED);
+        }
+        // No state change occurs
+        break;
+      }
+
+      case "action.devices.commands.TestNetworkSpeed": {
+        boolean testDownloadSpeed = (boolean) execution.getParams().get("testDownloadSpeed");
+        boolean testUploadSpeed = (boolean) execution.getParams().get("testUploadSpeed");
+        int unixTimestampSec = Math.toIntExact(new Date().getTime() / 1000);
+        // Copy the results, the stored document may be shared with other readers
+        if (testDownloadSpeed) {
+          Map<String, Object> lastNetworkDownloadSpeedTest =
+              copyOfMap(deviceStates, "lastNetworkDownloadSpeedTest");
+          lastNetworkDownloadSpeedTest.put("downloadSpeedMbps", (Math.random() * 100));
+          lastNetworkDownloadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+          updates.put("states.lastNetworkDownloadSpeedTest", lastNetworkDownloadSpeedTest);
+        }
+        if (testUploadSpeed) {
+          Map<String, Object> lastNetworkUploadSpeedTest =
+              copyOfMap(deviceStates, "lastNetworkUploadSpeedTest");
+          lastNetworkUploadSpeedTest.put("uploadSpeedMbps", (Math.random() * 100));
+          lastNetworkUploadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+          updates.put("states.lastNetworkUploadSpeedTest", lastNetworkUploadSpeedTest);
+        }
+        return new DevicePlan(deviceId, states, updates, messages, true);
+      }
+
+      case "action.devices.commands.GetGuestNetworkPassword": {
+        states.put("guestNetworkPassword", "wifi-password-123");
+      }
+
+      // action.devices.traits.OnOff
+      case "action.devices.commands.OnOff":
+        updates.put("states.on", execution.getParams().get("on"));
+        states.put("on", execution.getParams().get("on"));
+        messages.put("on", execution.getParams().get("on"));
+        break;
+
+      // action.devices.traits.OpenClose
+      case "action.devices.commands.OpenClose":
+        // Check if the device can open in multiple directions
+        Map<String, Object> attributes = (Map<String, Object>) data.get("attributes");
+        if (attributes != null && attributes.containsKey("openDirection")) {
+          // The device can open in more than one direction
+          String direction = (String) execution.getParams().get("openDirection");
+          // Copy the states, the stored document may be shared with other readers
+          List<Map<String, Object>> openStates = new ArrayList<>();
+          for (Map<String, Object> openState :
+              (List<Map<String, Object>>) states.get("openState")) {
+            Map<String, Object> state = new HashMap<>(openState);
+            if (state.get("openDirection").equals(direction)) {
+              state.put("openPercent", execution.getParams().get("openPercent"));
+            }
+            openStates.add(state);
+          }
+          states.put("openStates", openStates);
+          updates.put("states.openState", openStates);
+          messages.put("openState", openStates);
+
+        } else {
+          // The device can only open in one direction
+          updates.put("states.openPercent", execution.getParams().get("openPercent"));
+          states.put("openPercent", execution.getParams().get("openPercent"));
+          messages.put("openPercent", execution.getParams().get("openPercent"));
+        }
+        break;
+
+      // action.devices.traits.Reboot
+      case "action.devices.commands.Reboot":
+        updates.put("states.online", false);
+        break;
+
+      // action.devices.traits.Rotation
+      case "action.devices.commands.RotateAbsolute":
+        // Check if the device can open in multiple directions
+        if (execution.getParams().containsKey("rotationPercent")) {
+          updates.put(
+              "states.rotationPercent", execution.getParams().get("rotationPercent"));
+          states.put("rotationPercent", execution.getParams().get("rotationPercent"));
+          messages.put("rotationPercent", execution.getParams().get("rotationPercent"));
+        } else if (execution.getParams().containsKey("rotationDegrees")) {
+          updates.put(
+              "states.rotationDegrees", execution.getParams().get("rotationDegrees"));
+          states.put("rotationDegrees", execution.getParams().get("rotationDegrees"));
+          messages.put("rotationDegrees", execution.getParams().get("rotationDegrees"));
+        }
+        break;
+
+      // action.devices.traits.RunCycle - No execution
+      // action.devices.traits.Scene
+      case "action.devices.commands.ActivateScene":
+        updates.put("states.deactivate", execution.getParams().get("deactivate"));
+        // Scenes are stateless
+        break;
+
+      // action.devices.traits.SoftwareUpdate
+      case "action.devices.commands.SoftwareUpdate":
+        updates.put("states.online", false);
+        updates.put(
+            "states.lastSoftwareUpdateUnixTimestampSec", new Date().getTime() / 1000);
+        break;
+
+      // action.devices.traits.StartStop
+      case "action.devices.commands.StartStop":
+        updates.put("states.isRunning", execution.getParams().get("start"));
+        states.put("isRunning", execution.getParams().get("start"));
+        messages.put("isRunning", execution.getParams().get("start"));
+        break;
+
+      case "action.devices.commands.PauseUnpause":
+        updates.put("states.isPaused", execution.getParams().get("pause"));
+        states.put("isPaused", execution.getParams().get("pause"));
+        messages.put("isPaused", execution.getParams().get("pause"));
+        break;
+
+      // action.devices.traits.Modes
+      case "action.devices.commands.SetModes":
+        Map<String, Object> currentModeSettings = new HashMap<>();
+        if (states.get("currentModeSettings") instanceof Map) {
+          currentModeSettings.putAll((Map<String, Object>) states.get("currentModeSettings"));
+        }
+        currentModeSettings.putAll(
+            (Map<String, Object>) execution
+              .getParams()
+              .getOrDefault("updateModeSettings", new HashMap<String, Object>()));
+        updates.put("states.currentModeSettings", currentModeSettings);
+        states.put("currentModeSettings", currentModeSettings);
+        messages.put("currentModeSettings", currentModeSettings);
+        break;
+
+      // action.devices.traits.Timer
+      case "action.devices.commands.TimerStart":
+        updates.put("states.timerRemainingSec", execution.getParams().get("timerTimeSec"));
+        states.put("timerRemainingSec", execution.getParams().get("timerTimeSec"));
+        messages.put("timerRemainingSec", execution.getParams().get("timerTimeSec"));
+        if (isTimerPaused(states)) {
+          updates.put("states.timerPaused", false);
+          states.put("timerPaused", false);
+          messages.put("timerPaused", false);
+        }
+        updates.put(
+            TIMER_ENDS_AT,
+            endsAt(((Number) execution.getParams().get("timerTimeSec")).longValue()));
+        break;
+
+      case "action.devices.commands.TimerAdjust":
+        if (states.getTimerRemainingSec() == -1) {
+          // No timer exists
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.NO_TIMER_EXISTS);
+        }
+        int newTimerRemainingSec =
+            states.getTimerRemainingSec()
+                + ((Number) execution.getParams().get("timerTimeSec")).intValue();
+        if (newTimerRemainingSec < 0) {
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.VALUE_OUT_OF_RANGE);
+        }
+        updates.put("states.timerRemainingSec", newTimerRemainingSec);
+        states.put("timerRemainingSec", newTimerRemainingSec);
+        messages.put("timerRemainingSec", newTimerRemainingSec);
+        if (!isTimerPaused(states)) {
+          updates.put(TIMER_ENDS_AT, endsAt(newTimerRemainingSec));
+        }
+        break;
+
+      case "action.devices.commands.TimerPause":
+        if (states.getTimerRemainingSec() == -1) {
+          // No timer exists
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.NO_TIMER_EXISTS);
+        }
+        updates.put("states.timerPaused", true);
+        states.put("timerPaused", true);
+        messages.put("timerPaused", true);
+        // The countdown stops at the time remaining now
+        updates.put("states.timerRemainingSec", states.getTimerRemainingSec());
+        updates.put(TIMER_ENDS_AT, 0L);
+        break;
+
+      case "action.devices.commands.TimerResume":
+        if (states.getTimerRemainingSec() == -1) {
+          // No timer exists
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.NO_TIMER_EXISTS);
+        }
+        updates.put("states.timerPaused", false);
+        states.put("timerPaused", false);
+        messages.put("timerPaused", false);
+        updates.put(TIMER_ENDS_AT, endsAt(states.getTimerRemainingSec()));
+        break;
+
+      case "action.devices.commands.TimerCancel":
+        if (states.getTimerRemainingSec() == -1) {
+          // No timer exists
+          return DevicePlan.rejected(deviceId, ExecutionOutcome.NO_TIMER_EXISTS);
+        }
+        updates.put("states.timerRemainingSec", -1);
+        updates.put(TIMER_ENDS_AT, 0L);
+        states.put("timerRemainingSec", 0);
+        messages.put("timerRemainingSec", 0);
+        break;
+
+      // action.devices.traits.Toggles
+      case "action.devices.commands.SetToggles":
+        Map<String, Object> currentToggleSettings = new HashMap<>();
+        if (states.get("currentToggleSettings") instanceof Map) {
+          currentToggleSettings.putAll((Map<String, Object>) states.get("currentToggleSettings"));
+        }
+        currentToggleSettings.putAll(
+            (Map<String, Object>) execution
+              .getParams()
+              .getOrDefault("updateToggleSettings", new HashMap<String, Object>()));
+        updates.put("states.currentToggleSettings", currentToggleSettings);
+        states.put("currentToggleSettings", currentToggleSettings);
+        messages.put("currentToggleSettings", currentToggleSettings);
+        break;
+
+      // action.devices.traits.TemperatureControl
+      case "action.devices.commands.SetTemperature":
+        updates.put(
+            "states.temperatureSetpointCelsius",
+            execution.getParams().get("temperature"));
+        states.put("temperatureSetpointCelsius", execution.getParams().get("temperature"));
+        messages.put("temperatureSetpointCelsius", execution.getParams().get("temperature"));
+        break;
+
+      // action.devices.traits.TemperatureSetting
+      case "action.devices.commands.ThermostatTemperatureSetpoint":
+        updates.put(
+            "states.thermostatTemperatureSetpoint",
+            execution.getParams().get("thermostatTemperatureSetpoint"));
+        states.put(
+            "thermostatTemperatureSetpoint",
+            execution.getParams().get("thermostatTemperatureSetpoint"));
+        states.remove("online");
+        messages.put(
+            "thermostatTemperatureSetpoint",
+            execution.getParams().get("thermostatTemperatureSetpoint"));
+        break;
+
+      case "action.devices.commands.ThermostatTemperatureSetRange":
+        updates.put(
+            "states.thermostatTemperatureSetpointLow",
+            execution.getParams().get("thermostatTemperatureSetpointLow"));
+        updates.put(
+            "states.thermostatTemperatureSetpointHigh",
+            execution.getParams().get("thermostatTemperatureSetpointHigh"));
+        messages.put(
+            "thermostatTemperatureSetpointLow",
+            execution.getParams().get("thermostatTemperatureSetpointLow"));
+        messages.put(
+            "thermostatTemperatureSetpointHigh",
+            execution.getParams().get("thermostatTemperatureSetpointHigh"));
+        break;
+
+      case "action.devices.commands.ThermostatSetMode":
+        updates.put("states.thermostatMode", execution.getParams().get("thermostatMode"));
+        states.put("thermostatMode", execution.getParams().get("thermostatMode"));
+        messages.put("thermostatMode", execution.getParams().get("thermostatMode"));
+        break;
+
+      // action.devices.traits.TransportControl
+      // Traits are considered no-ops as they have no state
+      case "action.devices.commands.mediaPrevious":
+        LOGGER.info("Play the previous media");
+        break;
+
+      case "action.devices.commands.mediaNext":
+        LOGGER.info("Play the next media");
+        break;
+
+      case "action.devices.commands.mediaRepeatMode":
+        Boolean isOn = (Boolean) execution.getParams().get("isOn");
+        Boolean isSingle = (Boolean) execution.getParams().get("isSingle");
+        LOGGER.info("Repeat mode enabled: {}. Single item enabled: {}", isOn, isSingle);
+        break;
+
+      case "action.devices.commands.mediaShuffle":
+        LOGGER.info("Shuffle the playlist of media");
+        break;
+
+      case "action.devices.commands.mediaClosedCaptioningOn":
+        String ccLanguage = (String) execution.getParams().get("closedCaptioningLanguage");
+        String uqLanguage = (String) execution.getParams().get("userQueryLanguage");
+        LOGGER.info("Closed captioning enabled for {} for user in {}", ccLanguage, uqLanguage);
+        break;
+
+      case "action.devices.commands.mediaClosedCaptioningOff":
+        LOGGER.info("Closed captioning disabled");
+        break;
+
+      case "action.devices.commands.mediaPause":
+        updates.put("states.playbackState", "PAUSED");
+        states.put("playbackState", "PAUSED");
+        messages.put("playbackState", "PAUSED");
+        break;
+
+      case "action.devices.commands.mediaResume":
+        updates.put("states.playbackState", "PLAYING");
+        states.put("playbackState", "PLAYING");
+        messages.put("playbackState", "PLAYING");
+        break;
+
+      case "action.devices.commands.mediaStop":
+        updates.put("states.playbackState", "STOPPED");
+        states.put("playbackState", "STOPPED");
+        messages.put("playbackState", "STOPPED");
+        break;
+
+      case "action.devices.commands.mediaSeekRelative":
+        int relativePositionMs =
+            ((Number) execution.getParams().get("relativePositionMs")).intValue();
+        LOGGER.info("Seek to (now + {}) ms", relativePositionMs);
+        break;
+
+      case "action.devices.commands.mediaSeekToPosition":
+        int absPositionMs = ((Number) execution.getParams().get("absPositionMs")).intValue();
+        LOGGER.info("Seek to {} ms", absPositionMs);
+        break;
+
+      // action.devices.traits.Volume
+      case "action.devices.commands.setVolume":
+        int volumeLevel = ((Number) execution.getParams().get("volumeLevel")).intValue();
+        updates.put("states.currentVolume", volumeLevel);
+        states.put("currentVolume", volumeLevel);
+        messages.put("currentVolume", volumeLevel);
+        break;
+
+      case "action.devices.commands.volumeRelative":
+        int relativeSteps = ((Number) execution.getParams().get("relativeSteps")).intValue();
+        int newVolume = states.getCurrentVolume() + relativeSteps;
+        updates.put("states.currentVolume", newVolume);
+        states.put("currentVolume", newVolume);
+        messages.put("currentVolume", newVolume);
+        break;
+
+      case "action.devices.commands.mute":
+        boolean mute = (boolean) execution.getParams().get("mute");
+        updates.put("states.isMuted", mute);
+        states.put("isMuted", mute);
+        messages.put("isMuted", mute);
+        break;
+    }
+
+    return new DevicePlan(deviceId, states, updates, messages, false);
+  }
+}
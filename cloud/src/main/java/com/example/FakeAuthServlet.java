@@ -15,25 +15,62 @@ package com.example;
 
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 // With @WebServlet annotation the webapp/WEB-INF/web.xml is no longer required.
-@WebServlet (name = "auth", description = "Requests: Trivial request", urlPatterns = "/fakeauth")
+@WebServlet (name = "auth", description = "Requests: Trivial request", urlPatterns = "/fakeauth",
+        asyncSupported = true)
 public class FakeAuthServlet extends HttpServlet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+    private static MyDataStore database = MyDataStore.getInstance();
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
-        String redirectURL =
-                String.format(
-                        "%s?state=%s&code=%s",
-                        URLDecoder.decode(req.getParameter("redirect_uri"), "UTF8"),
-                        req.getParameter("state"),
-                        "xxxxxx");
-        String loginUrl = res.encodeRedirectURL("/login?responseurl=" + redirectURL);
+        // This sample has no real accounts, so the user that owns the sample token is linked.
+        String codeId = TokenService.newTokenId();
+        String redirectUri = URLDecoder.decode(req.getParameter("redirect_uri"), "UTF8");
+        String state = req.getParameter("state");
+        // Responds from the thread that completes the request, handing the container thread back
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        Futures.begin(() -> database.getUserIdByFakeTokenAsync(MyDataStore.SAMPLE_ACCESS_TOKEN))
+                .thenCompose(userId -> database.setAuthorizationCodeIdAsync(userId, codeId)
+                        .thenApply(stored -> userId))
+                .whenComplete((userId, failure) -> {
+                    try {
+                        if (failure != null) {
+                            LOGGER.error("failed to issue an authorization code",
+                                    Futures.unwrap(failure));
+                            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        } else {
+                            redirect(res, redirectUri, state,
+                                    TokenService.getInstance().issueAuthorizationCode(
+                                            userId, codeId));
+                        }
+                    } catch (IOException e) {
+                        LOGGER.error("failed to respond: {}", e);
+                    } finally {
+                        async.complete();
+                    }
+                });
+    }
+
+    /** Sends the browser to log in, then back to Google with the authorization code. */
+    private static void redirect(
+            HttpServletResponse res, String redirectUri, String state, String code)
+            throws IOException {
+        String redirectURL = String.format("%s?state=%s&code=%s", redirectUri, state, code);
+        String loginUrl =
+                res.encodeRedirectURL("/login?responseurl=" + URLEncoder.encode(redirectURL, "UTF-8"));
         res.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
         res.setHeader("Location", loginUrl);
         res.getWriter().flush();
@@ -17,19 +17,31 @@
 package com.example;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.gson.JsonObject;
 
 // With @WebServlet annotation the webapp/WEB-INF/web.xml is no longer required.
-@WebServlet(name = "tokem", description = "Requests: Trivial request", urlPatterns = "/faketoken")
+// Loaded on startup, so that a missing token signing key fails the deployment
+@WebServlet(
+    name = "tokem",
+    description = "Requests: Trivial request",
+    urlPatterns = "/faketoken",
+    loadOnStartup = 1,
+    asyncSupported = true)
 public class FakeTokenServlet extends HttpServlet {
-
-  private static int secondsInDay = 86400;
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static MyDataStore database = MyDataStore.getInstance();
+  private static TokenService tokens = TokenService.getInstance();
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
@@ -41,16 +53,84 @@ public class FakeTokenServlet extends HttpServlet {
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
     String grantType = req.getParameter("grant_type");
 
+    String refreshTokenId = TokenService.newTokenId();
+    // Completes with the user the tokens are issued to, or null if the grant was used up
+    CompletableFuture<String> granted;
+    if ("authorization_code".equals(grantType)) {
+      TokenService.Claims code =
+          tokens.verify(req.getParameter("code"), TokenService.AUTHORIZATION_CODE);
+      if (code == null) {
+        writeError(res, "invalid_grant");
+        return;
+      }
+      // Each code is exchanged once
+      granted =
+          Futures.begin(() -> database.redeemAuthorizationCodeAsync(code.userId, code.tokenId))
+              .thenCompose(
+                  redeemed ->
+                      redeemed
+                          ? database
+                              .setRefreshTokenIdAsync(code.userId, refreshTokenId)
+                              .thenApply(stored -> code.userId)
+                          : CompletableFuture.completedFuture(null));
+    } else if ("refresh_token".equals(grantType)) {
+      TokenService.Claims refresh =
+          tokens.verify(req.getParameter("refresh_token"), TokenService.REFRESH_TOKEN);
+      if (refresh == null) {
+        writeError(res, "invalid_grant");
+        return;
+      }
+      granted =
+          Futures.begin(
+                  () ->
+                      database.rotateRefreshTokenIdAsync(
+                          refresh.userId, refresh.tokenId, refreshTokenId))
+              .thenApply(rotated -> rotated ? refresh.userId : null);
+    } else {
+      writeError(res, "unsupported_grant_type");
+      return;
+    }
+
+    // Responds from the thread that completes the request, handing the container thread back
+    AsyncContext async = req.startAsync();
+    async.setTimeout(0);
+    granted.whenComplete(
+        (userId, failure) -> {
+          try {
+            if (failure != null) {
+              LOGGER.error("failed to store refresh token", Futures.unwrap(failure));
+              res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } else if (userId == null) {
+              writeError(res, "invalid_grant");
+            } else {
+              writeTokens(res, userId, refreshTokenId);
+            }
+          } catch (IOException e) {
+            LOGGER.error("failed to respond: {}", e);
+          } finally {
+            async.complete();
+          }
+        });
+  }
+
+  private void writeTokens(HttpServletResponse res, String userId, String refreshTokenId)
+      throws IOException {
     JsonObject jsonRes = new JsonObject();
     jsonRes.addProperty("token_type", "bearer");
-    jsonRes.addProperty("access_token", "123access");
-    jsonRes.addProperty("expires_in", secondsInDay);
-    if (grantType.equals("authorization_code")) {
-      jsonRes.addProperty("refresh_token", "123refresh");
-    }
+    jsonRes.addProperty("access_token", tokens.issueAccessToken(userId));
+    jsonRes.addProperty("expires_in", TokenService.ACCESS_TOKEN_TTL_SEC);
+    jsonRes.addProperty("refresh_token", tokens.issueRefreshToken(userId, refreshTokenId));
     res.setStatus(HttpServletResponse.SC_OK);
     res.setContentType("application/json");
-    System.out.println("response = " + jsonRes.toString());
+    res.getWriter().write(jsonRes.toString());
+    res.getWriter().flush();
+  }
+
+  private void writeError(HttpServletResponse res, String error) throws IOException {
+    JsonObject jsonRes = new JsonObject();
+    jsonRes.addProperty("error", error);
+    res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    res.setContentType("application/json");
     res.getWriter().write(jsonRes.toString());
     res.getWriter().flush();
   }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Helpers for dotted Firestore field paths such as {@code states.color.spectrumRgb}, as used by
+ * {@code DocumentReference.update(Map)}.
+ */
+final class FieldPaths {
+
+  /** An update value that removes the field, like {@code FieldValue.delete()}. */
+  static final Object DELETE =
+      new Object() {
+        @Override
+        public String toString() {
+          return "DELETE";
+        }
+      };
+
+  private FieldPaths() {
+  }
+
+  /**
+   * Merges one field update into a map of pending field updates so that the last write to each
+   * field wins. Pending updates of nested fields are dropped when a parent is overwritten, and an
+   * update of a nested field is folded into a pending update of its parent.
+   *
+   * @param fields pending updates keyed by field path, none of which is a prefix of another
+   * @param path the field path being written
+   * @param value the new value
+   */
+  static void merge(Map<String, Object> fields, String path, Object value) {
+    String childPrefix = path + ".";
+    Iterator<String> keys = fields.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(childPrefix)) {
+        keys.remove();
+      }
+    }
+    for (int dot = path.indexOf('.'); dot > 0; dot = path.indexOf('.', dot + 1)) {
+      String parent = path.substring(0, dot);
+      Object parentValue = fields.get(parent);
+      if (parentValue instanceof Map) {
+        Map<String, Object> copy = copyOf(parentValue);
+        set(copy, path.substring(dot + 1), value);
+        fields.put(parent, copy);
+        return;
+      }
+    }
+    fields.put(path, value);
+  }
+
+  /**
+   * Applies field updates to a document without modifying it. Only the maps along the updated
+   * paths are copied.
+   *
+   * @return the updated copy, or the document itself if there is nothing to apply
+   */
+  static Map<String, Object> apply(Map<String, Object> document, Map<String, Object> fields) {
+    if (fields == null || fields.isEmpty()) {
+      return document;
+    }
+    Map<String, Object> copy = document != null ? new HashMap<>(document) : new HashMap<>();
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      set(copy, field.getKey(), field.getValue());
+    }
+    return copy;
+  }
+
+  /** Returns the value at a field path of a document, or null if there is none. */
+  @SuppressWarnings("unchecked")
+  static Object get(Map<String, Object> document, String path) {
+    Object value = document;
+    int start = 0;
+    for (int dot = path.indexOf('.'); ; dot = path.indexOf('.', start)) {
+      if (!(value instanceof Map)) {
+        return null;
+      }
+      String name = dot < 0 ? path.substring(start) : path.substring(start, dot);
+      value = ((Map<String, Object>) value).get(name);
+      if (dot < 0) {
+        return value;
+      }
+      start = dot + 1;
+    }
+  }
+
+  /**
+   * Sets a field path inside a mutable map, copying every nested map on the way so that maps
+   * shared with other documents are never modified. Setting {@link #DELETE} removes the field.
+   */
+  static void set(Map<String, Object> document, String path, Object value) {
+    int dot = path.indexOf('.');
+    if (dot < 0) {
+      if (value == DELETE) {
+        document.remove(path);
+      } else {
+        document.put(path, value);
+      }
+      return;
+    }
+    String head = path.substring(0, dot);
+    Map<String, Object> child = copyOf(document.get(head));
+    set(child, path.substring(dot + 1), value);
+    document.put(head, child);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> copyOf(Object value) {
+    return value instanceof Map ? new HashMap<>((Map<String, Object>) value) : new HashMap<>();
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.FixedHeaderProvider;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.cloud.FirestoreClient;
+
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * Stores users in the Firestore collection {@code users} and their devices in the subcollection
+ * {@code users/<userId>/devices}. Updates of device states and {@link DeviceShadow shadows} go
+ * through {@link StateWriteBehind} unless it is disabled.
+ *
+ * <p>The asynchronous operations compose the futures of the Firestore client, completing on its
+ * threads, and the blocking ones wait for them.
+ */
+final class FirestoreDeviceStore implements DeviceStore {
+  /** The connection made by {@link #connectFromEnvironment}, shared by everything that uses it. */
+  // Guarded by FirestoreDeviceStore.class
+  private static Firestore environmentDatabase;
+
+  private final Firestore database;
+  /** Buffers device writes, or null when every write goes straight to Firestore. */
+  private final StateWriteBehind writeBehind;
+
+  FirestoreDeviceStore(Firestore database, StateWriteBehind writeBehind) {
+    this.database = database;
+    this.writeBehind = writeBehind;
+  }
+
+  /**
+   * Connects to the Firestore emulator if the {@code smarthome.firestore.emulatorHost} system
+   * property or FIRESTORE_EMULATOR_HOST is set, and otherwise to the project in
+   * GOOGLE_CLOUD_PROJECT with the application default credentials.
+   */
+  static FirestoreDeviceStore fromEnvironment() throws IOException {
+    Firestore database = connectFromEnvironment();
+    return new FirestoreDeviceStore(database, StateWriteBehind.fromSystemProperties(database));
+  }
+
+  /**
+   * Returns the Firestore connection described at {@link #fromEnvironment}, connecting on the
+   * first call.
+   */
+  static synchronized Firestore connectFromEnvironment() throws IOException {
+    if (environmentDatabase != null) {
+      return environmentDatabase;
+    }
+    String projectId = System.getenv("GOOGLE_CLOUD_PROJECT");
+    String emulatorHost =
+        System.getProperty(
+            "smarthome.firestore.emulatorHost", System.getenv("FIRESTORE_EMULATOR_HOST"));
+    Firestore database;
+    if (emulatorHost != null) {
+      database = emulatorFirestore(emulatorHost, projectId);
+    } else {
+      // Use a service account
+      GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
+      FirebaseOptions options =
+          new FirebaseOptions.Builder().setCredentials(credentials).setProjectId(projectId).build();
+      FirebaseApp.initializeApp(options);
+      database = FirestoreClient.getFirestore();
+    }
+    environmentDatabase = database;
+    return database;
+  }
+
+  /**
+   * Connects to a local Firestore emulator, such as the one started by {@code gcloud beta
+   * emulators firestore start}. The emulator speaks plaintext gRPC and grants full access to the
+   * "owner" bearer token.
+   */
+  private static Firestore emulatorFirestore(String host, String projectId) {
+    return FirestoreOptions.newBuilder()
+        .setProjectId(projectId != null ? projectId : "smarthome-local")
+        .setHost(host)
+        .setCredentials(NoCredentials.getInstance())
+        .setHeaderProvider(FixedHeaderProvider.create("Authorization", "Bearer owner"))
+        .setChannelProvider(
+            FirestoreOptions.getDefaultTransportChannelProviderBuilder()
+                .setEndpoint(host)
+                .setChannelConfigurator(ManagedChannelBuilder::usePlaintext)
+                .build())
+        .build()
+        .getService();
+  }
+
+  @Override
+  public String findUserIdByFakeToken(String fakeAccessToken)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(findUserIdByFakeTokenAsync(fakeAccessToken));
+  }
+
+  @Override
+  public CompletableFuture<String> findUserIdByFakeTokenAsync(String fakeAccessToken) {
+    // Captured here, as the results arrive on a Firestore thread outside the request
+    String intent = Metrics.currentIntent();
+    return toCompletable(
+            database
+                .collection("users")
+                .whereEqualTo("fakeAccessToken", fakeAccessToken)
+                .limit(1)
+                .get())
+        .thenApply(
+            snapshot -> {
+              List<QueryDocumentSnapshot> users = snapshot.getDocuments();
+              // A query is billed at least one read
+              Metrics.FIRESTORE_READS.add(intent, Math.max(1, users.size()));
+              return users.isEmpty() ? null : users.get(0).getId();
+            });
+  }
+
+  @Override
+  public String findUserIdByDevice(String deviceId)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(findUserIdByDeviceAsync(deviceId));
+  }
+
+  @Override
+  public CompletableFuture<String> findUserIdByDeviceAsync(String deviceId) {
+    String intent = Metrics.currentIntent();
+    // Needs a single-field index on deviceId with collection group scope
+    return toCompletable(
+            database.collectionGroup("devices").whereEqualTo("deviceId", deviceId).limit(1).get())
+        .thenApply(
+            snapshot -> {
+              List<QueryDocumentSnapshot> devices = snapshot.getDocuments();
+              Metrics.FIRESTORE_READS.add(intent, Math.max(1, devices.size()));
+              if (devices.isEmpty()) {
+                return null;
+              }
+              DocumentReference user = devices.get(0).getReference().getParent().getParent();
+              return user != null ? user.getId() : null;
+            });
+  }
+
+  @Override
+  public Map<DeviceKey, Map<String, Object>> findDevicesWith(String flag)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(findDevicesWithAsync(flag));
+  }
+
+  @Override
+  public CompletableFuture<Map<DeviceKey, Map<String, Object>>> findDevicesWithAsync(String flag) {
+    String intent = Metrics.currentIntent();
+    // Needs a single-field index on the flag with collection group scope
+    return toCompletable(database.collectionGroup("devices").whereEqualTo(flag, true).get())
+        .thenApply(
+            snapshot -> {
+              List<QueryDocumentSnapshot> documents = snapshot.getDocuments();
+              Metrics.FIRESTORE_READS.add(intent, Math.max(1, documents.size()));
+              Map<DeviceKey, Map<String, Object>> devices = new LinkedHashMap<>();
+              for (QueryDocumentSnapshot device : documents) {
+                DocumentReference user = device.getReference().getParent().getParent();
+                if (user != null) {
+                  devices.put(
+                      new DeviceKey(user.getId(), device.getId()),
+                      overlay(user.getId(), device.getId(), device.getData()));
+                }
+              }
+              return devices;
+            });
+  }
+
+  @Override
+  public Map<String, Object> getUser(String userId)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(getUserAsync(userId));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> getUserAsync(String userId) {
+    Metrics.FIRESTORE_READS.add(Metrics.currentIntent(), 1);
+    return toCompletable(user(userId).get()).thenApply(DocumentSnapshot::getData);
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    Futures.await(setUserAsync(userId, data));
+  }
+
+  @Override
+  public CompletableFuture<Void> setUserAsync(String userId, Map<String, Object> data) {
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    return toCompletable(user(userId).set(data)).thenAccept(written -> {});
+  }
+
+  @Override
+  public void updateUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException {
+    Futures.await(updateUserAsync(userId, fields));
+  }
+
+  @Override
+  public CompletableFuture<Void> updateUserAsync(String userId, Map<String, Object> fields) {
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    return toCompletable(user(userId).update(toFirestoreFields(fields))).thenAccept(written -> {});
+  }
+
+  @Override
+  public boolean compareAndSetUserField(
+      String userId, String field, Object expected, Object value)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(compareAndSetUserFieldAsync(userId, field, expected, value));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> compareAndSetUserFieldAsync(
+      String userId, String field, Object expected, Object value) {
+    DocumentReference user = user(userId);
+    String intent = Metrics.currentIntent();
+    return toCompletable(
+        database.runTransaction(
+            transaction -> {
+              DocumentSnapshot snapshot = transaction.get(user).get();
+              Metrics.FIRESTORE_READS.add(intent, 1);
+              if (!Objects.equals(expected, snapshot.get(field))) {
+                return false;
+              }
+              Metrics.FIRESTORE_WRITES.add(intent, 1);
+              transaction.update(user, field, toFirestore(value));
+              return true;
+            }));
+  }
+
+  @Override
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    user(userId).delete().get();
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(getDevicesAsync(userId));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(String userId) {
+    String intent = Metrics.currentIntent();
+    return toCompletable(user(userId).collection("devices").get())
+        .thenApply(
+            snapshot -> {
+              List<QueryDocumentSnapshot> documents = snapshot.getDocuments();
+              Metrics.FIRESTORE_READS.add(intent, Math.max(1, documents.size()));
+              Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+              for (QueryDocumentSnapshot device : documents) {
+                devices.put(device.getId(), overlay(userId, device.getId(), device.getData()));
+              }
+              return devices;
+            });
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(getDevicesAsync(userId, deviceIds));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(
+      String userId, Collection<String> deviceIds) {
+    if (deviceIds.isEmpty()) {
+      return CompletableFuture.completedFuture(new HashMap<>());
+    }
+    DocumentReference[] references = new DocumentReference[deviceIds.size()];
+    int i = 0;
+    for (String deviceId : deviceIds) {
+      references[i++] = device(userId, deviceId);
+    }
+    // Read every device with a single RPC
+    Metrics.FIRESTORE_READS.add(Metrics.currentIntent(), references.length);
+    return toCompletable(database.getAll(references))
+        .thenApply(
+            snapshots -> {
+              Map<String, Map<String, Object>> devices = new HashMap<>();
+              for (DocumentSnapshot snapshot : snapshots) {
+                if (snapshot.exists()) {
+                  devices.put(
+                      snapshot.getId(), overlay(userId, snapshot.getId(), snapshot.getData()));
+                }
+              }
+              return devices;
+            });
+  }
+
+  @Override
+  public void setDevice(String userId, String deviceId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    Futures.await(setDeviceAsync(userId, deviceId, data));
+  }
+
+  @Override
+  public CompletableFuture<Void> setDeviceAsync(
+      String userId, String deviceId, Map<String, Object> data) {
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    return toCompletable(device(userId, deviceId).set(data)).thenAccept(written -> {});
+  }
+
+  @Override
+  public void updateDevices(String userId, Map<String, Map<String, Object>> updates)
+      throws ExecutionException, InterruptedException {
+    Futures.await(updateDevicesAsync(userId, updates));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>With write-behind, updates of device states and shadows are acknowledged once journaled,
+   * before they are committed.
+   */
+  @Override
+  public CompletableFuture<Void> updateDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return updateDevicesAsync(userId, updates, false);
+  }
+
+  @Override
+  public CompletableFuture<Void> commitDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return updateDevicesAsync(userId, updates, true);
+  }
+
+  private CompletableFuture<Void> updateDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates, boolean untilCommitted) {
+    updates.values().removeIf(Map::isEmpty);
+    if (updates.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    String intent = Metrics.currentIntent();
+    if (writeBehind != null) {
+      if (onlyStatesAndShadows(updates)) {
+        return writeBehind.update(userId, updates, untilCommitted);
+      }
+      // Other fields are written through; write buffered updates first so these land after them
+      return writeBehind.flushAsync().thenCompose(flushed -> commit(intent, userId, updates));
+    }
+    return commit(intent, userId, updates);
+  }
+
+  private CompletableFuture<Void> commit(
+      String intent, String userId, Map<String, Map<String, Object>> updates) {
+    Metrics.FIRESTORE_WRITES.add(intent, updates.size());
+    WriteBatch batch = database.batch();
+    updates.forEach(
+        (deviceId, fields) -> batch.update(device(userId, deviceId), toFirestoreFields(fields)));
+    return toCompletable(batch.commit()).thenAccept(written -> {});
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    Futures.await(deleteDeviceAsync(userId, deviceId));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteDeviceAsync(String userId, String deviceId) {
+    if (writeBehind != null) {
+      writeBehind.discard(userId, deviceId);
+    }
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    return toCompletable(device(userId, deviceId).delete()).thenAccept(deleted -> {});
+  }
+
+  /**
+   * Adapts a future of the Firestore client. It fails with an {@link ExecutionException}, as
+   * waiting for the future would have thrown.
+   */
+  static <T> CompletableFuture<T> toCompletable(ApiFuture<T> call) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    ApiFutures.addCallback(
+        call,
+        new ApiFutureCallback<T>() {
+          @Override
+          public void onSuccess(T result) {
+            future.complete(result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            future.completeExceptionally(new ExecutionException(t));
+          }
+        },
+        // The callbacks only complete the future
+        Runnable::run);
+    return future;
+  }
+
+  /** Returns the device document data with any buffered, not yet flushed, updates applied. */
+  private Map<String, Object> overlay(String userId, String deviceId, Map<String, Object> data) {
+    return writeBehind != null ? writeBehind.overlay(userId, deviceId, data) : data;
+  }
+
+  private DocumentReference user(String userId) {
+    return database.collection("users").document(userId);
+  }
+
+  private DocumentReference device(String userId, String deviceId) {
+    return user(userId).collection("devices").document(deviceId);
+  }
+
+  /**
+   * Whether the updates only set device states, their versions, timers and shadows, which are
+   * buffered. The journal cannot hold deletes.
+   */
+  private static boolean onlyStatesAndShadows(Map<String, Map<String, Object>> updates) {
+    for (Map<String, Object> fields : updates.values()) {
+      for (Map.Entry<String, Object> field : fields.entrySet()) {
+        if (!(isWithin(field.getKey(), "states")
+                || isWithin(field.getKey(), StateVersions.FIELD)
+                || isWithin(field.getKey(), ExecutionPlanner.TIMER_ENDS_AT)
+                || isWithin(field.getKey(), "shadow"))
+            || field.getValue() == FieldPaths.DELETE) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Whether a field path is the given top-level field or a field nested in it. */
+  private static boolean isWithin(String path, String field) {
+    return path.equals(field) || path.startsWith(field + ".");
+  }
+
+  private static Map<String, Object> toFirestoreFields(Map<String, Object> fields) {
+    if (!fields.containsValue(FieldPaths.DELETE)) {
+      return fields;
+    }
+    Map<String, Object> converted = new LinkedHashMap<>(fields);
+    converted.replaceAll((path, value) -> toFirestore(value));
+    return converted;
+  }
+
+  private static Object toFirestore(Object value) {
+    return value == FieldPaths.DELETE ? FieldValue.delete() : value;
+  }
+}
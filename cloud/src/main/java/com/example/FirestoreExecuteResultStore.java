@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+
+/**
+ * Keeps EXECUTE claims and results in the Firestore collection {@code executeRequests}, one
+ * document per request with an {@code expiresAt} time in epoch milliseconds and, once the request
+ * has run, its {@code result}. Expired documents are only overwritten, never read as live; a TTL
+ * policy on {@code expiresAt} can delete them.
+ */
+final class FirestoreExecuteResultStore implements ExecuteResultStore {
+  private final Firestore database;
+
+  FirestoreExecuteResultStore(Firestore database) {
+    this.database = database;
+  }
+
+  @Override
+  public Claim claim(String key, long leaseMillis)
+      throws ExecutionException, InterruptedException {
+    return Futures.await(claimAsync(key, leaseMillis));
+  }
+
+  @Override
+  public CompletableFuture<Claim> claimAsync(String key, long leaseMillis) {
+    DocumentReference request = request(key);
+    String intent = Metrics.currentIntent();
+    return FirestoreDeviceStore.toCompletable(
+        database.runTransaction(
+            transaction -> {
+              DocumentSnapshot snapshot = transaction.get(request).get();
+              Metrics.FIRESTORE_READS.add(intent, 1);
+              long now = System.currentTimeMillis();
+              Long expiresAt = snapshot.exists() ? snapshot.getLong("expiresAt") : null;
+              if (expiresAt != null && expiresAt > now) {
+                String result = snapshot.getString("result");
+                return result != null ? Claim.completed(result) : Claim.RUNNING;
+              }
+              Metrics.FIRESTORE_WRITES.add(intent, 1);
+              transaction.set(request, fields(now + leaseMillis, null));
+              return Claim.OWNED;
+            }));
+  }
+
+  @Override
+  public void complete(String key, String result, long ttlMillis)
+      throws ExecutionException, InterruptedException {
+    Futures.await(completeAsync(key, result, ttlMillis));
+  }
+
+  @Override
+  public CompletableFuture<Void> completeAsync(String key, String result, long ttlMillis) {
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    return FirestoreDeviceStore.toCompletable(
+            request(key).set(fields(System.currentTimeMillis() + ttlMillis, result)))
+        .thenAccept(written -> {});
+  }
+
+  @Override
+  public void release(String key) throws ExecutionException, InterruptedException {
+    Futures.await(releaseAsync(key));
+  }
+
+  @Override
+  public CompletableFuture<Void> releaseAsync(String key) {
+    Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), 1);
+    return FirestoreDeviceStore.toCompletable(request(key).delete()).thenAccept(deleted -> {});
+  }
+
+  private static Map<String, Object> fields(long expiresAt, String result) {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("expiresAt", expiresAt);
+    if (result != null) {
+      fields.put("result", result);
+    }
+    return fields;
+  }
+
+  private DocumentReference request(String key) {
+    try {
+      // Document IDs may not contain slashes
+      return database.collection("executeRequests").document(URLEncoder.encode(key, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
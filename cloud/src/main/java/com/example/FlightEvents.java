@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of the fulfillment: one per intent, per {@link DeviceStore} call and
+ * per MQTT publish, so that a recording lines them up with GC pauses, lock contention and thread
+ * activity. {@code smarthome.jfc} enables them along with the JDK events worth seeing next to
+ * them.
+ *
+ * <p>JVMs without Flight Recorder, such as the App Engine Java 8 runtime, must not load the event
+ * classes. Callers only ever hold events as {@code Object}s, which are null when nothing is
+ * recorded, and everything that touches an event class checks {@link #AVAILABLE} first. When
+ * Flight Recorder is present but not recording, beginning an event costs an allocation the JIT
+ * removes and a check of a flag; nothing is formatted until an event is committed.
+ */
+final class FlightEvents {
+  /** Whether this JVM has Flight Recorder. */
+  static final boolean AVAILABLE = isAvailable();
+
+  private FlightEvents() {
+  }
+
+  @Name("com.example.Intent")
+  @Label("Fulfillment Intent")
+  @Description("A SYNC, QUERY, EXECUTE or DISCONNECT request")
+  @Category("Smart Home")
+  @StackTrace(false)
+  static final class IntentEvent extends Event {
+    @Label("Intent")
+    String intent;
+
+    @Label("Request ID")
+    String requestId;
+
+    @Label("User ID")
+    String userId;
+
+    @Label("Devices")
+    @Description("The IDs of the devices the request names")
+    String deviceIds;
+
+    @Label("Commands")
+    @Description("The commands of an EXECUTE request")
+    String commands;
+  }
+
+  @Name("com.example.StoreCall")
+  @Label("Device Store Call")
+  @Description("A read or write of user and device documents")
+  @Category("Smart Home")
+  @StackTrace(false)
+  static final class StoreCallEvent extends Event {
+    @Label("Store")
+    String store;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Request ID")
+    String requestId;
+
+    @Label("User ID")
+    String userId;
+
+    @Label("Device ID")
+    @Description("The device a call is for, if only one")
+    String deviceId;
+
+    @Label("Documents")
+    @Description("Documents read or written")
+    int documents;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  @Name("com.example.MqttPublish")
+  @Label("MQTT Publish")
+  @Description("A device message handed to the MQTT broker")
+  @Category("Smart Home")
+  @StackTrace(false)
+  static final class MqttPublishEvent extends Event {
+    @Label("Topic")
+    String topic;
+
+    @Label("QoS")
+    int qos;
+
+    @Label("Payload Size")
+    @DataAmount
+    int payloadBytes;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  /** Begins the event of an intent, or returns null if it is not recorded. */
+  static Object beginIntent() {
+    if (!AVAILABLE) {
+      return null;
+    }
+    IntentEvent event = new IntentEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  /** Ends the event of an intent begun by {@link #beginIntent}, if there is one. */
+  static void commitIntent(
+      Object begun,
+      RequestContext context,
+      Collection<String> deviceIds,
+      Collection<String> commands) {
+    if (begun == null) {
+      return;
+    }
+    IntentEvent event = (IntentEvent) begun;
+    event.end();
+    if (event.shouldCommit()) {
+      event.intent = context.intent.name();
+      event.requestId = context.requestId;
+      event.userId = context.userId();
+      event.deviceIds = join(deviceIds);
+      event.commands = join(commands);
+      event.commit();
+    }
+  }
+
+  /** Begins the event of an MQTT publish, or returns null if it is not recorded. */
+  static Object beginPublish() {
+    if (!AVAILABLE) {
+      return null;
+    }
+    MqttPublishEvent event = new MqttPublishEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  /** Ends the event of an MQTT publish begun by {@link #beginPublish}, if there is one. */
+  static void commitPublish(Object begun, String topic, int qos, int payloadBytes, boolean failed) {
+    if (begun == null) {
+      return;
+    }
+    MqttPublishEvent event = (MqttPublishEvent) begun;
+    event.end();
+    if (event.shouldCommit()) {
+      event.topic = topic;
+      event.qos = qos;
+      event.payloadBytes = payloadBytes;
+      event.failed = failed;
+      event.commit();
+    }
+  }
+
+  /** Returns the store recording an event per call, or the store itself without Flight Recorder. */
+  static DeviceStore recording(DeviceStore store) {
+    return AVAILABLE ? new RecordingDeviceStore(store) : store;
+  }
+
+  /** Joins distinct values with commas, in the order first seen. */
+  private static String join(Collection<String> values) {
+    return values.isEmpty() ? null : String.join(",", new LinkedHashSet<>(values));
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+}
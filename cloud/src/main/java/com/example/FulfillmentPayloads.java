@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.ExecuteResponse;
+import com.google.actions.api.smarthome.SyncResponse;
+import com.google.gson.Gson;
+import com.google.home.graph.v1.DeviceProto;
+import com.google.protobuf.Struct;
+import com.google.protobuf.util.JsonFormat;
+
+/**
+ * Builds the per-device parts of fulfillment responses. Kept free of I/O and of MyDataStore so
+ * that they can be benchmarked in isolation.
+ */
+final class FulfillmentPayloads {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Gson GSON = new Gson();
+
+  private FulfillmentPayloads() {
+  }
+
+  /**
+   * Builds the SYNC response entry of a device.
+   *
+   * @param deviceId The device ID
+   * @param device The device document
+   */
+  static SyncResponse.Payload.Device syncDevice(String deviceId, Map<String, Object> device) {
+    SyncResponse.Payload.Device.Builder deviceBuilder =
+        new SyncResponse.Payload.Device.Builder()
+            .setId(deviceId)
+            .setType((String) device.get("type"))
+            .setTraits((List<String>) device.get("traits"))
+            .setName(
+                DeviceProto.DeviceNames.newBuilder()
+                    .addAllDefaultNames((List<String>) device.get("defaultNames"))
+                    .setName((String) device.get("name"))
+                    .addAllNicknames((List<String>) device.get("nicknames"))
+                    .build())
+            .setWillReportState((Boolean) device.get("willReportState"))
+            .setRoomHint((String) device.get("roomHint"))
+            .setDeviceInfo(
+                DeviceProto.DeviceInfo.newBuilder()
+                    .setManufacturer((String) device.get("manufacturer"))
+                    .setModel((String) device.get("model"))
+                    .setHwVersion((String) device.get("hwVersion"))
+                    .setSwVersion((String) device.get("swVersion"))
+                    .build());
+    if (device.containsKey("attributes")) {
+      String attributesJson = GSON.toJson(device.get("attributes"));
+      Struct.Builder attributeBuilder = Struct.newBuilder();
+      try {
+        JsonFormat.parser().ignoringUnknownFields().merge(attributesJson, attributeBuilder);
+      } catch (Exception e) {
+        LOGGER.error("FAILED TO BUILD");
+      }
+      deviceBuilder.setAttributes(attributeBuilder.build());
+    }
+    if (device.containsKey("customData")) {
+      // TODO(proppy): remove once
+      // https://github.com/actions-on-google/actions-on-google-java/issues/43 is fixed.
+      String customDataJson = GSON.toJson(device.get("customData"));
+      deviceBuilder.setCustomData(customDataJson);
+    }
+    if (device.containsKey("otherDeviceIds")) {
+      deviceBuilder.setOtherDeviceIds((List) device.get("otherDeviceIds"));
+    }
+    return deviceBuilder.build();
+  }
+
+  /**
+   * Builds the EXECUTE response entry of a device.
+   *
+   * @param deviceId The device ID
+   * @param outcome The outcome of the execution on the device
+   */
+  static ExecuteResponse.Payload.Commands executeCommand(
+      String deviceId, ExecutionOutcome outcome) {
+    ExecuteResponse.Payload.Commands deviceResponse = new ExecuteResponse.Payload.Commands();
+    deviceResponse.ids = new String[] {deviceId};
+    deviceResponse.status = outcome.status.name();
+    if (outcome.states != null) {
+      deviceResponse.setStates(outcome.states.toMap());
+    }
+    if (outcome.errorCode != null) {
+      deviceResponse.setErrorCode(outcome.errorCode);
+    }
+    if (outcome.challenge != null) {
+      deviceResponse.setChallengeNeeded(outcome.challenge);
+    }
+    return deviceResponse;
+  }
+}
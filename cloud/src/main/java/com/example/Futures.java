@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Bridges the blocking and the {@link CompletableFuture} forms of the storage API.
+ *
+ * <p>Asynchronous operations fail with the exception their blocking form would throw: an {@link
+ * ExecutionException} wrapping what went wrong in the storage backend, or an unchecked exception
+ * such as the {@link IllegalArgumentException} of an unknown user.
+ */
+final class Futures {
+  /** A blocking operation. */
+  interface Call<T> {
+    T run() throws ExecutionException, InterruptedException;
+  }
+
+  private Futures() {}
+
+  /** Makes a blocking call and returns a future completed with its result or its failure. */
+  static <T> CompletableFuture<T> call(Call<T> call) {
+    try {
+      return CompletableFuture.completedFuture(call.run());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return failed(e);
+    } catch (ExecutionException | RuntimeException e) {
+      return failed(e);
+    }
+  }
+
+  /** Starts an asynchronous operation, returning a failed future if starting it throws. */
+  static <T> CompletableFuture<T> begin(Supplier<CompletableFuture<T>> operation) {
+    try {
+      return operation.get();
+    } catch (RuntimeException e) {
+      return failed(e);
+    }
+  }
+
+  /** Returns a future that failed; Java 8 has no {@code CompletableFuture.failedFuture}. */
+  static <T> CompletableFuture<T> failed(Throwable failure) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(failure);
+    return future;
+  }
+
+  /**
+   * Waits for an operation and returns its result, throwing what the blocking form of the
+   * operation would have thrown if it failed.
+   */
+  static <T> T await(CompletableFuture<T> operation)
+      throws ExecutionException, InterruptedException {
+    try {
+      return operation.get();
+    } catch (ExecutionException e) {
+      Throwable failure = unwrap(e.getCause());
+      if (failure instanceof ExecutionException) {
+        throw (ExecutionException) failure;
+      } else if (failure instanceof InterruptedException) {
+        throw (InterruptedException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      throw e;
+    }
+  }
+
+  /** Returns the failure of an operation without the wrapping added by dependent stages. */
+  static Throwable unwrap(Throwable failure) {
+    while (failure instanceof CompletionException && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    return failure;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import com.google.actions.api.smarthome.SmartHomeApp;
+import com.google.home.graph.v1.HomeGraphApiServiceGrpc;
+import com.google.home.graph.v1.HomeGraphApiServiceProto;
+
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * Sends HomeGraph API calls. SmartHomeApp always talks to homegraph.googleapis.com; setting the
+ * {@code smarthome.homegraph.target} system property to a host:port sends the calls in plaintext
+ * to that endpoint instead, such as a local fake.
+ */
+final class HomeGraph {
+
+  private HomeGraph() {
+  }
+
+  /** The stub of the overriding endpoint, created on first use. */
+  private static final class LocalEndpoint {
+    static final HomeGraphApiServiceGrpc.HomeGraphApiServiceBlockingStub STUB = create();
+
+    private static HomeGraphApiServiceGrpc.HomeGraphApiServiceBlockingStub create() {
+      String target = System.getProperty("smarthome.homegraph.target");
+      if (target == null) {
+        return null;
+      }
+      return HomeGraphApiServiceGrpc.newBlockingStub(
+          ManagedChannelBuilder.forTarget(target).usePlaintext().build());
+    }
+  }
+
+  static void reportState(
+      SmartHomeApp actionsApp, HomeGraphApiServiceProto.ReportStateAndNotificationRequest request) {
+    if (LocalEndpoint.STUB != null) {
+      LocalEndpoint.STUB.reportStateAndNotification(request);
+    } else {
+      actionsApp.reportState(request);
+    }
+  }
+
+  static void requestSync(SmartHomeApp actionsApp, String agentUserId) {
+    if (LocalEndpoint.STUB != null) {
+      LocalEndpoint.STUB.requestSyncDevices(
+          HomeGraphApiServiceProto.RequestSyncDevicesRequest.newBuilder()
+              .setAgentUserId(agentUserId)
+              .build());
+    } else {
+      actionsApp.requestSync(agentUserId);
+    }
+  }
+}
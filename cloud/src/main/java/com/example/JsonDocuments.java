@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.List;
+import java.util.Map;
+
+/** Helpers for document data that was written to disk as JSON and read back with Gson. */
+final class JsonDocuments {
+
+  private JsonDocuments() {
+  }
+
+  /**
+   * Gson reads every JSON number as a double; turns whole numbers back into longs, as Firestore
+   * returns them. Nested maps and lists are converted in place.
+   */
+  static Map<String, Object> restoreIntegers(Map<String, Object> fields) {
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      field.setValue(restoreInteger(field.getValue()));
+    }
+    return fields;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object restoreInteger(Object value) {
+    if (value instanceof Double) {
+      double number = (Double) value;
+      if (number == Math.rint(number) && !Double.isInfinite(number)) {
+        return (long) number;
+      }
+    } else if (value instanceof Map) {
+      restoreIntegers((Map<String, Object>) value);
+    } else if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      for (int i = 0; i < list.size(); i++) {
+        list.set(i, restoreInteger(list.get(i)));
+      }
+    }
+    return value;
+  }
+}
@@ -12,7 +12,7 @@ import javax.servlet.http.HttpServletResponse;
 public class LoginServlet extends HttpServlet {
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
-    String redirectURL = req.getParameter("responseurl") + "&code=xxxxxx";;
+    String redirectURL = req.getParameter("responseurl");
     res.setStatus(HttpServletResponse.SC_OK);
     res.setContentType("text/html");
     String formData =
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * A snapshot of users and their devices in a memory-mapped file, which a restarted instance can
+ * serve from before anything else is loaded.
+ *
+ * <p>The file starts with a header of a magic number, the format version, the time the snapshot
+ * was taken, the length of the payload and its CRC-32. The payload holds one entry per user: the
+ * user ID and the user as JSON in the shape of {@link MemoryDeviceStore#export}, each preceded by
+ * its length in bytes. A snapshot is written to a temporary file, forced to disk and renamed over
+ * the previous one, so that a crash leaves one of them complete. Opening a snapshot only checks
+ * the file and indexes the user IDs; users are decoded when they are asked for.
+ */
+final class MappedSnapshot {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Gson GSON = new Gson();
+  private static final Type MAP_TYPE = new TypeToken<LinkedHashMap<String, Object>>() {}.getType();
+  /** "SHMS" */
+  private static final int MAGIC = 0x53484d53;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+
+  private final ByteBuffer buffer;
+  private final long createdMillis;
+  /** Positions of the JSON of each user, keyed by user ID. */
+  private final Map<String, Integer> positions;
+
+  private MappedSnapshot(ByteBuffer buffer, long createdMillis, Map<String, Integer> positions) {
+    this.buffer = buffer;
+    this.createdMillis = createdMillis;
+    this.positions = positions;
+  }
+
+  /**
+   * Writes a snapshot of the given users, replacing any snapshot in the file.
+   *
+   * @param users users in the shape of {@link MemoryDeviceStore#export}
+   */
+  static void write(Path file, Map<String, Map<String, Object>> users) throws IOException {
+    List<byte[]> entries = new ArrayList<>(users.size() * 2);
+    long payloadBytes = 0;
+    for (Map.Entry<String, Map<String, Object>> user : users.entrySet()) {
+      byte[] userId = user.getKey().getBytes(StandardCharsets.UTF_8);
+      byte[] json = GSON.toJson(user.getValue()).getBytes(StandardCharsets.UTF_8);
+      entries.add(userId);
+      entries.add(json);
+      payloadBytes += 8L + userId.length + json.length;
+    }
+    if (HEADER_BYTES + payloadBytes > Integer.MAX_VALUE) {
+      // A single mapping holds at most 2 GiB
+      throw new IOException("the snapshot would take " + payloadBytes + " bytes");
+    }
+
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + payloadBytes);
+      mapped.position(HEADER_BYTES);
+      for (byte[] entry : entries) {
+        mapped.putInt(entry.length);
+        mapped.put(entry);
+      }
+      ByteBuffer payload = mapped.duplicate();
+      payload.position(HEADER_BYTES);
+      payload.limit(HEADER_BYTES + (int) payloadBytes);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      mapped.putInt(0, MAGIC);
+      mapped.putInt(4, VERSION);
+      mapped.putLong(8, System.currentTimeMillis());
+      mapped.putLong(16, payloadBytes);
+      mapped.putLong(24, crc.getValue());
+      mapped.force();
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Maps a snapshot and indexes its users.
+   *
+   * @return the snapshot, or null if the file does not exist or does not hold a complete snapshot
+   *     of this version
+   */
+  static MappedSnapshot open(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return null;
+    }
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+        LOGGER.warn("ignoring snapshot {} of {} bytes", file, size);
+        return null;
+      }
+      // The mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      LOGGER.warn("ignoring snapshot {} of an unknown format", file);
+      return null;
+    }
+    long payloadBytes = buffer.getLong(16);
+    if (payloadBytes != buffer.capacity() - HEADER_BYTES) {
+      LOGGER.warn("ignoring truncated snapshot {}", file);
+      return null;
+    }
+    ByteBuffer payload = buffer.duplicate();
+    payload.position(HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    if (crc.getValue() != buffer.getLong(24)) {
+      LOGGER.warn("ignoring snapshot {} with a bad checksum", file);
+      return null;
+    }
+
+    Map<String, Integer> positions = new LinkedHashMap<>();
+    int position = HEADER_BYTES;
+    while (position < buffer.capacity()) {
+      int userIdBytes = buffer.getInt(position);
+      String userId = decode(buffer, position + 4, userIdBytes);
+      position += 4 + userIdBytes;
+      positions.put(userId, position);
+      position += 4 + buffer.getInt(position);
+    }
+    return new MappedSnapshot(buffer, buffer.getLong(8), positions);
+  }
+
+  /** Returns the time the snapshot was taken, in milliseconds since the epoch. */
+  long createdMillis() {
+    return createdMillis;
+  }
+
+  Set<String> userIds() {
+    return Collections.unmodifiableSet(positions.keySet());
+  }
+
+  /**
+   * Decodes a user in the shape of {@link MemoryDeviceStore#export}, with numbers as Gson reads
+   * them, or returns null if the snapshot does not hold the user.
+   */
+  Map<String, Object> user(String userId) {
+    Integer position = positions.get(userId);
+    if (position == null) {
+      return null;
+    }
+    return GSON.fromJson(decode(buffer, position + 4, buffer.getInt(position)), MAP_TYPE);
+  }
+
+  private static String decode(ByteBuffer buffer, int position, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(position);
+    slice.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
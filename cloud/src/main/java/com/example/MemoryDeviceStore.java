@@ -0,0 +1,746 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Keeps every document in memory, for single-node deployments, tests and benchmarks.
+ *
+ * <p>Reads never block: documents are replaced rather than modified, so a reader sees a complete
+ * version of each document without locking. Writes are serialized, appended to a write-ahead log
+ * and then applied. Every {@code smarthome.storage.snapshotIntervalMs} milliseconds all documents
+ * are written to a snapshot file and the log segments it covers are deleted; on startup the
+ * snapshot is loaded and the newer log segments are replayed. Without a directory nothing is
+ * persisted.
+ *
+ * <p>With {@code smarthome.storage.offHeapStates} the device states are kept in an {@link
+ * OffHeapStateTable} instead of the device documents, which keeps large fleets off the heap at the
+ * cost of rebuilding the states map on every read. The states and the other fields of a device
+ * are then read separately, so a reader may see the states of a concurrent write before its other
+ * fields.
+ */
+final class MemoryDeviceStore implements DeviceStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final Gson GSON = new Gson();
+  private static final Type MAP_TYPE = new TypeToken<LinkedHashMap<String, Object>>() {}.getType();
+  private static final String SNAPSHOT = "snapshot.json";
+  private static final String LOG_PREFIX = "wal-";
+  /** How a {@link FieldPaths#DELETE} update value is written to the log. */
+  private static final String DELETE_MARKER = "__delete__";
+
+  /** A user document, which may not exist, and the devices of the user. */
+  private static final class UserRecord {
+    volatile Map<String, Object> data;
+    final ConcurrentSkipListMap<String, Map<String, Object>> devices =
+        new ConcurrentSkipListMap<>();
+  }
+
+  private final Map<String, UserRecord> users = new ConcurrentHashMap<>();
+  /** User IDs keyed by their fakeAccessToken field. */
+  private final Map<String, String> fakeTokens = new ConcurrentHashMap<>();
+
+  /** Holds the device states instead of the documents, or null if they stay on the heap. */
+  private final OffHeapStateTable stateTable;
+  private final Path dir;
+  private final boolean fsync;
+  private final ScheduledExecutorService snapshotter;
+  private final Object snapshotLock = new Object();
+
+  // Guarded by this
+  private FileChannel log;
+  private long logSequence;
+  private long unsnapshottedRecords;
+
+  /**
+   * @param dir where the log and snapshots are kept, or null to keep nothing on disk
+   * @param snapshotIntervalMs how often to take a snapshot, or 0 to only take one on close
+   * @param fsync whether every write is forced to disk before it is acknowledged
+   * @param stateTable where to keep device states, or null to keep them in the documents
+   */
+  MemoryDeviceStore(
+      Path dir, long snapshotIntervalMs, boolean fsync, OffHeapStateTable stateTable)
+      throws IOException {
+    this.stateTable = stateTable;
+    this.dir = dir;
+    this.fsync = fsync;
+    if (dir == null) {
+      snapshotter = null;
+      return;
+    }
+    Files.createDirectories(dir);
+    recover();
+    if (snapshotIntervalMs > 0) {
+      snapshotter =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "memory-store-snapshot");
+                thread.setDaemon(true);
+                return thread;
+              });
+      snapshotter.scheduleWithFixedDelay(
+          this::snapshotQuietly, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+    } else {
+      snapshotter = null;
+    }
+  }
+
+  /**
+   * Opens the store in {@code smarthome.storage.dir}, or keeps nothing on disk if that property
+   * is empty, and takes a snapshot when the JVM shuts down.
+   */
+  static MemoryDeviceStore fromSystemProperties() throws IOException {
+    String dir =
+        System.getProperty(
+            "smarthome.storage.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "smarthome-store").toString());
+    MemoryDeviceStore store =
+        new MemoryDeviceStore(
+            dir.isEmpty() ? null : Paths.get(dir),
+            Long.getLong("smarthome.storage.snapshotIntervalMs", 60_000L),
+            Boolean.parseBoolean(System.getProperty("smarthome.storage.fsync", "true")),
+            Boolean.getBoolean("smarthome.storage.offHeapStates")
+                ? new OffHeapStateTable(Integer.getInteger("smarthome.storage.devices", 1024))
+                : null);
+    Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+    return store;
+  }
+
+  @Override
+  public String findUserIdByFakeToken(String fakeAccessToken) {
+    return fakeTokens.get(fakeAccessToken);
+  }
+
+  @Override
+  public String findUserIdByDevice(String deviceId) {
+    // Only device reports look devices up by ID, which is rare enough not to index them
+    for (Map.Entry<String, UserRecord> user : users.entrySet()) {
+      if (user.getValue().devices.containsKey(deviceId)) {
+        return user.getKey();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Map<DeviceKey, Map<String, Object>> findDevicesWith(String flag) {
+    Map<DeviceKey, Map<String, Object>> devices = new LinkedHashMap<>();
+    users.forEach(
+        (userId, user) ->
+            user.devices.forEach(
+                (deviceId, data) -> {
+                  if (Boolean.TRUE.equals(data.get(flag))) {
+                    devices.put(
+                        new DeviceKey(userId, deviceId), withStates(userId, deviceId, data));
+                  }
+                }));
+    return devices;
+  }
+
+  @Override
+  public Map<String, Object> getUser(String userId) {
+    UserRecord user = users.get(userId);
+    return user != null ? user.data : null;
+  }
+
+  @Override
+  public synchronized void setUser(String userId, Map<String, Object> data)
+      throws ExecutionException {
+    Map<String, Object> copy = copyOf(data);
+    append(record("setUser", userId, null, GSON.toJsonTree(copy)));
+    applySetUser(userId, copy);
+  }
+
+  @Override
+  public synchronized void updateUser(String userId, Map<String, Object> fields)
+      throws ExecutionException {
+    requireUser(userId);
+    Map<String, Object> copy = copyOf(fields);
+    append(record("updateUser", userId, null, encodeFields(copy)));
+    applyUpdateUser(userId, copy);
+  }
+
+  @Override
+  public synchronized boolean compareAndSetUserField(
+      String userId, String field, Object expected, Object value) throws ExecutionException {
+    if (!Objects.equals(copyValue(expected), requireUser(userId).get(field))) {
+      return false;
+    }
+    Map<String, Object> fields = new HashMap<>();
+    fields.put(field, value);
+    updateUser(userId, fields);
+    return true;
+  }
+
+  @Override
+  public synchronized void deleteUser(String userId) throws ExecutionException {
+    append(record("deleteUser", userId, null, null));
+    applyDeleteUser(userId);
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId) {
+    Map<String, Map<String, Object>> devices = new LinkedHashMap<>();
+    UserRecord user = users.get(userId);
+    if (user != null) {
+      user.devices.forEach(
+          (deviceId, data) -> devices.put(deviceId, withStates(userId, deviceId, data)));
+    }
+    return devices;
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId, Collection<String> deviceIds) {
+    Map<String, Map<String, Object>> devices = new HashMap<>();
+    UserRecord user = users.get(userId);
+    if (user != null) {
+      for (String deviceId : deviceIds) {
+        Map<String, Object> device = user.devices.get(deviceId);
+        if (device != null) {
+          devices.put(deviceId, withStates(userId, deviceId, device));
+        }
+      }
+    }
+    return devices;
+  }
+
+  @Override
+  public synchronized void setDevice(String userId, String deviceId, Map<String, Object> data)
+      throws ExecutionException {
+    Map<String, Object> copy = copyOf(data);
+    append(record("setDevice", userId, deviceId, GSON.toJsonTree(copy)));
+    applySetDevice(userId, deviceId, copy);
+  }
+
+  @Override
+  public synchronized void updateDevices(
+      String userId, Map<String, Map<String, Object>> updates) throws ExecutionException {
+    UserRecord user = users.get(userId);
+    JsonObject encoded = new JsonObject();
+    Map<String, Map<String, Object>> copies = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<String, Object>> device : updates.entrySet()) {
+      if (device.getValue().isEmpty()) {
+        continue;
+      }
+      if (user == null || !user.devices.containsKey(device.getKey())) {
+        throw new ExecutionException(
+            new NoSuchElementException("no device " + device.getKey() + " of " + userId));
+      }
+      Map<String, Object> copy = copyOf(device.getValue());
+      copies.put(device.getKey(), copy);
+      encoded.add(device.getKey(), encodeFields(copy));
+    }
+    if (copies.isEmpty()) {
+      return;
+    }
+    append(record("updateDevices", userId, null, encoded));
+    applyUpdateDevices(userId, copies);
+  }
+
+  @Override
+  public synchronized void deleteDevice(String userId, String deviceId)
+      throws ExecutionException {
+    append(record("deleteDevice", userId, deviceId, null));
+    applyDeleteDevice(userId, deviceId);
+  }
+
+  /**
+   * Writes every document to a new snapshot and deletes the log segments it covers. The snapshot
+   * is written to a temporary file first, so a crash leaves the previous snapshot intact.
+   */
+  void snapshot() throws IOException {
+    synchronized (snapshotLock) {
+      long covered;
+      Map<String, Object> contents = new LinkedHashMap<>();
+      synchronized (this) {
+        if (dir == null || log == null || unsnapshottedRecords == 0) {
+          return;
+        }
+        covered = logSequence;
+        contents.put("sequence", covered);
+        contents.put("users", export());
+        log.close();
+        openLog();
+        unsnapshottedRecords = 0;
+      }
+
+      Path temporary = dir.resolve(SNAPSHOT + ".tmp");
+      try (FileChannel channel =
+          FileChannel.open(
+              temporary,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1);
+        GSON.toJson(contents, writer);
+        writer.flush();
+        channel.force(true);
+      }
+      Files.move(
+          temporary,
+          dir.resolve(SNAPSHOT),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      for (Map.Entry<Long, Path> segment : logSegments().entrySet()) {
+        if (segment.getKey() <= covered) {
+          Files.deleteIfExists(segment.getValue());
+        }
+      }
+      LOGGER.debug("memory store snapshot covers log segment {}", covered);
+    }
+  }
+
+  /**
+   * Returns a consistent copy of every document, keyed by user ID. Each user has its document,
+   * or none, under "data" and its devices keyed by device ID under "devices".
+   */
+  synchronized Map<String, Map<String, Object>> export() {
+    // Documents are never modified in place, so copying the references is enough
+    Map<String, Map<String, Object>> exported = new TreeMap<>();
+    users.forEach(
+        (userId, user) -> {
+          Map<String, Object> entry = new LinkedHashMap<>();
+          entry.put("data", user.data);
+          Map<String, Object> devices = new TreeMap<>();
+          user.devices.forEach(
+              (deviceId, data) -> devices.put(deviceId, withStates(userId, deviceId, data)));
+          entry.put("devices", devices);
+          exported.put(userId, entry);
+        });
+    return exported;
+  }
+
+  /**
+   * Replaces a user document and all of its devices without writing the log, for stores that
+   * keep nothing on disk, such as a cache.
+   *
+   * @param entry the user in the shape of {@link #export}, or null to drop the user
+   */
+  synchronized void replaceUser(String userId, Map<String, Object> entry) {
+    if (dir != null) {
+      throw new IllegalStateException("replaceUser would bypass the log");
+    }
+    UserRecord user = users.get(userId);
+    if (user != null) {
+      // Before the devices, which drop the record once it is empty
+      applyDeleteUser(userId);
+      for (String deviceId : user.devices.keySet()) {
+        applyDeleteDevice(userId, deviceId);
+      }
+    }
+    if (entry != null) {
+      restoreUser(userId, copyOf(entry));
+    }
+  }
+
+  /** Takes a final snapshot and closes the log. */
+  void close() {
+    if (snapshotter != null) {
+      snapshotter.shutdown();
+    }
+    snapshotQuietly();
+    synchronized (this) {
+      if (log != null) {
+        try {
+          log.close();
+        } catch (IOException e) {
+          LOGGER.warn("failed to close the memory store log", e);
+        }
+        log = null;
+      }
+    }
+  }
+
+  private void snapshotQuietly() {
+    try {
+      snapshot();
+    } catch (IOException e) {
+      LOGGER.error("failed to snapshot the memory store", e);
+    }
+  }
+
+  private Map<String, Object> requireUser(String userId) throws ExecutionException {
+    Map<String, Object> data = getUser(userId);
+    if (data == null) {
+      throw new ExecutionException(new NoSuchElementException("no user " + userId));
+    }
+    return data;
+  }
+
+  private void applySetUser(String userId, Map<String, Object> data) {
+    UserRecord user = users.computeIfAbsent(userId, id -> new UserRecord());
+    indexFakeToken(userId, user.data, data);
+    user.data = data;
+  }
+
+  private void applyUpdateUser(String userId, Map<String, Object> fields) {
+    UserRecord user = users.get(userId);
+    if (user == null || user.data == null) {
+      return;
+    }
+    Map<String, Object> data = FieldPaths.apply(user.data, fields);
+    indexFakeToken(userId, user.data, data);
+    user.data = data;
+  }
+
+  private void applyDeleteUser(String userId) {
+    UserRecord user = users.get(userId);
+    if (user == null) {
+      return;
+    }
+    indexFakeToken(userId, user.data, null);
+    user.data = null;
+    if (user.devices.isEmpty()) {
+      users.remove(userId);
+    }
+  }
+
+  private void applySetDevice(String userId, String deviceId, Map<String, Object> data) {
+    users
+        .computeIfAbsent(userId, id -> new UserRecord())
+        .devices
+        .put(deviceId, withoutStates(userId, deviceId, data));
+  }
+
+  private void applyUpdateDevices(String userId, Map<String, Map<String, Object>> updates) {
+    UserRecord user = users.get(userId);
+    if (user == null) {
+      return;
+    }
+    updates.forEach(
+        (deviceId, fields) ->
+            user.devices.computeIfPresent(
+                deviceId,
+                (id, data) ->
+                    withoutStates(
+                        userId, id, FieldPaths.apply(withStates(userId, id, data), fields))));
+  }
+
+  private void applyDeleteDevice(String userId, String deviceId) {
+    UserRecord user = users.get(userId);
+    if (user == null) {
+      return;
+    }
+    user.devices.remove(deviceId);
+    if (stateTable != null) {
+      stateTable.remove(userId, deviceId);
+    }
+    if (user.data == null && user.devices.isEmpty()) {
+      users.remove(userId);
+    }
+  }
+
+  /** Returns a stored device document with its states, which may be kept in the state table. */
+  private Map<String, Object> withStates(
+      String userId, String deviceId, Map<String, Object> stored) {
+    if (stateTable == null) {
+      return stored;
+    }
+    DeviceState states = stateTable.get(userId, deviceId);
+    if (states == null) {
+      return stored;
+    }
+    Map<String, Object> device = new HashMap<>(stored);
+    device.put("states", states.toMap());
+    return device;
+  }
+
+  /** Moves the states of a device document to the state table and returns the rest to store. */
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> withoutStates(
+      String userId, String deviceId, Map<String, Object> device) {
+    if (stateTable == null) {
+      return device;
+    }
+    Object states = device.get("states");
+    if (!(states instanceof Map)) {
+      stateTable.remove(userId, deviceId);
+      return device;
+    }
+    stateTable.put(userId, deviceId, DeviceState.fromMap((Map<String, Object>) states));
+    Map<String, Object> rest = new HashMap<>(device);
+    rest.remove("states");
+    return rest;
+  }
+
+  private void indexFakeToken(
+      String userId, Map<String, Object> previous, Map<String, Object> current) {
+    Object previousToken = previous != null ? previous.get("fakeAccessToken") : null;
+    Object currentToken = current != null ? current.get("fakeAccessToken") : null;
+    if (previousToken instanceof String) {
+      fakeTokens.remove(previousToken, userId);
+    }
+    if (currentToken instanceof String) {
+      fakeTokens.put((String) currentToken, userId);
+    }
+  }
+
+  private static JsonObject record(
+      String op, String userId, String deviceId, JsonElement value) {
+    JsonObject record = new JsonObject();
+    record.addProperty("op", op);
+    record.addProperty("u", userId);
+    if (deviceId != null) {
+      record.addProperty("d", deviceId);
+    }
+    if (value != null) {
+      record.add("v", value);
+    }
+    return record;
+  }
+
+  private static JsonObject encodeFields(Map<String, Object> fields) {
+    JsonObject encoded = new JsonObject();
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      if (field.getValue() == FieldPaths.DELETE) {
+        JsonObject marker = new JsonObject();
+        marker.addProperty(DELETE_MARKER, true);
+        encoded.add(field.getKey(), marker);
+      } else {
+        encoded.add(field.getKey(), GSON.toJsonTree(field.getValue()));
+      }
+    }
+    return encoded;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> decodeFields(Map<String, Object> fields) {
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      Object value = field.getValue();
+      if (value instanceof Map && ((Map<String, Object>) value).containsKey(DELETE_MARKER)) {
+        field.setValue(FieldPaths.DELETE);
+      }
+    }
+    return fields;
+  }
+
+  /** Appends a record to the log and forces it to disk if configured to. Caller holds this. */
+  private void append(JsonObject record) throws ExecutionException {
+    if (log == null) {
+      return;
+    }
+    ByteBuffer bytes = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+    try {
+      while (bytes.hasRemaining()) {
+        log.write(bytes);
+      }
+      if (fsync) {
+        log.force(false);
+      }
+    } catch (IOException e) {
+      throw new ExecutionException(e);
+    }
+    unsnapshottedRecords++;
+  }
+
+  /** Loads the latest snapshot and replays the log segments written after it. */
+  @SuppressWarnings("unchecked")
+  private synchronized void recover() throws IOException {
+    long covered = 0;
+    Path snapshot = dir.resolve(SNAPSHOT);
+    if (Files.exists(snapshot)) {
+      Map<String, Object> contents;
+      try (Reader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+        contents = GSON.fromJson(reader, MAP_TYPE);
+      }
+      covered = ((Number) contents.get("sequence")).longValue();
+      Map<String, Object> snapshotUsers = (Map<String, Object>) contents.get("users");
+      for (Map.Entry<String, Object> entry : snapshotUsers.entrySet()) {
+        restoreUser(entry.getKey(), (Map<String, Object>) entry.getValue());
+      }
+    }
+
+    logSequence = covered;
+    long replayed = 0;
+    for (Map.Entry<Long, Path> segment : logSegments().entrySet()) {
+      if (segment.getKey() <= covered) {
+        // Left behind by a crash between writing a snapshot and deleting the log
+        Files.deleteIfExists(segment.getValue());
+        continue;
+      }
+      replayed += replay(segment.getValue());
+      logSequence = segment.getKey();
+    }
+    openLog();
+    // Fold the replayed records into a snapshot at the next opportunity
+    unsnapshottedRecords = replayed;
+    LOGGER.info(
+        "memory store loaded {} users and replayed {} log records", users.size(), replayed);
+  }
+
+  /** Applies a user in the shape of {@link #export}, which may have been read back from JSON. */
+  @SuppressWarnings("unchecked")
+  private void restoreUser(String userId, Map<String, Object> entry) {
+    Map<String, Object> data = (Map<String, Object>) entry.get("data");
+    if (data != null) {
+      applySetUser(userId, JsonDocuments.restoreIntegers(data));
+    }
+    Map<String, Object> devices = (Map<String, Object>) entry.get("devices");
+    if (devices != null) {
+      for (Map.Entry<String, Object> device : devices.entrySet()) {
+        applySetDevice(
+            userId,
+            device.getKey(),
+            JsonDocuments.restoreIntegers((Map<String, Object>) device.getValue()));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private long replay(Path segment) throws IOException {
+    long records = 0;
+    try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          JsonObject record = JsonParser.parseString(line).getAsJsonObject();
+          String userId = record.get("u").getAsString();
+          Map<String, Object> value =
+              record.has("v")
+                  ? JsonDocuments.restoreIntegers(GSON.fromJson(record.get("v"), MAP_TYPE))
+                  : null;
+          switch (record.get("op").getAsString()) {
+            case "setUser":
+              applySetUser(userId, value);
+              break;
+            case "updateUser":
+              applyUpdateUser(userId, decodeFields(value));
+              break;
+            case "deleteUser":
+              applyDeleteUser(userId);
+              break;
+            case "setDevice":
+              applySetDevice(userId, record.get("d").getAsString(), value);
+              break;
+            case "updateDevices":
+              Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+              for (Map.Entry<String, Object> device : value.entrySet()) {
+                updates.put(
+                    device.getKey(), decodeFields((Map<String, Object>) device.getValue()));
+              }
+              applyUpdateDevices(userId, updates);
+              break;
+            case "deleteDevice":
+              applyDeleteDevice(userId, record.get("d").getAsString());
+              break;
+            default:
+              throw new IllegalArgumentException(record.get("op").getAsString());
+          }
+          records++;
+        } catch (RuntimeException e) {
+          // A torn last record means the write was never acknowledged
+          LOGGER.warn("skipping unreadable log record in {}", segment);
+        }
+      }
+    }
+    return records;
+  }
+
+  private TreeMap<Long, Path> logSegments() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, LOG_PREFIX + "*.log")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        segments.put(
+            Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - 4)), file);
+      }
+    }
+    return segments;
+  }
+
+  /** Starts the next log segment. Caller holds this. */
+  private void openLog() throws IOException {
+    logSequence++;
+    log =
+        FileChannel.open(
+            dir.resolve(LOG_PREFIX + logSequence + ".log"),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Copies document data so that callers cannot modify stored documents, and normalizes numbers
+   * the way Firestore returns them: whole numbers as longs and the rest as doubles.
+   */
+  private static Map<String, Object> copyOf(Map<String, Object> data) {
+    Map<String, Object> copy = new HashMap<>();
+    for (Map.Entry<String, Object> field : data.entrySet()) {
+      copy.put(field.getKey(), copyValue(field.getValue()));
+    }
+    return copy;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object copyValue(Object value) {
+    if (value instanceof Map) {
+      return copyOf((Map<String, Object>) value);
+    } else if (value instanceof List) {
+      List<Object> copy = new ArrayList<>();
+      for (Object element : (List<Object>) value) {
+        copy.add(copyValue(element));
+      }
+      return copy;
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Float) {
+      return ((Float) value).doubleValue();
+    }
+    return value;
+  }
+}
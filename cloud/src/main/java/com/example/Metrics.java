@@ -0,0 +1,395 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The metrics of the fulfillment, served by {@link MetricsServlet} in the Prometheus text format.
+ *
+ * <p>Recording never takes a lock: counters are {@link LongAdder}s and latencies go to HdrHistogram
+ * {@link Recorder}s, which are only swapped out when the metrics are read. Latencies are kept in
+ * microseconds, up to 10 minutes with two significant digits, and reported in seconds as summaries
+ * over the lifetime of the process.
+ */
+final class Metrics {
+  /** The fulfillment intents, which label the metrics of the requests they handle. */
+  enum Intent {
+    SYNC,
+    QUERY,
+    EXECUTE,
+    DISCONNECT
+  }
+
+  private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  /** The label of work done outside of a fulfillment request. */
+  private static final String NO_INTENT = "none";
+
+  private static final List<Metric> REGISTRY = new ArrayList<>();
+
+  static final Timer INTENT_LATENCY =
+      register(
+          new Timer(
+              "smarthome_intent_latency_seconds",
+              "Time to handle a fulfillment intent.",
+              "intent"));
+  static final Timer COMMAND_LATENCY =
+      register(
+          new Timer(
+              "smarthome_command_latency_seconds",
+              "Time to execute the commands of an EXECUTE request, once per command type in it.",
+              "command"));
+  static final Counter FIRESTORE_READS =
+      register(
+          new Counter(
+              "smarthome_firestore_reads_total", "Firestore documents read.", "intent"));
+  static final Counter FIRESTORE_WRITES =
+      register(
+          new Counter(
+              "smarthome_firestore_writes_total", "Firestore documents written.", "intent"));
+  static final Timer MQTT_PUBLISH_LATENCY =
+      register(
+          new Timer(
+              "smarthome_mqtt_publish_latency_seconds",
+              "Time to publish a device message to the MQTT broker.",
+              null));
+  static final Counter MQTT_PUBLISH_FAILURES =
+      register(
+          new Counter(
+              "smarthome_mqtt_publish_failures_total", "Device messages not published.", null));
+  static final Gauge MQTT_QUEUE_DEPTH =
+      register(
+          new Gauge(
+              "smarthome_mqtt_queue_depth", "Device messages waiting to be published."));
+  static final Counter MQTT_GROUP_PUBLISHES =
+      register(
+          new Counter(
+              "smarthome_mqtt_group_publishes_total",
+              "Device messages published once to the topic of a device group.",
+              null));
+  static final Counter MQTT_SUPERSEDED =
+      register(
+          new Counter(
+              "smarthome_mqtt_superseded_total",
+              "Device messages replaced by a newer command before being published.",
+              null));
+  static final Counter MQTT_UNCHANGED =
+      register(
+          new Counter(
+              "smarthome_mqtt_unchanged_total",
+              "Device messages not published because the device reported those states already.",
+              null));
+  static final Counter SHADOW_RESENDS =
+      register(
+          new Counter(
+              "smarthome_shadow_resends_total",
+              "Device messages published again after a device reported other states.",
+              null));
+  static final Counter STATE_WRITES =
+      register(
+          new Counter(
+              "smarthome_state_writes_total",
+              "Device state updates checked against the stored state version.",
+              "source"));
+  static final Counter STALE_STATE_WRITES =
+      register(
+          new Counter(
+              "smarthome_stale_state_writes_total",
+              "Device state updates dropped because the stored states were newer.",
+              "source"));
+  static final Gauge ACTIVE_TIMERS =
+      register(new Gauge("smarthome_active_timers", "Device timers waiting to run out."));
+  static final Counter TIMERS_EXPIRED =
+      register(
+          new Counter(
+              "smarthome_timers_expired_total",
+              "Device timers that ran out and were ended.",
+              null));
+  static final Gauge ACTIVE_SCHEDULES =
+      register(new Gauge("smarthome_active_schedules", "Device schedules waiting to run."));
+  static final Counter SCHEDULES_FIRED =
+      register(
+          new Counter(
+              "smarthome_schedules_fired_total", "Device schedules that came due and ran.", null));
+  static final Gauge ACTIVE_RULES =
+      register(new Gauge("smarthome_active_rules", "Device rules watching device states."));
+  static final Counter RULE_EVALUATIONS =
+      register(
+          new Counter(
+              "smarthome_rule_evaluations_total",
+              "Rule conditions evaluated against changed device states.",
+              null));
+  static final Counter RULES_TRIGGERED =
+      register(
+          new Counter(
+              "smarthome_rules_triggered_total",
+              "Device rules whose conditions were met, so that they ran.",
+              null));
+  static final Timer REPORT_STATE_LATENCY =
+      register(
+          new Timer(
+              "smarthome_report_state_latency_seconds",
+              "Time of a HomeGraph ReportStateAndNotification call.",
+              null));
+  static final Counter REPORT_STATE_FAILURES =
+      register(
+          new Counter(
+              "smarthome_report_state_failures_total",
+              "Failed HomeGraph ReportStateAndNotification calls.",
+              null));
+
+  private Metrics() {
+  }
+
+  /**
+   * Returns the label of the intent of the {@link RequestContext} the current thread is handling,
+   * which labels the Firestore operations it makes.
+   */
+  static String currentIntent() {
+    RequestContext context = RequestContext.current();
+    return context != null ? context.intent.name() : NO_INTENT;
+  }
+
+  /** Writes every metric in the Prometheus text exposition format, version 0.0.4. */
+  static void writeTo(StringBuilder out) {
+    for (Metric metric : REGISTRY) {
+      out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+      out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+      metric.writeSamples(out);
+    }
+  }
+
+  private static <T extends Metric> T register(T metric) {
+    REGISTRY.add(metric);
+    return metric;
+  }
+
+  /** A metric family with at most one label. */
+  abstract static class Metric {
+    final String name;
+    final String help;
+    final String type;
+    /** The name of the label, or null if the metric has a single unlabeled value. */
+    final String label;
+
+    Metric(String name, String help, String type, String label) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+      this.label = label;
+    }
+
+    abstract void writeSamples(StringBuilder out);
+
+    /** Appends the label set of a sample, with an optional extra label such as the quantile. */
+    void appendLabels(StringBuilder out, String value, String extraName, String extraValue) {
+      if (label == null && extraName == null) {
+        return;
+      }
+      out.append('{');
+      if (label != null) {
+        out.append(label).append("=\"");
+        appendEscaped(out, value);
+        out.append('"');
+        if (extraName != null) {
+          out.append(',');
+        }
+      }
+      if (extraName != null) {
+        out.append(extraName).append("=\"").append(extraValue).append('"');
+      }
+      out.append('}');
+    }
+
+    private static void appendEscaped(StringBuilder out, String value) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '\\' || c == '"') {
+          out.append('\\').append(c);
+        } else if (c == '\n') {
+          out.append("\\n");
+        } else {
+          out.append(c);
+        }
+      }
+    }
+  }
+
+  /** A count that only goes up, kept per label value. */
+  static final class Counter extends Metric {
+    private final Map<String, LongAdder> values = new ConcurrentHashMap<>();
+
+    Counter(String name, String help, String label) {
+      super(name, help, "counter", label);
+    }
+
+    void increment() {
+      add("", 1);
+    }
+
+    void add(String labelValue, long delta) {
+      LongAdder value = values.get(labelValue);
+      if (value == null) {
+        // computeIfAbsent locks even when the value exists
+        value = values.computeIfAbsent(labelValue, key -> new LongAdder());
+      }
+      value.add(delta);
+    }
+
+    long get(String labelValue) {
+      LongAdder value = values.get(labelValue);
+      return value != null ? value.sum() : 0;
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+      if (label == null && values.isEmpty()) {
+        // An unlabeled counter exists from the start
+        values.computeIfAbsent("", value -> new LongAdder());
+      }
+      for (Map.Entry<String, LongAdder> value : new TreeMap<>(values).entrySet()) {
+        out.append(name);
+        appendLabels(out, value.getKey(), null, null);
+        out.append(' ').append(value.getValue().sum()).append('\n');
+      }
+    }
+  }
+
+  /** A value that goes up and down. */
+  static final class Gauge extends Metric {
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge(String name, String help) {
+      super(name, help, "gauge", null);
+    }
+
+    void increment() {
+      value.incrementAndGet();
+    }
+
+    void decrement() {
+      value.decrementAndGet();
+    }
+
+    void add(long delta) {
+      value.addAndGet(delta);
+    }
+
+    long get() {
+      return value.get();
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+      out.append(name).append(' ').append(value.get()).append('\n');
+    }
+  }
+
+  /** Latencies kept per label value, reported as a summary. */
+  static final class Timer extends Metric {
+    private final Map<String, Latencies> values = new ConcurrentHashMap<>();
+
+    Timer(String name, String help, String label) {
+      super(name, help, "summary", label);
+    }
+
+    /** Records the time since a {@link System#nanoTime} reading, for an unlabeled timer. */
+    void recordSince(long startNanos) {
+      recordSince("", startNanos);
+    }
+
+    void recordSince(String labelValue, long startNanos) {
+      recordNanos(labelValue, System.nanoTime() - startNanos);
+    }
+
+    void recordNanos(String labelValue, long nanos) {
+      long micros = Math.min(MAX_MICROS, Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos)));
+      Latencies latencies = values.get(labelValue);
+      if (latencies == null) {
+        latencies = values.computeIfAbsent(labelValue, value -> new Latencies());
+      }
+      latencies.recorder.recordValue(micros);
+      latencies.sumMicros.add(micros);
+    }
+
+    /** Returns every latency recorded with the label value, in microseconds. */
+    Histogram histogram(String labelValue) {
+      Latencies latencies = values.get(labelValue);
+      if (latencies == null) {
+        return new Histogram(MAX_MICROS, 2);
+      }
+      synchronized (latencies) {
+        return latencies.total().copy();
+      }
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+      for (Map.Entry<String, Latencies> value : new TreeMap<>(values).entrySet()) {
+        Latencies latencies = value.getValue();
+        long sumMicros = latencies.sumMicros.sum();
+        synchronized (latencies) {
+          Histogram total = latencies.total();
+          for (double quantile : QUANTILES) {
+            out.append(name);
+            appendLabels(out, value.getKey(), "quantile", Double.toString(quantile));
+            out.append(' ')
+                .append(seconds(total.getValueAtPercentile(quantile * 100)))
+                .append('\n');
+          }
+          out.append(name).append("_sum");
+          appendLabels(out, value.getKey(), null, null);
+          out.append(' ').append(seconds(sumMicros)).append('\n');
+          out.append(name).append("_count");
+          appendLabels(out, value.getKey(), null, null);
+          out.append(' ').append(total.getTotalCount()).append('\n');
+        }
+      }
+    }
+
+    private static double seconds(long micros) {
+      return micros / 1e6;
+    }
+  }
+
+  /** The recorder of one label value and everything taken out of it so far. */
+  private static final class Latencies {
+    final Recorder recorder = new Recorder(MAX_MICROS, 2);
+    final LongAdder sumMicros = new LongAdder();
+    // Guarded by this
+    private final Histogram total = new Histogram(MAX_MICROS, 2);
+    private Histogram interval;
+
+    /** Moves the latencies recorded since the last call into the total and returns the total. */
+    synchronized Histogram total() {
+      interval = recorder.getIntervalHistogram(interval);
+      total.add(interval);
+      return total;
+    }
+  }
+}
@@ -14,60 +14,138 @@
 package com.example;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.json.JSONObject;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.actions.api.smarthome.ExecuteRequest;
-import com.google.api.core.ApiFuture;
+import com.google.actions.api.smarthome.SmartHomeApp;
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.firestore.DocumentReference;
-import com.google.cloud.firestore.DocumentSnapshot;
-import com.google.cloud.firestore.FieldValue;
-import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
-import com.google.firebase.FirebaseApp;
-import com.google.firebase.FirebaseOptions;
-import com.google.firebase.cloud.FirestoreClient;
-
+import com.google.gson.Gson;
+
+/**
+ * The users and devices of the smart home, and the device messages sent over MQTT.
+ *
+ * <p>The operations of fulfillment requests have an asynchronous form, named with an
+ * {@code Async} suffix, which returns at once and completes on the threads of the storage. It
+ * fails as the blocking form would throw, and the blocking form waits for it.
+ */
 public class MyDataStore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+    private static final Gson GSON = new Gson();
+    /** The topics on which devices report their states, followed by the device ID. */
+    private static final String REPORTED_PREFIX = "reported/";
     private static MyDataStore ourInstance = new MyDataStore();
 
-    Firestore database;
+    /** The static access token of the sample user created by the frontend. */
+    static final String SAMPLE_ACCESS_TOKEN = "123access";
+
+    /** Where users and devices are kept, chosen by the smarthome.storage system property. */
+    private final DeviceStore store;
 
     private static MyMqtt mqtt;
 
+    /** Holds device messages briefly, so that a burst of commands publishes its last target. */
+    private final CommandMailbox mailbox =
+            CommandMailbox.fromSystemProperties(MyDataStore::publishMqtt);
+
+    /** Groups of devices that are sent the same messages, each with its own topic. */
+    private final DeviceGroups groups =
+            DeviceGroups.fromSystemProperties(
+                    (topic, payload) -> mqtt.publish(topic, 1, payload, true),
+                    announcement -> inBackground("announce device groups", announcement));
+
+    /** Orders the state writes of each device, so that stale ones are dropped. */
+    private final StateVersions versions = StateVersions.fromSystemProperties();
+
+    /**
+     * Runs the work on devices that no request waits for: timers, schedules, rules and device
+     * reports. It has {@code smarthome.background.threads} threads and queues up to {@code
+     * smarthome.background.queue} tasks; see {@link #inBackground}.
+     */
+    private final ExecutorService background = newBackgroundExecutor();
+
+    /** Ends the timers of the Timer trait when they run out. */
+    private final TimerWheel<DeviceKey> timers =
+            TimerWheel.fromSystemProperties(
+                    expired -> inBackground("end timers", () -> expireTimers(expired)));
+
+    /** Runs the schedules of devices, or null if this instance does not run them. */
+    private final ScheduleEngine scheduler =
+            ScheduleEngine.fromSystemProperties(
+                    (userId, firings) ->
+                            inBackground(
+                                    "run the schedules of user " + userId,
+                                    () -> runSchedules(userId, firings)));
+
+    /**
+     * Runs the rules that watch device states as the states change, or null if this instance does
+     * not run them.
+     */
+    private final RuleEngine rules =
+            RuleEngine.fromSystemProperties(
+                    (userId, met) ->
+                            inBackground(
+                                    "run the rules of user " + userId,
+                                    () -> runRules(userId, met)),
+                    () -> inBackground("reload rules", this::loadRules));
+
+    // Guarded by this
+    private SmartHomeApp reporter;
+
+    /** Limits how often a device that keeps reporting other states is sent its delta again. */
+    private final DeviceShadow.Resends resends = DeviceShadow.Resends.fromSystemProperties();
+
     static {
         try {
             mqtt = new MyMqtt();
         } catch (MqttException | IOException e) {
             LOGGER.error("Error when creating sample mqtt " + e);
         }
+        if (mqtt != null) {
+            // Connecting may take a while, which need not hold up startup
+            ourInstance.inBackground("listen to device reports", () -> {
+                try {
+                    mqtt.listen(REPORTED_PREFIX + "#", 1, ourInstance::onReported);
+                } catch (MqttException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+        if (ourInstance.scheduler != null) {
+            ourInstance.inBackground("load schedules", ourInstance::loadSchedules);
+        }
+        if (ourInstance.rules != null) {
+            ourInstance.inBackground("load rules", ourInstance::loadRules);
+        }
     }
 
     public MyDataStore() {
-        // Use a service account
         try {
-            GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
-            String projectId = System.getenv("GOOGLE_CLOUD_PROJECT");
-            FirebaseOptions options =
-                    new FirebaseOptions.Builder().setCredentials(credentials).setProjectId(projectId).build();
-            FirebaseApp.initializeApp(options);
-            database = FirestoreClient.getFirestore();
+            store = FlightEvents.recording(DeviceStore.fromSystemProperties());
         } catch (Exception e) {
-            LOGGER.error("ERROR: invalid service account credentials. See README.");
+            LOGGER.error("ERROR: failed to open the device store. For Firestore, check the service"
+                    + " account credentials. See README.");
             LOGGER.error(e.getMessage());
             throw new RuntimeException(e);
         }
@@ -77,66 +155,309 @@ public class MyDataStore {
         return ourInstance;
     }
 
-    public List<QueryDocumentSnapshot> getDevices(String userId)
+    private static ExecutorService newBackgroundExecutor() {
+        int threads = Integer.getInteger("smarthome.background.threads", 4);
+        AtomicInteger created = new AtomicInteger();
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(
+                                Integer.getInteger("smarthome.background.queue", 10_000)),
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "device-background-" + created.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Runs work on devices on the background executor, logging its failure. Work that does not fit
+     * in the queue is dropped and logged, rather than run on the thread that hands it over, which
+     * may be the MQTT client's or a ticking engine's.
+     */
+    private CompletableFuture<Void> inBackground(String what, Runnable work) {
+        return Futures.begin(() -> CompletableFuture.runAsync(work, background))
+                .whenComplete((done, failure) -> {
+                    if (failure != null) {
+                        LOGGER.error("failed to " + what, Futures.unwrap(failure));
+                    }
+                });
+    }
+
+    /** Returns the user's devices keyed by device ID, in device ID order. */
+    public Map<String, Map<String, Object>> getDevices(String userId)
             throws ExecutionException, InterruptedException {
-        ApiFuture<QuerySnapshot> deviceQuery =
-                database.collection("users").document(userId).collection("devices").get();
-        return deviceQuery.get().getDocuments();
+        return Futures.await(getDevicesAsync(userId));
+    }
+
+    /** The asynchronous form of {@link #getDevices}. */
+    public CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(String userId) {
+        long start = System.nanoTime();
+        return timed("readDevices", start, store.getDevicesAsync(userId));
     }
 
     public String getUserId(String token) throws ExecutionException, InterruptedException {
+        return Futures.await(getUserIdAsync(token));
+    }
+
+    /** The asynchronous form of {@link #getUserId}. */
+    public CompletableFuture<String> getUserIdAsync(String token) {
+        long start = System.nanoTime();
+        RequestContext context = RequestContext.current();
+        CompletableFuture<String> userId;
+        try {
+            userId = resolveUserId(token);
+        } catch (RuntimeException e) {
+            userId = Futures.failed(e);
+        }
+        return timed("getUserId", start, userId.thenApply(resolved -> {
+            RequestContext.setUserId(context, resolved);
+            return resolved;
+        }));
+    }
+
+    private CompletableFuture<String> resolveUserId(String token) {
         if (token == null) {
-            token = "Bearer 123access";
+            token = "Bearer " + SAMPLE_ACCESS_TOKEN;
         }
-        ApiFuture<QuerySnapshot> userQuery =
-                database.collection("users").whereEqualTo("fakeAccessToken", token.substring(7)).get();
-        QuerySnapshot usersSnapshot = userQuery.get();
-        List<QueryDocumentSnapshot> users = usersSnapshot.getDocuments();
+        String accessToken = token.substring(7);
+        if (TokenService.isSigned(accessToken)) {
+            // Signed tokens carry the user ID, so resolving them needs no Firestore I/O
+            String userId = TokenService.getInstance().verifyAccessToken(accessToken);
+            if (userId == null) {
+                LOGGER.error("invalid or expired access token");
+                throw new IllegalArgumentException("invalid access token");
+            }
+            return CompletableFuture.completedFuture(userId);
+        }
+        return store.findUserIdByFakeTokenAsync(accessToken).thenApply(MyDataStore::requireUser);
+    }
 
-        DocumentSnapshot user;
-        try {
-            user = users.get(0);
-        } catch (Exception e) {
+    /**
+     * Looks up the user that owns one of the static sample tokens.
+     *
+     * @param fakeAccessToken the value of the user's fakeAccessToken field
+     */
+    public String getUserIdByFakeToken(String fakeAccessToken)
+            throws ExecutionException, InterruptedException {
+        return Futures.await(getUserIdByFakeTokenAsync(fakeAccessToken));
+    }
+
+    /** The asynchronous form of {@link #getUserIdByFakeToken}. */
+    public CompletableFuture<String> getUserIdByFakeTokenAsync(String fakeAccessToken) {
+        return store.findUserIdByFakeTokenAsync(fakeAccessToken)
+                .thenApply(MyDataStore::requireUser);
+    }
+
+    private static String requireUser(String userId) {
+        if (userId == null) {
             LOGGER.error("no user found!");
-            throw e;
+            throw new IllegalArgumentException("no user with the given access token");
         }
+        return userId;
+    }
 
-        return user.getId();
+    /** Creates or replaces a user document. */
+    public void createUser(String userId, Map<String, Object> data)
+            throws ExecutionException, InterruptedException {
+        Futures.await(createUserAsync(userId, data));
+    }
+
+    /** The asynchronous form of {@link #createUser}. */
+    public CompletableFuture<Void> createUserAsync(String userId, Map<String, Object> data) {
+        return store.setUserAsync(userId, data);
+    }
+
+    /** Deletes a user document. The user's devices are not deleted. */
+    public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+        store.deleteUser(userId);
     }
 
     public Boolean isHomegraphEnabled(String userId) throws ExecutionException, InterruptedException {
-        DocumentSnapshot user = database.collection("users").document(userId).get().get();
-        return (Boolean) user.get("homegraph");
+        return Futures.await(isHomegraphEnabledAsync(userId));
+    }
+
+    /** The asynchronous form of {@link #isHomegraphEnabled}. */
+    public CompletableFuture<Boolean> isHomegraphEnabledAsync(String userId) {
+        return store.getUserAsync(userId)
+                .thenApply(user -> user != null ? (Boolean) user.get("homegraph") : null);
+    }
+
+    public void setHomegraph(String userId, Boolean enable)
+            throws ExecutionException, InterruptedException {
+        Futures.await(setHomegraphAsync(userId, enable));
+    }
+
+    /** The asynchronous form of {@link #setHomegraph}. */
+    public CompletableFuture<Void> setHomegraphAsync(String userId, Boolean enable) {
+        return store.updateUserAsync(userId, Collections.singletonMap("homegraph", enable));
+    }
+
+    /**
+     * Records the ID of the authorization code just issued to the user, the only one of the
+     * user's codes that may be exchanged for tokens.
+     */
+    public void setAuthorizationCodeId(String userId, String codeId)
+            throws ExecutionException, InterruptedException {
+        Futures.await(setAuthorizationCodeIdAsync(userId, codeId));
+    }
+
+    /** The asynchronous form of {@link #setAuthorizationCodeId}. */
+    public CompletableFuture<Void> setAuthorizationCodeIdAsync(String userId, String codeId) {
+        return store.updateUserAsync(
+                userId, Collections.singletonMap("authorizationCodeId", codeId));
+    }
+
+    /**
+     * Uses up an authorization code, so that it is exchanged for tokens at most once.
+     *
+     * @return false if the code was used already or a newer one was issued
+     */
+    public boolean redeemAuthorizationCode(String userId, String codeId)
+            throws ExecutionException, InterruptedException {
+        return Futures.await(redeemAuthorizationCodeAsync(userId, codeId));
+    }
+
+    /** The asynchronous form of {@link #redeemAuthorizationCode}. */
+    public CompletableFuture<Boolean> redeemAuthorizationCodeAsync(String userId, String codeId) {
+        return store.compareAndSetUserFieldAsync(
+                userId, "authorizationCodeId", codeId, FieldPaths.DELETE);
+    }
+
+    public void setRefreshTokenId(String userId, String tokenId)
+            throws ExecutionException, InterruptedException {
+        Futures.await(setRefreshTokenIdAsync(userId, tokenId));
     }
 
-    public void setHomegraph(String userId, Boolean enable) {
-        DocumentReference user = database.collection("users").document(userId);
-        user.update("homegraph", enable);
+    /** The asynchronous form of {@link #setRefreshTokenId}. */
+    public CompletableFuture<Void> setRefreshTokenIdAsync(String userId, String tokenId) {
+        return store.updateUserAsync(userId, Collections.singletonMap("refreshTokenId", tokenId));
     }
 
-    public void updateDevice(
+    /**
+     * Replaces the user's current refresh token ID if it still matches the presented one. A
+     * mismatch means an already rotated refresh token was replayed, so the token family is revoked.
+     *
+     * @return true if the rotation happened
+     */
+    public boolean rotateRefreshTokenId(String userId, String presentedTokenId, String nextTokenId)
+            throws ExecutionException, InterruptedException {
+        return Futures.await(rotateRefreshTokenIdAsync(userId, presentedTokenId, nextTokenId));
+    }
+
+    /** The asynchronous form of {@link #rotateRefreshTokenId}. */
+    public CompletableFuture<Boolean> rotateRefreshTokenIdAsync(
+            String userId, String presentedTokenId, String nextTokenId) {
+        return store.compareAndSetUserFieldAsync(
+                        userId, "refreshTokenId", presentedTokenId, nextTokenId)
+                .thenCompose(rotated -> rotated
+                        ? CompletableFuture.completedFuture(true)
+                        : store.updateUserAsync(
+                                        userId,
+                                        Collections.singletonMap(
+                                                "refreshTokenId", FieldPaths.DELETE))
+                                .thenApply(revoked -> false));
+    }
+
+    /**
+     * Updates the states and other fields of a device, the states being versioned as issued now.
+     *
+     * @return false if newer states were written meanwhile, so the states were not written
+     */
+    public boolean updateDevice(
             String userId, String deviceId, Map<String, Object> states, Map<String, String> params)
             throws ExecutionException, InterruptedException {
-        DocumentReference device =
-                database.collection("users").document(userId).collection("devices").document(deviceId);
-        if (states != null) {
-            device.update("states", states).get();
-        }
-        if (params.containsKey("name")) {
-            String name = params.get("name");
-            device.update("name", name != null ? name : FieldValue.delete()).get();
+        return Futures.await(updateDeviceAsync(userId, deviceId, states, params));
+    }
+
+    /** The asynchronous form of {@link #updateDevice(String, String, Map, Map)}. */
+    public CompletableFuture<Boolean> updateDeviceAsync(
+            String userId,
+            String deviceId,
+            Map<String, Object> states,
+            Map<String, String> params) {
+        return updateDeviceAsync(userId, deviceId, states, params, versions.next());
+    }
+
+    /**
+     * Updates the states and other fields of a device. The states are only written if they are
+     * newer than the stored ones; the other fields are written regardless.
+     *
+     * @param stateVersion the {@link StateVersions version} of the states, taken when they were
+     *     observed or the update was issued
+     * @return false if the stored states were newer, so the states were not written
+     * @throws IllegalArgumentException if the version is not {@link StateVersions#isPlausible
+     *     plausible}
+     */
+    public boolean updateDevice(
+            String userId,
+            String deviceId,
+            Map<String, Object> states,
+            Map<String, String> params,
+            long stateVersion)
+            throws ExecutionException, InterruptedException {
+        return Futures.await(updateDeviceAsync(userId, deviceId, states, params, stateVersion));
+    }
+
+    /** The asynchronous form of {@link #updateDevice(String, String, Map, Map, long)}. */
+    public CompletableFuture<Boolean> updateDeviceAsync(
+            String userId,
+            String deviceId,
+            Map<String, Object> states,
+            Map<String, String> params,
+            long stateVersion) {
+        if (!versions.isPlausible(stateVersion)) {
+            return Futures.failed(
+                    new IllegalArgumentException("implausible state version " + stateVersion));
         }
-        if (params.containsKey("nickname")) {
-            String nickname = params.get("nickname");
-            device.update("nickname", nickname != null ? nickname : FieldValue.delete()).get();
+        if (states == null) {
+            return writeDevice(userId, deviceId, null, params, stateVersion, null);
         }
-        if (params.containsKey("errorCode")) {
-            String errorCode = params.get("errorCode");
-            device.update("errorCode", errorCode != null ? errorCode : FieldValue.delete()).get();
+        versions.observe(stateVersion);
+        return store.getDevicesAsync(userId, Collections.singleton(deviceId))
+                .thenCompose(read -> writeDevice(
+                        userId, deviceId, states, params, stateVersion, read.get(deviceId)));
+    }
+
+    /**
+     * Writes the update of a device, given the stored device if there are states to write.
+     *
+     * @return a future of false if the stored states were newer
+     */
+    private CompletableFuture<Boolean> writeDevice(
+            String userId,
+            String deviceId,
+            Map<String, Object> states,
+            Map<String, String> params,
+            long stateVersion,
+            Map<String, Object> stored) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        DeviceKey device = new DeviceKey(userId, deviceId);
+        boolean current = true;
+        if (states != null) {
+            current = versions.acceptNewer(device, StateVersions.of(stored), stateVersion);
+            Metrics.STATE_WRITES.add("update", 1);
+            if (current) {
+                fields.put("states", states);
+                fields.put(StateVersions.FIELD, stateVersion);
+            } else {
+                Metrics.STALE_STATE_WRITES.add("update", 1);
+                LOGGER.warn("dropped stale states of device {}", deviceId);
+            }
         }
-        if (params.containsKey("tfa")) {
-            String tfa = params.get("tfa");
-            device.update("tfa", tfa != null ? tfa : FieldValue.delete()).get();
+        for (String param : new String[] {"name", "nickname", "errorCode", "tfa"}) {
+            if (params.containsKey(param)) {
+                String value = params.get(param);
+                fields.put(param, value != null ? value : FieldPaths.DELETE);
+            }
         }
         if (params.containsKey("localDeviceId")) {
             String localDeviceId = params.get("localDeviceId");
@@ -145,1090 +466,741 @@ public class MyDataStore {
                 otherDeviceId.put("deviceId", localDeviceId);
                 List<Object> otherDeviceIds = new ArrayList<>();
                 otherDeviceIds.add(otherDeviceId);
-                device.update("otherDeviceIds", otherDeviceIds).get();
+                fields.put("otherDeviceIds", otherDeviceIds);
             } else {
-                device.update("otherDeviceIds", FieldValue.delete()).get();
+                fields.put("otherDeviceIds", FieldPaths.DELETE);
+            }
+        }
+        if (fields.isEmpty()) {
+            return CompletableFuture.completedFuture(current);
+        }
+        Map<String, Map<String, Object>> updates = new HashMap<>();
+        updates.put(deviceId, fields);
+        boolean accepted = current;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> previous =
+                stored != null ? (Map<String, Object>) stored.get("states") : null;
+        return store.updateDevicesAsync(userId, updates).handle((written, failure) -> {
+            if (failure != null) {
+                if (fields.containsKey(StateVersions.FIELD)) {
+                    versions.release(device, stateVersion);
+                }
+                throw new CompletionException(Futures.unwrap(failure));
+            }
+            if (fields.containsKey("states") && rules != null) {
+                rules.onStates(device, changed(previous, states), System.currentTimeMillis());
+            }
+            return accepted;
+        });
+    }
+
+    /** Returns the states that differ from the previous ones, keyed by state key. */
+    private static Map<String, Object> changed(
+            Map<String, Object> previous, Map<String, Object> states) {
+        if (previous == null) {
+            return states;
+        }
+        Map<String, Object> changed = new HashMap<>();
+        for (Map.Entry<String, Object> state : states.entrySet()) {
+            if (!DeviceShadow.same(previous.get(state.getKey()), state.getValue())) {
+                changed.put(state.getKey(), state.getValue());
             }
         }
+        return changed;
     }
 
     public void addDevice(String userId, Map<String, Object> data)
             throws ExecutionException, InterruptedException {
-        String deviceId = (String) data.get("deviceId");
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .set(data)
-            .get();
+        Futures.await(addDeviceAsync(userId, data));
+    }
+
+    /** The asynchronous form of {@link #addDevice}. */
+    public CompletableFuture<Void> addDeviceAsync(String userId, Map<String, Object> data) {
+        return store.setDeviceAsync(userId, (String) data.get("deviceId"), data);
     }
 
     public void deleteDevice(String userId, String deviceId)
             throws ExecutionException, InterruptedException {
-        database
-            .collection("users")
-            .document(userId)
-            .collection("devices")
-            .document(deviceId)
-            .delete()
-            .get();
+        Futures.await(deleteDeviceAsync(userId, deviceId));
+    }
+
+    /** The asynchronous form of {@link #deleteDevice}. */
+    public CompletableFuture<Void> deleteDeviceAsync(String userId, String deviceId) {
+        return store.deleteDeviceAsync(userId, deviceId).thenRun(() -> {
+            if (rules != null) {
+                rules.set(new DeviceKey(userId, deviceId), Collections.emptyList());
+            }
+            if (scheduler != null) {
+                scheduler.set(
+                        new DeviceKey(userId, deviceId),
+                        Collections.emptyList(),
+                        System.currentTimeMillis());
+            }
+        });
     }
 
-    public Map<String, Object> getState(String userId, String deviceId)
+    /**
+     * Replaces the schedules of a device, which start from now. See {@link Schedule}.
+     *
+     * @param schedules the schedules keyed by schedule ID, or an empty map to remove them
+     * @throws IllegalArgumentException if a schedule is malformed, so nothing was written
+     */
+    public void setSchedules(String userId, String deviceId, Map<String, Object> schedules)
             throws ExecutionException, InterruptedException {
-        DocumentSnapshot device =
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .get()
-                    .get();
-        return (Map<String, Object>) device.get("states");
-    }
-
-    public Map<String, Object> execute(
-            String userId, String deviceId, ExecuteRequest.Inputs.Payload.Commands.Execution execution)
-            throws Exception {
-
-        DocumentSnapshot device =
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .get()
-                    .get();
-        Map<String, Object> deviceStates = (Map<String, Object>) device.getData().get("states");
-        Map<String, Object> states = new HashMap<>();
-
-        // if (device.contains("states")) {
-        if (!deviceStates.isEmpty()) {
-            states.putAll(deviceStates);
-        }
+        Futures.await(setSchedulesAsync(userId, deviceId, schedules));
+    }
 
-        if (!(Boolean) states.get("online")) {
-            throw new Exception("deviceOffline");
+    /**
+     * The asynchronous form of {@link #setSchedules}. Malformed schedules throw rather than fail
+     * the future.
+     */
+    public CompletableFuture<Void> setSchedulesAsync(
+            String userId, String deviceId, Map<String, Object> schedules) {
+        List<Schedule> parsed = new ArrayList<>(schedules.size());
+        for (Map.Entry<String, Object> schedule : schedules.entrySet()) {
+            if (!(schedule.getValue() instanceof Map)) {
+                throw new IllegalArgumentException(
+                        "schedule " + schedule.getKey() + " is not an object");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> definition = (Map<String, Object>) schedule.getValue();
+            parsed.add(Schedule.parse(schedule.getKey(), definition));
         }
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(Schedule.FIELD, schedules.isEmpty() ? FieldPaths.DELETE : schedules);
+        fields.put(Schedule.SCHEDULED, schedules.isEmpty() ? FieldPaths.DELETE : true);
+        // The runs of the replaced schedules are not caught up on
+        fields.put(Schedule.RUNS, FieldPaths.DELETE);
+        return store.updateDevicesAsync(
+                        userId, new HashMap<>(Collections.singletonMap(deviceId, fields)))
+                .thenRun(() -> {
+                    if (scheduler != null) {
+                        scheduler.set(
+                                new DeviceKey(userId, deviceId),
+                                parsed,
+                                System.currentTimeMillis());
+                    }
+                });
+    }
 
-        if (device.contains("errorCode") && !device.getString("errorCode").isEmpty()) {
-            throw new Exception(device.getString("errorCode"));
+    public DeviceState getState(String userId, String deviceId)
+            throws ExecutionException, InterruptedException {
+        return Futures.await(getStatesAsync(userId, Collections.singleton(deviceId)))
+                .get(deviceId);
+    }
+
+    /**
+     * Returns the states of the given devices of the user keyed by device ID, leaving out missing
+     * devices. The devices are read together.
+     */
+    public CompletableFuture<Map<String, DeviceState>> getStatesAsync(
+            String userId, Collection<String> deviceIds) {
+        long start = System.nanoTime();
+        return timed("readDevices", start, store.getDevicesAsync(userId, deviceIds))
+                .thenApply(devices -> {
+                    long now = System.currentTimeMillis();
+                    Map<String, DeviceState> states = new HashMap<>();
+                    devices.forEach((deviceId, data) -> {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> deviceStates = (Map<String, Object>)
+                                countDown(userId, deviceId, data, now).get("states");
+                        states.put(deviceId, DeviceState.fromMap(deviceStates));
+                    });
+                    return states;
+                });
+    }
+
+    /**
+     * Executes the commands of one EXECUTE request. Every command is validated and planned
+     * before anything is written, and the resulting changes of all devices are committed
+     * together, so either all planned devices succeed or none does.
+     *
+     * @return one outcome per command, in order
+     */
+    public List<ExecutionOutcome> execute(String userId, List<ExecutionPlanner.Command> commands)
+            throws ExecutionException, InterruptedException {
+        return Futures.await(executeAsync(userId, commands));
+    }
+
+    /** The asynchronous form of {@link #execute}. */
+    public CompletableFuture<List<ExecutionOutcome>> executeAsync(
+            String userId, List<ExecutionPlanner.Command> commands) {
+        long start = System.nanoTime();
+        RequestContext context = RequestContext.current();
+        Set<String> deviceIds = new LinkedHashSet<>();
+        for (ExecutionPlanner.Command command : commands) {
+            deviceIds.add(command.deviceId);
         }
+        return timed("readDevices", start, store.getDevicesAsync(userId, deviceIds))
+                .thenCompose(read -> RequestContext.within(
+                        context, () -> planAndCommit(userId, commands, read)))
+                .thenApply(outcomes -> {
+                    Set<String> commandTypes = new LinkedHashSet<>();
+                    for (ExecutionPlanner.Command command : commands) {
+                        if (command.execution.command != null) {
+                            commandTypes.add(command.execution.command);
+                        }
+                    }
+                    for (String commandType : commandTypes) {
+                        Metrics.COMMAND_LATENCY.recordSince(commandType, start);
+                    }
+                    return outcomes;
+                });
+    }
 
-        if (device.contains("tfa")) {
-            if (device.getString("tfa").equals("ack") && execution.getChallenge() == null) {
-                throw new Exception("ackNeeded");
-            } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() == null) {
-                throw new Exception("pinNeeded");
-            } else if (!device.getString("tfa").isEmpty() && execution.getChallenge() != null) {
-                String pin = (String) execution.getChallenge().get("pin");
-                if (pin != null && !pin.equals(device.getString("tfa"))) {
-                    throw new Exception("challengeFailedPinNeeded");
+    /**
+     * Plans the commands of an EXECUTE request on the devices read for it, then commits the
+     * changes and publishes the messages.
+     */
+    private CompletableFuture<List<ExecutionOutcome>> planAndCommit(
+            String userId,
+            List<ExecutionPlanner.Command> commands,
+            Map<String, Map<String, Object>> read) {
+        long now = System.currentTimeMillis();
+
+        long phaseStart = System.nanoTime();
+        ExecutionPlanner.Batch batch =
+                ExecutionPlanner.planAll(
+                        commands,
+                        read,
+                        (deviceId, data) -> countDown(userId, deviceId, data, now));
+        List<ExecutionPlanner.DevicePlan> plans = batch.plans;
+        Map<String, Map<String, Object>> updates = batch.updates;
+        MergedMessages merged = merge(plans);
+        Map<String, DeviceState> deltas = desire(batch.devices, merged.messages, updates);
+        RequestContext.phase("plan", phaseStart);
+
+        long commitStart = System.nanoTime();
+        for (Map<String, Object> data : read.values()) {
+            versions.observe(StateVersions.of(data));
+        }
+        long version = versions.next();
+        List<DeviceKey> claimed = claimStateVersions(userId, read, updates, version);
+        CompletableFuture<Boolean> committed;
+        if (claimed == null) {
+            committed = CompletableFuture.completedFuture(false);
+        } else {
+            // The outcomes report the new states, so wait for buffered writes to be committed
+            committed = store.commitDevicesAsync(userId, updates).handle((written, failure) -> {
+                if (failure == null) {
+                    return true;
                 }
-            }
+                Throwable cause = Futures.unwrap(failure);
+                if (!(cause instanceof ExecutionException)) {
+                    throw new CompletionException(cause);
+                }
+                LOGGER.error("failed to commit execute request", cause);
+                claimed.forEach(device -> versions.release(device, version));
+                return false;
+            });
         }
-        
-        LOGGER.debug("switch execution command MyDataStore line 223");
-
-        switch (execution.command) {
-            // action.devices.traits.AppSelector
-            case "action.devices.commands.appSelect": {
-                String newApplication = (String) execution.getParams().get("newApplication");
-                String newApplicationName = (String) execution.getParams().get("newApplicationName");
-                String currentApplication = newApplication != null ? newApplication : newApplicationName;
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentApplication", currentApplication);
-                states.put("currentApplication", currentApplication);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentApplication", currentApplication);
-                // ----------------------------------------------
-                break;
+        RequestContext context = RequestContext.current();
+        return committed.thenApply(done -> RequestContext.within(context, () -> {
+            RequestContext.phase("commitUpdates", commitStart);
+            if (!done) {
+                return batch.uncommitted();
+            }
+            scheduleTimers(userId, updates);
+            long publishStart = System.nanoTime();
+            publish(deltas);
+            List<ExecutionOutcome> outcomes = outcomes(plans, merged);
+            RequestContext.phase("publishMqtt", publishStart);
+            return outcomes;
+        }));
+    }
+
+    /** Adds the time from {@code start} until an operation completes to a phase of the request. */
+    private static <T> CompletableFuture<T> timed(
+            String phase, long start, CompletableFuture<T> operation) {
+        RequestContext context = RequestContext.current();
+        return operation.whenComplete(
+                (result, failure) -> RequestContext.phase(context, phase, start));
+    }
+
+    /**
+     * Versions the state updates of an EXECUTE request, if the states of none of their devices
+     * were written since they were read. The commands were planned from the states read, so they
+     * must not overwrite newer ones.
+     *
+     * @return the devices whose state version was claimed, or null if some states changed
+     */
+    private List<DeviceKey> claimStateVersions(
+            String userId,
+            Map<String, Map<String, Object>> read,
+            Map<String, Map<String, Object>> updates,
+            long version) {
+        List<DeviceKey> claimed = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> device : updates.entrySet()) {
+            if (!writesStates(device.getValue())) {
+                continue;
             }
+            DeviceKey key = new DeviceKey(userId, device.getKey());
+            long stored = StateVersions.of(read.get(device.getKey()));
+            Metrics.STATE_WRITES.add("execute", 1);
+            if (!versions.compareAndSet(key, stored, version)) {
+                Metrics.STALE_STATE_WRITES.add("execute", 1);
+                LOGGER.warn("states of device {} changed while executing", device.getKey());
+                claimed.forEach(other -> versions.release(other, version));
+                return null;
+            }
+            device.getValue().put(StateVersions.FIELD, version);
+            claimed.add(key);
+        }
+        return claimed;
+    }
 
-            case "action.devices.commands.appInstall": {
-                String newApplication = (String) execution.getParams().get("newApplication");
-                String newApplicationName = (String) execution.getParams().get("newApplicationName");
-                String currentApplication = newApplication != null ? newApplication : newApplicationName;
-                LOGGER.info("Install app " + currentApplication);
-                break;
+    private static boolean writesStates(Map<String, Object> fields) {
+        for (String path : fields.keySet()) {
+            if (path.equals("states") || path.startsWith("states.")) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            case "action.devices.commands.appSearch": {
-                String newApplication = (String) execution.getParams().get("newApplication");
-                String newApplicationName = (String) execution.getParams().get("newApplicationName");
-                String currentApplication = newApplication != null ? newApplication : newApplicationName;
-                LOGGER.info("Search for app " + currentApplication);
-                break;
+    /**
+     * Makes merged messages the desired states of their devices, adding the shadow updates to the
+     * device updates. Devices are only sent what they have not reported reaching.
+     *
+     * @return the messages to publish, keyed by device ID
+     */
+    private static Map<String, DeviceState> desire(
+            Map<String, Map<String, Object>> devices,
+            Map<String, DeviceState> messages,
+            Map<String, Map<String, Object>> updates) {
+        Map<String, DeviceState> deltas = new LinkedHashMap<>();
+        for (Map.Entry<String, DeviceState> message : messages.entrySet()) {
+            String deviceId = message.getKey();
+            DeviceShadow.Change change =
+                    DeviceShadow.of(devices.get(deviceId)).desire(message.getValue());
+            if (!change.updates.isEmpty()) {
+                Map<String, Object> deviceUpdates =
+                        updates.computeIfAbsent(deviceId, id -> new LinkedHashMap<>());
+                change.updates.forEach(
+                        (path, value) -> FieldPaths.merge(deviceUpdates, path, value));
+            }
+            if (change.delta.isEmpty()) {
+                Metrics.MQTT_UNCHANGED.increment();
+            } else {
+                deltas.put(deviceId, change.delta);
             }
+        }
+        return deltas;
+    }
 
-            // action.devices.traits.ArmDisarm
-            case "action.devices.commands.ArmDisarm":
-                if (execution.getParams().containsKey("arm")) {
-                    boolean isArmed = (boolean) execution.getParams().get("arm");
-                    states.put("isArmed", isArmed);
-                } else if (execution.getParams().containsKey("cancel")) {
-                    // Cancel value is in relation to the arm value
-                    boolean isArmed = (boolean) execution.getParams().get("arm");
-                    states.put("isArmed", !isArmed);
-                }
-                if (execution.getParams().containsKey("armLevel")) {
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update(
-                                "states.isArmed",
-                                states.get("isArmed"),
-                                "states.currentArmLevel",
-                                execution.getParams().get("armLevel"));
-                    states.put("currentArmLevel", execution.getParams().get("armLevel"));
-                } else {
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("isArmed", states.get("isArmed"));
-                }
-                break;
-
-            // action.devices.traits.Brightness
-            case "action.devices.commands.BrightnessAbsolute":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.brightness", execution.getParams().get("brightness"));
-                states.put("brightness", execution.getParams().get("brightness"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "brightness", execution.getParams().get("brightness"));
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.CameraStream
-            case "action.devices.commands.GetCameraStream":
-                states.put("cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4");
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "cameraStreamAccessUrl", "https://fluffysheep.com/baaaaa.mp4");
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.ColorSetting
-            case "action.devices.commands.ColorAbsolute":
-                String colorType;
-                Object color;
-                Map<String, Object> colorMap = (Map<String, Object>) execution.getParams().get("color");
-
-                if (colorMap.containsKey("spectrumRGB")) {
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("states.color.spectrumRgb", colorMap.get("spectrumRGB"));
-                    color = colorMap.get("spectrumRGB");
-                    colorType = "spectrumRgb";
-                } else {
-                    if (colorMap.containsKey("spectrumHSV")) {
-                        database
-                            .collection("users")
-                            .document(userId)
-                            .collection("devices")
-                            .document(deviceId)
-                            .update("states.color.spectrumHsv", colorMap.get("spectrumHSV"));
-                        colorType = "spectrumHsv";
-                        color = colorMap.get("spectrumHSV");
-
-                    } else {
-                        if (colorMap.containsKey("temperature")) {
-                            database
-                                .collection("users")
-                                .document(userId)
-                                .collection("devices")
-                                .document(deviceId)
-                                .update("states.color.temperatureK", colorMap.get("temperature"));
-                            colorType = "temperatureK";
-                            color = colorMap.get("temperature");
-
-                        } else {
-                            throw new Exception("notSupported");
-                        }
-                    }
-                }
-                //states.put(colorType, color);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, colorType, color);
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.Cook
-            case "action.devices.commands.Cook":
-                boolean startCooking = (boolean) execution.getParams().get("start");
-                if (startCooking) {
-                    // Start cooking
-                    Map<String, Object> dbStates =
-                            new HashMap<String, Object>() {
-                                {
-                                    put("states.currentCookingMode", execution.getParams().get("cookingMode"));
-                                }
-                            };
-                    if (execution.getParams().containsKey("foodPreset")) {
-                        dbStates.put("states.currentFoodPreset", execution.getParams().get("foodPreset"));
-                    } else {
-                        dbStates.put("states.currentFoodPreset", "NONE");
-                    }
-                    if (execution.getParams().containsKey("quantity")) {
-                        dbStates.put("states.currentFoodQuantity", execution.getParams().get("quantity"));
-                    } else {
-                        dbStates.put("states.currentFoodQuantity", 0);
-                    }
-                    if (execution.getParams().containsKey("unit")) {
-                        dbStates.put("states.currentFoodUnit", execution.getParams().get("unit"));
-                    } else {
-                        dbStates.put("states.currentFoodUnit", "NONE");
-                    }
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document("deviceId")
-                        .update(dbStates);
-                    // Server getting response will handle any undefined values
-                    states.put("currentCookingMode", execution.getParams().get("cookingMode"));
-                    states.put("currentFoodPreset", execution.getParams().get("foodPreset"));
-                    states.put("currentFoodQuantity", execution.getParams().get("quantity"));
-                    states.put("currentFoodUnit", execution.getParams().get("unit"));
+    /**
+     * Counts the running timer of a device document down to now, and schedules its expiry if
+     * this instance has not, as for timers started before a restart.
+     */
+    private Map<String, Object> countDown(
+            String userId, String deviceId, Map<String, Object> data, long now) {
+        long endsAt = ExecutionPlanner.timerEndsAt(data);
+        if (endsAt > 0) {
+            timers.scheduleIfAbsent(new DeviceKey(userId, deviceId), endsAt);
+        }
+        return ExecutionPlanner.withTimerCountdown(data, now);
+    }
+
+    /** Schedules or cancels the expiry of the timers that committed updates started or ended. */
+    private void scheduleTimers(String userId, Map<String, Map<String, Object>> updates) {
+        for (Map.Entry<String, Map<String, Object>> device : updates.entrySet()) {
+            Object endsAt = device.getValue().get(ExecutionPlanner.TIMER_ENDS_AT);
+            if (endsAt instanceof Number) {
+                DeviceKey key = new DeviceKey(userId, device.getKey());
+                if (((Number) endsAt).longValue() > 0) {
+                    timers.schedule(key, ((Number) endsAt).longValue());
                 } else {
-                    // Done cooking, reset
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document("deviceId")
-                        .update(
-                                new HashMap<String, Object>() {
-                                    {
-                                        put("states.currentCookingMode", "NONE");
-                                        put("states.currentFoodPreset", "NONE");
-                                        put("states.currentFoodQuantity", 0);
-                                        put("states.currentFoodUnit", "NONE");
-                                    }
-                                });
-                    states.put("currentCookingMode", "NONE");
-                    states.put("currentFoodPreset", "NONE");
+                    timers.cancel(key);
                 }
-                publishMqtt(deviceId, "start", execution.getParams().get("start"));
-                break;
-
-            case "action.devices.commands.selectChannel":
-                // "params":{"channelCode":"cnn","channelName":"CNN","channelNumber":"200"}
-
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "channelNumber", execution.getParams().get("channelNumber"));
-
-                break;
-            // action.devices.traits.Dispense
-            case "action.devices.commands.Dispense":
-                int amount = (int) execution.getParams().get("amount");
-                String unit = (String) execution.getParams().get("unit");
-                if (execution.getParams().containsKey("presetName")
-                        && execution.getParams().get("presetName").equals("cat food bowl")) {
-                    // Fill in params
-                    amount = 4;
-                    unit = "CUPS";
-                }
-                Map<String, Object> amountLastDispensed = new HashMap();
-                amountLastDispensed.put("amount", amount);
-                amountLastDispensed.put("unit", unit);
-                Map<String, Object> dispenseUpdates = new HashMap<>();
-                dispenseUpdates.put(
-                        "states.dispenseItems",
-                        new HashMap[] {
-                                new HashMap<String, Object>() {
-                                    {
-                                        put("itemName", execution.getParams().get("item"));
-                                        put("amountLastDispensed", amountLastDispensed);
-                                        put("isCurrentlyDispensing", execution.getParams().containsKey("presetName"));
-                                    }
-                                }
-                        });
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(dispenseUpdates);
-                states.put(
-                        "dispenseItems",
-                        new HashMap[] {
-                                new HashMap<String, Object>() {
-                                    {
-                                        put("itemName", execution.getParams().get("item"));
-                                        put("amountLastDispensed", amountLastDispensed);
-                                        put("isCurrentlyDispensing", execution.getParams().containsKey("presetName"));
-                                    }
-                                }
-                        });
-                break;
-
-            // action.devices.traits.Dock
-            case "action.devices.commands.Dock":
-                // This has no parameters
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isDocked", true);
-                states.put("isDocked", true);
-                break;
-
-            // action.devices.traits.EnergyStorage
-            case "action.devices.commands.Charge":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isCharging", execution.getParams().get("charge"));
-                states.put("isCharging", execution.getParams().get("charge"));
-                break;
-
-            // action.devices.traits.FanSpeed
-            case "action.devices.commands.SetFanSpeed":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
-                states.put("currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentFanSpeedSetting", execution.getParams().get("fanSpeed"));
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.Reverse":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentFanSpeedReverse", true);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentFanSpeedReverse", true);
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.Fill
-            case "action.devices.commands.Fill":
-                Map<String, Object> updates = new HashMap<>();
-                String currentFillLevel = "none";
-                boolean fill = (boolean) execution.getParams().get("fill");
-                if (fill) {
-                    if (execution.getParams().containsKey("fillLevel")) {
-                        currentFillLevel = (String) execution.getParams().get("fillLevel");
-                    } else {
-                        currentFillLevel = "half"; // Default fill level
-                    }
-                } // Else the device is draining and the fill level is set to "none" by default
-                updates.put("states.isFilled", fill);
-                updates.put("states.currentFillLevel", currentFillLevel);
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(updates);
-                states.put("isFilled", fill);
-                states.put("currentFillLevel", currentFillLevel);
-                break;
-
-            // action.devices.traits.HumiditySetting
-            case "action.devices.commands.SetHumidity":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(
-                            "states.humiditySetpointPercent",
-                            execution.getParams().get("humiditySetpointPercent"));
-                states.put("humiditySetpointPercent", execution.getParams().get("humiditySetpointPercent"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "humiditySetPointPercent", execution.getParams().get("humiditySetpointPercent"));
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.InputSelector
-            case "action.devices.commands.SetInput": {
-                String newInput = (String) execution.getParams().get("newInput");
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentInput", newInput);
-                states.put("currentInput", newInput);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentInput", newInput);
-                // ----------------------------------------------
-                break;
             }
+        }
+    }
 
-            case "action.devices.commands.PreviousInput": {
-                Map<String, Object> attributes = (Map<String, Object>) device.getData().get("attributes");
-                String currentInput = (String) deviceStates.get("currentInput");
-                Map<String, Object>[] availableInputs =
-                        (Map<String, Object>[]) attributes.get("availableInputs");
-                int index = -1;
-                for (int i = 0; i < availableInputs.length; i++) {
-                    String input = (String) availableInputs[i].get("key");
-                    if (currentInput.equals(input)) {
-                        index = i;
-                    }
+    /** Ends the timers that ran out in one tick, with one write per user. */
+    private void expireTimers(List<TimerWheel.Timer<DeviceKey>> expired) {
+        Map<String, Map<String, Long>> deadlines = new LinkedHashMap<>();
+        for (TimerWheel.Timer<DeviceKey> timer : expired) {
+            deadlines.computeIfAbsent(timer.key.userId, id -> new LinkedHashMap<>())
+                    .put(timer.key.deviceId, timer.deadlineMillis);
+        }
+        deadlines.forEach((userId, devices) -> {
+            try {
+                if (!expireTimers(userId, devices)) {
+                    // Written meanwhile; the timers are checked again on the next tick
+                    devices.forEach((deviceId, deadline) ->
+                            timers.schedule(new DeviceKey(userId, deviceId), deadline));
                 }
-                int previousInputIndex = Math.min(index - 1, 0);
-                String newInput = (String) availableInputs[previousInputIndex].get("key");
-
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentInput", newInput);
-                states.put("currentInput", newInput);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentInput", newInput);
-                // ----------------------------------------------
-                break;
+            } catch (ExecutionException | InterruptedException | RuntimeException e) {
+                LOGGER.error("failed to expire the timers of user " + userId, e);
             }
+        });
+    }
 
-            case "action.devices.commands.NextInput": {
-                Map<String, Object> attributes = (Map<String, Object>) device.getData().get("attributes");
-                String currentInput = (String) deviceStates.get("currentInput");
-                Map<String, Object>[] availableInputs =
-                        (Map<String, Object>[]) attributes.get("availableInputs");
-                int index = -1;
-                for (int i = 0; i < availableInputs.length; i++) {
-                    String input = (String) availableInputs[i].get("key");
-                    if (currentInput.equals(input)) {
-                        index = i;
-                    }
-                }
-                int nextInputIndex = Math.min(index + 1, availableInputs.length - 1);
-                String newInput = (String) availableInputs[nextInputIndex].get("key");
-
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentInput", newInput);
-                states.put("currentInput", newInput);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentInput", newInput);
-                // ----------------------------------------------
-                break;
+    /**
+     * Ends the timers of one user's devices that still run out at the given times, then tells
+     * the devices and HomeGraph.
+     *
+     * @param deadlines when each timer runs out, keyed by device ID
+     * @return false if the states of a device were written since they were read
+     */
+    private boolean expireTimers(String userId, Map<String, Long> deadlines)
+            throws ExecutionException, InterruptedException {
+        Map<String, Map<String, Object>> read = store.getDevices(userId, deadlines.keySet());
+        Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+        Map<String, DeviceState> messages = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> device : read.entrySet()) {
+            // The timer may have been adjusted, paused or cancelled by another instance
+            if (ExecutionPlanner.timerEndsAt(device.getValue()) != deadlines.get(device.getKey())) {
+                continue;
             }
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("states.timerRemainingSec", -1);
+            fields.put(ExecutionPlanner.TIMER_ENDS_AT, 0L);
+            updates.put(device.getKey(), fields);
+            messages.put(
+                    device.getKey(),
+                    DeviceState.fromMap(Collections.singletonMap("timerRemainingSec", 0)));
+        }
+        if (updates.isEmpty()) {
+            return true;
+        }
+        Map<String, DeviceState> deltas = desire(read, messages, updates);
+        for (Map<String, Object> data : read.values()) {
+            versions.observe(StateVersions.of(data));
+        }
+        long version = versions.next();
+        List<DeviceKey> claimed = claimStateVersions(userId, read, updates, version);
+        if (claimed == null) {
+            return false;
+        }
+        try {
+            store.updateDevices(userId, updates);
+        } catch (ExecutionException e) {
+            claimed.forEach(device -> versions.release(device, version));
+            LOGGER.error("failed to end the timers of user " + userId, e);
+            return false;
+        }
+        Metrics.TIMERS_EXPIRED.add("", updates.size());
+        publish(deltas);
+        SmartHomeApp reporter = reporter();
+        for (Map.Entry<String, Map<String, Object>> device : updates.entrySet()) {
+            Map<String, Object> data =
+                    FieldPaths.apply(read.get(device.getKey()), device.getValue());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> states = (Map<String, Object>) data.get("states");
+            try {
+                ReportState.makeRequest(
+                        reporter, userId, device.getKey(), DeviceState.fromMap(states));
+            } catch (RuntimeException e) {
+                LOGGER.error("failed to report the ended timer of " + device.getKey(), e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the rules that watch a device. See {@link Rule}.
+     *
+     * @param rules the rules keyed by rule ID, or an empty map to remove them
+     * @throws IllegalArgumentException if a rule is malformed, so nothing was written
+     */
+    public void setRules(String userId, String deviceId, Map<String, Object> rules)
+            throws ExecutionException, InterruptedException {
+        Futures.await(setRulesAsync(userId, deviceId, rules));
+    }
 
-            // action.devices.traits.Locator
-            case "action.devices.commands.Locate":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(
-                            "states.silent",
-                            execution.getParams().get("silent"),
-                            "states.generatedAlert",
-                            true);
-                states.put("generatedAlert", true);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "generatedAlert", true);
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.LockUnlock
-            case "action.devices.commands.LockUnlock":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isLocked", execution.getParams().get("lock"));
-                states.put("isLocked", execution.getParams().get("lock"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "isLocked", execution.getParams().get("lock"));
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.NetworkControl
-            case "action.devices.commands.EnableDisableGuestNetwork": {
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.guestNetworkEnabled", execution.getParams().get("enable"));
-                states.put("guestNetworkEnabled", execution.getParams().get("enable"));
-                break;
+    /**
+     * The asynchronous form of {@link #setRules}. Malformed rules throw rather than fail the
+     * future.
+     */
+    public CompletableFuture<Void> setRulesAsync(
+            String userId, String deviceId, Map<String, Object> rules) {
+        List<Rule> parsed = new ArrayList<>(rules.size());
+        for (Map.Entry<String, Object> rule : rules.entrySet()) {
+            if (!(rule.getValue() instanceof Map)) {
+                throw new IllegalArgumentException("rule " + rule.getKey() + " is not an object");
             }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> definition = (Map<String, Object>) rule.getValue();
+            parsed.add(Rule.parse(rule.getKey(), definition));
+        }
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(Rule.FIELD, rules.isEmpty() ? FieldPaths.DELETE : rules);
+        fields.put(Rule.WATCHED, rules.isEmpty() ? FieldPaths.DELETE : true);
+        return store.updateDevicesAsync(
+                        userId, new HashMap<>(Collections.singletonMap(deviceId, fields)))
+                .thenRun(() -> {
+                    if (this.rules != null) {
+                        this.rules.set(new DeviceKey(userId, deviceId), parsed);
+                    }
+                });
+    }
+
+    /** Loads the schedules of every device, catching up on the runs missed while down. */
+    private void loadSchedules() {
+        try {
+            Map<DeviceKey, Map<String, Object>> devices = store.findDevicesWith(Schedule.SCHEDULED);
+            long now = System.currentTimeMillis();
+            devices.forEach((device, data) ->
+                    scheduler.set(device, Schedule.of(data).values(), now));
+            LOGGER.info("loaded the schedules of {} devices", devices.size());
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            LOGGER.error("failed to load schedules", e);
+        }
+    }
 
-            case "action.devices.commands.EnableDisableNetworkProfile": {
-                List<String> profiles =
-                        (List<String>) ((Map<String, Object>) device.getData().get("attributes")).get("networkProfiles");
-                boolean profileExists =
-                        profiles.stream()
-                            .anyMatch(
-                                    (String profile) -> profile.equals(execution.getParams().get("profile")));
-                if (!profileExists) {
-                    throw new RuntimeException("networkProfileNotRecognized");
+    /**
+     * Runs the schedules of one user that came due together as one batch of commands, then
+     * reports the new states and records the runs.
+     */
+    private void runSchedules(String userId, List<ScheduleEngine.Firing> firings) {
+        List<ExecutionPlanner.Command> commands = new ArrayList<>(firings.size());
+        try {
+            for (ScheduleEngine.Firing firing : firings) {
+                commands.add(new ExecutionPlanner.Command(
+                        firing.device.deviceId, firing.schedule.execution()));
+            }
+            List<ExecutionOutcome> outcomes = executeAndReport(userId, commands);
+            Map<String, Map<String, Object>> runs = new LinkedHashMap<>();
+            for (int i = 0; i < firings.size(); i++) {
+                ScheduleEngine.Firing firing = firings.get(i);
+                if (outcomes.get(i) == ExecutionOutcome.DEVICE_NOT_FOUND) {
+                    continue;
                 }
-                // No state change occurs
-                break;
+                // Failed runs are recorded too, so that they are not run again after downtime
+                runs.computeIfAbsent(firing.device.deviceId, id -> new LinkedHashMap<>())
+                        .put(Schedule.RUNS + "." + firing.schedule.id, firing.dueMillis);
             }
+            if (!runs.isEmpty()) {
+                store.updateDevices(userId, runs);
+            }
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            LOGGER.error("failed to run the schedules of user " + userId, e);
+        }
+    }
 
-            case "action.devices.commands.TestNetworkSpeed": {
-                boolean testDownloadSpeed = (boolean) execution.getParams().get("testDownloadSpeed");
-                boolean testUploadSpeed = (boolean) execution.getParams().get("testUploadSpeed");
-                Map<String, Object> lastNetworkDownloadSpeedTest =
-                        (Map<String, Object>) ((Map<String, Object>) device.getData().get("states"))
-                            .get("lastNetworkDownloadSpeedTest");
-                Map<String, Object> lastNetworkUploadSpeedTest =
-                        (Map<String, Object>) ((Map<String, Object>) device.getData().get("states"))
-                            .get("lastNetworkUploadSpeedTest");
-                int unixTimestampSec = Math.toIntExact(new Date().getTime() / 1000);
-                if (testDownloadSpeed) {
-                    lastNetworkDownloadSpeedTest.put("downloadSpeedMbps", (Math.random() * 100));
-                    lastNetworkDownloadSpeedTest.put("unixTimestampSec", unixTimestampSec);
-                }
-                if (testUploadSpeed) {
-                    lastNetworkUploadSpeedTest.put("uploadSpeedMbps", (Math.random() * 100));
-                    lastNetworkUploadSpeedTest.put("unixTimestampSec", unixTimestampSec);
+    /** Loads the rules of every device, keeping the state of the rules that did not change. */
+    private void loadRules() {
+        try {
+            Map<DeviceKey, Map<String, Object>> devices = store.findDevicesWith(Rule.WATCHED);
+            Map<DeviceKey, List<Rule>> loaded = new HashMap<>();
+            devices.forEach((device, data) -> loaded.put(device, Rule.of(data)));
+            rules.setAll(loaded);
+            LOGGER.debug("loaded the rules of {} devices", devices.size());
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            LOGGER.error("failed to load rules", e);
+        }
+    }
+
+    /** Runs the rules of one user whose conditions were met together as one batch of commands. */
+    private void runRules(String userId, List<Rule> met) {
+        List<ExecutionPlanner.Command> commands = new ArrayList<>();
+        try {
+            for (Rule rule : met) {
+                for (String deviceId : rule.deviceIds) {
+                    commands.add(new ExecutionPlanner.Command(deviceId, rule.execution()));
                 }
+            }
+            executeAndReport(userId, commands);
+        } catch (ExecutionException | InterruptedException | RuntimeException e) {
+            LOGGER.error("failed to run the rules of user " + userId, e);
+        }
+    }
 
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(
-                            "states.lastNetworkDownloadSpeedTest", lastNetworkDownloadSpeedTest,
-                            "states.lastNetworkUploadSpeedTest", lastNetworkUploadSpeedTest);
-                throw new RuntimeException("PENDING");
+    /**
+     * Executes commands that do not come from Google, such as those of schedules and rules, and
+     * reports the new states to HomeGraph.
+     *
+     * @return one outcome per command, in order
+     */
+    private List<ExecutionOutcome> executeAndReport(
+            String userId, List<ExecutionPlanner.Command> commands)
+            throws ExecutionException, InterruptedException {
+        List<ExecutionOutcome> outcomes = execute(userId, commands);
+        SmartHomeApp reporter = reporter();
+        for (int i = 0; i < commands.size(); i++) {
+            ExecutionPlanner.Command command = commands.get(i);
+            ExecutionOutcome outcome = outcomes.get(i);
+            if (outcome.states != null) {
+                try {
+                    ReportState.makeRequest(reporter, userId, command.deviceId, outcome.states);
+                } catch (RuntimeException e) {
+                    LOGGER.error("failed to report the states of " + command.deviceId, e);
+                }
+            } else if (outcome.status == ExecutionOutcome.Status.ERROR) {
+                LOGGER.warn("{} of device {} failed: {}",
+                        command.execution.command, command.deviceId, outcome.errorCode);
             }
+        }
+        return outcomes;
+    }
 
-            case "action.devices.commands.GetGuestNetworkPassword": {
-                states.put("guestNetworkPassword", "wifi-password-123");
+    /** Returns the app that reports states changed in the background, created on first use. */
+    private synchronized SmartHomeApp reporter() {
+        // Not created with this store, as MySmartHomeApp needs the store to be created first
+        if (reporter == null) {
+            reporter = new MySmartHomeApp();
+            try {
+                reporter.setCredentials(GoogleCredentials.fromStream(
+                        getClass().getResourceAsStream("/smart-home-key.json")));
+            } catch (Exception e) {
+                LOGGER.error("couldn't load credentials");
             }
+        }
+        return reporter;
+    }
 
-            // action.devices.traits.OnOff
-            case "action.devices.commands.OnOff":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.on", execution.getParams().get("on"));
-                states.put("on", execution.getParams().get("on"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "on", execution.getParams().get("on"));
-                // ------------------------------------------------
-                break;
-
-            // action.devices.traits.OpenClose
-            case "action.devices.commands.OpenClose":
-                // Check if the device can open in multiple directions
-                Map<String, Object> attributes = (Map<String, Object>) device.getData().get("attributes");
-                if (attributes != null && attributes.containsKey("openDirection")) {
-                    // The device can open in more than one direction
-                    String direction = (String) execution.getParams().get("openDirection");
-                    List<Map<String, Object>> openStates =
-                            (List<Map<String, Object>>) states.get("openState");
-                    openStates.forEach(
-                            state -> {
-                                if (state.get("openDirection").equals(direction)) {
-                                    state.put("openPercent", execution.getParams().get("openPercent"));
-                                }
-                            });
-                    states.put("openStates", openStates);
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("states.openState", openStates);
-                    // ------ mqtt sending message to device ----------
-                    publishMqtt(deviceId, "openState", openStates);
-                    // ----------------------------------------------
+    /** The messages of the plans of one request, merged per device. */
+    private static final class MergedMessages {
+        /** The messages of each device, later plans replacing the states set by earlier ones. */
+        final Map<String, DeviceState> messages = new LinkedHashMap<>();
+        /** The index of the last plan of each device. */
+        final Map<String, Integer> lastPlans = new HashMap<>();
+        /** Whether each plan had its messages replaced by a later plan for the same device. */
+        final boolean[] superseded;
+
+        MergedMessages(int plans) {
+            superseded = new boolean[plans];
+        }
+    }
 
-                } else {
-                    // The device can only open in one direction
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("states.openPercent", execution.getParams().get("openPercent"));
-                    states.put("openPercent", execution.getParams().get("openPercent"));
-                    // ------ mqtt sending message to device ----------
-                    publishMqtt(deviceId, "openPercent", execution.getParams().get("openPercent"));
-                    // ----------------------------------------------
-                }
-                break;
-
-            // action.devices.traits.Reboot
-            case "action.devices.commands.Reboot":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.online", false);
-                break;
-
-            // action.devices.traits.Rotation
-            case "action.devices.commands.RotateAbsolute":
-                // Check if the device can open in multiple directions
-                if (execution.getParams().containsKey("rotationPercent")) {
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("states.rotationPercent", execution.getParams().get("rotationPercent"));
-                    states.put("rotationPercent", execution.getParams().get("rotationPercent"));
-                    // ------ mqtt sending message to device ----------
-                    publishMqtt(deviceId, "rotationPercent", execution.getParams().get("rotationPercent"));
-                    // ----------------------------------------------
-                } else if (execution.getParams().containsKey("rotationDegrees")) {
-                    database
-                        .collection("users")
-                        .document(userId)
-                        .collection("devices")
-                        .document(deviceId)
-                        .update("states.rotationDegrees", execution.getParams().get("rotationDegrees"));
-                    states.put("rotationDegrees", execution.getParams().get("rotationDegrees"));
-                    // ------ mqtt sending message to device ----------
-                    publishMqtt(deviceId, "rotationDegrees", execution.getParams().get("rotationDegrees"));
-                    // ----------------------------------------------
-                }
-                break;
-
-            // action.devices.traits.RunCycle - No execution
-            // action.devices.traits.Scene
-            case "action.devices.commands.ActivateScene":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.deactivate", execution.getParams().get("deactivate"));
-                // Scenes are stateless
-                break;
-
-            // action.devices.traits.SoftwareUpdate
-            case "action.devices.commands.SoftwareUpdate":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(
-                            new HashMap<String, Object>() {
-                                {
-                                    put("states.online", false);
-                                    put("states.lastSoftwareUpdateUnixTimestampSec", new Date().getTime() / 1000);
-                                }
-                            });
-                break;
-
-            // action.devices.traits.StartStop
-            case "action.devices.commands.StartStop":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isRunning", execution.getParams().get("start"));
-                states.put("isRunning", execution.getParams().get("start"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "isRunning", execution.getParams().get("start"));
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.PauseUnpause":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isPaused", execution.getParams().get("pause"));
-                states.put("isPaused", execution.getParams().get("pause"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "isPaused", execution.getParams().get("pause"));
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.Modes
-            case "action.devices.commands.SetModes":
-                Map<String, Object> currentModeSettings =
-                        (Map<String, Object>) states.getOrDefault("currentModeSettings", new HashMap<String, Object>());
-                currentModeSettings.putAll(
-                        (Map<String, Object>) execution
-                            .getParams()
-                            .getOrDefault("updateModeSettings", new HashMap<String, Object>()));
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentModeSettings", currentModeSettings);
-                states.put("currentModeSettings", currentModeSettings);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentModeSettings", currentModeSettings);
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.Timer
-            case "action.devices.commands.TimerStart":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.timerRemainingSec", execution.getParams().get("timerTimeSec"));
-                states.put("timerRemainingSec", execution.getParams().get("timerTimeSec"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "timerRemainingSec", execution.getParams().get("timerTimeSec"));
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.TimerAdjust":
-                if ((int) states.get("timerRemainingSec") == -1) {
-                    // No timer exists
-                    throw new RuntimeException("noTimerExists");
-                }
-                int newTimerRemainingSec =
-                        (int) states.get("timerRemainingSec") + (int) execution.getParams().get("timerTimeSec");
-                if (newTimerRemainingSec < 0) {
-                    throw new RuntimeException("valueOutOfRange");
-                }
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.timerRemainingSec", newTimerRemainingSec);
-                states.put("timerRemainingSec", newTimerRemainingSec);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "timerRemainingSec", newTimerRemainingSec);
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.TimerPause":
-                if ((int) states.get("timerRemainingSec") == -1) {
-                    // No timer exists
-                    throw new RuntimeException("noTimerExists");
-                }
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.timerPaused", true);
-                states.put("timerPaused", true);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "timerPaused", true);
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.TimerResume":
-                if ((int) states.get("timerRemainingSec") == -1) {
-                    // No timer exists
-                    throw new RuntimeException("noTimerExists");
-                }
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.timerPaused", false);
-                states.put("timerPaused", false);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "timerPaused", false);
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.TimerCancel":
-                if ((int) states.get("timerRemainingSec") == -1) {
-                    // No timer exists
-                    throw new RuntimeException("noTimerExists");
-                }
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.timerRemainingSec", -1);
-                states.put("timerRemainingSec", 0);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "timerRemainingSec", 0);
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.Toggles
-            case "action.devices.commands.SetToggles":
-                Map<String, Object> currentToggleSettings =
-                        (Map<String, Object>) states.getOrDefault("currentToggleSettings", new HashMap<String, Object>());
-                currentToggleSettings.putAll(
-                        (Map<String, Object>) execution
-                            .getParams()
-                            .getOrDefault("updateToggleSettings", new HashMap<String, Object>()));
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentToggleSettings", currentToggleSettings);
-                states.put("currentToggleSettings", currentToggleSettings);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentToggleSettings", currentToggleSettings);
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.TemperatureControl
-            case "action.devices.commands.SetTemperature":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.temperatureSetpointCelsius", execution.getParams().get("temperature"));
-                states.put("temperatureSetpointCelsius", execution.getParams().get("temperature"));
-                states.put("temperatureAmbientCelsius", deviceStates.get("temperatureAmbientCelsius"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "temperatureSetpointCelsius", execution.getParams().get("temperature"));
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.TemperatureSetting
-            case "action.devices.commands.ThermostatTemperatureSetpoint":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(
-                            "states.thermostatTemperatureSetpoint",
-                            execution.getParams().get("thermostatTemperatureSetpoint"));
-                states.put(
-                        "thermostatTemperatureSetpoint",
-                        execution.getParams().get("thermostatTemperatureSetpoint"));
-                states.put("thermostatMode", deviceStates.get("states.thermostatMode"));
-                states.put(
-                        "thermostatTemperatureAmbient", deviceStates.get("thermostatTemperatureAmbient"));
-                states.put("thermostatHumidityAmbient", deviceStates.get("thermostatHumidityAmbient"));
-                if (states.containsKey("online")) {
-                    states.remove("online");
+    /**
+     * Merges the messages of the plans of one request, so that a device gets one message per
+     * request.
+     */
+    private static MergedMessages merge(List<ExecutionPlanner.DevicePlan> plans) {
+        MergedMessages merged = new MergedMessages(plans.size());
+        for (int i = 0; i < plans.size(); i++) {
+            ExecutionPlanner.DevicePlan plan = plans.get(i);
+            if (plan.rejection != null) {
+                continue;
+            }
+            Integer last = merged.lastPlans.put(plan.deviceId, i);
+            if (last != null
+                    && !plans.get(last).pending
+                    && CommandMailbox.overlaps(plans.get(last).messages, plan.messages)) {
+                merged.superseded[last] = true;
+                Metrics.MQTT_SUPERSEDED.increment();
+            }
+            if (!plan.messages.isEmpty()) {
+                merged.messages.computeIfAbsent(plan.deviceId, id -> new DeviceState())
+                        .putAll(plan.messages);
+            }
+        }
+        return merged;
+    }
+
+    /** Posts committed messages to their devices, keyed by device ID. */
+    private void publish(Map<String, DeviceState> messages) {
+        // Devices sent the same message are sent it once, on the topic of their group
+        Map<String, List<String>> audiences = new LinkedHashMap<>();
+        for (Map.Entry<String, DeviceState> message : messages.entrySet()) {
+            audiences.computeIfAbsent(message.getValue().toJson(), json -> new ArrayList<>())
+                    .add(message.getKey());
+        }
+        for (List<String> audience : audiences.values()) {
+            String groupTopic = groups.topicFor(audience);
+            if (groupTopic != null) {
+                mailbox.post(groupTopic, messages.get(audience.get(0)));
+                Metrics.MQTT_GROUP_PUBLISHES.increment();
+            } else {
+                for (String deviceId : audience) {
+                    mailbox.post(deviceId + "-client", messages.get(deviceId));
                 }
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "thermostatTemperatureSetpoint", execution.getParams().get("thermostatTemperatureSetpoint"));
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.ThermostatTemperatureSetRange":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update(
-                            "states.thermostatTemperatureSetpointLow",
-                            execution.getParams().get("thermostatTemperatureSetpointLow"),
-                            "states.thermostatTemperatureSetpointHigh",
-                            execution.getParams().get("thermostatTemperatureSetpointHigh"));
-                states.put(
-                        "thermostatTemperatureSetpoint", deviceStates.get("thermostatTemperatureSetpoint"));
-                states.put("thermostatMode", deviceStates.get("thermostatMode"));
-                states.put(
-                        "thermostatTemperatureAmbient", deviceStates.get("thermostatTemperatureAmbient"));
-                states.put("thermostatHumidityAmbient", deviceStates.get("thermostatHumidityAmbient"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "thermostatTemperatureSetpointLow", execution.getParams().get("thermostatTemperatureSetpointLow"));
-                // ----------------------------------------------
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "thermostatTemperatureSetpointHigh", execution.getParams().get("thermostatTemperatureSetpointHigh"));
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.ThermostatSetMode":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.thermostatMode", execution.getParams().get("thermostatMode"));
-                states.put("thermostatMode", execution.getParams().get("thermostatMode"));
-                states.put(
-                        "thermostatTemperatureSetpoint", deviceStates.get("thermostatTemperatureSetpoint"));
-                states.put(
-                        "thermostatTemperatureAmbient", deviceStates.get("thermostatTemperatureAmbient"));
-                states.put("thermostatHumidityAmbient", deviceStates.get("thermostatHumidityAmbient"));
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "thermostatMode", execution.getParams().get("thermostatMode"));
-                // ----------------------------------------------
-                break;
-
-            // action.devices.traits.TransportControl
-            // Traits are considered no-ops as they have no state
-            case "action.devices.commands.mediaPrevious":
-                LOGGER.info("Play the previous media");
-                break;
-
-            case "action.devices.commands.mediaNext":
-                LOGGER.info("Play the next media");
-                break;
-
-            case "action.devices.commands.mediaRepeatMode":
-                Boolean isOn = (Boolean) execution.getParams().get("isOn");
-                Boolean isSingle = (Boolean) execution.getParams().get("isSingle");
-                LOGGER.info("Repeat mode enabled: " + isOn + ". Single item enabled: " + isSingle);
-                break;
-
-            case "action.devices.commands.mediaShuffle":
-                LOGGER.info("Shuffle the playlist of media");
-                break;
-
-            case "action.devices.commands.mediaClosedCaptioningOn":
-                String ccLanguage = (String) execution.getParams().get("closedCaptioningLanguage");
-                String uqLanguage = (String) execution.getParams().get("userQueryLanguage");
-                LOGGER.info("Closed captioning enabled for " + ccLanguage + " for user in " + uqLanguage);
-                break;
-
-            case "action.devices.commands.mediaClosedCaptioningOff":
-                LOGGER.info("Closed captioning disabled");
-                break;
-
-            case "action.devices.commands.mediaPause":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.playbackState", "PAUSED");
-                states.put("playbackState", "PAUSED");
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "playbackState", "PAUSED");
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.mediaResume":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.playbackState", "PLAYING");
-                states.put("playbackState", "PLAYING");
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "playbackState", "PLAYING");
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.mediaStop":
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.playbackState", "STOPPED");
-                states.put("playbackState", "STOPPED");
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "playbackState", "STOPPED");
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.mediaSeekRelative":
-                int relativePositionMs = (int) execution.getParams().get("relativePositionMs");
-                LOGGER.info("Seek to (now + " + relativePositionMs + ") ms");
-                break;
-
-            case "action.devices.commands.mediaSeekToPosition":
-                int absPositionMs = (int) execution.getParams().get("absPositionMs");
-                LOGGER.info("Seek to " + absPositionMs + " ms");
-                break;
-
-            // action.devices.traits.Volume
-            case "action.devices.commands.setVolume":
-                int volumeLevel = (int) execution.getParams().get("volumeLevel");
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentVolume", volumeLevel);
-                states.put("currentVolume", volumeLevel);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentVolume", volumeLevel);
-                // ----------------------------------------------
-                break;
-
-            case "action.devices.commands.volumeRelative":
-                int relativeSteps = Integer.valueOf(execution.getParams().get("relativeSteps").toString());
-                int currentVolume = new Double(deviceStates.get("currentVolume").toString()).intValue();
-                int newVolume = currentVolume + relativeSteps;
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.currentVolume", newVolume);
-                states.put("currentVolume", newVolume);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "currentVolume", newVolume);
-                // -----------------------------------------------
-                break;
-
-            case "action.devices.commands.mute":
-                boolean mute = (boolean) execution.getParams().get("mute");
-                database
-                    .collection("users")
-                    .document(userId)
-                    .collection("devices")
-                    .document(deviceId)
-                    .update("states.isMuted", mute);
-                states.put("isMuted", mute);
-                // ------ mqtt sending message to device ----------
-                publishMqtt(deviceId, "isMuted", mute);
-                // -----------------------------------------------
-                break;
+            }
         }
+    }
 
-        return states;
+    /**
+     * Returns the outcomes of committed plans. A command superseded by a later one for the same
+     * device succeeds with the final states of its device.
+     */
+    private static List<ExecutionOutcome> outcomes(
+            List<ExecutionPlanner.DevicePlan> plans, MergedMessages merged) {
+        List<ExecutionOutcome> outcomes = new ArrayList<>(plans.size());
+        for (int i = 0; i < plans.size(); i++) {
+            ExecutionPlanner.DevicePlan plan = plans.get(i);
+            if (merged.superseded[i]) {
+                DeviceState finalStates = plans.get(merged.lastPlans.get(plan.deviceId)).states;
+                outcomes.add(ExecutionOutcome.success(finalStates));
+            } else {
+                outcomes.add(plan.committed());
+            }
+        }
+        return outcomes;
     }
 
-    private void publishMqtt(String topic, String key, Object value) {
-        CompletableFuture.runAsync(() -> {
+    /** Applies a report of a device off the MQTT client's thread, which must not publish. */
+    private void onReported(String topic, MqttMessage message) {
+        String deviceId = topic.substring(REPORTED_PREFIX.length());
+        String payload = new String(message.getPayload(), StandardCharsets.UTF_8);
+        inBackground("apply the report of device " + deviceId, () -> {
             try {
-                Map<String, Object> myState = new HashMap<>();
-                myState.put(key, value);
-                JSONObject json = new JSONObject(myState);
-                String msg = json.toString();
-                mqtt.publish(topic + "-client", 0, msg.getBytes());
-                LOGGER.debug("Message = " + msg + " sent by MQTT from MyDataStore");
-            } catch (Throwable throwable) {
-                LOGGER.error("failed to publish iot device: {" + topic + "}", throwable);
+                report(deviceId, payload);
+            } catch (ExecutionException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
             }
         });
     }
+
+    /**
+     * Records the states a device reports in its shadow, and sends it the desired states it has
+     * yet to reach, as after it reconnected.
+     *
+     * @param payload the reported states as a JSON object, which may list the groups the device
+     *     joined in its {@value DeviceGroups#JOINED} field
+     */
+    @SuppressWarnings("unchecked")
+    void report(String deviceId, String payload) throws ExecutionException, InterruptedException {
+        Map<String, Object> states =
+                JsonDocuments.restoreIntegers(GSON.fromJson(payload, Map.class));
+        Object joined = states.remove(DeviceGroups.JOINED);
+        if (joined instanceof Collection) {
+            groups.onJoined(deviceId, (Collection<?>) joined);
+        }
+        if (states.isEmpty()) {
+            return;
+        }
+        String userId = store.findUserIdByDevice(deviceId);
+        Map<String, Object> data =
+                userId != null
+                        ? store.getDevices(userId, Collections.singleton(deviceId)).get(deviceId)
+                        : null;
+        if (data == null) {
+            LOGGER.warn("report from unknown device {}", deviceId);
+            return;
+        }
+        DeviceShadow.Change change = DeviceShadow.of(data).report(states);
+        if (!change.updates.isEmpty()) {
+            store.updateDevices(
+                    userId, new HashMap<>(Collections.singletonMap(deviceId, change.updates)));
+        }
+        if (rules != null) {
+            rules.onStates(
+                    new DeviceKey(userId, deviceId),
+                    changed((Map<String, Object>) FieldPaths.get(data, "shadow.reported"), states),
+                    System.currentTimeMillis());
+        }
+        if (!change.delta.isEmpty() && resends.claim(deviceId, change.versions)) {
+            mailbox.post(deviceId + "-client", change.delta);
+            Metrics.SHADOW_RESENDS.increment();
+        }
+    }
+
+    /** Publishes messages to a device or group topic, called by the mailbox. */
+    private static void publishMqtt(String topic, DeviceState myState) {
+        long start = System.nanoTime();
+        try {
+            String msg = myState.toJson();
+            mqtt.publish(topic, 0, msg.getBytes());
+            Metrics.MQTT_PUBLISH_LATENCY.recordSince(start);
+            LOGGER.debug("Message = {} sent by MQTT from MyDataStore", msg);
+        } catch (Throwable throwable) {
+            Metrics.MQTT_PUBLISH_FAILURES.increment();
+            LOGGER.error("failed to publish iot device: {" + topic + "}", throwable);
+        }
+    }
 }
@@ -18,11 +18,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.sql.Timestamp;
 import java.util.Date;
 import java.util.Properties;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
@@ -137,10 +137,9 @@ public class MyMqtt implements MqttCallback {
     public MyMqtt()
             throws MqttException, IOException {
 
+        Properties prop = new Properties();
+        String propFileName = "mqtt.properties";
         try {
-            Properties prop = new Properties();
-            String propFileName = "mqtt.properties";
-
             inputStream = getClass().getClassLoader().getResourceAsStream(propFileName);
 
             if (inputStream != null) {
@@ -148,19 +147,23 @@ public class MyMqtt implements MqttCallback {
             } else {
                 throw new FileNotFoundException("property file '" + propFileName + "' not found in the classpath");
             }
-
-            // get the property value and print it out
-            mqttbroker = prop.getProperty("broker");
-            mqttclientid = prop.getProperty("clientid");
-            mqttcleansession = prop.getProperty("cleansession");
-            mqttquietmode = prop.getProperty("quietmode");
-            mqttuser = prop.getProperty("user");
-            mqttpwd = prop.getProperty("pwd");
-
         } catch (Exception e) {
             System.out.println("Exception: " + e);
         } finally {
-            inputStream.close();
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+
+        // get the property values, letting mqtt.<name> system properties override the file
+        mqttbroker = property(prop, "broker");
+        mqttclientid = property(prop, "clientid");
+        mqttcleansession = property(prop, "cleansession");
+        mqttquietmode = property(prop, "quietmode");
+        mqttuser = property(prop, "user");
+        mqttpwd = property(prop, "pwd");
+        if (mqttclientid == null) {
+            mqttclientid = MqttClient.generateClientId();
         }
 
         this.brokerUrl = mqttbroker;
@@ -195,11 +198,15 @@ public class MyMqtt implements MqttCallback {
 
         } catch (MqttException e) {
             e.printStackTrace();
-            log("Unable to set up client: " + e.toString());
+            LOGGER.error("Unable to set up client", e);
             System.exit(1);
         }
     }
 
+    private static String property(Properties prop, String name) {
+        return System.getProperty("mqtt." + name, prop.getProperty(name));
+    }
+
     /**
      * Publish / send a message to an MQTT server
      * 
@@ -209,27 +216,42 @@ public class MyMqtt implements MqttCallback {
      * @throws MqttException
      */
     public void publish(String topicName, int qos, byte[] payload) throws MqttException {
+        publish(topicName, qos, payload, false);
+    }
 
-        // Connect to the MQTT server
-        log("Connecting to " + brokerUrl + " with client ID " + client.getClientId());
-        if (!client.isConnected()) {
-            client.connect(conOpt);
-            log("Connected first time");
-        } else {
-            log("Already Connected");
-        }
+    /**
+     * Publish / send a message to an MQTT server, which keeps it for new subscribers if
+     * {@code retained} is set. An empty retained payload clears the retained message.
+     *
+     * @param topicName the name of the topic to publish to
+     * @param qos the quality of service to delivery the message at (0,1,2)
+     * @param payload the set of bytes to send to the MQTT server
+     * @param retained whether the broker keeps the message for later subscribers
+     * @throws MqttException
+     */
+    public void publish(String topicName, int qos, byte[] payload, boolean retained)
+            throws MqttException {
+
+        connectIfNeeded();
 
-        String time = new Timestamp(System.currentTimeMillis()).toString();
-        log("Publishing at: " + time + " to topic \"" + topicName + "\" qos " + qos);
+        log("Publishing to topic \"{}\" qos {}", topicName, qos);
 
         // Create and configure a message
         MqttMessage message = new MqttMessage(payload);
         message.setQos(qos);
+        message.setRetained(retained);
 
         // Send the message to the server, control is not returned until
         // it has been delivered to the server meeting the specified
         // quality of service.
-        client.publish(topicName, message);
+        Object flightEvent = FlightEvents.beginPublish();
+        boolean failed = true;
+        try {
+            client.publish(topicName, message);
+            failed = false;
+        } finally {
+            FlightEvents.commitPublish(flightEvent, topicName, qos, payload.length, failed);
+        }
 
         // Disconnect the client
         // client.disconnect();
@@ -250,14 +272,14 @@ public class MyMqtt implements MqttCallback {
 
         // Connect to the MQTT server
         client.connect(conOpt);
-        log("Connected to " + brokerUrl + " with client ID " + client.getClientId());
+        log("Connected to {} with client ID {}", brokerUrl, client.getClientId());
 
         // Subscribe to the requested topic
         // The QoS specified is the maximum level that messages will be sent to the client at.
         // For instance if QoS 1 is specified, any messages originally published at QoS 2 will
         // be downgraded to 1 when delivering to the client but messages published at 1 and 0
         // will be received at the same level they were published at.
-        log("Subscribing to topic \"" + topicName + "\" qos " + qos);
+        log("Subscribing to topic \"{}\" qos {}", topicName, qos);
         client.subscribe(topicName, qos);
 
         // Disconnect the client from the server
@@ -266,13 +288,40 @@ public class MyMqtt implements MqttCallback {
     }
 
     /**
-     * Utility method to handle logging. If 'quietMode' is set, this method does nothing
-     * 
-     * @param message the message to log
+     * Subscribe to a topic on an MQTT server and hand the messages that match it to a listener,
+     * connecting first if needed. The listener is called on the client's thread, which it must
+     * not block or publish from.
+     *
+     * @param topicFilter to subscribe to (can be wild carded)
+     * @param qos the maximum quality of service to receive messages at for this subscription
+     * @param listener called with each message that arrives
+     * @throws MqttException
      */
-    private void log(String message) {
-        if (!quietMode) {
-            System.out.println(message);
+    public void listen(String topicFilter, int qos, IMqttMessageListener listener)
+            throws MqttException {
+        connectIfNeeded();
+        log("Listening to topic \"{}\" qos {}", topicFilter, qos);
+        client.subscribe(topicFilter, qos, listener);
+    }
+
+    /** Connect to the MQTT server unless already connected. */
+    private void connectIfNeeded() throws MqttException {
+        if (!client.isConnected()) {
+            log("Connecting to {} with client ID {}", brokerUrl, client.getClientId());
+            client.connect(conOpt);
+            log("Connected first time");
+        }
+    }
+
+    /**
+     * Utility method to handle logging, at DEBUG. If 'quietMode' is set, this method does nothing.
+     * Nothing is formatted unless DEBUG is enabled.
+     *
+     * @param format the message to log, with {} for each argument
+     */
+    private void log(String format, Object... arguments) {
+        if (!quietMode && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(format, arguments);
         }
     }
 
@@ -288,7 +337,7 @@ public class MyMqtt implements MqttCallback {
         // Called when the connection to the server has been lost.
         // An application may choose to implement reconnection
         // logic at this point. This sample simply exits.
-        log("Connection to " + brokerUrl + " lost!" + cause);
+        log("Connection to {} lost! {}", brokerUrl, cause);
         System.exit(1);
     }
 
@@ -322,11 +371,10 @@ public class MyMqtt implements MqttCallback {
     public void messageArrived(String topic, MqttMessage message) throws MqttException {
         // Called when a message arrives from the server that matches any
         // subscription made by the client
-        String time = new Timestamp(System.currentTimeMillis()).toString();
-        System.out.println("Time:\t" + time +
-                "  Topic:\t" + topic +
-                "  Message:\t" + new String(message.getPayload()) +
-                "  QoS:\t" + message.getQos());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Topic: {} Message: {} QoS: {}",
+                    topic, new String(message.getPayload()), message.getQos());
+        }
 
     }
 
@@ -17,262 +17,337 @@
 package com.example;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.actions.api.smarthome.*;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.gson.Gson;
-import com.google.home.graph.v1.DeviceProto;
-import com.google.protobuf.Struct;
-import com.google.protobuf.util.JsonFormat;
 
+/**
+ * Fulfills the smart home intents. SYNC, QUERY and EXECUTE are composed on the asynchronous API of
+ * {@link MyDataStore}: {@link #handleRequestAsync} returns before the storage answers, and the
+ * blocking intent handlers of {@link SmartHomeApp} wait for the same code.
+ */
 public class MySmartHomeApp extends SmartHomeApp {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
   private static MyDataStore database = MyDataStore.getInstance();
+  private static ExecuteDeduplicator executions = ExecuteDeduplicator.fromSystemProperties();
+
+  /**
+   * Handles a fulfillment request, completing with the JSON response. Intents other than SYNC,
+   * QUERY and EXECUTE are handled by {@link #handleRequest} on the calling thread.
+   */
+  CompletableFuture<String> handleRequestAsync(String body, Map<?, ?> headers) {
+    SmartHomeRequest request = SmartHomeRequest.Companion.create(body);
+    RequestContext context;
+    CompletableFuture<? extends SmartHomeResponse> response;
+    if (request instanceof SyncRequest) {
+      SyncRequest syncRequest = (SyncRequest) request;
+      context = RequestContext.start(Metrics.Intent.SYNC, syncRequest.requestId);
+      response = started(context, () -> syncAsync(syncRequest, headers));
+    } else if (request instanceof QueryRequest) {
+      QueryRequest queryRequest = (QueryRequest) request;
+      context = RequestContext.start(Metrics.Intent.QUERY, queryRequest.requestId);
+      response = started(context, () -> queryAsync(queryRequest, headers));
+    } else if (request instanceof ExecuteRequest) {
+      ExecuteRequest executeRequest = (ExecuteRequest) request;
+      context = RequestContext.start(Metrics.Intent.EXECUTE, executeRequest.requestId);
+      response = started(context, () -> executeAsync(executeRequest, headers));
+    } else {
+      return handleRequest(body, headers);
+    }
+    return response.handle(
+        (done, failure) -> {
+          context.end();
+          if (failure != null) {
+            throw new CompletionException(Futures.unwrap(failure));
+          }
+          return done.build().toString();
+        });
+  }
+
+  /**
+   * Starts composing a response on the thread of the request, then detaches the context of the
+   * request from it, so that the thread can be given back.
+   */
+  private static <T extends SmartHomeResponse> CompletableFuture<T> started(
+      RequestContext context, Supplier<CompletableFuture<T>> response) {
+    try {
+      return Futures.begin(response);
+    } finally {
+      context.detach();
+    }
+  }
 
   @NotNull
   @Override
   public SyncResponse onSync(SyncRequest syncRequest, Map<?, ?> headers) {
+    try (RequestContext context =
+        RequestContext.start(Metrics.Intent.SYNC, syncRequest.requestId)) {
+      return syncAsync(syncRequest, headers).join();
+    }
+  }
 
+  private CompletableFuture<SyncResponse> syncAsync(SyncRequest syncRequest, Map<?, ?> headers) {
     SyncResponse res = new SyncResponse();
     res.setRequestId(syncRequest.requestId);
     res.setPayload(new SyncResponse.Payload());
 
     String token = (String) headers.get("authorization");
-    String userId = "";
-    try {
-      userId = database.getUserId(token);
-    } catch (Exception e) {
-      // TODO(proppy): add errorCode when
-      // https://github.com/actions-on-google/actions-on-google-java/issues/44 is fixed.
-      LOGGER.error("failed to get user id for token: %d", token);
-      return res;
-    }
-    res.payload.agentUserId = userId;
+    RequestContext context = RequestContext.current();
+    return userId(token)
+        .thenCompose(
+            userId -> {
+              if (userId == null) {
+                // TODO(proppy): add errorCode when
+                // https://github.com/actions-on-google/actions-on-google-java/issues/44 is fixed.
+                return CompletableFuture.completedFuture(res);
+              }
+              res.payload.agentUserId = userId;
 
-    database.setHomegraph(userId, true);
-    List<QueryDocumentSnapshot> devices = new ArrayList<>();
-    try {
-      devices = database.getDevices(userId);
-    } catch (ExecutionException | InterruptedException e) {
-      LOGGER.error("failed to get devices", e);
+              CompletableFuture<Void> homegraph =
+                  RequestContext.within(context, () -> database.setHomegraphAsync(userId, true))
+                      .exceptionally(
+                          failure -> {
+                            LOGGER.error("failed to update homegraph of " + userId, failure);
+                            return null;
+                          });
+              return RequestContext.within(context, () -> database.getDevicesAsync(userId))
+                  .handle(
+                      (devices, failure) ->
+                          RequestContext.within(
+                              context, () -> buildSyncResponse(res, devices, failure)))
+                  .thenCombine(homegraph, (built, written) -> built);
+            });
+  }
+
+  private static SyncResponse buildSyncResponse(
+      SyncResponse res, Map<String, Map<String, Object>> devices, Throwable failure) {
+    if (failure != null) {
+      LOGGER.error("failed to get devices", Futures.unwrap(failure));
       return res;
     }
-    int numOfDevices = devices.size();
-    res.payload.devices = new SyncResponse.Payload.Device[numOfDevices];
-    for (int i = 0; i < numOfDevices; i++) {
-      QueryDocumentSnapshot device = devices.get(i);
-      SyncResponse.Payload.Device.Builder deviceBuilder =
-          new SyncResponse.Payload.Device.Builder()
-              .setId(device.getId())
-              .setType((String) device.get("type"))
-              .setTraits((List<String>) device.get("traits"))
-              .setName(
-                  DeviceProto.DeviceNames.newBuilder()
-                      .addAllDefaultNames((List<String>) device.get("defaultNames"))
-                      .setName((String) device.get("name"))
-                      .addAllNicknames((List<String>) device.get("nicknames"))
-                      .build())
-              .setWillReportState((Boolean) device.get("willReportState"))
-              .setRoomHint((String) device.get("roomHint"))
-              .setDeviceInfo(
-                  DeviceProto.DeviceInfo.newBuilder()
-                      .setManufacturer((String) device.get("manufacturer"))
-                      .setModel((String) device.get("model"))
-                      .setHwVersion((String) device.get("hwVersion"))
-                      .setSwVersion((String) device.get("swVersion"))
-                      .build());
-      if (device.contains("attributes")) {
-        Map<String, Object> attributes = new HashMap<>();
-        attributes.putAll((Map<String, Object>) device.get("attributes"));
-        String attributesJson = new Gson().toJson(attributes);
-        Struct.Builder attributeBuilder = Struct.newBuilder();
-        try {
-          JsonFormat.parser().ignoringUnknownFields().merge(attributesJson, attributeBuilder);
-        } catch (Exception e) {
-          LOGGER.error("FAILED TO BUILD");
-        }
-        deviceBuilder.setAttributes(attributeBuilder.build());
-      }
-      if (device.contains("customData")) {
-        Map<String, Object> customData = new HashMap<>();
-        customData.putAll((Map<String, Object>) device.get("customData"));
-        // TODO(proppy): remove once
-        // https://github.com/actions-on-google/actions-on-google-java/issues/43 is fixed.
-        String customDataJson = new Gson().toJson(customData);
-        deviceBuilder.setCustomData(customDataJson);
-      }
-      if (device.contains("otherDeviceIds")) {
-        deviceBuilder.setOtherDeviceIds((List) device.get("otherDeviceIds"));
-      }
-      res.payload.devices[i] = deviceBuilder.build();
+    long start = System.nanoTime();
+    res.payload.devices = new SyncResponse.Payload.Device[devices.size()];
+    int i = 0;
+    for (Map.Entry<String, Map<String, Object>> device : devices.entrySet()) {
+      res.payload.devices[i++] = FulfillmentPayloads.syncDevice(device.getKey(), device.getValue());
+      RequestContext.target(device.getKey(), null);
     }
-
+    RequestContext.phase("buildResponse", start);
     return res;
   }
 
   @NotNull
   @Override
   public QueryResponse onQuery(QueryRequest queryRequest, Map<?, ?> headers) {
+    try (RequestContext context =
+        RequestContext.start(Metrics.Intent.QUERY, queryRequest.requestId)) {
+      return queryAsync(queryRequest, headers).join();
+    }
+  }
+
+  private CompletableFuture<QueryResponse> queryAsync(
+      QueryRequest queryRequest, Map<?, ?> headers) {
     QueryRequest.Inputs.Payload.Device[] devices =
         ((QueryRequest.Inputs) queryRequest.getInputs()[0]).payload.devices;
     QueryResponse res = new QueryResponse();
     res.setRequestId(queryRequest.requestId);
     res.setPayload(new QueryResponse.Payload());
 
-    String token = (String) headers.get("authorization");
-    String userId = "";
-    try {
-      userId = database.getUserId(token);
-    } catch (Exception e) {
-      LOGGER.error("failed to get user id for token: %d", headers.get("authorization"));
-      res.payload.setErrorCode("authFailure");
-      return res;
+    List<String> deviceIds = new ArrayList<>(devices.length);
+    for (QueryRequest.Inputs.Payload.Device device : devices) {
+      RequestContext.target(device.id, null);
+      deviceIds.add(device.id);
     }
+    String token = (String) headers.get("authorization");
+    RequestContext context = RequestContext.current();
+    return userId(token)
+        .thenCompose(
+            userId -> {
+              if (userId == null) {
+                res.payload.setErrorCode("authFailure");
+                return CompletableFuture.completedFuture(res);
+              }
+              // The devices are read together
+              return RequestContext.within(
+                      context, () -> database.getStatesAsync(userId, deviceIds))
+                  .handle(
+                      (states, failure) -> {
+                        if (failure != null) {
+                          LOGGER.error("QUERY FAILED: {}", Futures.unwrap(failure));
+                        }
+                        res.payload.setDevices(queryDevices(userId, deviceIds, states));
+                        return res;
+                      });
+            });
+  }
 
+  /**
+   * Returns the states of the queried devices, or their error if they were not read, and reports
+   * the states read.
+   */
+  private Map<String, Map<String, Object>> queryDevices(
+      String userId, List<String> deviceIds, Map<String, DeviceState> states) {
     Map<String, Map<String, Object>> deviceStates = new HashMap<>();
-    for (QueryRequest.Inputs.Payload.Device device : devices) {
-      try {
-        Map<String, Object> deviceState = database.getState(userId, device.id);
-        //deviceState.put("status", "SUCCESS");
-        deviceState.put("online", true); //TODO: Not sure about this line solution
-        deviceStates.put(device.id, deviceState);
-        ReportState.makeRequest(this, userId, device.id, deviceState);
-      } catch (Exception e) {
-        LOGGER.error("QUERY FAILED: {}", e);
+    Map<String, DeviceState> reported = new LinkedHashMap<>();
+    for (String deviceId : deviceIds) {
+      DeviceState deviceState = states != null ? states.get(deviceId) : null;
+      if (deviceState == null) {
         Map<String, Object> failedDevice = new HashMap<>();
         failedDevice.put("status", "ERROR");
         failedDevice.put("errorCode", "deviceOffline");
-        deviceStates.put(device.id, failedDevice);
+        deviceStates.put(deviceId, failedDevice);
+        continue;
       }
+      //deviceState.put("status", "SUCCESS");
+      deviceState.setOnline(true); //TODO: Not sure about this line solution
+      deviceStates.put(deviceId, deviceState.toMap());
+      reported.put(deviceId, deviceState);
     }
-    res.payload.setDevices(deviceStates);
-    return res;
+    report(userId, reported);
+    return deviceStates;
   }
 
   @NotNull
   @Override
   public ExecuteResponse onExecute(ExecuteRequest executeRequest, Map<?, ?> headers) {
-    ExecuteResponse res = new ExecuteResponse();
-
-    String token = (String) headers.get("authorization");
-    String userId = "";
-    try {
-      userId = database.getUserId(token);
-    } catch (Exception e) {
-      LOGGER.error("failed to get user id for token: %d", headers.get("authorization"));
-      res.setPayload(new ExecuteResponse.Payload());
-      res.payload.setErrorCode("authFailure");
-      return res;
+    try (RequestContext context =
+        RequestContext.start(Metrics.Intent.EXECUTE, executeRequest.requestId)) {
+      return executeAsync(executeRequest, headers).join();
     }
+  }
 
-    List<ExecuteResponse.Payload.Commands> commandsResponse = new ArrayList<>();
-    List<String> successfulDevices = new ArrayList<>();
-    Map<String, Object> states = new HashMap<>();
+  private CompletableFuture<ExecuteResponse> executeAsync(
+      ExecuteRequest executeRequest, Map<?, ?> headers) {
+    ExecuteResponse res = new ExecuteResponse();
 
+    List<ExecutionPlanner.Command> work = new ArrayList<>();
     ExecuteRequest.Inputs.Payload.Commands[] commands =
         ((ExecuteRequest.Inputs) executeRequest.inputs[0]).payload.commands;
     for (ExecuteRequest.Inputs.Payload.Commands command : commands) {
       for (ExecuteRequest.Inputs.Payload.Commands.Devices device : command.devices) {
-        try {
-          states = database.execute(userId, device.id, command.execution[0]);
-          successfulDevices.add(device.id);
-          ReportState.makeRequest(this, userId, device.id, states);
-        } catch (Exception e) {
-          if (e.getMessage().equals("PENDING")) {
-            ExecuteResponse.Payload.Commands pendingDevice = new ExecuteResponse.Payload.Commands();
-            pendingDevice.ids = new String[] {device.id};
-            pendingDevice.status = "PENDING";
-            commandsResponse.add(pendingDevice);
-            continue;
-          }
-          if (e.getMessage().equals("pinNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "pinNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-          if (e.getMessage().equals("challengeFailedPinNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "challengeFailedPinNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-          if (e.getMessage().equals("ackNeeded")) {
-            ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-            failedDevice.ids = new String[] {device.id};
-            failedDevice.status = "ERROR";
-            failedDevice.setErrorCode("challengeNeeded");
-            failedDevice.setChallengeNeeded(
-                new HashMap<String, String>() {
-                  {
-                    put("type", "ackNeeded");
-                  }
-                });
-            failedDevice.setErrorCode(e.getMessage());
-            commandsResponse.add(failedDevice);
-            continue;
-          }
-
-          ExecuteResponse.Payload.Commands failedDevice = new ExecuteResponse.Payload.Commands();
-          failedDevice.ids = new String[] {device.id};
-          failedDevice.status = "ERROR";
-          failedDevice.setErrorCode(e.getMessage());
-          commandsResponse.add(failedDevice);
-        }
+        work.add(new ExecutionPlanner.Command(device.id, command.execution[0]));
+        RequestContext.target(device.id, command.execution[0].command);
       }
     }
 
-    ExecuteResponse.Payload.Commands successfulCommands = new ExecuteResponse.Payload.Commands();
-    successfulCommands.status = "SUCCESS";
-    successfulCommands.setStates(states);
-    successfulCommands.ids = successfulDevices.toArray(new String[] {});
-    commandsResponse.add(successfulCommands);
+    String token = (String) headers.get("authorization");
+    RequestContext context = RequestContext.current();
+    return userId(token)
+        .thenCompose(
+            userId -> {
+              if (userId == null) {
+                res.setPayload(new ExecuteResponse.Payload());
+                res.payload.setErrorCode("authFailure");
+                return CompletableFuture.completedFuture(res);
+              }
+              // A retry of the request gets the outcomes of its first attempt
+              return RequestContext.within(
+                      context,
+                      () ->
+                          executions.executeAsync(
+                              userId,
+                              executeRequest.requestId,
+                              work.size(),
+                              () -> executeAndReport(userId, work)))
+                  .thenApply(
+                      outcomes -> {
+                        List<ExecuteResponse.Payload.Commands> commandsResponse =
+                            new ArrayList<>();
+                        for (int i = 0; i < work.size(); i++) {
+                          commandsResponse.add(
+                              FulfillmentPayloads.executeCommand(
+                                  work.get(i).deviceId, outcomes.get(i)));
+                        }
 
-    res.requestId = executeRequest.requestId;
-    ExecuteResponse.Payload payload =
-        new ExecuteResponse.Payload(
-            commandsResponse.toArray(new ExecuteResponse.Payload.Commands[] {}));
-    res.setPayload(payload);
+                        res.requestId = executeRequest.requestId;
+                        ExecuteResponse.Payload payload =
+                            new ExecuteResponse.Payload(
+                                commandsResponse.toArray(
+                                    new ExecuteResponse.Payload.Commands[] {}));
+                        res.setPayload(payload);
+                        return res;
+                      });
+            });
+  }
 
-    return res;
+  /** Executes commands and reports the new states, completing with one outcome per command. */
+  private CompletableFuture<List<ExecutionOutcome>> executeAndReport(
+      String userId, List<ExecutionPlanner.Command> work) {
+    return database
+        .executeAsync(userId, work)
+        .handle(
+            (outcomes, failure) -> {
+              if (failure != null) {
+                LOGGER.error("failed to execute commands", Futures.unwrap(failure));
+                return Collections.nCopies(work.size(), ExecutionOutcome.TRANSIENT_ERROR);
+              }
+              // A device executing several commands is reported once, with its last states, so
+              // that reports made concurrently cannot end on older ones
+              Map<String, DeviceState> reported = new LinkedHashMap<>();
+              for (int i = 0; i < work.size(); i++) {
+                if (outcomes.get(i).states != null) {
+                  reported.put(work.get(i).deviceId, outcomes.get(i).states);
+                }
+              }
+              report(userId, reported);
+              return outcomes;
+            });
+  }
+
+  /** Reports states to HomeGraph, whose calls block, off the thread and without waiting. */
+  private void report(String userId, Map<String, DeviceState> states) {
+    states.forEach(
+        (deviceId, deviceState) ->
+            RequestThreads.handOff(
+                    () -> ReportState.makeRequest(this, userId, deviceId, deviceState))
+                .whenComplete(
+                    (reported, failure) -> {
+                      if (failure != null) {
+                        LOGGER.error("failed to report the states of " + deviceId, failure);
+                      }
+                    }));
+  }
+
+  /** Resolves the user of a request, completing with null, logged, if the token is not valid. */
+  private static CompletableFuture<String> userId(String token) {
+    return database
+        .getUserIdAsync(token)
+        .handle(
+            (userId, failure) -> {
+              if (failure != null) {
+                LOGGER.error("failed to get user id for token: %d", token);
+              }
+              return userId;
+            });
   }
 
   @NotNull
   @Override
   public void onDisconnect(DisconnectRequest disconnectRequest, Map<?, ?> headers) {
     String token = (String) headers.get("authorization");
-    try {
-      String userId = database.getUserId(token);
-      database.setHomegraph(userId, false);
-    } catch (Exception e) {
-      LOGGER.error("failed to get user id for token: %d", token);
+    try (RequestContext context =
+        RequestContext.start(Metrics.Intent.DISCONNECT, disconnectRequest.requestId)) {
+      // The response carries nothing, so it need not wait for the storage
+      Futures.begin(() -> database.getUserIdAsync(token))
+          .thenCompose(userId -> database.setHomegraphAsync(userId, false))
+          .whenComplete(
+              (disabled, failure) -> {
+                if (failure != null) {
+                  LOGGER.error("failed to disconnect the user", Futures.unwrap(failure));
+                }
+              });
     }
   }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the states of many devices outside the Java heap, where they add neither to the heap size
+ * nor to the work of the garbage collector.
+ *
+ * <p>Each device takes one fixed-size record in a direct buffer, holding the layout of {@link
+ * DeviceState#writeTo} and the position of its user and device IDs, which are kept in a second
+ * direct buffer. Records are found through an open addressing index made of two primitive arrays,
+ * so the table holds no object per device. Only states without a fixed encoding stay on the heap.
+ * Records of removed devices are reused; the space of their IDs is not.
+ *
+ * <p>Instances are thread-safe. Reads run concurrently with each other.
+ */
+final class OffHeapStateTable {
+  private static final int KEY_OFFSET = (DeviceState.ENCODED_BYTES + 3) & ~3;
+  private static final int USER_ID_LENGTH = KEY_OFFSET + 4;
+  private static final int DEVICE_ID_LENGTH = KEY_OFFSET + 8;
+  private static final int RECORD_BYTES = KEY_OFFSET + 12;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Guarded by lock
+  private ByteBuffer records;
+  private int recordCount;
+  private int[] freeRecords = new int[16];
+  private int freeCount;
+  private ByteBuffer keys;
+  private int keysEnd;
+  /** Hashes of the keys in the index. */
+  private long[] hashes;
+  /** Record numbers plus one in the index, 0 for an empty slot. */
+  private int[] slots;
+  private int size;
+  /** States without a fixed encoding, keyed by record number. */
+  private final Map<Integer, Map<String, Object>> residuals = new HashMap<>();
+
+  OffHeapStateTable(int expectedDevices) {
+    int capacity = Math.max(16, expectedDevices);
+    records = allocate(capacity * RECORD_BYTES);
+    // Room for IDs of 16 characters each
+    keys = allocate(capacity * 64);
+    int indexCapacity = Integer.highestOneBit(Math.max(16, expectedDevices) * 2 - 1) << 1;
+    hashes = new long[indexCapacity];
+    slots = new int[indexCapacity];
+  }
+
+  /** Returns a copy of the states of a device, or null if the device is not in the table. */
+  DeviceState get(String userId, String deviceId) {
+    lock.readLock().lock();
+    try {
+      int slot = find(userId, deviceId, hash(userId, deviceId));
+      if (slots[slot] == 0) {
+        return null;
+      }
+      int record = slots[slot] - 1;
+      return DeviceState.readFrom(records, record * RECORD_BYTES, residuals.get(record));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Stores the states of a device, replacing any previous states. */
+  void put(String userId, String deviceId, DeviceState states) {
+    lock.writeLock().lock();
+    try {
+      long hash = hash(userId, deviceId);
+      int slot = find(userId, deviceId, hash);
+      int record;
+      if (slots[slot] != 0) {
+        record = slots[slot] - 1;
+      } else {
+        record = newRecord(userId, deviceId);
+        hashes[slot] = hash;
+        slots[slot] = record + 1;
+        if (++size * 2 > slots.length) {
+          rehash(slots.length * 2);
+        }
+      }
+      Map<String, Object> residual = states.writeTo(records, record * RECORD_BYTES);
+      if (residual != null) {
+        residuals.put(record, residual);
+      } else {
+        residuals.remove(record);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes the states of a device, returning false if it was not in the table. */
+  boolean remove(String userId, String deviceId) {
+    lock.writeLock().lock();
+    try {
+      int slot = find(userId, deviceId, hash(userId, deviceId));
+      if (slots[slot] == 0) {
+        return false;
+      }
+      int record = slots[slot] - 1;
+      residuals.remove(record);
+      if (freeCount == freeRecords.length) {
+        int[] grown = new int[freeCount * 2];
+        System.arraycopy(freeRecords, 0, grown, 0, freeCount);
+        freeRecords = grown;
+      }
+      freeRecords[freeCount++] = record;
+      deleteSlot(slot);
+      size--;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the bytes the table has allocated outside the heap. */
+  long offHeapBytes() {
+    lock.readLock().lock();
+    try {
+      return (long) records.capacity() + keys.capacity();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the index slot of a key, or the empty slot where it would be inserted. */
+  private int find(String userId, String deviceId, long hash) {
+    int mask = slots.length - 1;
+    for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+      if (slots[slot] == 0
+          || (hashes[slot] == hash && keyEquals(slots[slot] - 1, userId, deviceId))) {
+        return slot;
+      }
+    }
+  }
+
+  /** Empties an index slot and moves later entries of the same probe run back into the gap. */
+  private void deleteSlot(int slot) {
+    int mask = slots.length - 1;
+    int gap = slot;
+    slots[gap] = 0;
+    for (int next = (gap + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+      int home = (int) hashes[next] & mask;
+      // The entry may move to the gap unless its home lies cyclically in (gap, next]
+      boolean stays = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+      if (!stays) {
+        hashes[gap] = hashes[next];
+        slots[gap] = slots[next];
+        slots[next] = 0;
+        gap = next;
+      }
+    }
+  }
+
+  private void rehash(int capacity) {
+    long[] oldHashes = hashes;
+    int[] oldSlots = slots;
+    hashes = new long[capacity];
+    slots = new int[capacity];
+    int mask = capacity - 1;
+    for (int i = 0; i < oldSlots.length; i++) {
+      if (oldSlots[i] != 0) {
+        int slot = (int) oldHashes[i] & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        hashes[slot] = oldHashes[i];
+        slots[slot] = oldSlots[i];
+      }
+    }
+  }
+
+  private int newRecord(String userId, String deviceId) {
+    int record;
+    if (freeCount > 0) {
+      record = freeRecords[--freeCount];
+    } else {
+      record = recordCount++;
+      if ((long) recordCount * RECORD_BYTES > records.capacity()) {
+        records = grow(records, records.capacity() * 2L);
+      }
+    }
+    int keyBytes = (userId.length() + deviceId.length()) * 2;
+    if ((long) keysEnd + keyBytes > keys.capacity()) {
+      keys = grow(keys, Math.max(keys.capacity() * 2L, (long) keysEnd + keyBytes));
+    }
+    int offset = record * RECORD_BYTES;
+    records.putInt(offset + KEY_OFFSET, keysEnd);
+    records.putInt(offset + USER_ID_LENGTH, userId.length());
+    records.putInt(offset + DEVICE_ID_LENGTH, deviceId.length());
+    keysEnd = putChars(keysEnd, userId);
+    keysEnd = putChars(keysEnd, deviceId);
+    return record;
+  }
+
+  private int putChars(int position, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      keys.putChar(position, value.charAt(i));
+      position += 2;
+    }
+    return position;
+  }
+
+  private boolean keyEquals(int record, String userId, String deviceId) {
+    int offset = record * RECORD_BYTES;
+    if (records.getInt(offset + USER_ID_LENGTH) != userId.length()
+        || records.getInt(offset + DEVICE_ID_LENGTH) != deviceId.length()) {
+      return false;
+    }
+    int position = records.getInt(offset + KEY_OFFSET);
+    for (int i = 0; i < userId.length(); i++, position += 2) {
+      if (keys.getChar(position) != userId.charAt(i)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < deviceId.length(); i++, position += 2) {
+      if (keys.getChar(position) != deviceId.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** A 64-bit FNV-1a hash of both IDs, with the finalizer of MurmurHash3 to spread low bits. */
+  private static long hash(String userId, String deviceId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < userId.length(); i++) {
+      hash = (hash ^ userId.charAt(i)) * 0x100000001b3L;
+    }
+    hash = (hash ^ 0xffff) * 0x100000001b3L;
+    for (int i = 0; i < deviceId.length(); i++) {
+      hash = (hash ^ deviceId.charAt(i)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ hash >>> 33;
+  }
+
+  private static ByteBuffer allocate(int bytes) {
+    return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, long bytes) {
+    if (bytes > Integer.MAX_VALUE) {
+      // A direct buffer holds at most 2 GiB, about 24 million devices with short IDs
+      throw new IllegalStateException("the state table is full");
+    }
+    ByteBuffer grown = allocate((int) bytes);
+    ByteBuffer old = buffer.duplicate();
+    old.clear();
+    grown.put(old);
+    return grown;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs a sample of the request and response bodies of one endpoint, at INFO to the logger {@code
+ * com.example.payload.<endpoint>}.
+ *
+ * <p>A request is sampled with the probability in {@code
+ * smarthome.payloadLog.<endpoint>.sampleRate} and its bodies are cut to {@code
+ * smarthome.payloadLog.maxChars} characters. Tokens, codes, PINs and passwords are masked: the
+ * values of JSON fields named like them, such as {@code guestNetworkPassword}, form parameters and
+ * Authorization headers.
+ * Nothing is formatted for requests that are not sampled, or when the logger is off.
+ */
+final class PayloadLog {
+  private static final int MAX_CHARS = Integer.getInteger("smarthome.payloadLog.maxChars", 1024);
+  /** The name of a JSON field holding a secret, with the colon after it. */
+  private static final String SECRET_FIELD =
+      "\"(?:[^\"\\\\]*(?:password|token|pin)|code|client_secret|authorization)\"\\s*:\\s*";
+  /**
+   * A secret after the group that matched: a whole JSON string up to its closing quote, another
+   * JSON value, a form parameter or an Authorization header.
+   */
+  private static final Pattern SECRET =
+      Pattern.compile(
+          "(" + SECRET_FIELD + "\")(?:[^\"\\\\]|\\\\.)*"
+              + "|(" + SECRET_FIELD + ")[^\"\\s,{}\\[\\]]+"
+              + "|(\\b(?:access_token|refresh_token|code|client_secret|password)=)[^&\\s]+"
+              + "|(Bearer\\s+)[^\"&,}\\s]+",
+          Pattern.CASE_INSENSITIVE);
+
+  private final String endpoint;
+  private final Logger logger;
+  private final double sampleRate;
+
+  PayloadLog(String endpoint, double sampleRate) {
+    this.endpoint = endpoint;
+    this.logger = LoggerFactory.getLogger("com.example.payload." + endpoint);
+    this.sampleRate = sampleRate;
+  }
+
+  /** Creates the log of an endpoint with its sampling rate from the system properties. */
+  static PayloadLog forEndpoint(String endpoint, double defaultSampleRate) {
+    String sampleRate = System.getProperty("smarthome.payloadLog." + endpoint + ".sampleRate");
+    return new PayloadLog(
+        endpoint, sampleRate != null ? Double.parseDouble(sampleRate) : defaultSampleRate);
+  }
+
+  /** Decides whether to log the bodies of a request. */
+  boolean sample() {
+    return sampleRate > 0
+        && logger.isInfoEnabled()
+        && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+
+  /**
+   * Logs a body of a request that was {@link #sample sampled}.
+   *
+   * @param direction "request" or "response"
+   */
+  void log(String direction, String body) {
+    logger.info("{} {} = {}", endpoint, direction, redact(body, MAX_CHARS));
+  }
+
+  /** Masks the secrets in up to {@code maxChars} characters of a body, dropping the rest. */
+  static String redact(String body, int maxChars) {
+    if (body == null) {
+      return null;
+    }
+    // A secret cut off at the end is still masked, since it needs no closing quote
+    String text = body.length() > maxChars ? body.substring(0, maxChars) : body;
+    Matcher matcher = SECRET.matcher(text);
+    StringBuffer redacted = new StringBuffer(text.length() + 32);
+    while (matcher.find()) {
+      int prefix = 1;
+      while (matcher.group(prefix) == null) {
+        prefix++;
+      }
+      matcher.appendReplacement(redacted, "$" + prefix + "***");
+    }
+    matcher.appendTail(redacted);
+    if (body.length() > maxChars) {
+      redacted.append("... (").append(body.length() - maxChars).append(" more chars)");
+    }
+    return redacted.toString();
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Passes calls to another store, recording a {@link FlightEvents.StoreCallEvent} for each while
+ * Flight Recorder records them, asynchronous calls up to their completion. Only created by {@link
+ * FlightEvents#recording}, on JVMs that have Flight Recorder.
+ */
+final class RecordingDeviceStore implements DeviceStore {
+  /** A call to the other store. */
+  private interface Call<T> {
+    T run() throws ExecutionException, InterruptedException;
+  }
+
+  private final DeviceStore delegate;
+  private final String name;
+
+  RecordingDeviceStore(DeviceStore delegate) {
+    this.delegate = delegate;
+    this.name = delegate.getClass().getSimpleName();
+  }
+
+  @Override
+  public String findUserIdByFakeToken(String fakeAccessToken)
+      throws ExecutionException, InterruptedException {
+    return record(
+        "findUserIdByFakeToken",
+        null,
+        null,
+        () -> delegate.findUserIdByFakeToken(fakeAccessToken),
+        RecordingDeviceStore::found);
+  }
+
+  @Override
+  public String findUserIdByDevice(String deviceId)
+      throws ExecutionException, InterruptedException {
+    return record(
+        "findUserIdByDevice",
+        null,
+        deviceId,
+        () -> delegate.findUserIdByDevice(deviceId),
+        RecordingDeviceStore::found);
+  }
+
+  @Override
+  public Map<DeviceKey, Map<String, Object>> findDevicesWith(String flag)
+      throws ExecutionException, InterruptedException {
+    return record("findDevicesWith", null, null, () -> delegate.findDevicesWith(flag), Map::size);
+  }
+
+  @Override
+  public Map<String, Object> getUser(String userId)
+      throws ExecutionException, InterruptedException {
+    return record(
+        "getUser", userId, null, () -> delegate.getUser(userId), RecordingDeviceStore::found);
+  }
+
+  @Override
+  public void setUser(String userId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    record(
+        "setUser",
+        userId,
+        null,
+        () -> {
+          delegate.setUser(userId, data);
+          return null;
+        },
+        none -> 1);
+  }
+
+  @Override
+  public void updateUser(String userId, Map<String, Object> fields)
+      throws ExecutionException, InterruptedException {
+    record(
+        "updateUser",
+        userId,
+        null,
+        () -> {
+          delegate.updateUser(userId, fields);
+          return null;
+        },
+        none -> 1);
+  }
+
+  @Override
+  public boolean compareAndSetUserField(
+      String userId, String field, Object expected, Object value)
+      throws ExecutionException, InterruptedException {
+    return record(
+        "compareAndSetUserField",
+        userId,
+        null,
+        () -> delegate.compareAndSetUserField(userId, field, expected, value),
+        set -> 1);
+  }
+
+  @Override
+  public void deleteUser(String userId) throws ExecutionException, InterruptedException {
+    record(
+        "deleteUser",
+        userId,
+        null,
+        () -> {
+          delegate.deleteUser(userId);
+          return null;
+        },
+        none -> 1);
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId)
+      throws ExecutionException, InterruptedException {
+    return record("getDevices", userId, null, () -> delegate.getDevices(userId), Map::size);
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> getDevices(String userId, Collection<String> deviceIds)
+      throws ExecutionException, InterruptedException {
+    return record(
+        "getDevices",
+        userId,
+        deviceIds.size() == 1 ? deviceIds.iterator().next() : null,
+        () -> delegate.getDevices(userId, deviceIds),
+        Map::size);
+  }
+
+  @Override
+  public void setDevice(String userId, String deviceId, Map<String, Object> data)
+      throws ExecutionException, InterruptedException {
+    record(
+        "setDevice",
+        userId,
+        deviceId,
+        () -> {
+          delegate.setDevice(userId, deviceId, data);
+          return null;
+        },
+        none -> 1);
+  }
+
+  @Override
+  public void updateDevices(String userId, Map<String, Map<String, Object>> updates)
+      throws ExecutionException, InterruptedException {
+    record(
+        "updateDevices",
+        userId,
+        updates.size() == 1 ? updates.keySet().iterator().next() : null,
+        () -> {
+          delegate.updateDevices(userId, updates);
+          return null;
+        },
+        none -> updates.size());
+  }
+
+  @Override
+  public void deleteDevice(String userId, String deviceId)
+      throws ExecutionException, InterruptedException {
+    record(
+        "deleteDevice",
+        userId,
+        deviceId,
+        () -> {
+          delegate.deleteDevice(userId, deviceId);
+          return null;
+        },
+        none -> 1);
+  }
+
+  @Override
+  public CompletableFuture<String> findUserIdByFakeTokenAsync(String fakeAccessToken) {
+    return recordAsync(
+        "findUserIdByFakeToken",
+        null,
+        null,
+        () -> delegate.findUserIdByFakeTokenAsync(fakeAccessToken),
+        RecordingDeviceStore::found);
+  }
+
+  @Override
+  public CompletableFuture<String> findUserIdByDeviceAsync(String deviceId) {
+    return recordAsync(
+        "findUserIdByDevice",
+        null,
+        deviceId,
+        () -> delegate.findUserIdByDeviceAsync(deviceId),
+        RecordingDeviceStore::found);
+  }
+
+  @Override
+  public CompletableFuture<Map<DeviceKey, Map<String, Object>>> findDevicesWithAsync(String flag) {
+    return recordAsync(
+        "findDevicesWith", null, null, () -> delegate.findDevicesWithAsync(flag), Map::size);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> getUserAsync(String userId) {
+    return recordAsync(
+        "getUser", userId, null, () -> delegate.getUserAsync(userId), RecordingDeviceStore::found);
+  }
+
+  @Override
+  public CompletableFuture<Void> setUserAsync(String userId, Map<String, Object> data) {
+    return recordAsync(
+        "setUser", userId, null, () -> delegate.setUserAsync(userId, data), none -> 1);
+  }
+
+  @Override
+  public CompletableFuture<Void> updateUserAsync(String userId, Map<String, Object> fields) {
+    return recordAsync(
+        "updateUser", userId, null, () -> delegate.updateUserAsync(userId, fields), none -> 1);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> compareAndSetUserFieldAsync(
+      String userId, String field, Object expected, Object value) {
+    return recordAsync(
+        "compareAndSetUserField",
+        userId,
+        null,
+        () -> delegate.compareAndSetUserFieldAsync(userId, field, expected, value),
+        set -> 1);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(String userId) {
+    return recordAsync(
+        "getDevices", userId, null, () -> delegate.getDevicesAsync(userId), Map::size);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Map<String, Object>>> getDevicesAsync(
+      String userId, Collection<String> deviceIds) {
+    return recordAsync(
+        "getDevices",
+        userId,
+        deviceIds.size() == 1 ? deviceIds.iterator().next() : null,
+        () -> delegate.getDevicesAsync(userId, deviceIds),
+        Map::size);
+  }
+
+  @Override
+  public CompletableFuture<Void> setDeviceAsync(
+      String userId, String deviceId, Map<String, Object> data) {
+    return recordAsync(
+        "setDevice",
+        userId,
+        deviceId,
+        () -> delegate.setDeviceAsync(userId, deviceId, data),
+        none -> 1);
+  }
+
+  @Override
+  public CompletableFuture<Void> updateDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return recordAsync(
+        "updateDevices",
+        userId,
+        updates.size() == 1 ? updates.keySet().iterator().next() : null,
+        () -> delegate.updateDevicesAsync(userId, updates),
+        none -> updates.size());
+  }
+
+  @Override
+  public CompletableFuture<Void> commitDevicesAsync(
+      String userId, Map<String, Map<String, Object>> updates) {
+    return recordAsync(
+        "updateDevices",
+        userId,
+        updates.size() == 1 ? updates.keySet().iterator().next() : null,
+        () -> delegate.commitDevicesAsync(userId, updates),
+        none -> updates.size());
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteDeviceAsync(String userId, String deviceId) {
+    return recordAsync(
+        "deleteDevice",
+        userId,
+        deviceId,
+        () -> delegate.deleteDeviceAsync(userId, deviceId),
+        none -> 1);
+  }
+
+  /**
+   * Makes a call, recording it if the event is enabled.
+   *
+   * @param documents counts the documents read or written, given the result of the call
+   */
+  private <T> T record(
+      String operation,
+      String userId,
+      String deviceId,
+      Call<T> call,
+      ToIntFunction<T> documents)
+      throws ExecutionException, InterruptedException {
+    FlightEvents.StoreCallEvent event = new FlightEvents.StoreCallEvent();
+    if (!event.isEnabled()) {
+      return call.run();
+    }
+    event.begin();
+    T result = null;
+    boolean failed = true;
+    try {
+      result = call.run();
+      failed = false;
+      return result;
+    } finally {
+      commit(
+          event, RequestContext.current(), operation, userId, deviceId, documents, result, failed);
+    }
+  }
+
+  /** Makes an asynchronous call, recording it up to its completion if the event is enabled. */
+  private <T> CompletableFuture<T> recordAsync(
+      String operation,
+      String userId,
+      String deviceId,
+      Supplier<CompletableFuture<T>> call,
+      ToIntFunction<T> documents) {
+    FlightEvents.StoreCallEvent event = new FlightEvents.StoreCallEvent();
+    if (!event.isEnabled()) {
+      return call.get();
+    }
+    // Completes on another thread, outside the request
+    RequestContext context = RequestContext.current();
+    event.begin();
+    return call.get()
+        .whenComplete(
+            (result, failure) ->
+                commit(
+                    event,
+                    context,
+                    operation,
+                    userId,
+                    deviceId,
+                    documents,
+                    result,
+                    failure != null));
+  }
+
+  private <T> void commit(
+      FlightEvents.StoreCallEvent event,
+      RequestContext context,
+      String operation,
+      String userId,
+      String deviceId,
+      ToIntFunction<T> documents,
+      T result,
+      boolean failed) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.store = name;
+      event.operation = operation;
+      event.requestId = context != null ? context.requestId : null;
+      event.userId = userId;
+      event.deviceId = deviceId;
+      event.documents = failed ? 0 : documents.applyAsInt(result);
+      event.failed = failed;
+      event.commit();
+    }
+  }
+
+  private static int found(Object document) {
+    return document != null ? 1 : 0;
+  }
+}
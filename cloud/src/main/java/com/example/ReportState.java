@@ -16,28 +16,16 @@
 
 package com.example;
 
-import java.util.Map;
-
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import com.google.actions.api.smarthome.SmartHomeApp;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.home.graph.v1.HomeGraphApiServiceProto;
 import com.google.protobuf.Struct;
 import com.google.protobuf.Value;
-import com.google.protobuf.util.JsonFormat;
 
 /**
  * A singleton class to encapsulate state reporting behavior with changing ColorSetting state
  * values.
  */
 final class ReportState {
-  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
-
   private ReportState() {
   }
 
@@ -47,38 +35,34 @@ final class ReportState {
    * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
    * @param userId The agent user ID
    * @param deviceId The device ID
-   * @param states A Map of state keys and their values for the provided device ID
+   * @param states The states of the provided device ID
    */
   public static void makeRequest(
-      SmartHomeApp actionsApp, String userId, String deviceId, Map<String, Object> states) {
-    // Convert a Map of states to a JsonObject
-    JsonObject jsonStates = (JsonObject) JsonParser.parseString(new Gson().toJson(states));
-    ReportState.makeRequest(actionsApp, userId, deviceId, jsonStates);
+      SmartHomeApp actionsApp, String userId, String deviceId, DeviceState states) {
+    long start = System.nanoTime();
+    try {
+      HomeGraph.reportState(actionsApp, buildRequest(userId, deviceId, states));
+    } catch (RuntimeException e) {
+      Metrics.REPORT_STATE_FAILURES.increment();
+      throw e;
+    } finally {
+      Metrics.REPORT_STATE_LATENCY.recordSince(start);
+      RequestContext.phase("reportState", start);
+    }
   }
 
   /**
-   * Creates and completes a ReportStateAndNotification request
+   * Builds a ReportStateAndNotification request
    *
-   * @param actionsApp The SmartHomeApp instance to use to make the gRPC request
    * @param userId The agent user ID
    * @param deviceId The device ID
-   * @param states A JSON object of state keys and their values for the provided device ID
+   * @param states The states of the provided device ID
    */
-  public static void makeRequest(
-      SmartHomeApp actionsApp, String userId, String deviceId, JsonObject states) {
-    // Do state name replacement for ColorSetting trait
+  static HomeGraphApiServiceProto.ReportStateAndNotificationRequest buildRequest(
+      String userId, String deviceId, DeviceState states) {
+    // DeviceState uses the spectrumRGB spelling of the ColorSetting trait
     // See https://developers.google.com/assistant/smarthome/traits/colorsetting#device-states
-    JsonObject colorJson = states.getAsJsonObject("color");
-    if (colorJson != null && colorJson.has("spectrumRgb")) {
-      colorJson.add("spectrumRGB", colorJson.get("spectrumRgb"));
-      colorJson.remove("spectrumRgb");
-    }
-    Struct.Builder statesStruct = Struct.newBuilder();
-    try {
-      JsonFormat.parser().ignoringUnknownFields().merge(new Gson().toJson(states), statesStruct);
-    } catch (Exception e) {
-      LOGGER.error("FAILED TO BUILD");
-    }
+    Struct statesStruct = states.toStruct();
 
     HomeGraphApiServiceProto.ReportStateAndNotificationDevice.Builder deviceBuilder =
         HomeGraphApiServiceProto.ReportStateAndNotificationDevice.newBuilder()
@@ -86,15 +70,12 @@ final class ReportState {
                 Struct.newBuilder()
                     .putFields(deviceId, Value.newBuilder().setStructValue(statesStruct).build()));
 
-    HomeGraphApiServiceProto.ReportStateAndNotificationRequest request =
-        HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
-            .setRequestId(String.valueOf(Math.random()))
-            .setAgentUserId(userId) // our single user's id
-            .setPayload(
-                HomeGraphApiServiceProto.StateAndNotificationPayload.newBuilder()
-                    .setDevices(deviceBuilder))
-            .build();
-
-    actionsApp.reportState(request);
+    return HomeGraphApiServiceProto.ReportStateAndNotificationRequest.newBuilder()
+        .setRequestId(String.valueOf(Math.random()))
+        .setAgentUserId(userId) // our single user's id
+        .setPayload(
+            HomeGraphApiServiceProto.StateAndNotificationPayload.newBuilder()
+                .setDevices(deviceBuilder))
+        .build();
   }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Times the phases of the fulfillment request handled by the current thread.
+ *
+ * <p>A context is opened for each intent by {@link MySmartHomeApp} and is found by the code the
+ * request runs through with {@link #current}, so nothing has to be passed along. Code that does
+ * work worth measuring reports it with {@link #phase}, which does nothing outside a request.
+ * Phases of the same name are added up. Closing the context records the latency of the intent in
+ * {@link Metrics}, and requests that took at least {@code smarthome.slowlog.thresholdMs}
+ * milliseconds go to the {@link SlowRequestLog}. While Flight Recorder records them, each request
+ * is also a {@link FlightEvents.IntentEvent} naming the devices and commands reported with {@link
+ * #target}.
+ *
+ * <p>Work handed to other threads, such as MQTT publishing, is only timed up to the hand-off.
+ * Asynchronous requests instead {@link #detach} the context from the thread that started them,
+ * run their continuations {@link #within} it, and {@link #end} it when they complete.
+ */
+final class RequestContext implements AutoCloseable {
+  private static final ThreadLocal<RequestContext> CURRENT = new ThreadLocal<>();
+  private static final long SLOW_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("smarthome.slowlog.thresholdMs", 500L));
+
+  final Metrics.Intent intent;
+  final String requestId;
+  final long startMillis = System.currentTimeMillis();
+  private final long startNanos = System.nanoTime();
+  /** The context this one replaced on its thread. */
+  private final RequestContext previous;
+  private String userId;
+  /** The Flight Recorder event of the request, or null if it is not recorded. */
+  private final Object flightEvent = FlightEvents.beginIntent();
+  // Only collected for the flight event
+  private List<String> deviceIds = Collections.emptyList();
+  private List<String> commands = Collections.emptyList();
+
+  private String[] phases = new String[8];
+  private long[] phaseNanos = new long[8];
+  private int[] phaseCounts = new int[8];
+  private int phaseCount;
+
+  private RequestContext(Metrics.Intent intent, String requestId, RequestContext previous) {
+    this.intent = intent;
+    this.requestId = requestId;
+    this.previous = previous;
+  }
+
+  /** Opens a context for a request on the current thread, to be closed when it is handled. */
+  static RequestContext start(Metrics.Intent intent, String requestId) {
+    RequestContext context = new RequestContext(intent, requestId, CURRENT.get());
+    CURRENT.set(context);
+    return context;
+  }
+
+  /** Returns the context of the request the current thread is handling, or null if none. */
+  static RequestContext current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Adds the time since {@code startNanos}, a {@link System#nanoTime} reading, to a phase of the
+   * current request, if there is one.
+   */
+  static void phase(String name, long startNanos) {
+    phase(CURRENT.get(), name, startNanos);
+  }
+
+  /**
+   * Adds the time since {@code startNanos} to a phase of a request, for work that completes on
+   * another thread. Does nothing if the context is null.
+   */
+  static void phase(RequestContext context, String name, long startNanos) {
+    if (context != null) {
+      context.add(name, System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Runs a continuation of a request with its context as the current one, so that the code it
+   * runs through finds it. Runs it as it is if the context is null.
+   */
+  static <T> T within(RequestContext context, Supplier<T> continuation) {
+    RequestContext replaced = CURRENT.get();
+    if (context == null || context == replaced) {
+      return continuation.get();
+    }
+    CURRENT.set(context);
+    try {
+      return continuation.get();
+    } finally {
+      if (replaced != null) {
+        CURRENT.set(replaced);
+      } else {
+        CURRENT.remove();
+      }
+    }
+  }
+
+  /** Records the user the current request is for, once it is known. */
+  static void setUserId(String userId) {
+    setUserId(CURRENT.get(), userId);
+  }
+
+  /** Records the user of a request, if the context is not null. */
+  static void setUserId(RequestContext context, String userId) {
+    if (context != null) {
+      context.userId = userId;
+    }
+  }
+
+  /**
+   * Records a device the current request is for, and the command it executes, if any. Does
+   * nothing unless the request is recorded by Flight Recorder.
+   */
+  static void target(String deviceId, String command) {
+    RequestContext context = CURRENT.get();
+    if (context == null || context.flightEvent == null) {
+      return;
+    }
+    if (context.deviceIds.isEmpty()) {
+      context.deviceIds = new ArrayList<>();
+    }
+    context.deviceIds.add(deviceId);
+    if (command != null) {
+      if (context.commands.isEmpty()) {
+        context.commands = new ArrayList<>();
+      }
+      context.commands.add(command);
+    }
+  }
+
+  String userId() {
+    return userId;
+  }
+
+  /** Returns the nanoseconds since the request started. */
+  long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  int phaseCount() {
+    return phaseCount;
+  }
+
+  String phaseName(int phase) {
+    return phases[phase];
+  }
+
+  long phaseNanos(int phase) {
+    return phaseNanos[phase];
+  }
+
+  /** Returns how many times a phase was reported. */
+  int phaseCalls(int phase) {
+    return phaseCounts[phase];
+  }
+
+  @Override
+  public void close() {
+    detach();
+    end();
+  }
+
+  /**
+   * Restores the context this one replaced on the thread that started it, leaving the request
+   * open until {@link #end}.
+   */
+  void detach() {
+    if (previous != null) {
+      CURRENT.set(previous);
+    } else {
+      CURRENT.remove();
+    }
+  }
+
+  /** Records the request as handled. Called once, on any thread. */
+  void end() {
+    long totalNanos = elapsedNanos();
+    Metrics.INTENT_LATENCY.recordNanos(intent.name(), totalNanos);
+    if (totalNanos >= SLOW_NANOS) {
+      SlowRequestLog.getInstance().add(this, totalNanos);
+    }
+    FlightEvents.commitIntent(flightEvent, this, deviceIds, commands);
+  }
+
+  private void add(String name, long nanos) {
+    for (int i = 0; i < phaseCount; i++) {
+      if (phases[i].equals(name)) {
+        phaseNanos[i] += nanos;
+        phaseCounts[i]++;
+        return;
+      }
+    }
+    if (phaseCount == phases.length) {
+      phases = Arrays.copyOf(phases, phaseCount * 2);
+      phaseNanos = Arrays.copyOf(phaseNanos, phaseCount * 2);
+      phaseCounts = Arrays.copyOf(phaseCounts, phaseCount * 2);
+    }
+    phases[phaseCount] = name;
+    phaseNanos[phaseCount] = nanos;
+    phaseCounts[phaseCount] = 1;
+    phaseCount++;
+  }
+}
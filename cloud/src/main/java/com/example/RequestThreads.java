@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the blocking work of fulfillment requests on the threads selected by the {@code
+ * smarthome.threads} system property.
+ *
+ * <p>With {@code platform}, the default, requests are composed on the asynchronous API of {@link
+ * MyDataStore} and complete on the threads of the storage, and what still blocks, such as calls
+ * to HomeGraph, is handed to the common pool. With {@code virtual}, which needs a Java 21 runtime,
+ * each request and each hand-off runs on a virtual thread of its own, so that waiting holds no
+ * platform thread at all.
+ */
+final class RequestThreads {
+  /** Starts a virtual thread per task, or is null with platform threads. */
+  private static final ExecutorService VIRTUAL = fromSystemProperties();
+
+  private RequestThreads() {}
+
+  private static ExecutorService fromSystemProperties() {
+    String threads = System.getProperty("smarthome.threads", "platform");
+    switch (threads) {
+      case "platform":
+        return null;
+      case "virtual":
+        try {
+          // Looked up by name, so that the classes still build and run on Java 8
+          return (ExecutorService)
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+          throw new IllegalStateException("smarthome.threads=virtual needs Java 21", e);
+        }
+      default:
+        throw new IllegalArgumentException("unknown smarthome.threads " + threads);
+    }
+  }
+
+  /** Returns whether requests run on virtual threads. */
+  static boolean isVirtual() {
+    return VIRTUAL != null;
+  }
+
+  /** Runs a request on a virtual thread of its own; only for when {@link #isVirtual}. */
+  static void execute(Runnable request) {
+    VIRTUAL.execute(request);
+  }
+
+  /**
+   * Runs blocking work off the thread of an asynchronous request, on a virtual thread of its own
+   * or on the common pool, completing the returned future when it is done.
+   */
+  static CompletableFuture<Void> handOff(Runnable work) {
+    return VIRTUAL != null
+        ? CompletableFuture.runAsync(work, VIRTUAL)
+        : CompletableFuture.runAsync(work);
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+
+/**
+ * A command that runs on devices when a state of another device meets a condition, such as closing
+ * the curtains when the thermostat reports more than 28 degrees.
+ *
+ * <p>Rules are kept in the {@code rules} field of the device whose state they watch, keyed by rule
+ * ID, along with a {@code hasRules} field that is true if there is any. Each rule is a map with
+ * {@code state}, the key of the state it watches; a condition, which is one of {@code above} or
+ * {@code below}, a number the state must be strictly above or below, or {@code equals}, a value it
+ * must equal; an optional {@code hysteresis}, how far back past the threshold the state must go
+ * before the rule runs again; an optional {@code debounceMs}, how long the condition must hold
+ * before the rule runs; and {@code deviceIds}, the devices of the same user to run the {@code
+ * command} and its {@code params} on.
+ */
+final class Rule {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** The device document field holding the rules that watch the device. */
+  static final String FIELD = "rules";
+  /** The device document field that is true if rules watch the device. */
+  static final String WATCHED = "hasRules";
+
+  /** Rule IDs end up in field paths, so they may not have dots. */
+  private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+  final String id;
+  /** The key of the state the rule watches. */
+  final String state;
+  final List<String> deviceIds;
+  final String command;
+  final Map<String, Object> params;
+  final long debounceMillis;
+  /** Exactly one of these is set. */
+  private final Double above;
+  private final Double below;
+  private final Object equals;
+  private final double hysteresis;
+  /** The definition the rule was parsed from. */
+  private final Map<String, Object> fields;
+  /** The execution of the command, created on first use. */
+  private ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+
+  @SuppressWarnings("unchecked")
+  private Rule(String id, Map<String, Object> fields) {
+    this.id = id;
+    this.fields = fields;
+    state = string(fields, "state");
+    command = string(fields, "command");
+    if (state == null || command == null) {
+      throw new IllegalArgumentException("rule " + id + " needs a state and a command");
+    }
+    Object values = fields.get("params");
+    params = values instanceof Map ? (Map<String, Object>) values : null;
+    Object targets = fields.get("deviceIds");
+    if (!(targets instanceof List) || ((List<?>) targets).isEmpty()) {
+      throw new IllegalArgumentException("rule " + id + " has no deviceIds");
+    }
+    List<String> ids = new ArrayList<>();
+    for (Object target : (List<?>) targets) {
+      if (!(target instanceof String)) {
+        throw new IllegalArgumentException("rule " + id + " has a device ID that is not a string");
+      }
+      ids.add((String) target);
+    }
+    deviceIds = Collections.unmodifiableList(ids);
+    above = number(fields, "above");
+    below = number(fields, "below");
+    equals = fields.get("equals");
+    if ((above != null ? 1 : 0) + (below != null ? 1 : 0) + (equals != null ? 1 : 0) != 1) {
+      throw new IllegalArgumentException("rule " + id + " needs one of above, below or equals");
+    }
+    Double margin = number(fields, "hysteresis");
+    hysteresis = margin != null ? margin : 0;
+    Double debounce = number(fields, "debounceMs");
+    debounceMillis = debounce != null ? debounce.longValue() : 0;
+    if (hysteresis < 0 || debounceMillis < 0) {
+      throw new IllegalArgumentException("rule " + id + " has a negative hysteresis or debounce");
+    }
+  }
+
+  /** Returns whether another rule has the same ID and definition as this one. */
+  boolean sameAs(Rule other) {
+    return id.equals(other.id) && DeviceShadow.same(fields, other.fields);
+  }
+
+  /** Parses one rule, throwing IllegalArgumentException if it is malformed. */
+  static Rule parse(String id, Map<String, Object> fields) {
+    if (id == null || !ID.matcher(id).matches()) {
+      throw new IllegalArgumentException("bad rule ID " + id);
+    }
+    return new Rule(id, fields);
+  }
+
+  /** Returns the rules of a device document, leaving out and logging malformed ones. */
+  @SuppressWarnings("unchecked")
+  static List<Rule> of(Map<String, Object> document) {
+    Object rules = document != null ? document.get(FIELD) : null;
+    if (!(rules instanceof Map)) {
+      return Collections.emptyList();
+    }
+    List<Rule> parsed = new ArrayList<>();
+    for (Map.Entry<String, Object> rule : ((Map<String, Object>) rules).entrySet()) {
+      if (!(rule.getValue() instanceof Map)) {
+        continue;
+      }
+      try {
+        parsed.add(parse(rule.getKey(), (Map<String, Object>) rule.getValue()));
+      } catch (IllegalArgumentException e) {
+        LOGGER.warn("ignoring rule " + rule.getKey() + ": " + e.getMessage());
+      }
+    }
+    return parsed;
+  }
+
+  /** Returns whether a value of the watched state meets the condition. */
+  boolean isMet(Object value) {
+    if (equals != null) {
+      return DeviceShadow.same(equals, value);
+    }
+    if (!(value instanceof Number)) {
+      return false;
+    }
+    double number = ((Number) value).doubleValue();
+    return above != null ? number > above : number < below;
+  }
+
+  /**
+   * Returns whether a value of the watched state is far enough past the threshold, by the
+   * hysteresis, for the rule to run again the next time the condition is met.
+   */
+  boolean isCleared(Object value) {
+    if (equals != null) {
+      return !DeviceShadow.same(equals, value);
+    }
+    if (!(value instanceof Number)) {
+      return false;
+    }
+    double number = ((Number) value).doubleValue();
+    return above != null ? number <= above - hysteresis : number >= below + hysteresis;
+  }
+
+  /** Returns the execution of the command, with its parameters. */
+  synchronized ExecuteRequest.Inputs.Payload.Commands.Execution execution() {
+    if (execution == null) {
+      execution = ExecutionPlanner.execution(command, params);
+    }
+    return execution;
+  }
+
+  private static String string(Map<String, Object> fields, String name) {
+    Object value = fields.get(name);
+    if (value != null && !(value instanceof String)) {
+      throw new IllegalArgumentException(name + " is not a string");
+    }
+    return (String) value;
+  }
+
+  private static Double number(Map<String, Object> fields, String name) {
+    Object value = fields.get(name);
+    if (value != null && !(value instanceof Number)) {
+      throw new IllegalArgumentException(name + " is not a number");
+    }
+    return value != null ? ((Number) value).doubleValue() : null;
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link Rule}s as the states of the devices they watch change, from the states reported
+ * through {@link SmartHomeUpdateServlet} or MQTT, without reading anything.
+ *
+ * <p>Rules are indexed by device and by the state they watch, so a change only evaluates the rules
+ * of the states it changes. A rule runs when its condition becomes met, and then not again until
+ * the state has gone back past the threshold by the hysteresis of the rule. A rule with a debounce
+ * only runs if its condition is still met when the debounce has passed; debounces are checked
+ * every {@code smarthome.rules.tickMs} milliseconds. The rules of one user that run together run
+ * as one batch of commands.
+ *
+ * <p>Rules and whether they ran are only kept in memory, so only one instance should run them,
+ * lest every instance run them on the same change: an instance runs none unless {@code
+ * smarthome.rules.enabled} is true. It sees the states devices report over MQTT, which every
+ * instance receives, and the changes made through it, so state updates should go to it too. It
+ * reloads the rules from the store every {@code smarthome.rules.reloadMs} milliseconds, which
+ * picks up rules changed through other instances. Instances are thread-safe.
+ */
+final class RuleEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** Runs the rules of one user whose conditions were met. */
+  interface Runner {
+    /** Called on the thread that reported the change or ticked; it should hand the rules over. */
+    void run(String userId, List<Rule> rules);
+  }
+
+  /** The rules watching one device, keyed by the state they watch. */
+  private static final class Watches {
+    // Guarded by this
+    final Map<String, List<Watch>> byState = new HashMap<>();
+  }
+
+  /** A rule watching the state of a device, with what it last saw of it. */
+  private static final class Watch {
+    final DeviceKey device;
+    final Rule rule;
+    final Watches owner;
+    // Guarded by owner
+    /** False after the rule ran, until the state has gone back past the threshold. */
+    boolean armed = true;
+    /** When the debounce of the met condition passes, or 0 if none is pending. */
+    long dueMillis;
+    boolean removed;
+
+    Watch(DeviceKey device, Rule rule, Watches owner) {
+      this.device = device;
+      this.rule = rule;
+      this.owner = owner;
+    }
+  }
+
+  /** A debounce to check, which is stale if the watch has another due time by then. */
+  private static final class Debounce {
+    final Watch watch;
+    final long dueMillis;
+
+    Debounce(Watch watch, long dueMillis) {
+      this.watch = watch;
+      this.dueMillis = dueMillis;
+    }
+  }
+
+  private final Runner runner;
+  private final Map<DeviceKey, Watches> devices = new ConcurrentHashMap<>();
+  // Guarded by itself
+  private final PriorityQueue<Debounce> debounces =
+      new PriorityQueue<>(Comparator.comparingLong((Debounce debounce) -> debounce.dueMillis));
+
+  RuleEngine(Runner runner) {
+    this.runner = runner;
+  }
+
+  /**
+   * Creates an engine that checks debounces on a daemon thread, or returns null if this instance
+   * does not run rules.
+   *
+   * @param reload called on that thread to reload the rules; it should hand the reload over
+   */
+  static RuleEngine fromSystemProperties(Runner runner, Runnable reload) {
+    if (!Boolean.getBoolean("smarthome.rules.enabled")) {
+      return null;
+    }
+    RuleEngine engine = new RuleEngine(runner);
+    long tickMillis = Long.getLong("smarthome.rules.tickMs", 1000L);
+    ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "rules");
+              thread.setDaemon(true);
+              return thread;
+            });
+    ticker.scheduleAtFixedRate(
+        () -> {
+          try {
+            engine.advance(System.currentTimeMillis());
+          } catch (RuntimeException e) {
+            // An exception would cancel the ticks
+            LOGGER.error("failed to run debounced rules", e);
+          }
+        },
+        tickMillis,
+        tickMillis,
+        TimeUnit.MILLISECONDS);
+    long reloadMillis = Long.getLong("smarthome.rules.reloadMs", TimeUnit.MINUTES.toMillis(1));
+    ticker.scheduleWithFixedDelay(reload, reloadMillis, reloadMillis, TimeUnit.MILLISECONDS);
+    return engine;
+  }
+
+  /**
+   * Sets the rules that watch a device, replacing the ones it had. If they are the same rules, it
+   * keeps whether they ran and their pending debounces.
+   */
+  void set(DeviceKey device, Collection<Rule> rules) {
+    Watches current = devices.get(device);
+    if (current != null && isWatching(current, rules)) {
+      return;
+    }
+    Watches watches = new Watches();
+    for (Rule rule : rules) {
+      watches.byState
+          .computeIfAbsent(rule.state, state -> new ArrayList<>())
+          .add(new Watch(device, rule, watches));
+    }
+    Watches previous = rules.isEmpty() ? devices.remove(device) : devices.put(device, watches);
+    int added = rules.size();
+    if (previous != null) {
+      synchronized (previous) {
+        for (List<Watch> watching : previous.byState.values()) {
+          for (Watch watch : watching) {
+            // Leaves pending debounces to be dropped
+            watch.removed = true;
+            added--;
+          }
+        }
+      }
+    }
+    Metrics.ACTIVE_RULES.add(added);
+  }
+
+  /** Sets the rules of every device, as loaded from the store; devices left out lose theirs. */
+  void setAll(Map<DeviceKey, List<Rule>> rules) {
+    for (DeviceKey device : new ArrayList<>(devices.keySet())) {
+      if (!rules.containsKey(device)) {
+        set(device, Collections.emptyList());
+      }
+    }
+    rules.forEach(this::set);
+  }
+
+  private static boolean isWatching(Watches watches, Collection<Rule> rules) {
+    Map<String, Rule> watched = new HashMap<>();
+    synchronized (watches) {
+      for (List<Watch> watching : watches.byState.values()) {
+        for (Watch watch : watching) {
+          watched.put(watch.rule.id, watch.rule);
+        }
+      }
+    }
+    if (watched.size() != rules.size()) {
+      return false;
+    }
+    for (Rule rule : rules) {
+      Rule same = watched.get(rule.id);
+      if (same == null || !same.sameAs(rule)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Evaluates the rules watching the changed states of a device, running those whose conditions
+   * became met.
+   *
+   * @param states the changed states keyed by state key; others are left out or unchanged
+   */
+  void onStates(DeviceKey device, Map<String, Object> states, long nowMillis) {
+    Watches watches = devices.get(device);
+    if (watches == null) {
+      return;
+    }
+    List<Rule> met = new ArrayList<>();
+    List<Debounce> debounced = new ArrayList<>();
+    int evaluated = 0;
+    synchronized (watches) {
+      for (Map.Entry<String, Object> state : states.entrySet()) {
+        List<Watch> watching = watches.byState.get(state.getKey());
+        if (watching == null) {
+          continue;
+        }
+        evaluated += watching.size();
+        for (Watch watch : watching) {
+          Object value = state.getValue();
+          if (!watch.rule.isMet(value)) {
+            // A pending debounce is broken
+            watch.dueMillis = 0;
+            if (!watch.armed && watch.rule.isCleared(value)) {
+              watch.armed = true;
+            }
+          } else if (watch.armed && watch.dueMillis == 0) {
+            if (watch.rule.debounceMillis == 0) {
+              watch.armed = false;
+              met.add(watch.rule);
+            } else {
+              watch.dueMillis = nowMillis + watch.rule.debounceMillis;
+              debounced.add(new Debounce(watch, watch.dueMillis));
+            }
+          }
+        }
+      }
+    }
+    if (evaluated > 0) {
+      Metrics.RULE_EVALUATIONS.add("", evaluated);
+    }
+    if (!debounced.isEmpty()) {
+      synchronized (debounces) {
+        debounces.addAll(debounced);
+      }
+    }
+    if (!met.isEmpty()) {
+      Metrics.RULES_TRIGGERED.add("", met.size());
+      runner.run(device.userId, met);
+    }
+  }
+
+  /** Runs the rules whose debounces passed by the given time, in one batch per user. */
+  void advance(long nowMillis) {
+    List<Debounce> due = new ArrayList<>();
+    synchronized (debounces) {
+      while (!debounces.isEmpty() && debounces.peek().dueMillis <= nowMillis) {
+        due.add(debounces.poll());
+      }
+    }
+    Map<String, List<Rule>> met = new LinkedHashMap<>();
+    for (Debounce debounce : due) {
+      Watch watch = debounce.watch;
+      synchronized (watch.owner) {
+        // The debounce may have been broken, or broken and restarted, since
+        if (watch.removed || watch.dueMillis != debounce.dueMillis) {
+          continue;
+        }
+        watch.dueMillis = 0;
+        watch.armed = false;
+      }
+      met.computeIfAbsent(watch.device.userId, userId -> new ArrayList<>()).add(watch.rule);
+    }
+    for (Map.Entry<String, List<Rule>> rules : met.entrySet()) {
+      Metrics.RULES_TRIGGERED.add("", rules.getValue().size());
+      runner.run(rules.getKey(), rules.getValue());
+    }
+  }
+}
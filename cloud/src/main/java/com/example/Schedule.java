@@ -0,0 +1,226 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+
+/**
+ * A command that a device runs on a schedule: every day at a time, on a cron expression, or at
+ * sunrise or sunset at a location, with an offset in minutes.
+ *
+ * <p>Schedules are kept in the {@code schedules} field of the device document, keyed by schedule
+ * ID, along with a {@code scheduled} field that is true if there is any, so that the scheduled
+ * devices can be found. Each schedule is a map with one of {@code at} ({@code "07:30"}), {@code
+ * cron} ({@code "30 7 * * 1-5"}) or {@code solar} ({@code "sunrise"} or {@code "sunset"}, with
+ * {@code latitude}, {@code longitude} and an optional {@code offsetMinutes}); an optional {@code
+ * timeZone}, UTC by default; and the {@code command} and its {@code params}, as in an EXECUTE
+ * request. When each schedule last ran is kept apart from it, in the {@code scheduleRuns} field
+ * keyed by schedule ID, so that it is forgotten when the schedules are replaced.
+ */
+final class Schedule {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** The device document field holding the schedules of the device. */
+  static final String FIELD = "schedules";
+  /** The device document field that is true if the device has schedules. */
+  static final String SCHEDULED = "scheduled";
+  /**
+   * The device document field holding when each schedule last ran, in milliseconds since the
+   * epoch, keyed by schedule ID.
+   */
+  static final String RUNS = "scheduleRuns";
+
+  /** Schedule IDs end up in field paths, so they may not have dots. */
+  private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+  /** How far ahead to look for a sunrise or sunset, which covers a polar night. */
+  private static final int MAX_SOLAR_DAYS = 370;
+  private static final int MAX_OFFSET_MINUTES = 12 * 60;
+
+  final String id;
+  final String command;
+  final Map<String, Object> params;
+  /** When the schedule last ran, in milliseconds since the epoch, or 0 if it never did. */
+  final long lastFiredMillis;
+  private final ZoneId zone;
+  /** Exactly one of these is set. */
+  private final LocalTime at;
+  private final CronExpression cron;
+  private final Boolean sunrise;
+  private final double latitude;
+  private final double longitude;
+  private final int offsetMinutes;
+  /** The execution of the command, created on first use. */
+  private ExecuteRequest.Inputs.Payload.Commands.Execution execution;
+
+  private Schedule(String id, Map<String, Object> fields, long lastFiredMillis) {
+    this.id = id;
+    this.lastFiredMillis = lastFiredMillis;
+    command = string(fields, "command");
+    if (command == null) {
+      throw new IllegalArgumentException("schedule " + id + " has no command");
+    }
+    params = fields.get("params") instanceof Map ? map(fields.get("params")) : null;
+    String timeZone = string(fields, "timeZone");
+    try {
+      zone = timeZone != null ? ZoneId.of(timeZone) : ZoneOffset.UTC;
+      String time = string(fields, "at");
+      at = time != null ? LocalTime.parse(time) : null;
+    } catch (DateTimeException e) {
+      throw new IllegalArgumentException("schedule " + id + ": " + e.getMessage(), e);
+    }
+    String expression = string(fields, "cron");
+    cron = expression != null ? CronExpression.parse(expression) : null;
+    String event = string(fields, "solar");
+    if (event != null && !event.equals("sunrise") && !event.equals("sunset")) {
+      throw new IllegalArgumentException("unknown solar event " + event);
+    }
+    sunrise = event != null ? event.equals("sunrise") : null;
+    latitude = number(fields, "latitude", sunrise != null, -90, 90);
+    longitude = number(fields, "longitude", sunrise != null, -180, 180);
+    offsetMinutes =
+        (int) number(fields, "offsetMinutes", false, -MAX_OFFSET_MINUTES, MAX_OFFSET_MINUTES);
+    int kinds = (at != null ? 1 : 0) + (cron != null ? 1 : 0) + (sunrise != null ? 1 : 0);
+    if (kinds != 1) {
+      throw new IllegalArgumentException("schedule " + id + " needs one of at, cron or solar");
+    }
+  }
+
+  /** Parses one schedule, throwing IllegalArgumentException if it is malformed. */
+  static Schedule parse(String id, Map<String, Object> fields) {
+    return parse(id, fields, 0);
+  }
+
+  private static Schedule parse(String id, Map<String, Object> fields, long lastFiredMillis) {
+    if (id == null || !ID.matcher(id).matches()) {
+      throw new IllegalArgumentException("bad schedule ID " + id);
+    }
+    return new Schedule(id, fields, lastFiredMillis);
+  }
+
+  /**
+   * Returns the schedules of a device document keyed by ID, leaving out and logging malformed
+   * ones.
+   */
+  static Map<String, Schedule> of(Map<String, Object> document) {
+    Object schedules = document != null ? document.get(FIELD) : null;
+    if (!(schedules instanceof Map)) {
+      return Collections.emptyMap();
+    }
+    Object runs = document.get(RUNS);
+    Map<String, Schedule> parsed = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> schedule : map(schedules).entrySet()) {
+      if (!(schedule.getValue() instanceof Map)) {
+        continue;
+      }
+      Object lastFired = runs instanceof Map ? map(runs).get(schedule.getKey()) : null;
+      try {
+        parsed.put(
+            schedule.getKey(),
+            parse(
+                schedule.getKey(),
+                map(schedule.getValue()),
+                lastFired instanceof Number ? ((Number) lastFired).longValue() : 0));
+      } catch (IllegalArgumentException e) {
+        LOGGER.warn("ignoring schedule " + schedule.getKey() + ": " + e.getMessage());
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Returns the first time after the given one that the schedule runs at, in milliseconds since
+   * the epoch, or -1 if it never runs again.
+   */
+  long nextAfter(long epochMillis) {
+    ZonedDateTime after = Instant.ofEpochMilli(epochMillis).atZone(zone);
+    if (at != null) {
+      ZonedDateTime next = ZonedDateTime.of(after.toLocalDate(), at, zone);
+      while (!next.isAfter(after)) {
+        next = ZonedDateTime.of(next.toLocalDate().plusDays(1), at, zone);
+      }
+      return next.toInstant().toEpochMilli();
+    }
+    if (cron != null) {
+      ZonedDateTime next = cron.nextAfter(after, zone);
+      return next != null ? next.toInstant().toEpochMilli() : -1;
+    }
+    // The offset may move the event of the day before past the given time
+    LocalDate date = after.toLocalDate().minusDays(1);
+    for (int day = 0; day < MAX_SOLAR_DAYS; day++, date = date.plusDays(1)) {
+      Instant event = SolarEvents.on(date, sunrise, latitude, longitude, zone);
+      if (event != null) {
+        long next = event.toEpochMilli() + offsetMinutes * 60_000L;
+        if (next > epochMillis) {
+          return next;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the execution of the command, with its parameters. */
+  synchronized ExecuteRequest.Inputs.Payload.Commands.Execution execution() {
+    if (execution == null) {
+      execution = ExecutionPlanner.execution(command, params);
+    }
+    return execution;
+  }
+
+  private static String string(Map<String, Object> fields, String name) {
+    Object value = fields.get(name);
+    if (value != null && !(value instanceof String)) {
+      throw new IllegalArgumentException(name + " is not a string");
+    }
+    return (String) value;
+  }
+
+  private static double number(
+      Map<String, Object> fields, String name, boolean required, double min, double max) {
+    Object value = fields.get(name);
+    if (value == null && !required) {
+      return 0;
+    }
+    if (!(value instanceof Number)) {
+      throw new IllegalArgumentException(name + " is not a number");
+    }
+    double number = ((Number) value).doubleValue();
+    if (number < min || number > max) {
+      throw new IllegalArgumentException(name + " is not in " + min + " to " + max);
+    }
+    return number;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> map(Object value) {
+    return (Map<String, Object>) value;
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the {@link Schedule}s of devices: every schedule is kept in a priority queue by the next
+ * time it runs, so each tick only looks at the schedules that are due, however many there are.
+ * The schedules of one user that are due in the same tick run together, as one batch of commands.
+ *
+ * <p>When schedules are loaded after downtime, what happens to the runs that were missed while
+ * the fulfillment was down follows {@code smarthome.schedules.catchUp}: {@code latest}, the
+ * default, runs the latest missed run of each schedule once, if it was missed by at most {@code
+ * smarthome.schedules.catchUpMs} milliseconds; {@code skip} only runs schedules from now on.
+ *
+ * <p>The schedules are only kept in memory, so only one instance should run them: an instance
+ * runs none unless {@code smarthome.schedules.enabled} is true, and the instance it is set on
+ * should be the one their changes go to. Instances are thread-safe.
+ */
+final class ScheduleEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** What to do with the runs that were missed while schedules were not running. */
+  enum CatchUp {
+    SKIP,
+    LATEST
+  }
+
+  /** Runs the schedules of one user that are due. */
+  interface Runner {
+    /** Called on the thread that ticks; it should hand the firings over rather than block. */
+    void run(String userId, List<Firing> firings);
+  }
+
+  /** A run of a schedule of a device. */
+  static final class Firing {
+    final DeviceKey device;
+    final Schedule schedule;
+    /** When the schedule was due, in milliseconds since the epoch. */
+    final long dueMillis;
+
+    Firing(DeviceKey device, Schedule schedule, long dueMillis) {
+      this.device = device;
+      this.schedule = schedule;
+      this.dueMillis = dueMillis;
+    }
+  }
+
+  /** A schedule in the queue, which is cancelled rather than removed when it is replaced. */
+  private static final class Entry {
+    final DeviceKey device;
+    final Schedule schedule;
+    long nextMillis;
+    boolean cancelled;
+
+    Entry(DeviceKey device, Schedule schedule, long nextMillis) {
+      this.device = device;
+      this.schedule = schedule;
+      this.nextMillis = nextMillis;
+    }
+  }
+
+  /** Below this many cancelled entries, they are left for the ticks to drop. */
+  private static final int MIN_PURGE = 1024;
+
+  private final CatchUp catchUp;
+  private final long catchUpMillis;
+  private final Runner runner;
+  // Guarded by this
+  private final PriorityQueue<Entry> queue =
+      new PriorityQueue<>(Comparator.comparingLong((Entry entry) -> entry.nextMillis));
+  private final Map<DeviceKey, List<Entry>> devices = new HashMap<>();
+  private int cancelled;
+
+  ScheduleEngine(CatchUp catchUp, long catchUpMillis, Runner runner) {
+    this.catchUp = catchUp;
+    this.catchUpMillis = catchUpMillis;
+    this.runner = runner;
+  }
+
+  /**
+   * Creates an engine that ticks every {@code smarthome.schedules.tickMs} milliseconds on a
+   * daemon thread, or returns null if this instance does not run schedules.
+   */
+  static ScheduleEngine fromSystemProperties(Runner runner) {
+    if (!Boolean.getBoolean("smarthome.schedules.enabled")) {
+      return null;
+    }
+    ScheduleEngine engine =
+        new ScheduleEngine(
+            CatchUp.valueOf(
+                System.getProperty("smarthome.schedules.catchUp", "latest").toUpperCase()),
+            Long.getLong("smarthome.schedules.catchUpMs", TimeUnit.HOURS.toMillis(1)),
+            runner);
+    long tickMillis = Long.getLong("smarthome.schedules.tickMs", 1000L);
+    ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "schedules");
+              thread.setDaemon(true);
+              return thread;
+            });
+    ticker.scheduleAtFixedRate(
+        () -> {
+          try {
+            engine.fire(System.currentTimeMillis());
+          } catch (RuntimeException e) {
+            // An exception would cancel the ticks
+            LOGGER.error("failed to run schedules", e);
+          }
+        },
+        tickMillis,
+        tickMillis,
+        TimeUnit.MILLISECONDS);
+    return engine;
+  }
+
+  /**
+   * Sets the schedules of a device, replacing the ones it had. Schedules that last ran before
+   * now may catch up on a missed run, as set by the catch-up policy.
+   */
+  synchronized void set(DeviceKey device, Collection<Schedule> schedules, long nowMillis) {
+    List<Entry> previous = devices.remove(device);
+    if (previous != null) {
+      for (Entry entry : previous) {
+        entry.cancelled = true;
+      }
+      cancelled += previous.size();
+      Metrics.ACTIVE_SCHEDULES.add(-previous.size());
+    }
+    List<Entry> entries = new ArrayList<>(schedules.size());
+    for (Schedule schedule : schedules) {
+      long next = schedule.nextAfter(nowMillis);
+      if (catchUp == CatchUp.LATEST && schedule.lastFiredMillis > 0) {
+        long missed =
+            latestBetween(
+                schedule, Math.max(schedule.lastFiredMillis, nowMillis - catchUpMillis), nowMillis);
+        if (missed >= 0) {
+          // Overdue, so it runs on the next tick
+          next = missed;
+        }
+      }
+      if (next >= 0) {
+        Entry entry = new Entry(device, schedule, next);
+        entries.add(entry);
+        queue.add(entry);
+      }
+    }
+    if (!entries.isEmpty()) {
+      devices.put(device, entries);
+      Metrics.ACTIVE_SCHEDULES.add(entries.size());
+    }
+    if (cancelled >= MIN_PURGE && cancelled > queue.size() / 2) {
+      queue.removeIf(entry -> entry.cancelled);
+      cancelled = 0;
+    }
+  }
+
+  /** Returns the last run of a schedule after one time and no later than another, or -1. */
+  private static long latestBetween(Schedule schedule, long afterMillis, long untilMillis) {
+    long latest = -1;
+    for (long next = schedule.nextAfter(afterMillis);
+        next >= 0 && next <= untilMillis;
+        next = schedule.nextAfter(next)) {
+      latest = next;
+    }
+    return latest;
+  }
+
+  synchronized int size() {
+    return queue.size() - cancelled;
+  }
+
+  /** Runs every schedule due by the given time, in one batch per user. */
+  void fire(long nowMillis) {
+    Map<String, List<Firing>> due = new LinkedHashMap<>();
+    int fired = 0;
+    synchronized (this) {
+      while (!queue.isEmpty() && queue.peek().nextMillis <= nowMillis) {
+        Entry entry = queue.poll();
+        if (entry.cancelled) {
+          cancelled--;
+          continue;
+        }
+        due.computeIfAbsent(entry.device.userId, userId -> new ArrayList<>())
+            .add(new Firing(entry.device, entry.schedule, entry.nextMillis));
+        fired++;
+        // Runs missed while this was late are skipped rather than run one after another
+        long next = entry.schedule.nextAfter(Math.max(entry.nextMillis, nowMillis));
+        if (next >= 0) {
+          entry.nextMillis = next;
+          queue.add(entry);
+        } else {
+          List<Entry> entries = devices.get(entry.device);
+          entries.remove(entry);
+          if (entries.isEmpty()) {
+            devices.remove(entry.device);
+          }
+          Metrics.ACTIVE_SCHEDULES.decrement();
+        }
+      }
+    }
+    if (fired > 0) {
+      Metrics.SCHEDULES_FIRED.add("", fired);
+      due.forEach(runner::run);
+    }
+  }
+}
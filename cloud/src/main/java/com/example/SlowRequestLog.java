@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The most recent slow requests with the time each of their phases took, kept in a ring buffer of
+ * {@code smarthome.slowlog.capacity} entries. Adding an entry overwrites the oldest one and takes
+ * no lock.
+ */
+final class SlowRequestLog {
+  private static final SlowRequestLog INSTANCE =
+      new SlowRequestLog(Integer.getInteger("smarthome.slowlog.capacity", 128));
+
+  /** One slow request. Immutable. */
+  static final class Entry {
+    final long timestampMillis;
+    final Metrics.Intent intent;
+    final String requestId;
+    final String userId;
+    final long totalNanos;
+    final String[] phases;
+    final long[] phaseNanos;
+    final int[] phaseCalls;
+
+    Entry(RequestContext context, long totalNanos) {
+      this.timestampMillis = context.startMillis;
+      this.intent = context.intent;
+      this.requestId = context.requestId;
+      this.userId = context.userId();
+      this.totalNanos = totalNanos;
+      int count = context.phaseCount();
+      phases = new String[count];
+      phaseNanos = new long[count];
+      phaseCalls = new int[count];
+      for (int i = 0; i < count; i++) {
+        phases[i] = context.phaseName(i);
+        phaseNanos[i] = context.phaseNanos(i);
+        phaseCalls[i] = context.phaseCalls(i);
+      }
+    }
+
+    /** Returns the time not covered by any phase. */
+    long unattributedNanos() {
+      long attributed = 0;
+      for (long nanos : phaseNanos) {
+        attributed += nanos;
+      }
+      return Math.max(0, totalNanos - attributed);
+    }
+
+    JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("time", Instant.ofEpochMilli(timestampMillis).toString());
+      json.addProperty("intent", intent.name());
+      json.addProperty("requestId", requestId);
+      json.addProperty("userId", userId);
+      json.addProperty("totalMs", millis(totalNanos));
+      JsonArray phasesJson = new JsonArray();
+      for (int i = 0; i < phases.length; i++) {
+        JsonObject phase = new JsonObject();
+        phase.addProperty("name", phases[i]);
+        phase.addProperty("calls", phaseCalls[i]);
+        phase.addProperty("ms", millis(phaseNanos[i]));
+        phasesJson.add(phase);
+      }
+      json.add("phases", phasesJson);
+      json.addProperty("unattributedMs", millis(unattributedNanos()));
+      return json;
+    }
+
+    private static double millis(long nanos) {
+      // Microsecond precision is plenty for a log
+      return Math.round(nanos / 1e3) / 1e3;
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> entries;
+  /** The number of entries ever added. */
+  private final AtomicLong added = new AtomicLong();
+
+  SlowRequestLog(int capacity) {
+    entries = new AtomicReferenceArray<>(capacity);
+  }
+
+  static SlowRequestLog getInstance() {
+    return INSTANCE;
+  }
+
+  void add(RequestContext context, long totalNanos) {
+    Entry entry = new Entry(context, totalNanos);
+    entries.set((int) (added.getAndIncrement() % entries.length()), entry);
+  }
+
+  /**
+   * Returns up to {@code limit} of the latest entries, newest first.
+   *
+   * @param intent only entries of this intent, or null for all
+   */
+  List<Entry> recent(int limit, Metrics.Intent intent) {
+    List<Entry> recent = new ArrayList<>();
+    long last = added.get();
+    for (long i = last - 1; i >= 0 && i >= last - entries.length() && recent.size() < limit; i--) {
+      Entry entry = entries.get((int) (i % entries.length()));
+      // A slot may already hold a newer entry than the one counted; skip duplicates
+      if (entry != null
+          && (intent == null || entry.intent == intent)
+          && !recent.contains(entry)) {
+        recent.add(entry);
+      }
+    }
+    recent.sort(Comparator.comparingLong((Entry entry) -> entry.timestampMillis).reversed());
+    return recent;
+  }
+}
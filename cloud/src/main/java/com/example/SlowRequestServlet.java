@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Serves the {@link SlowRequestLog} as JSON, newest first. Accepts {@code limit}, 50 by default,
+ * and {@code intent}, such as EXECUTE, to narrow the entries.
+ */
+@WebServlet(name = "slowlog", urlPatterns = "/slowlog")
+public class SlowRequestServlet extends HttpServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    int limit;
+    Metrics.Intent intent;
+    try {
+      String limitParam = req.getParameter("limit");
+      limit = limitParam != null ? Integer.parseInt(limitParam) : 50;
+      String intentParam = req.getParameter("intent");
+      intent = intentParam != null ? Metrics.Intent.valueOf(intentParam.toUpperCase()) : null;
+    } catch (IllegalArgumentException e) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    JsonArray requests = new JsonArray();
+    for (SlowRequestLog.Entry entry : SlowRequestLog.getInstance().recent(limit, intent)) {
+      requests.add(entry.toJson());
+    }
+    JsonObject json = new JsonObject();
+    json.add("requests", requests);
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setContentType("application/json");
+    res.getWriter().write(json.toString());
+  }
+}
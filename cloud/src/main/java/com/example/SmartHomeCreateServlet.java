@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -38,9 +39,10 @@ import com.google.gson.Gson;
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
  */
-@WebServlet(name = "smarthomeCreate", urlPatterns = "/smarthome/create")
+@WebServlet(name = "smarthomeCreate", urlPatterns = "/smarthome/create", asyncSupported = true)
 public class SmartHomeCreateServlet extends HttpServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final PayloadLog PAYLOADS = PayloadLog.forEndpoint("create", 1);
   private static MyDataStore database = MyDataStore.getInstance();
 
   // Setup creds for requestSync
@@ -59,33 +61,49 @@ public class SmartHomeCreateServlet extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
     String body = req.getReader().lines().collect(Collectors.joining());
-    LOGGER.info("doPost, body = {}", body);
+    if (PAYLOADS.sample()) {
+      PAYLOADS.log("request", body);
+    }
     Map<String, Object> device = new Gson().fromJson(body, HashMap.class);
 
     String userId = (String) device.get("userId");
     Map<String, Object> deviceData = (Map<String, Object>) device.get("data");
 
-    try {
-      database.addDevice(userId, deviceData);
-    } catch (Exception e) {
-      LOGGER.error("adding device failed: {}", e);
-      res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-      res.setHeader("Access-Control-Allow-Origin", "*");
-      res.setContentType("text/plain");
-      res.getWriter().println("ERROR");
-      return;
-    }
+    // Responds from the thread that completes the request, handing the container thread back
+    AsyncContext async = req.startAsync();
+    async.setTimeout(0);
+    Futures.begin(() -> database.addDeviceAsync(userId, deviceData))
+        .thenCompose(added -> RequestThreads.handOff(() -> requestSync(userId)))
+        .whenComplete(
+            (synced, failure) -> {
+              try {
+                if (failure != null) {
+                  LOGGER.error("adding device failed: {}", Futures.unwrap(failure));
+                  respond(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "ERROR");
+                } else {
+                  respond(res, HttpServletResponse.SC_OK, "OK");
+                }
+              } catch (IOException e) {
+                LOGGER.error("failed to respond: {}", e);
+              } finally {
+                async.complete();
+              }
+            });
+  }
 
+  private void requestSync(String userId) {
     try {
-      actionsApp.requestSync(userId);
+      HomeGraph.requestSync(actionsApp, userId);
     } catch (Exception e) {
       LOGGER.error("request sync failed: {}", e);
     }
+  }
 
-    res.setStatus(HttpServletResponse.SC_OK);
+  private static void respond(HttpServletResponse res, int status, String body) throws IOException {
+    res.setStatus(status);
     res.setHeader("Access-Control-Allow-Origin", "*");
     res.setContentType("text/plain");
-    res.getWriter().println("OK");
+    res.getWriter().println(body);
   }
 
   @Override
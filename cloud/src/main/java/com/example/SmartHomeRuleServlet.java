@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Replaces the rules that watch a device, given as the {@code rules} object of the request body
+ * keyed by rule ID. An empty or missing object removes them. See {@link Rule}.
+ */
+@WebServlet(name = "smarthomeRules", urlPatterns = "/smarthome/rules", asyncSupported = true)
+public class SmartHomeRuleServlet extends HttpServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final PayloadLog PAYLOADS = PayloadLog.forEndpoint("rules", 1);
+  private static MyDataStore database = MyDataStore.getInstance();
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String body = req.getReader().lines().collect(Collectors.joining());
+    if (PAYLOADS.sample()) {
+      PAYLOADS.log("request", body);
+    }
+    JsonObject bodyJson = new JsonParser().parse(body).getAsJsonObject();
+    String userId = bodyJson.get("userId").getAsString();
+    String deviceId = bodyJson.get("deviceId").getAsString();
+    JsonObject rules = bodyJson.getAsJsonObject("rules");
+    Map<String, Object> deviceRules =
+        rules != null
+            ? JsonDocuments.restoreIntegers(new Gson().fromJson(rules, HashMap.class))
+            : Collections.emptyMap();
+    // Responds from the thread that completes the request, handing the container thread back
+    AsyncContext async = req.startAsync();
+    async.setTimeout(0);
+    Futures.begin(() -> database.setRulesAsync(userId, deviceId, deviceRules))
+        .whenComplete(
+            (set, failure) -> {
+              try {
+                if (Futures.unwrap(failure) instanceof IllegalArgumentException) {
+                  respond(
+                      res,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      Futures.unwrap(failure).getMessage());
+                } else if (failure != null) {
+                  LOGGER.error("failed to set rules: {}", Futures.unwrap(failure));
+                  respond(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "ERROR");
+                } else {
+                  respond(res, HttpServletResponse.SC_OK, "OK");
+                }
+              } catch (IOException e) {
+                LOGGER.error("failed to respond: {}", e);
+              } finally {
+                async.complete();
+              }
+            });
+  }
+
+  private static void respond(HttpServletResponse res, int status, String body) throws IOException {
+    res.setStatus(status);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setContentType("text/plain");
+    res.getWriter().println(body);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType("text/plain");
+    response.getWriter().println("/smarthome/rules is a POST call");
+  }
+
+  @Override
+  protected void doOptions(HttpServletRequest req, HttpServletResponse res) {
+    // pre-flight request processing
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setHeader("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
+    res.setHeader("Access-Control-Allow-Headers", "X-Requested-With,Content-Type,Accept,Origin");
+  }
+}
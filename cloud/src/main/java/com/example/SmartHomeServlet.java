@@ -20,9 +20,11 @@ import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -32,7 +34,6 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.actions.api.smarthome.SmartHomeApp;
 import com.google.auth.oauth2.GoogleCredentials;
 
 /**
@@ -40,10 +41,11 @@ import com.google.auth.oauth2.GoogleCredentials;
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
  */
-@WebServlet(name = "smarthome", urlPatterns = "/smarthome")
+@WebServlet(name = "smarthome", urlPatterns = "/smarthome", asyncSupported = true)
 public class SmartHomeServlet extends HttpServlet {
   private static final Logger LOG = LoggerFactory.getLogger(MySmartHomeApp.class);
-  private final SmartHomeApp actionsApp = new MySmartHomeApp();
+  private static final PayloadLog PAYLOADS = PayloadLog.forEndpoint("smarthome", 0.01);
+  private final MySmartHomeApp actionsApp = new MySmartHomeApp();
 
   {
     try {
@@ -58,21 +60,90 @@ public class SmartHomeServlet extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res)
       throws IOException, ServletException {
+    if (!RequestThreads.isVirtual()) {
+      handleAsync(req, res);
+      return;
+    }
+    // Hands the container thread back while the request blocks on a virtual thread
+    AsyncContext async = req.startAsync();
+    // Like a request on a container thread, it is not timed out
+    async.setTimeout(0);
+    RequestThreads.execute(
+        () -> {
+          try {
+            handle(req, res);
+          } catch (ServletException e) {
+            // Already logged
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          } catch (IOException | RuntimeException e) {
+            LOG.error("failed to handle fulfillment request", e);
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          } finally {
+            async.complete();
+          }
+        });
+  }
+
+  /**
+   * Hands the container thread back at once, and responds from the thread that completes the
+   * request, usually one of the storage.
+   */
+  private void handleAsync(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String body = req.getReader().lines().collect(Collectors.joining());
+    boolean logPayloads = PAYLOADS.sample();
+    if (logPayloads) {
+      PAYLOADS.log("request", body);
+    }
+    AsyncContext async = req.startAsync();
+    // Like a request on a container thread, it is not timed out
+    async.setTimeout(0);
+    Map<String, String> headerMap = getHeaderMap(req);
+    CompletableFuture<String> response =
+        Futures.begin(() -> actionsApp.handleRequestAsync(body, headerMap));
+    response.whenComplete(
+        (json, failure) -> {
+          try {
+            if (failure != null) {
+              LOG.error("failed to handle fulfillment request", Futures.unwrap(failure));
+              res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } else {
+              respond(res, json, logPayloads);
+            }
+          } catch (IOException | RuntimeException e) {
+            LOG.error("failed to write fulfillment response", e);
+          } finally {
+            async.complete();
+          }
+        });
+  }
+
+  private void handle(HttpServletRequest req, HttpServletResponse res)
+      throws IOException, ServletException {
     String body = req.getReader().lines().collect(Collectors.joining());
-    LOG.info("doPost, body = {}", body);
+    boolean logPayloads = PAYLOADS.sample();
+    if (logPayloads) {
+      PAYLOADS.log("request", body);
+    }
     Map<String, String> headerMap = getHeaderMap(req);
     try {
-      String response = actionsApp.handleRequest(body, headerMap).get();
-      res.setStatus(HttpServletResponse.SC_OK);
-      res.setHeader("Access-Control-Allow-Origin", "*");
-      res.setContentType("application/json");
-      writeResponse(res, response);
+      respond(res, Futures.await(actionsApp.handleRequestAsync(body, headerMap)), logPayloads);
     } catch (ExecutionException | InterruptedException e) {
       LOG.error("failed to handle fulfillment request", e);
       throw new ServletException(e);
     }
   }
 
+  private void respond(HttpServletResponse res, String response, boolean logPayloads)
+      throws IOException {
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setContentType("application/json");
+    if (logPayloads) {
+      PAYLOADS.log("response", response);
+    }
+    writeResponse(res, response);
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
@@ -85,7 +156,6 @@ public class SmartHomeServlet extends HttpServlet {
   }
 
   private void writeResponse(HttpServletResponse res, String asJson) throws IOException {
-    System.out.println("response = " + asJson);
     res.getWriter().write(asJson);
     res.getWriter().flush();
   }
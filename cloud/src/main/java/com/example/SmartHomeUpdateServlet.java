@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -35,6 +36,7 @@ import org.slf4j.LoggerFactory;
 import com.google.actions.api.smarthome.SmartHomeApp;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -43,9 +45,10 @@ import com.google.gson.JsonParser;
  * handling in Google App
  * Engine](https://cloud.google.com/appengine/docs/standard/java/how-requests-are-handled).
  */
-@WebServlet(name = "smarthomeUpdate", urlPatterns = "/smarthome/update")
+@WebServlet(name = "smarthomeUpdate", urlPatterns = "/smarthome/update", asyncSupported = true)
 public class SmartHomeUpdateServlet extends HttpServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final PayloadLog PAYLOADS = PayloadLog.forEndpoint("update", 1);
   private static MyDataStore database = MyDataStore.getInstance();
   private final SmartHomeApp actionsApp = new MySmartHomeApp();
   //private String msg;
@@ -65,7 +68,9 @@ public class SmartHomeUpdateServlet extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
     String body = req.getReader().lines().collect(Collectors.joining());
-    LOGGER.info("doPost, body = {}", body);
+    if (PAYLOADS.sample()) {
+      PAYLOADS.log("request", body);
+    }
     JsonObject bodyJson = new JsonParser().parse(body).getAsJsonObject();
     String userId = bodyJson.get("userId").getAsString();
     String deviceId = bodyJson.get("deviceId").getAsString();
@@ -78,27 +83,59 @@ public class SmartHomeUpdateServlet extends HttpServlet {
     for (String k : deviceParamsKeys) {
       deviceParams.put(k, bodyJson.get(k).getAsString());
     }
-    try {
-      database.updateDevice(userId, deviceId, deviceStates, deviceParams);
-      if (deviceParams.containsKey("localDeviceId")) {
-        actionsApp.requestSync(userId);
-      }
-      if (states != null) {
-        ReportState.makeRequest(actionsApp, userId, deviceId, states);
-      }
-    } catch (Exception e) {
-      LOGGER.error("failed to update device: {}", e);
-      res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-      res.setHeader("Access-Control-Allow-Origin", "*");
-      res.setContentType("text/plain");
-      res.getWriter().println("ERROR");
+    // Clients that know when they observed the states send their version, see StateVersions
+    Long stateVersion = stateVersion(bodyJson.get("stateVersion"));
+    if (stateVersion == null && bodyJson.has("stateVersion")) {
+      respond(res, HttpServletResponse.SC_BAD_REQUEST, "invalid stateVersion");
       return;
     }
-
-    res.setStatus(HttpServletResponse.SC_OK);
-    res.setHeader("Access-Control-Allow-Origin", "*");
-    res.setContentType("text/plain");
-    res.getWriter().println("OK");
+    // Responds from the thread that completes the request, handing the container thread back
+    AsyncContext async = req.startAsync();
+    async.setTimeout(0);
+    Futures.begin(
+            () ->
+                stateVersion != null
+                    ? database.updateDeviceAsync(
+                        userId, deviceId, deviceStates, deviceParams, stateVersion)
+                    : database.updateDeviceAsync(userId, deviceId, deviceStates, deviceParams))
+        .thenCompose(
+            current ->
+                // HomeGraph calls block
+                RequestThreads.handOff(
+                        () -> {
+                          if (deviceParams.containsKey("localDeviceId")) {
+                            HomeGraph.requestSync(actionsApp, userId);
+                          }
+                          if (deviceStates != null && current) {
+                            ReportState.makeRequest(
+                                actionsApp, userId, deviceId, DeviceState.fromMap(deviceStates));
+                          }
+                        })
+                    .thenApply(reported -> current))
+        .whenComplete(
+            (current, failure) -> {
+              try {
+                if (Futures.unwrap(failure) instanceof IllegalArgumentException) {
+                  respond(
+                      res,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      Futures.unwrap(failure).getMessage());
+                } else if (failure != null) {
+                  LOGGER.error("failed to update device: {}", Futures.unwrap(failure));
+                  respond(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "ERROR");
+                } else {
+                  // Newer states were written meanwhile; the other fields were updated
+                  respond(
+                      res,
+                      current ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CONFLICT,
+                      current ? "OK" : "STALE");
+                }
+              } catch (IOException e) {
+                LOGGER.error("failed to respond: {}", e);
+              } finally {
+                async.complete();
+              }
+            });
     // --------- Mqtt implementation --------------
     //String msg = states.get("on").getAsString().equals("true") ? "on" : "off";
     /*msg = states.toString();
@@ -114,6 +151,27 @@ public class SmartHomeUpdateServlet extends HttpServlet {
     // ---------------------------------------------
   }
 
+  /** Returns the integer a client sent as a state version, or null if it is missing or not one. */
+  private static Long stateVersion(JsonElement version) {
+    if (version == null
+        || !version.isJsonPrimitive()
+        || !version.getAsJsonPrimitive().isNumber()) {
+      return null;
+    }
+    try {
+      return version.getAsBigDecimal().longValueExact();
+    } catch (ArithmeticException | NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static void respond(HttpServletResponse res, int status, String body) throws IOException {
+    res.setStatus(status);
+    res.setHeader("Access-Control-Allow-Origin", "*");
+    res.setContentType("text/plain");
+    res.getWriter().println(body);
+  }
+
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
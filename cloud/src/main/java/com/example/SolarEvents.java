@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Sunrise and sunset times, with the algorithm of the Almanac for Computers of the US Naval
+ * Observatory, which is within a couple of minutes of the published times away from the poles.
+ */
+final class SolarEvents {
+  /** The zenith of the sun at sunrise and sunset, allowing for refraction and its radius. */
+  private static final double ZENITH = 90.833;
+
+  private SolarEvents() {
+  }
+
+  /**
+   * Returns the time of sunrise or sunset on a local date at a location, or null if the sun does
+   * not rise or set that day.
+   */
+  static Instant on(
+      LocalDate date, boolean sunrise, double latitude, double longitude, ZoneId zone) {
+    double lngHour = longitude / 15;
+    double t = date.getDayOfYear() + ((sunrise ? 6 : 18) - lngHour) / 24;
+    double meanAnomaly = 0.9856 * t - 3.289;
+    double trueLongitude =
+        normalize(
+            meanAnomaly
+                + 1.916 * sin(meanAnomaly)
+                + 0.020 * sin(2 * meanAnomaly)
+                + 282.634,
+            360);
+    double rightAscension = normalize(Math.toDegrees(Math.atan(0.91764 * tan(trueLongitude))), 360);
+    // The right ascension is in the same quadrant as the true longitude
+    rightAscension +=
+        Math.floor(trueLongitude / 90) * 90 - Math.floor(rightAscension / 90) * 90;
+    rightAscension /= 15;
+    double sinDeclination = 0.39782 * sin(trueLongitude);
+    double cosDeclination = Math.cos(Math.asin(sinDeclination));
+    double cosHourAngle =
+        (cos(ZENITH) - sinDeclination * sin(latitude)) / (cosDeclination * cos(latitude));
+    if (cosHourAngle > 1 || cosHourAngle < -1) {
+      // Polar night or midnight sun
+      return null;
+    }
+    double hourAngle = Math.toDegrees(Math.acos(cosHourAngle));
+    if (sunrise) {
+      hourAngle = 360 - hourAngle;
+    }
+    double localMeanTime = hourAngle / 15 + rightAscension - 0.06571 * t - 6.622;
+    double universalHours = normalize(localMeanTime - lngHour, 24);
+    Instant event =
+        date.atStartOfDay(ZoneOffset.UTC)
+            .toInstant()
+            .plusMillis(Math.round(universalHours * 3_600_000));
+    // The hours are of a UTC day, which may not be the local one
+    LocalDate local = event.atZone(zone).toLocalDate();
+    return event.plusSeconds(86_400L * (date.toEpochDay() - local.toEpochDay()));
+  }
+
+  private static double normalize(double value, double range) {
+    double result = value % range;
+    return result < 0 ? result + range : result;
+  }
+
+  private static double sin(double degrees) {
+    return Math.sin(Math.toRadians(degrees));
+  }
+
+  private static double cos(double degrees) {
+    return Math.cos(Math.toRadians(degrees));
+  }
+
+  private static double tan(double degrees) {
+    return Math.tan(Math.toRadians(degrees));
+  }
+}
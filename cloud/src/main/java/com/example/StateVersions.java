@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Versions of device states, so that a delayed state update is dropped rather than reverting a
+ * newer one, without a Firestore transaction per write.
+ *
+ * <p>Every write of a device's {@code states} also sets its {@code stateVersion} field. Versions
+ * are hybrid logical clock readings: milliseconds since the epoch in the upper 48 bits and a
+ * counter in the lower 16. They follow the wall clock, never go backwards on one instance, and
+ * exceed every version this instance has read, so an update that saw a state is always newer
+ * than it. Updates of different instances less than their clock skew apart are ordered by their
+ * versions.
+ *
+ * <p>A write is checked against the version of the document it read, and against the last version
+ * this instance accepted for the device but may not have written yet, which orders the concurrent
+ * writes of one instance exactly. Writes of other instances between the read and the write are
+ * not seen; only a transaction would close that window.
+ *
+ * <p>Versions sent by clients are only observed if they are {@link #isPlausible plausible}: one
+ * far in the future would leave every later write of this instance stale.
+ */
+final class StateVersions {
+  /** The device document field holding the version of its states. */
+  static final String FIELD = "stateVersion";
+
+  private static final int COUNTER_BITS = 16;
+
+  private final int maxTracked;
+  private final long maxSkewMillis;
+  // Guarded by this
+  private long last;
+  /** The last version accepted for each device, until there are more than maxTracked. */
+  private final Map<DeviceKey, Long> accepted = new ConcurrentHashMap<>();
+
+  StateVersions(int maxTracked, long maxSkewMillis) {
+    this.maxTracked = maxTracked;
+    this.maxSkewMillis = maxSkewMillis;
+  }
+
+  static StateVersions fromSystemProperties() {
+    return new StateVersions(
+        Integer.getInteger("smarthome.stateVersions.maxTracked", 100_000),
+        Long.getLong("smarthome.stateVersions.maxSkewMs", 60_000));
+  }
+
+  /** Returns the version of the states in a device document, or 0 if they have none. */
+  static long of(Map<String, Object> document) {
+    Object version = document != null ? document.get(FIELD) : null;
+    return version instanceof Number ? ((Number) version).longValue() : 0;
+  }
+
+  /** Returns a new version, greater than every version returned or observed before. */
+  synchronized long next() {
+    last = Math.max(System.currentTimeMillis() << COUNTER_BITS, last + 1);
+    return last;
+  }
+
+  /**
+   * Returns whether a version could have been taken by a clock at most the allowed skew ahead of
+   * this instance's.
+   */
+  boolean isPlausible(long version) {
+    return version > 0
+        && (version >>> COUNTER_BITS) <= System.currentTimeMillis() + maxSkewMillis;
+  }
+
+  /**
+   * Makes later versions greater than one read from a document or sent by a client. Versions that
+   * are not {@link #isPlausible plausible} are ignored.
+   */
+  synchronized void observe(long version) {
+    if (isPlausible(version)) {
+      last = Math.max(last, version);
+    }
+  }
+
+  /**
+   * Accepts a blind write of the device's states, which does not depend on the states it
+   * replaces, if it is newer than both the stored states and any write accepted meanwhile.
+   *
+   * @param stored the version of the document as read before the write
+   * @param version the version taken when the write was issued
+   * @return false if the write is stale and must be dropped
+   */
+  boolean acceptNewer(DeviceKey device, long stored, long version) {
+    observe(stored);
+    // A version written before they were checked must not block the device's states forever
+    if (version <= stored && isPlausible(stored)) {
+      return false;
+    }
+    boolean[] newer = {false};
+    accepted.compute(
+        device,
+        (key, current) -> {
+          if (current != null && current >= version) {
+            return current;
+          }
+          newer[0] = true;
+          return version;
+        });
+    trim();
+    return newer[0];
+  }
+
+  /**
+   * Accepts a write computed from the stored states, such as an EXECUTE command, if no other
+   * write of the device was accepted since they were read.
+   *
+   * @param stored the version of the states the write was computed from
+   * @param version a version from {@link #next} taken after {@code stored} was observed
+   * @return false if the states changed meanwhile and the write must be computed again
+   */
+  boolean compareAndSet(DeviceKey device, long stored, long version) {
+    boolean[] set = {false};
+    accepted.compute(
+        device,
+        (key, current) -> {
+          if (current != null && current > stored) {
+            return current;
+          }
+          set[0] = true;
+          return version;
+        });
+    trim();
+    return set[0];
+  }
+
+  /** Forgets an accepted version whose write failed, so that it does not block later writes. */
+  void release(DeviceKey device, long version) {
+    accepted.remove(device, version);
+  }
+
+  private void trim() {
+    // Forgetting versions only leaves writes to be checked against the stored ones
+    if (accepted.size() > maxTracked) {
+      accepted.clear();
+    }
+  }
+}
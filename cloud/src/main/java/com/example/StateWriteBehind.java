@@ -0,0 +1,493 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.gax.rpc.NotFoundException;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Buffers device document updates and writes them to Firestore in the background.
+ *
+ * <p>Updates are flushed in WriteBatches once {@code smarthome.writeBehind.maxPending} documents
+ * are dirty or every {@code smarthome.writeBehind.flushMs} milliseconds. The updates of one call
+ * to {@link #update} are never split across batches, so they are committed together or not at
+ * all; within a batch they are coalesced per device document, so the last write to each field
+ * wins. Every acknowledged update is first appended to a local journal so that it survives a
+ * restart of the process; journal segments are deleted once their updates have been committed.
+ * Reads see pending updates through {@link #overlay}. Journaling and flushing run on threads of
+ * their own, so callers never wait for the disk or for Firestore.
+ *
+ * <p>Updates are acknowledged once journaled, before Firestore has them, so write-behind is off
+ * unless {@code smarthome.writeBehind.enabled} is set. Callers that report the outcome of a write,
+ * like EXECUTE, wait for its commit instead; they are told it failed once the first attempt fails,
+ * although the update stays journaled and is retried until it is committed. The journal is only as
+ * durable as {@code smarthome.writeBehind.journalDir}: the default, under {@code java.io.tmpdir},
+ * does not survive the replacement of an App Engine instance.
+ */
+final class StateWriteBehind {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  static final int MAX_BATCH_WRITES = 500;
+
+  /** Commits updates of device documents, all or none of them. */
+  interface Committer {
+    /**
+     * Commits the writes as one batch.
+     *
+     * @param writes the fields to update keyed by device document, then by field path
+     * @throws Exception if nothing was committed; with a {@link NotFoundException}, or an {@link
+     *     ExecutionException} caused by one, if a document does not exist
+     */
+    void commit(Map<DeviceKey, Map<String, Object>> writes) throws Exception;
+  }
+
+  private final Committer committer;
+  private final int maxPending;
+  // Appends and rotations are guarded by the journal, then this
+  private final Journal journal;
+  private final ScheduledExecutorService flusher =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "state-write-behind");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Appends to the journal, one update at a time in the order they were made. */
+  private final ExecutorService journaler =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "state-write-behind-journal");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final Object flushLock = new Object();
+
+  // Guarded by this
+  private List<Record> pending = new ArrayList<>();
+  /** The pending updates coalesced per device document, for {@link #overlay}. */
+  private Map<DeviceKey, Map<String, Object>> pendingFields = new LinkedHashMap<>();
+  private Map<DeviceKey, Map<String, Object>> inFlight = new LinkedHashMap<>();
+  private boolean flushScheduled;
+
+  StateWriteBehind(
+      Committer committer, Path journalDir, int maxPending, long flushMs, boolean fsync)
+      throws IOException {
+    this.committer = committer;
+    this.maxPending = maxPending;
+    this.journal = new Journal(journalDir, fsync);
+    journal.replay((userId, updates) -> addPending(new Record(userId, updates)));
+    if (!pending.isEmpty()) {
+      LOGGER.info(
+          "replayed unflushed writes for {} devices from the journal", pendingFields.size());
+    }
+    flusher.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+  }
+
+  /** Creates the write-behind layer from system properties, or returns null if it is disabled. */
+  static StateWriteBehind fromSystemProperties(Firestore database) {
+    if (!Boolean.parseBoolean(System.getProperty("smarthome.writeBehind.enabled", "false"))) {
+      return null;
+    }
+    Path journalDir =
+        Paths.get(
+            System.getProperty(
+                "smarthome.writeBehind.journalDir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "smarthome-journal").toString()));
+    try {
+      return new StateWriteBehind(
+          batches(database),
+          journalDir,
+          Integer.getInteger("smarthome.writeBehind.maxPending", 100),
+          Long.getLong("smarthome.writeBehind.flushMs", 200L),
+          Boolean.parseBoolean(System.getProperty("smarthome.writeBehind.fsync", "true")));
+    } catch (IOException e) {
+      LOGGER.error("failed to open the write-behind journal, writing through", e);
+      return null;
+    }
+  }
+
+  /**
+   * Journals and buffers updates of device documents of one user. The updates are journaled as a
+   * single record, so after a crash either all of them are replayed or none is.
+   *
+   * @param updates new values keyed by device ID and then by Firestore field path
+   * @param untilCommitted whether to wait for the updates to be committed to Firestore, rather
+   *     than for them to be durable locally and visible to {@link #overlay}
+   * @return fails with an {@link ExecutionException} if the updates could not be journaled, or,
+   *     when waiting for the commit, if the first attempt to commit them failed or they were
+   *     dropped because a device is missing
+   */
+  CompletableFuture<Void> update(
+      String userId, Map<String, Map<String, Object>> updates, boolean untilCommitted) {
+    Record record = new Record(userId, updates);
+    CompletableFuture<Void> journaled =
+        CompletableFuture.runAsync(() -> journal(record), journaler);
+    return untilCommitted ? journaled.thenCompose(appended -> record.committed) : journaled;
+  }
+
+  /**
+   * Commits all buffered updates on the flusher thread, including those still being journaled.
+   */
+  CompletableFuture<Void> flushAsync() {
+    // The journaler runs in order, so once it reaches this every earlier update is buffered
+    return CompletableFuture.runAsync(() -> {}, journaler).thenRunAsync(this::flush, flusher);
+  }
+
+  private void journal(Record record) {
+    boolean flushNow;
+    // Reads only wait for this, not for the disk
+    synchronized (journal) {
+      try {
+        journal.append(record.userId, record.updates);
+      } catch (IOException e) {
+        throw new CompletionException(new ExecutionException(e));
+      }
+      synchronized (this) {
+        addPending(record);
+        flushNow = pendingFields.size() >= maxPending && !flushScheduled;
+        if (flushNow) {
+          flushScheduled = true;
+        }
+      }
+    }
+    if (flushNow) {
+      flusher.execute(this::flush);
+    }
+  }
+
+  /** Returns the document data with all pending updates of the device applied. */
+  Map<String, Object> overlay(String userId, String deviceId, Map<String, Object> data) {
+    DeviceKey key = new DeviceKey(userId, deviceId);
+    Map<String, Object> flushing;
+    Map<String, Object> buffered;
+    synchronized (this) {
+      flushing = copyOrNull(inFlight.get(key));
+      buffered = copyOrNull(pendingFields.get(key));
+    }
+    return FieldPaths.apply(FieldPaths.apply(data, flushing), buffered);
+  }
+
+  /** Drops buffered updates of a device, for example because the device was deleted. */
+  synchronized void discard(String userId, String deviceId) {
+    pendingFields.remove(new DeviceKey(userId, deviceId));
+    for (Record record : pending) {
+      if (record.userId.equals(userId)) {
+        record.updates.remove(deviceId);
+      }
+    }
+  }
+
+  /** Commits all buffered updates. Runs on the flusher thread and once more at shutdown. */
+  void flush() {
+    synchronized (flushLock) {
+      List<Record> writes;
+      List<Path> segments;
+      // Every record of the rotated segments is in the writes
+      synchronized (journal) {
+        synchronized (this) {
+          flushScheduled = false;
+          if (pending.isEmpty()) {
+            return;
+          }
+          writes = pending;
+          inFlight = pendingFields;
+          pending = new ArrayList<>();
+          pendingFields = new LinkedHashMap<>();
+          try {
+            segments = journal.rotate();
+          } catch (IOException e) {
+            LOGGER.error("failed to rotate the write-behind journal", e);
+            segments = new ArrayList<>();
+          }
+        }
+      }
+
+      List<Record> failed = commit(writes);
+
+      synchronized (this) {
+        if (failed.isEmpty()) {
+          journal.delete(segments);
+        } else {
+          // Keep the journal and retry on the next flush; newer updates win over failed ones
+          List<Record> newer = pending;
+          pending = new ArrayList<>();
+          pendingFields = new LinkedHashMap<>();
+          failed.forEach(this::addPending);
+          newer.forEach(this::addPending);
+        }
+        inFlight = new LinkedHashMap<>();
+      }
+    }
+  }
+
+  /**
+   * Commits records in batches of up to MAX_BATCH_WRITES documents, never splitting a record.
+   *
+   * @return the records that failed and must be retried
+   */
+  private List<Record> commit(List<Record> records) {
+    List<Record> failed = new ArrayList<>();
+    List<Record> batch = new ArrayList<>();
+    int documents = 0;
+    for (Record record : records) {
+      if (!batch.isEmpty() && documents + record.updates.size() > MAX_BATCH_WRITES) {
+        commitBatch(batch, failed);
+        batch = new ArrayList<>();
+        documents = 0;
+      }
+      batch.add(record);
+      documents += record.updates.size();
+    }
+    commitBatch(batch, failed);
+    LOGGER.debug("write-behind flushed {} records", records.size());
+    return failed;
+  }
+
+  private void commitBatch(List<Record> records, List<Record> failed) {
+    Map<DeviceKey, Map<String, Object>> writes = new LinkedHashMap<>();
+    for (Record record : records) {
+      for (Map.Entry<String, Map<String, Object>> device : record.updates.entrySet()) {
+        merge(writes, new DeviceKey(record.userId, device.getKey()), device.getValue());
+      }
+    }
+    if (writes.isEmpty()) {
+      records.forEach(record -> record.committed.complete(null));
+      return;
+    }
+    try {
+      committer.commit(writes);
+      records.forEach(record -> record.committed.complete(null));
+    } catch (Exception e) {
+      Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+      if (records.size() > 1) {
+        // One missing document fails the whole batch, so isolate the failing records
+        LOGGER.warn("write-behind batch failed, retrying records one by one", e);
+        for (Record record : records) {
+          commitBatch(Collections.singletonList(record), failed);
+        }
+      } else if (cause instanceof NotFoundException) {
+        // Dropped as a whole, like a request that failed on the deleted device
+        LOGGER.warn(
+            "dropping buffered writes of user {} to a missing device", records.get(0).userId);
+        records.get(0).committed.completeExceptionally(new ExecutionException(cause));
+      } else {
+        LOGGER.error("failed to write devices of user " + records.get(0).userId, e);
+        // A caller waiting for the commit is not held up by an outage; the retries go on
+        records.get(0).committed.completeExceptionally(new ExecutionException(cause));
+        failed.addAll(records);
+      }
+    }
+  }
+
+  /** Returns a committer that writes each call as one Firestore WriteBatch. */
+  private static Committer batches(Firestore database) {
+    return writes -> {
+      WriteBatch batch = database.batch();
+      for (Map.Entry<DeviceKey, Map<String, Object>> write : writes.entrySet()) {
+        DeviceKey key = write.getKey();
+        DocumentReference document =
+            database
+                .collection("users")
+                .document(key.userId)
+                .collection("devices")
+                .document(key.deviceId);
+        batch.update(document, write.getValue());
+      }
+      Metrics.FIRESTORE_WRITES.add(Metrics.currentIntent(), writes.size());
+      batch.commit().get();
+    };
+  }
+
+  private void addPending(Record record) {
+    pending.add(record);
+    for (Map.Entry<String, Map<String, Object>> device : record.updates.entrySet()) {
+      merge(pendingFields, new DeviceKey(record.userId, device.getKey()), device.getValue());
+    }
+  }
+
+  private static void merge(
+      Map<DeviceKey, Map<String, Object>> writes, DeviceKey key, Map<String, Object> fields) {
+    Map<String, Object> coalesced = writes.computeIfAbsent(key, k -> new LinkedHashMap<>());
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      FieldPaths.merge(coalesced, field.getKey(), field.getValue());
+    }
+  }
+
+  private static Map<String, Object> copyOrNull(Map<String, Object> fields) {
+    return fields != null ? new LinkedHashMap<>(fields) : null;
+  }
+
+  /** The updates of one call to {@link #update}, journaled and committed as a unit. */
+  private static final class Record {
+    final String userId;
+    final Map<String, Map<String, Object>> updates;
+    final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+    Record(String userId, Map<String, Map<String, Object>> updates) {
+      this.userId = userId;
+      this.updates = new LinkedHashMap<>(updates);
+    }
+  }
+
+  /** An append-only log of acknowledged updates, split into segments at every flush. */
+  private static final class Journal {
+    private static final String PREFIX = "journal-";
+    private static final Gson GSON = new Gson();
+
+    private final Path dir;
+    private final boolean fsync;
+    private final List<Path> closed = new ArrayList<>();
+    private long sequence;
+    private Path current;
+    private FileChannel channel;
+
+    Journal(Path dir, boolean fsync) throws IOException {
+      this.dir = dir;
+      this.fsync = fsync;
+      Files.createDirectories(dir);
+    }
+
+    interface Replayer {
+      void accept(String userId, Map<String, Map<String, Object>> updates);
+    }
+
+    /** Replays all segments left by a previous run in order, then starts a new segment. */
+    void replay(Replayer replayer) throws IOException {
+      TreeMap<Long, Path> segments = new TreeMap<>();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*.log")) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          segments.put(
+              Long.parseLong(name.substring(PREFIX.length(), name.length() - 4)), file);
+        }
+      }
+      for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+        try (BufferedReader reader =
+            Files.newBufferedReader(segment.getValue(), StandardCharsets.UTF_8)) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+              continue;
+            }
+            try {
+              JsonObject record = JsonParser.parseString(line).getAsJsonObject();
+              String userId = record.get("u").getAsString();
+              Map<String, Map<String, Object>> updates =
+                  GSON.fromJson(
+                      record.get("w"),
+                      new TypeToken<LinkedHashMap<String, LinkedHashMap<String, Object>>>() {}
+                          .getType());
+              Map<String, Map<String, Object>> restored = new LinkedHashMap<>();
+              for (Map.Entry<String, Map<String, Object>> device : updates.entrySet()) {
+                restored.put(device.getKey(), JsonDocuments.restoreIntegers(device.getValue()));
+              }
+              replayer.accept(userId, restored);
+            } catch (RuntimeException e) {
+              // A torn last record means the update was never acknowledged
+              LOGGER.warn("skipping unreadable journal record in {}", segment.getValue());
+            }
+          }
+        }
+        closed.add(segment.getValue());
+        sequence = segment.getKey();
+      }
+      open();
+    }
+
+    void append(String userId, Map<String, Map<String, Object>> updates) throws IOException {
+      JsonObject record = new JsonObject();
+      record.addProperty("u", userId);
+      record.add("w", GSON.toJsonTree(updates));
+      ByteBuffer bytes = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      if (fsync) {
+        channel.force(false);
+      }
+    }
+
+    /**
+     * Closes the current segment and starts a new one.
+     *
+     * @return every closed segment, which may be deleted once its updates are committed
+     */
+    List<Path> rotate() throws IOException {
+      channel.close();
+      closed.add(current);
+      open();
+      return new ArrayList<>(closed);
+    }
+
+    void delete(List<Path> segments) {
+      for (Path segment : segments) {
+        try {
+          Files.deleteIfExists(segment);
+          closed.remove(segment);
+        } catch (IOException e) {
+          LOGGER.warn("failed to delete journal segment {}", segment);
+        }
+      }
+    }
+
+    private void open() throws IOException {
+      sequence++;
+      current = dir.resolve(PREFIX + sequence + ".log");
+      channel =
+          FileChannel.open(
+              current,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+    }
+  }
+}
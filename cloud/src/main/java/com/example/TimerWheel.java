@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel: timers keyed by an ID, each expiring at a wall clock time, with constant
+ * time scheduling and cancellation however many there are.
+ *
+ * <p>Time is divided into ticks of {@code smarthome.timers.tickMs} milliseconds, and a timer is
+ * kept in the slot of the tick it expires in, modulo {@code smarthome.timers.slots}. Each tick
+ * only looks at the timers of its slot, skipping those that expire a whole turn of the wheel or
+ * more later. The timers that expired in a tick are handed over together, so their effects can be
+ * batched. Timers expire at most one tick late, and never early.
+ *
+ * <p>Instances are thread-safe. The timers are only kept in memory.
+ */
+final class TimerWheel<K> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+
+  /** A scheduled timer. */
+  static final class Timer<K> {
+    final K key;
+    final long deadlineMillis;
+    private final long tick;
+    private Timer<K> previous;
+    private Timer<K> next;
+
+    private Timer(K key, long deadlineMillis, long tick) {
+      this.key = key;
+      this.deadlineMillis = deadlineMillis;
+      this.tick = tick;
+    }
+  }
+
+  private final long tickMillis;
+  private final int mask;
+  private final Consumer<List<Timer<K>>> onExpiry;
+  // Guarded by this
+  private final Timer<K>[] slots;
+  private final Map<K, Timer<K>> timers = new HashMap<>();
+  /** The first tick that has yet to be processed. */
+  private long nextTick;
+
+  /**
+   * @param slots the number of slots, rounded up to a power of two
+   * @param onExpiry called with the timers that expired in a tick, on the thread that advances
+   *     the wheel; it should hand them over rather than block
+   */
+  @SuppressWarnings("unchecked")
+  TimerWheel(int slots, long tickMillis, long nowMillis, Consumer<List<Timer<K>>> onExpiry) {
+    int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+    this.slots = (Timer<K>[]) new Timer<?>[size];
+    this.mask = size - 1;
+    this.tickMillis = tickMillis;
+    this.onExpiry = onExpiry;
+    this.nextTick = nowMillis / tickMillis;
+  }
+
+  /** Creates a wheel that advances itself on a daemon thread. */
+  static <K> TimerWheel<K> fromSystemProperties(Consumer<List<Timer<K>>> onExpiry) {
+    long tickMillis = Long.getLong("smarthome.timers.tickMs", 1000L);
+    TimerWheel<K> wheel =
+        new TimerWheel<>(
+            Integer.getInteger("smarthome.timers.slots", 4096),
+            tickMillis,
+            System.currentTimeMillis(),
+            onExpiry);
+    ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "timer-wheel");
+              thread.setDaemon(true);
+              return thread;
+            });
+    ticker.scheduleAtFixedRate(
+        () -> {
+          try {
+            wheel.advance(System.currentTimeMillis());
+          } catch (RuntimeException e) {
+            // An exception would cancel the ticks
+            LOGGER.error("failed to expire timers", e);
+          }
+        },
+        tickMillis,
+        tickMillis,
+        TimeUnit.MILLISECONDS);
+    return wheel;
+  }
+
+  /** Schedules a timer, replacing the timer with the same key. */
+  void schedule(K key, long deadlineMillis) {
+    synchronized (this) {
+      cancel(key);
+      // Rounding up keeps timers from expiring early, and overdue ones expire on the next tick
+      long tick = Math.max(nextTick, (deadlineMillis + tickMillis - 1) / tickMillis);
+      Timer<K> timer = new Timer<>(key, deadlineMillis, tick);
+      int slot = (int) (tick & mask);
+      timer.next = slots[slot];
+      if (timer.next != null) {
+        timer.next.previous = timer;
+      }
+      slots[slot] = timer;
+      timers.put(key, timer);
+    }
+    Metrics.ACTIVE_TIMERS.increment();
+  }
+
+  /** Schedules a timer unless one with the same key and deadline is scheduled already. */
+  void scheduleIfAbsent(K key, long deadlineMillis) {
+    synchronized (this) {
+      Timer<K> timer = timers.get(key);
+      if (timer != null && timer.deadlineMillis == deadlineMillis) {
+        return;
+      }
+      schedule(key, deadlineMillis);
+    }
+  }
+
+  /** Cancels the timer with a key, returning false if there is none. */
+  synchronized boolean cancel(K key) {
+    Timer<K> timer = timers.remove(key);
+    if (timer == null) {
+      return false;
+    }
+    unlink(timer);
+    Metrics.ACTIVE_TIMERS.decrement();
+    return true;
+  }
+
+  synchronized int size() {
+    return timers.size();
+  }
+
+  /** Expires the timers of every tick up to the given time. */
+  void advance(long nowMillis) {
+    long lastTick = nowMillis / tickMillis;
+    while (true) {
+      List<Timer<K>> expired = new ArrayList<>();
+      synchronized (this) {
+        if (nextTick > lastTick) {
+          return;
+        }
+        long tick = nextTick++;
+        Timer<K> timer = slots[(int) (tick & mask)];
+        while (timer != null) {
+          Timer<K> next = timer.next;
+          if (timer.tick <= tick) {
+            unlink(timer);
+            timers.remove(timer.key);
+            expired.add(timer);
+          }
+          timer = next;
+        }
+      }
+      if (!expired.isEmpty()) {
+        for (int i = 0; i < expired.size(); i++) {
+          Metrics.ACTIVE_TIMERS.decrement();
+        }
+        onExpiry.accept(expired);
+      }
+    }
+  }
+
+  // Guarded by this
+  private void unlink(Timer<K> timer) {
+    if (timer.previous != null) {
+      timer.previous.next = timer.next;
+    } else {
+      slots[(int) (timer.tick & mask)] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.previous = timer.previous;
+    }
+    timer.previous = null;
+    timer.next = null;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Issues and verifies HMAC-signed OAuth tokens that embed the agent user ID, so resolving an
+ * access token is a local signature check instead of a Firestore query.
+ *
+ * <p>A token has the form {@code <type>.<payload>.<signature>} where the payload is the URL-safe
+ * base64 encoding of {@code <expiresAtSec>:<tokenId>:<userId>} and the signature is an
+ * HMAC-SHA256 over {@code <type>.<payload>}. The signing key is read from the {@code
+ * TOKEN_SIGNING_KEY} environment variable (or the {@code smarthome.tokenKey} system property) as
+ * base64; every instance that serves the same users must share it, so startup fails without one.
+ * Setting {@code smarthome.tokenKey.ephemeral} instead signs with a random key of this instance,
+ * which only suits a single local instance.
+ */
+final class TokenService {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MySmartHomeApp.class);
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  static final char ACCESS_TOKEN = 'a';
+  static final char REFRESH_TOKEN = 'r';
+  static final char AUTHORIZATION_CODE = 'c';
+
+  static final long ACCESS_TOKEN_TTL_SEC = 86400;
+  static final long REFRESH_TOKEN_TTL_SEC = 180L * 86400;
+  static final long AUTHORIZATION_CODE_TTL_SEC = 600;
+
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final SecretKeySpec signingKey;
+  private final ThreadLocal<Mac> macs;
+
+  /** The verified contents of a token. */
+  static final class Claims {
+    final String userId;
+    final String tokenId;
+    final long expiresAtSec;
+
+    Claims(String userId, String tokenId, long expiresAtSec) {
+      this.userId = userId;
+      this.tokenId = tokenId;
+      this.expiresAtSec = expiresAtSec;
+    }
+  }
+
+  TokenService(byte[] key) {
+    signingKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+    // Mac instances are not thread-safe and costly to look up, so keep one per thread
+    macs =
+        ThreadLocal.withInitial(
+            () -> {
+              try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(signingKey);
+                return mac;
+              } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+  }
+
+  /** Loads the signing key when the service is first used, see {@link FakeTokenServlet}. */
+  private static final class Holder {
+    static final TokenService INSTANCE = new TokenService(loadSigningKey());
+  }
+
+  public static TokenService getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  /** Returns true if the token was minted by this service rather than being a legacy token. */
+  public static boolean isSigned(String token) {
+    return token != null && token.length() > 2 && token.charAt(1) == '.';
+  }
+
+  /** Returns a random identifier suitable for tracking refresh token rotation. */
+  public static String newTokenId() {
+    byte[] id = new byte[12];
+    RANDOM.nextBytes(id);
+    return ENCODER.encodeToString(id);
+  }
+
+  public String issueAccessToken(String userId) {
+    return issue(ACCESS_TOKEN, userId, "", ACCESS_TOKEN_TTL_SEC);
+  }
+
+  public String issueRefreshToken(String userId, String tokenId) {
+    return issue(REFRESH_TOKEN, userId, tokenId, REFRESH_TOKEN_TTL_SEC);
+  }
+
+  /**
+   * Issues an authorization code. The code ID must be recorded so that the code can be exchanged
+   * for tokens only once.
+   */
+  public String issueAuthorizationCode(String userId, String codeId) {
+    return issue(AUTHORIZATION_CODE, userId, codeId, AUTHORIZATION_CODE_TTL_SEC);
+  }
+
+  /**
+   * Verifies an access token.
+   *
+   * @return the agent user ID, or null if the token is malformed, forged or expired
+   */
+  public String verifyAccessToken(String token) {
+    Claims claims = verify(token, ACCESS_TOKEN);
+    return claims != null ? claims.userId : null;
+  }
+
+  /**
+   * Verifies the signature, type and expiry of a token.
+   *
+   * @return the token claims, or null if the token is not valid
+   */
+  public Claims verify(String token, char type) {
+    if (!isSigned(token) || token.charAt(0) != type) {
+      return null;
+    }
+    int signatureStart = token.lastIndexOf('.');
+    if (signatureStart <= 2) {
+      return null;
+    }
+    byte[] expected = sign(token.substring(0, signatureStart));
+    byte[] actual;
+    byte[] payload;
+    try {
+      actual = DECODER.decode(token.substring(signatureStart + 1));
+      payload = DECODER.decode(token.substring(2, signatureStart));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!MessageDigest.isEqual(expected, actual)) {
+      return null;
+    }
+
+    String[] fields = new String(payload, StandardCharsets.UTF_8).split(":", 3);
+    if (fields.length != 3) {
+      return null;
+    }
+    long expiresAtSec;
+    try {
+      expiresAtSec = Long.parseLong(fields[0]);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (expiresAtSec < System.currentTimeMillis() / 1000) {
+      return null;
+    }
+    return new Claims(fields[2], fields[1], expiresAtSec);
+  }
+
+  private String issue(char type, String userId, String tokenId, long ttlSec) {
+    long expiresAtSec = System.currentTimeMillis() / 1000 + ttlSec;
+    String payload = expiresAtSec + ":" + tokenId + ":" + userId;
+    String unsigned =
+        type + "." + ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+    return unsigned + "." + ENCODER.encodeToString(sign(unsigned));
+  }
+
+  private byte[] sign(String data) {
+    return macs.get().doFinal(data.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] loadSigningKey() {
+    String key = System.getenv("TOKEN_SIGNING_KEY");
+    if (key == null) {
+      key = System.getProperty("smarthome.tokenKey");
+    }
+    if (key != null) {
+      return Base64.getDecoder().decode(key);
+    }
+    if (!Boolean.getBoolean("smarthome.tokenKey.ephemeral")) {
+      // A key of each instance would fail the tokens issued by the other instances
+      throw new IllegalStateException(
+          "TOKEN_SIGNING_KEY is not set; set smarthome.tokenKey.ephemeral for a single instance");
+    }
+    LOGGER.warn("TOKEN_SIGNING_KEY is not set, tokens only work on this instance until it stops");
+    byte[] random = new byte[32];
+    RANDOM.nextBytes(random);
+    return random;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CachingDeviceStoreTest {
+  @TempDir Path dir;
+
+  private static Map<String, Object> curtain(int openPercent) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("openPercent", openPercent);
+    Map<String, Object> device = new HashMap<>();
+    device.put("name", "Patio curtain");
+    device.put("states", states);
+    return device;
+  }
+
+  private static Map<String, Map<String, Object>> update(int openPercent) {
+    Map<String, Map<String, Object>> updates = new HashMap<>();
+    updates.put(
+        "curtain", Collections.singletonMap("states.openPercent", (Object) openPercent));
+    return updates;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object openPercent(DeviceStore store, String userId) throws Exception {
+    Map<String, Object> device = store.getDevices(userId).get("curtain");
+    return ((Map<String, Object>) device.get("states")).get("openPercent");
+  }
+
+  /** Passes calls to a store, holding back reads of one user until released. */
+  private static DeviceStore gated(DeviceStore store, String userId, CountDownLatch release) {
+    return (DeviceStore)
+        Proxy.newProxyInstance(
+            DeviceStore.class.getClassLoader(),
+            new Class<?>[] {DeviceStore.class},
+            (proxy, method, args) -> {
+              if (method.getName().startsWith("get") && args[0].equals(userId)) {
+                release.await();
+              }
+              try {
+                return method.invoke(store, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            });
+  }
+
+  @Test
+  void testServesSnapshotUntilReconciled() throws Exception {
+    Path snapshotFile = dir.resolve("cache.snapshot");
+    MemoryDeviceStore firestore = new MemoryDeviceStore(null, 0, false, null);
+    CachingDeviceStore store =
+        new CachingDeviceStore(
+            firestore, new MemoryDeviceStore(null, 0, false, null), snapshotFile, 0);
+    for (String userId : new String[] {"a", "b"}) {
+      store.setUser(userId, Collections.singletonMap("fakeAccessToken", userId + "-token"));
+      store.setDevice(userId, "curtain", curtain(10));
+      assertEquals(10L, openPercent(store, userId));
+      store.updateDevices(userId, update(20));
+    }
+    store.close();
+    // Written while no instance was running
+    firestore.updateDevices("b", update(90));
+
+    CountDownLatch release = new CountDownLatch(1);
+    CachingDeviceStore restarted =
+        new CachingDeviceStore(
+            gated(firestore, "a", release),
+            new MemoryDeviceStore(null, 0, false, null),
+            snapshotFile,
+            0);
+    // Reconciling stops at "a", so "b" still comes from the snapshot
+    assertEquals(20L, openPercent(restarted, "b"));
+    assertEquals("b", restarted.findUserIdByFakeToken("b-token"));
+    assertFalse(restarted.isReconciled());
+
+    release.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!restarted.isReconciled() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(restarted.isReconciled());
+    assertEquals(90L, openPercent(restarted, "b"));
+    assertEquals(20L, openPercent(restarted, "a"));
+  }
+
+  @Test
+  void testWritesGoThroughToTheStore() throws Exception {
+    MemoryDeviceStore firestore = new MemoryDeviceStore(null, 0, false, null);
+    CachingDeviceStore store =
+        new CachingDeviceStore(firestore, new MemoryDeviceStore(null, 0, false, null), null, 0);
+    store.setUser("a", Collections.singletonMap("refreshTokenId", "1"));
+    store.setDevice("a", "curtain", curtain(10));
+    assertEquals(10L, openPercent(store, "a"));
+
+    store.updateDevices("a", update(30));
+    assertTrue(store.compareAndSetUserField("a", "refreshTokenId", "1", "2"));
+    assertEquals(30L, openPercent(firestore, "a"));
+    assertEquals("2", firestore.getUser("a").get("refreshTokenId"));
+    assertEquals("2", store.getUser("a").get("refreshTokenId"));
+
+    store.deleteDevice("a", "curtain");
+    assertTrue(store.getDevices("a").isEmpty());
+    assertTrue(firestore.getDevices("a").isEmpty());
+  }
+
+  @Test
+  void testIgnoresCorruptSnapshot() throws Exception {
+    Path snapshotFile = dir.resolve("cache.snapshot");
+    Map<String, Map<String, Object>> users = new TreeMap<>();
+    users.put("a", Collections.singletonMap("data", Collections.singletonMap("homegraph", true)));
+    MappedSnapshot.write(snapshotFile, users);
+    assertEquals(
+        Collections.singletonMap("homegraph", true),
+        MappedSnapshot.open(snapshotFile).user("a").get("data"));
+
+    try (RandomAccessFile file = new RandomAccessFile(snapshotFile.toFile(), "rw")) {
+      file.seek(file.length() - 2);
+      file.write('x');
+    }
+    assertNull(MappedSnapshot.open(snapshotFile));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class CommandMailboxTest {
+  private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+
+  private static DeviceState state(String key, Object value) {
+    return DeviceState.fromMap(Collections.singletonMap(key, value));
+  }
+
+  private String next() throws InterruptedException {
+    String message = sent.poll(5, TimeUnit.SECONDS);
+    assertNotNull(message);
+    return message;
+  }
+
+  @Test
+  void testFirstMessageOfAQuietTopicIsPublishedAtOnce() throws Exception {
+    CommandMailbox mailbox =
+        new CommandMailbox((deviceId, messages) -> sent.add(deviceId + messages.toJson()), 60_000);
+
+    assertFalse(mailbox.post("light", state("on", true)));
+
+    assertEquals("light{\"on\":true}", next());
+  }
+
+  @Test
+  void testBurstAfterAPublishPublishesOnlyTheLatestTarget() throws Exception {
+    CommandMailbox mailbox =
+        new CommandMailbox((deviceId, messages) -> sent.add(deviceId + messages.toJson()), 1000);
+    long start = System.nanoTime();
+
+    assertFalse(mailbox.post("curtain", state("openPercent", 10)));
+    assertEquals("curtain{\"openPercent\":10}", next());
+    Thread.sleep(100);
+    assertFalse(mailbox.post("curtain", state("openPercent", 40)));
+    assertTrue(mailbox.post("curtain", state("openPercent", 70)));
+    assertFalse(mailbox.post("light", state("on", true)));
+
+    assertEquals("light{\"on\":true}", next());
+    assertEquals("curtain{\"openPercent\":70}", next());
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+    assertNull(sent.poll(300, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void testStatesOfDifferentKeysArePublishedTogether() throws Exception {
+    CommandMailbox mailbox =
+        new CommandMailbox((deviceId, messages) -> sent.add(messages.toJson()), 500);
+
+    assertFalse(mailbox.post("light", state("on", false)));
+    assertEquals("{\"on\":false}", next());
+    Thread.sleep(100);
+    assertFalse(mailbox.post("light", state("on", true)));
+    assertFalse(mailbox.post("light", state("brightness", 50)));
+
+    String message = next();
+    assertTrue(message.contains("\"on\":true"));
+    assertTrue(message.contains("\"brightness\":50"));
+  }
+
+  @Test
+  void testMessagesWaitForThePublishInProgress() throws Exception {
+    CountDownLatch publishing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CommandMailbox mailbox =
+        new CommandMailbox(
+            (deviceId, messages) -> {
+              publishing.countDown();
+              try {
+                release.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              sent.add(messages.toJson());
+            },
+            0);
+
+    mailbox.post("curtain", state("openPercent", 10));
+    assertTrue(publishing.await(5, TimeUnit.SECONDS));
+    assertFalse(mailbox.post("curtain", state("openPercent", 40)));
+    assertTrue(mailbox.post("curtain", state("openPercent", 70)));
+    release.countDown();
+
+    assertEquals("{\"openPercent\":10}", next());
+    assertEquals("{\"openPercent\":70}", next());
+    assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+class DeviceGroupsTest {
+  private static final List<String> CURTAINS = Arrays.asList("patio", "kitchen", "bedroom");
+
+  /** Retained messages by topic, as the broker would keep them. */
+  private final Map<String, String> retained = new ConcurrentHashMap<>();
+
+  private final DeviceGroups.Announcer announcer =
+      (topic, payload) -> {
+        if (payload.length == 0) {
+          retained.remove(topic);
+        } else {
+          retained.put(topic, new String(payload, StandardCharsets.UTF_8));
+        }
+      };
+
+  private void awaitRetained(int count) throws InterruptedException {
+    for (int i = 0; i < 500 && retained.size() != count; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, retained.size());
+  }
+
+  @Test
+  void testTopicDependsOnTheDevicesOnly() {
+    String topic = DeviceGroups.topic(CURTAINS);
+    assertTrue(topic.matches("groups/[0-9a-f]{32}"));
+    assertEquals(topic, DeviceGroups.topic(Arrays.asList("bedroom", "kitchen", "patio")));
+    assertNotEquals(topic, DeviceGroups.topic(Arrays.asList("bedroom", "kitchen")));
+  }
+
+  @Test
+  void testGroupIsUsedOnceEveryMemberJoined() throws Exception {
+    DeviceGroups groups = new DeviceGroups(announcer, Runnable::run, 2, 10);
+    String topic = DeviceGroups.topic(CURTAINS);
+
+    assertNull(groups.topicFor(CURTAINS));
+    awaitRetained(3);
+    String hash = topic.substring("groups/".length());
+    assertEquals(topic, retained.get("patio-groups/" + hash));
+    groups.onJoined("patio", Collections.singletonList(topic));
+    groups.onJoined("kitchen", Arrays.asList("groups/other", topic));
+    assertNull(groups.topicFor(CURTAINS));
+
+    groups.onJoined("bedroom", Collections.singletonList(topic));
+    assertEquals(topic, groups.topicFor(CURTAINS));
+    assertNull(groups.topicFor(Collections.singletonList("patio")));
+  }
+
+  @Test
+  void testGroupIsNotUsedAfterAMemberReconnects() throws Exception {
+    DeviceGroups groups = new DeviceGroups(announcer, Runnable::run, 2, 10);
+    String topic = DeviceGroups.topic(CURTAINS);
+    groups.topicFor(CURTAINS);
+    for (String deviceId : CURTAINS) {
+      groups.onJoined(deviceId, Collections.singletonList(topic));
+    }
+    assertEquals(topic, groups.topicFor(CURTAINS));
+
+    // A new session has no subscriptions until the announcements arrive again
+    groups.onJoined("kitchen", Collections.emptyList());
+    assertNull(groups.topicFor(CURTAINS));
+    groups.onJoined("kitchen", Collections.singletonList(topic));
+    assertEquals(topic, groups.topicFor(CURTAINS));
+  }
+
+  @Test
+  void testLeastRecentlyUsedGroupIsDropped() throws Exception {
+    DeviceGroups groups = new DeviceGroups(announcer, Runnable::run, 2, 1);
+    groups.topicFor(CURTAINS);
+    awaitRetained(3);
+
+    List<String> storage = Arrays.asList("garage", "attic");
+    groups.topicFor(storage);
+    awaitRetained(2);
+    String topic = DeviceGroups.topic(storage);
+    assertEquals(topic, retained.get("garage-groups/" + topic.substring("groups/".length())));
+    // Dropped, so created again
+    assertNull(groups.topicFor(CURTAINS));
+  }
+}
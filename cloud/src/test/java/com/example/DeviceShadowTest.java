@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class DeviceShadowTest {
+  private static DeviceState state(String key, Object value) {
+    return DeviceState.fromMap(Collections.singletonMap(key, value));
+  }
+
+  /** Returns a device document with the shadow updates applied. */
+  private static Map<String, Object> apply(
+      Map<String, Object> document, DeviceShadow.Change change) {
+    return FieldPaths.apply(document, change.updates);
+  }
+
+  @Test
+  void testDeviceThatNeverReportedIsSentEveryCommand() {
+    Map<String, Object> device = new HashMap<>();
+    DeviceShadow.Change change = DeviceShadow.of(device).desire(state("on", true));
+    assertEquals(true, change.delta.get("on"));
+    assertEquals(1L, change.updates.get("shadow.versions.on"));
+
+    device = apply(device, change);
+    change = DeviceShadow.of(device).desire(state("on", true));
+    assertTrue(change.updates.isEmpty());
+    assertEquals(true, change.delta.get("on"));
+    assertEquals(Long.valueOf(1), change.versions.get("on"));
+  }
+
+  @Test
+  void testOnlyTheStatesNotReachedAreSent() {
+    Map<String, Object> device = new HashMap<>();
+    device = apply(device, DeviceShadow.of(device).report(Collections.singletonMap("on", true)));
+    DeviceState messages = state("on", true);
+    messages.put("openPercent", 40);
+
+    DeviceShadow.Change change = DeviceShadow.of(device).desire(messages);
+    assertFalse(change.delta.containsKey("on"));
+    assertEquals(40, change.delta.get("openPercent"));
+    assertEquals(Collections.singleton("openPercent"), change.versions.keySet());
+  }
+
+  @Test
+  void testReportSendsWhatIsStillToReach() {
+    Map<String, Object> device = new HashMap<>();
+    DeviceState messages = state("on", true);
+    messages.put("openPercent", 40);
+    device = apply(device, DeviceShadow.of(device).desire(messages));
+
+    // Gson parses reported numbers as doubles
+    Map<String, Object> reported = new HashMap<>();
+    reported.put("on", false);
+    reported.put("openPercent", 40.0);
+    DeviceShadow.Change change = DeviceShadow.of(device).report(reported);
+    assertEquals(false, change.updates.get("shadow.reported.on"));
+    assertEquals(Collections.singletonMap("on", true), change.delta.toMap());
+
+    device = apply(device, change);
+    change = DeviceShadow.of(device).report(Collections.singletonMap("on", true));
+    assertEquals(Collections.singleton("shadow.reported.on"), change.updates.keySet());
+    assertTrue(change.delta.isEmpty());
+  }
+
+  @Test
+  void testVersionGrowsWhenDesiredStateChanges() {
+    Map<String, Object> device = new HashMap<>();
+    device = apply(device, DeviceShadow.of(device).desire(state("openPercent", 40)));
+    device = apply(device, DeviceShadow.of(device).desire(state("openPercent", 40)));
+    DeviceShadow.Change change = DeviceShadow.of(device).desire(state("openPercent", 70));
+    assertEquals(2L, change.updates.get("shadow.versions.openPercent"));
+  }
+
+  @Test
+  void testSameComparesNumbersByValue() {
+    assertTrue(DeviceShadow.same(40L, 40.0));
+    assertFalse(DeviceShadow.same(40L, 40.5));
+    assertTrue(
+        DeviceShadow.same(
+            Collections.singletonMap("spectrumRgb", 255L),
+            Collections.singletonMap("spectrumRgb", 255.0)));
+    assertTrue(DeviceShadow.same(Arrays.asList(1L, "a"), Arrays.asList(1.0, "a")));
+    assertFalse(DeviceShadow.same(null, false));
+  }
+
+  @Test
+  void testSameDeltaIsNotResentRightAway() {
+    DeviceShadow.Resends resends = new DeviceShadow.Resends(60_000);
+    Map<String, Long> versions = Collections.singletonMap("on", 3L);
+    assertTrue(resends.claim("curtain", versions));
+    assertFalse(resends.claim("curtain", versions));
+    assertTrue(resends.claim("light", versions));
+    assertTrue(resends.claim("curtain", Collections.singletonMap("on", 4L)));
+
+    DeviceShadow.Resends immediate = new DeviceShadow.Resends(0);
+    assertTrue(immediate.claim("curtain", versions));
+    assertTrue(immediate.claim("curtain", versions));
+  }
+}
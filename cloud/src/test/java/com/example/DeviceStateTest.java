@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.protobuf.Struct;
+
+class DeviceStateTest {
+
+  private static Map<String, Object> firestoreStates() {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("openPercent", 40L);
+    states.put("thermostatTemperatureSetpoint", 21.5);
+    states.put("color", Collections.singletonMap("spectrumRgb", 255L));
+    states.put("currentModeSettings", Collections.singletonMap("speed", "fast"));
+    return states;
+  }
+
+  @Test
+  void testMapRoundTrip() {
+    DeviceState state = DeviceState.fromMap(firestoreStates());
+    assertTrue(state.isOnline());
+    assertEquals(40, state.getOpenPercent());
+    assertEquals(-1, state.getTimerRemainingSec());
+
+    Map<String, Object> map = state.toMap();
+    assertEquals(40, map.get("openPercent"));
+    assertEquals(21.5, map.get("thermostatTemperatureSetpoint"));
+    assertEquals(Collections.singletonMap("spectrumRgb", 255), map.get("color"));
+    assertEquals(Collections.singletonMap("speed", "fast"), map.get("currentModeSettings"));
+  }
+
+  @Test
+  void testStructUsesHomeGraphColorSpelling() {
+    Struct struct = DeviceState.fromMap(firestoreStates()).toStruct();
+    Struct color = struct.getFieldsOrThrow("color").getStructValue();
+    assertEquals(255, color.getFieldsOrThrow("spectrumRGB").getNumberValue());
+    assertFalse(color.containsFields("spectrumRgb"));
+
+    DeviceState parsed = DeviceState.fromStruct(struct);
+    assertEquals(40, parsed.getOpenPercent());
+    assertEquals("fast", ((Map<?, ?>) parsed.get("currentModeSettings")).get("speed"));
+  }
+
+  @Test
+  void testUnexpectedTypesAreKeptAsIs() {
+    DeviceState state = DeviceState.fromMap(firestoreStates());
+    state.put("openPercent", "half");
+    assertEquals("half", state.get("openPercent"));
+    assertEquals(0, state.getOpenPercent());
+
+    state.put("openPercent", 60.0);
+    assertEquals(60, state.get("openPercent"));
+    state.remove("openPercent");
+    assertFalse(state.containsKey("openPercent"));
+  }
+
+  @Test
+  void testNumbersThatAreNotWholeOrInRangeAreKeptAsIs() {
+    DeviceState state = new DeviceState();
+    state.put("openPercent", 50.7);
+    assertEquals(50.7, state.get("openPercent"));
+    assertEquals(0, state.getOpenPercent());
+
+    state.put("openPercent", 150);
+    assertEquals(150, state.get("openPercent"));
+    assertEquals(0, state.getOpenPercent());
+
+    state.put("openPercent", 50.0);
+    assertEquals(50, state.getOpenPercent());
+    state.put("brightness", -1);
+    assertEquals(-1, state.get("brightness"));
+    state.put("currentVolume", Double.NaN);
+    assertEquals(0, state.getCurrentVolume());
+    state.put("timerRemainingSec", 1e12);
+    assertEquals(-1, state.getTimerRemainingSec());
+    state.put("timerRemainingSec", 90L);
+    assertEquals(90, state.getTimerRemainingSec());
+  }
+
+  @Test
+  void testJson() {
+    DeviceState state = new DeviceState();
+    state.put("on", true);
+    state.put("openPercent", 75.0);
+    state.put("thermostatMode", "heat");
+    assertEquals("{\"on\":true,\"openPercent\":75,\"thermostatMode\":\"heat\"}", state.toJson());
+  }
+}
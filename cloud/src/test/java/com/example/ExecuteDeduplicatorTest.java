@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ExecuteDeduplicatorTest {
+  private static final List<ExecutionOutcome> OPENED =
+      Collections.singletonList(
+          ExecutionOutcome.success(
+              DeviceState.fromMap(Collections.singletonMap("openPercent", 100))));
+
+  /** A shared store kept in memory, as Firestore would be by several instances. */
+  private static final class SharedStore implements ExecuteResultStore {
+    private final Map<String, Claim> claims = new HashMap<>();
+
+    @Override
+    public synchronized Claim claim(String key, long leaseMillis) {
+      Claim claim = claims.get(key);
+      if (claim != null) {
+        return claim;
+      }
+      claims.put(key, Claim.RUNNING);
+      return Claim.OWNED;
+    }
+
+    @Override
+    public synchronized void complete(String key, String result, long ttlMillis) {
+      claims.put(key, Claim.completed(result));
+    }
+
+    @Override
+    public synchronized void release(String key) {
+      claims.remove(key);
+    }
+  }
+
+  @Test
+  void testRetryGetsTheFirstOutcomes() throws Exception {
+    ExecuteDeduplicator executions = new ExecuteDeduplicator(10, 60_000, 1_000, null);
+    AtomicInteger attempts = new AtomicInteger();
+
+    List<ExecutionOutcome> first =
+        executions.execute("user", "1", 1, () -> count(attempts, OPENED));
+    List<ExecutionOutcome> retry =
+        executions.execute("user", "1", 1, () -> count(attempts, OPENED));
+
+    assertEquals(1, attempts.get());
+    assertSame(first, retry);
+    executions.execute("other user", "1", 1, () -> count(attempts, OPENED));
+    executions.execute("user", "2", 1, () -> count(attempts, OPENED));
+    executions.execute("user", null, 1, () -> count(attempts, OPENED));
+    assertEquals(4, attempts.get());
+  }
+
+  @Test
+  void testConcurrentRetryWaitsForTheFirstAttempt() throws Exception {
+    ExecuteDeduplicator executions = new ExecuteDeduplicator(10, 60_000, 5_000, null);
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<ExecutionOutcome>> first =
+          executor.submit(
+              () ->
+                  executions.execute(
+                      "user",
+                      "1",
+                      1,
+                      () -> {
+                        started.countDown();
+                        await(release);
+                        return count(attempts, OPENED);
+                      }));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      new Thread(release::countDown).start();
+
+      List<ExecutionOutcome> retry =
+          executions.execute("user", "1", 1, () -> count(attempts, OPENED));
+
+      assertEquals(1, attempts.get());
+      assertSame(first.get(5, TimeUnit.SECONDS), retry);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testAsyncRetryCompletesWithTheRunningAttempt() throws Exception {
+    ExecuteDeduplicator executions = new ExecuteDeduplicator(10, 60_000, 1_000, null);
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<List<ExecutionOutcome>> first = new CompletableFuture<>();
+
+    CompletableFuture<List<ExecutionOutcome>> attempt =
+        executions.executeAsync("user", "1", 1, () -> count(attempts, first));
+    CompletableFuture<List<ExecutionOutcome>> retry =
+        executions.executeAsync("user", "1", 1, () -> count(attempts, first));
+    assertFalse(retry.isDone());
+    first.complete(OPENED);
+
+    assertEquals(1, attempts.get());
+    assertSame(OPENED, attempt.get(5, TimeUnit.SECONDS));
+    assertSame(OPENED, retry.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testAsyncRetryGivesUpOnAStuckAttempt() throws Exception {
+    ExecuteDeduplicator executions = new ExecuteDeduplicator(10, 60_000, 50, null);
+    CompletableFuture<List<ExecutionOutcome>> stuck = new CompletableFuture<>();
+
+    executions.executeAsync("user", "1", 2, () -> stuck);
+    assertEquals(
+        Collections.nCopies(2, ExecutionOutcome.TRANSIENT_ERROR),
+        executions.executeAsync("user", "1", 2, () -> stuck).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testTransientFailureIsRunAgain() throws Exception {
+    ExecuteDeduplicator executions = new ExecuteDeduplicator(10, 60_000, 1_000, null);
+    AtomicInteger attempts = new AtomicInteger();
+    List<ExecutionOutcome> failed = Collections.singletonList(ExecutionOutcome.TRANSIENT_ERROR);
+
+    assertEquals(failed, executions.execute("user", "1", 1, () -> count(attempts, failed)));
+    assertEquals(OPENED, executions.execute("user", "1", 1, () -> count(attempts, OPENED)));
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  void testExpiredAndEvictedRequestsRunAgain() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    ExecuteDeduplicator expiring = new ExecuteDeduplicator(10, 0, 1_000, null);
+    expiring.execute("user", "1", 1, () -> count(attempts, OPENED));
+    expiring.execute("user", "1", 1, () -> count(attempts, OPENED));
+    assertEquals(2, attempts.get());
+
+    ExecuteDeduplicator small = new ExecuteDeduplicator(1, 60_000, 1_000, null);
+    small.execute("user", "1", 1, () -> count(attempts, OPENED));
+    small.execute("user", "2", 1, () -> count(attempts, OPENED));
+    small.execute("user", "1", 1, () -> count(attempts, OPENED));
+    assertEquals(5, attempts.get());
+  }
+
+  @Test
+  void testInstancesShareOutcomes() throws Exception {
+    SharedStore store = new SharedStore();
+    ExecuteDeduplicator instance1 = new ExecuteDeduplicator(10, 60_000, 1_000, store);
+    ExecuteDeduplicator instance2 = new ExecuteDeduplicator(10, 60_000, 1_000, store);
+    AtomicInteger attempts = new AtomicInteger();
+
+    instance1.execute("user", "1", 1, () -> count(attempts, OPENED));
+    List<ExecutionOutcome> retry =
+        instance2.execute("user", "1", 1, () -> count(attempts, OPENED));
+
+    assertEquals(1, attempts.get());
+    assertEquals(ExecutionOutcome.Status.SUCCESS, retry.get(0).status);
+    assertEquals(100, retry.get(0).states.getOpenPercent());
+  }
+
+  @Test
+  void testAsyncRetryOnAnotherInstancePollsForTheOutcomes() throws Exception {
+    SharedStore store = new SharedStore();
+    ExecuteDeduplicator instance1 = new ExecuteDeduplicator(10, 60_000, 5_000, store);
+    ExecuteDeduplicator instance2 = new ExecuteDeduplicator(10, 60_000, 5_000, store);
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<List<ExecutionOutcome>> first = new CompletableFuture<>();
+
+    CompletableFuture<List<ExecutionOutcome>> attempt =
+        instance1.executeAsync("user", "1", 1, () -> count(attempts, first));
+    CompletableFuture<List<ExecutionOutcome>> retry =
+        instance2.executeAsync("user", "1", 1, () -> count(attempts, first));
+    assertFalse(retry.isDone());
+    first.complete(OPENED);
+
+    assertSame(OPENED, attempt.get(5, TimeUnit.SECONDS));
+    assertEquals(100, retry.get(5, TimeUnit.SECONDS).get(0).states.getOpenPercent());
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  void testOutcomesRoundTripThroughJson() {
+    List<ExecutionOutcome> outcomes =
+        Arrays.asList(
+            OPENED.get(0),
+            ExecutionOutcome.PENDING,
+            ExecutionOutcome.DEVICE_OFFLINE,
+            ExecutionOutcome.PIN_NEEDED,
+            ExecutionOutcome.challenge("userCancelled"));
+
+    List<ExecutionOutcome> read =
+        ExecuteDeduplicator.fromJson(ExecuteDeduplicator.toJson(outcomes), outcomes.size());
+
+    assertEquals(100, read.get(0).states.getOpenPercent());
+    assertTrue(read.get(0).states.toMap().get("openPercent") instanceof Integer);
+    assertSame(ExecutionOutcome.PENDING, read.get(1));
+    assertSame(ExecutionOutcome.DEVICE_OFFLINE, read.get(2));
+    assertSame(ExecutionOutcome.PIN_NEEDED, read.get(3));
+    assertEquals(ExecutionOutcome.Status.ERROR, read.get(4).status);
+    assertEquals(
+        Collections.singletonMap("type", "userCancelled"), read.get(4).challenge);
+    assertEquals(
+        Collections.nCopies(2, ExecutionOutcome.TRANSIENT_ERROR),
+        ExecuteDeduplicator.fromJson(ExecuteDeduplicator.toJson(outcomes), 2));
+  }
+
+  private static <T> T count(AtomicInteger attempts, T outcomes) {
+    attempts.incrementAndGet();
+    return outcomes;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
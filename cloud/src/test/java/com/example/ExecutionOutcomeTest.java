@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.ExecuteResponse;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+class ExecutionOutcomeTest {
+  /** Each shared outcome, the status and error code it responds with, and its challenge type. */
+  private static final Object[][] RESPONSES = {
+    {ExecutionOutcome.PENDING, "PENDING", null, null},
+    {ExecutionOutcome.DEVICE_OFFLINE, "ERROR", "deviceOffline", null},
+    {ExecutionOutcome.DEVICE_NOT_FOUND, "ERROR", "deviceNotFound", null},
+    {ExecutionOutcome.NOT_SUPPORTED, "ERROR", "notSupported", null},
+    {ExecutionOutcome.NO_TIMER_EXISTS, "ERROR", "noTimerExists", null},
+    {ExecutionOutcome.VALUE_OUT_OF_RANGE, "ERROR", "valueOutOfRange", null},
+    {
+      ExecutionOutcome.NETWORK_PROFILE_NOT_RECOGNIZED,
+      "ERROR",
+      "networkProfileNotRecognized",
+      null
+    },
+    {ExecutionOutcome.TRANSIENT_ERROR, "ERROR", "transientError", null},
+    {ExecutionOutcome.HARD_ERROR, "ERROR", "hardError", null},
+    {ExecutionOutcome.ACK_NEEDED, "ERROR", "challengeNeeded", "ackNeeded"},
+    {ExecutionOutcome.PIN_NEEDED, "ERROR", "challengeNeeded", "pinNeeded"},
+    {
+      ExecutionOutcome.CHALLENGE_FAILED_PIN_NEEDED,
+      "ERROR",
+      "challengeNeeded",
+      "challengeFailedPinNeeded"
+    },
+  };
+
+  /** Returns the command of the EXECUTE response to one command with the given outcome. */
+  private static JsonObject respond(ExecutionOutcome outcome) {
+    ExecuteResponse response = new ExecuteResponse();
+    response.requestId = "1";
+    response.setPayload(
+        new ExecuteResponse.Payload(
+            new ExecuteResponse.Payload.Commands[] {
+              FulfillmentPayloads.executeCommand("light", outcome)
+            }));
+    JsonObject json = new Gson().fromJson(response.build().toString(), JsonObject.class);
+    return json.getAsJsonObject("payload").getAsJsonArray("commands").get(0).getAsJsonObject();
+  }
+
+  private static String string(JsonObject json, String name) {
+    JsonElement element = json.get(name);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+
+  @Test
+  void testSharedOutcomesRespondWithTheirStatusAndErrorCode() {
+    for (Object[] row : RESPONSES) {
+      ExecutionOutcome outcome = (ExecutionOutcome) row[0];
+      JsonObject command = respond(outcome);
+
+      String name = outcome.errorCode != null ? outcome.errorCode : outcome.status.name();
+      assertEquals("light", command.getAsJsonArray("ids").get(0).getAsString(), name);
+      assertEquals(row[1], string(command, "status"), name);
+      assertEquals(row[2], string(command, "errorCode"), name);
+      JsonObject challenge = command.getAsJsonObject("challengeNeeded");
+      assertEquals(row[3], challenge == null ? null : string(challenge, "type"), name);
+      assertFalse(command.has("states"), name);
+    }
+  }
+
+  @Test
+  void testSharedOutcomesAreReused() {
+    for (Object[] row : RESPONSES) {
+      ExecutionOutcome outcome = (ExecutionOutcome) row[0];
+      if (row[3] != null) {
+        assertSame(outcome, ExecutionOutcome.challenge((String) row[3]));
+      } else if (row[2] != null) {
+        assertSame(outcome, ExecutionOutcome.error((String) row[2]));
+      }
+    }
+  }
+
+  @Test
+  void testSuccessRespondsWithTheStates() {
+    DeviceState states = DeviceState.fromMap(Collections.singletonMap("on", true));
+    JsonObject command = respond(ExecutionOutcome.success(states));
+
+    assertEquals("SUCCESS", string(command, "status"));
+    assertNull(command.get("errorCode"));
+    assertNull(command.get("challengeNeeded"));
+    assertTrue(command.getAsJsonObject("states").get("on").getAsBoolean());
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.actions.api.smarthome.ExecuteRequest;
+import com.google.actions.api.smarthome.SmartHomeRequest;
+import com.google.gson.Gson;
+
+class ExecutionPlannerTest {
+  private static final String USER_ID = "user";
+  private static final String ON_OFF = "action.devices.commands.OnOff";
+
+  /** Stores a light that is off, with the given extra fields. */
+  private static void addLight(
+      DeviceStore store, String deviceId, boolean online, Object... fields) throws Exception {
+    store.setDevice(USER_ID, deviceId, light(deviceId, online, fields));
+  }
+
+  private static Map<String, Object> light(String deviceId, boolean online, Object... fields) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", online);
+    states.put("on", false);
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", deviceId);
+    device.put("states", states);
+    for (int i = 0; i < fields.length; i += 2) {
+      device.put((String) fields[i], fields[i + 1]);
+    }
+    return device;
+  }
+
+  /** Returns an execution as it comes in an EXECUTE request, with the given challenge. */
+  private static ExecuteRequest.Inputs.Payload.Commands.Execution execution(
+      String command, Map<String, Object> params, Map<String, Object> challenge) {
+    Map<String, Object> fields = new LinkedHashMap<>();
+    fields.put("command", command);
+    fields.put("params", params);
+    if (challenge != null) {
+      fields.put("challenge", challenge);
+    }
+    String body =
+        "{\"requestId\":\"1\",\"inputs\":[{"
+            + "\"intent\":\"action.devices.EXECUTE\",\"payload\":{\"commands\":[{"
+            + "\"devices\":[],\"execution\":["
+            + new Gson().toJson(fields)
+            + "]}]}}]}";
+    ExecuteRequest request = (ExecuteRequest) SmartHomeRequest.Companion.create(body);
+    return ((ExecuteRequest.Inputs) request.inputs[0]).payload.commands[0].execution[0];
+  }
+
+  private static ExecutionPlanner.Command turnOn(String deviceId, Map<String, Object> challenge) {
+    return new ExecutionPlanner.Command(
+        deviceId, execution(ON_OFF, singleton("on", true), challenge));
+  }
+
+  private static Map<String, Object> singleton(String key, Object value) {
+    Map<String, Object> map = new HashMap<>();
+    map.put(key, value);
+    return map;
+  }
+
+  /** Plans the commands on the stored devices they target. */
+  private static ExecutionPlanner.Batch planAll(
+      DeviceStore store, ExecutionPlanner.Command... commands) throws Exception {
+    List<String> deviceIds = new ArrayList<>();
+    for (ExecutionPlanner.Command command : commands) {
+      deviceIds.add(command.deviceId);
+    }
+    return ExecutionPlanner.planAll(
+        Arrays.asList(commands),
+        store.getDevicesAsync(USER_ID, deviceIds).get(),
+        (deviceId, data) -> data);
+  }
+
+  /** Returns the outcome of planning one command on its stored device. */
+  private static ExecutionOutcome outcome(DeviceStore store, ExecutionPlanner.Command command)
+      throws Exception {
+    return planAll(store, command).plans.get(0).committed();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object isOn(DeviceStore store, String deviceId) throws Exception {
+    Map<String, Object> device = store.getDevices(USER_ID).get(deviceId);
+    return ((Map<String, Object>) device.get("states")).get("on");
+  }
+  private static Map<String, Object> router(Map<String, Object> states) {
+    states.put("online", true);
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", "router");
+    device.put("states", states);
+    return device;
+  }
+
+  private static Map<String, Object> speedTest(boolean download, boolean upload) {
+    Map<String, Object> params = new HashMap<>();
+    params.put("testDownloadSpeed", download);
+    params.put("testUploadSpeed", upload);
+    return params;
+  }
+
+  @Test
+  void testNetworkSpeedTestLeavesTheStoredDocumentAlone() {
+    Map<String, Object> lastDownload = new HashMap<>();
+    lastDownload.put("downloadSpeedMbps", 10.0);
+    lastDownload.put("unixTimestampSec", 1);
+    Map<String, Object> states = new HashMap<>();
+    states.put("lastNetworkDownloadSpeedTest", lastDownload);
+    Map<String, Object> stored = router(states);
+
+    ExecutionPlanner.DevicePlan plan =
+        ExecutionPlanner.plan(
+            "router",
+            stored,
+            ExecutionPlanner.execution(
+                "action.devices.commands.TestNetworkSpeed", speedTest(true, false)));
+
+    assertNull(plan.rejection);
+    assertEquals(10.0, lastDownload.get("downloadSpeedMbps"));
+    assertEquals(1, lastDownload.get("unixTimestampSec"));
+    Map<?, ?> written = (Map<?, ?>) plan.updates.get("states.lastNetworkDownloadSpeedTest");
+    assertNotSame(lastDownload, written);
+    assertNotEquals(1, written.get("unixTimestampSec"));
+    assertFalse(plan.updates.containsKey("states.lastNetworkUploadSpeedTest"));
+  }
+
+  @Test
+  void testNetworkSpeedTestWithoutAPreviousResult() {
+    ExecutionPlanner.DevicePlan plan =
+        ExecutionPlanner.plan(
+            "router",
+            router(new HashMap<>()),
+            ExecutionPlanner.execution(
+                "action.devices.commands.TestNetworkSpeed", speedTest(true, true)));
+
+    assertNull(plan.rejection);
+    assertTrue(
+        ((Map<?, ?>) plan.updates.get("states.lastNetworkDownloadSpeedTest"))
+            .containsKey("downloadSpeedMbps"));
+    assertTrue(
+        ((Map<?, ?>) plan.updates.get("states.lastNetworkUploadSpeedTest"))
+            .containsKey("uploadSpeedMbps"));
+  }
+
+  @Test
+  void testRejectedDeviceLeavesTheOthersUntouched() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    addLight(store, "kitchen", true);
+    addLight(store, "hall", false);
+    addLight(store, "porch", true);
+
+    ExecutionPlanner.Batch batch =
+        planAll(store, turnOn("kitchen", null), turnOn("hall", null), turnOn("porch", null));
+    store.commitDevicesAsync(USER_ID, batch.updates).get();
+
+    assertEquals(ExecutionOutcome.Status.SUCCESS, batch.plans.get(0).committed().status);
+    assertSame(ExecutionOutcome.DEVICE_OFFLINE, batch.plans.get(1).committed());
+    assertEquals(ExecutionOutcome.Status.SUCCESS, batch.plans.get(2).committed().status);
+    assertFalse(batch.updates.containsKey("hall"));
+    assertEquals(true, isOn(store, "kitchen"));
+    assertEquals(light("hall", false), store.getDevices(USER_ID).get("hall"));
+    assertEquals(true, isOn(store, "porch"));
+  }
+
+  @Test
+  void testAsksForTheChallengeOfTheDevice() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    addLight(store, "garage", true, "tfa", "ack");
+    addLight(store, "safe", true, "tfa", "1234");
+
+    assertSame(ExecutionOutcome.ACK_NEEDED, outcome(store, turnOn("garage", null)));
+    assertEquals(
+        ExecutionOutcome.Status.SUCCESS,
+        outcome(store, turnOn("garage", singleton("ack", true))).status);
+    assertSame(ExecutionOutcome.PIN_NEEDED, outcome(store, turnOn("safe", null)));
+    assertSame(
+        ExecutionOutcome.CHALLENGE_FAILED_PIN_NEEDED,
+        outcome(store, turnOn("safe", singleton("pin", "0000"))));
+    assertEquals(
+        ExecutionOutcome.Status.SUCCESS,
+        outcome(store, turnOn("safe", singleton("pin", "1234"))).status);
+  }
+
+  @Test
+  void testRejectsOfflineMissingAndFailingDevices() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    addLight(store, "hall", false);
+    addLight(store, "porch", true, "errorCode", "lowBattery");
+
+    assertSame(ExecutionOutcome.DEVICE_OFFLINE, outcome(store, turnOn("hall", null)));
+    assertSame(ExecutionOutcome.DEVICE_NOT_FOUND, outcome(store, turnOn("attic", null)));
+    ExecutionOutcome failing = outcome(store, turnOn("porch", null));
+    assertEquals(ExecutionOutcome.Status.ERROR, failing.status);
+    assertEquals("lowBattery", failing.errorCode);
+    assertSame(ExecutionOutcome.error("lowBattery"), failing);
+  }
+
+  @Test
+  void testFailedCommitKeepsRejectionsAndFailsTheRest() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    addLight(store, "kitchen", true);
+    addLight(store, "hall", false);
+    addLight(store, "porch", true);
+
+    ExecutionPlanner.Batch batch =
+        planAll(store, turnOn("kitchen", null), turnOn("hall", null), turnOn("porch", null));
+    // The porch light was removed after the devices were read
+    store.deleteDevice(USER_ID, "porch");
+    assertThrows(
+        ExecutionException.class, () -> store.commitDevicesAsync(USER_ID, batch.updates).get());
+
+    assertEquals(
+        Arrays.asList(
+            ExecutionOutcome.TRANSIENT_ERROR,
+            ExecutionOutcome.DEVICE_OFFLINE,
+            ExecutionOutcome.TRANSIENT_ERROR),
+        batch.uncommitted());
+    assertEquals(false, isOn(store, "kitchen"));
+  }
+}
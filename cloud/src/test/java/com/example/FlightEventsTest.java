@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class FlightEventsTest {
+  @TempDir Path dir;
+
+  private static RecordedEvent event(List<RecordedEvent> events, String name) {
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name)) {
+        return event;
+      }
+    }
+    throw new AssertionError("no " + name + " event");
+  }
+
+  @Test
+  void testRecordsIntentsAndStoreCalls() throws Exception {
+    assertTrue(FlightEvents.AVAILABLE);
+    DeviceStore store = FlightEvents.recording(new MemoryDeviceStore(null, 0, false, null));
+    store.setDevice("user", "curtain", Collections.singletonMap("name", "Patio curtain"));
+
+    Path file = dir.resolve("test.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.example.Intent");
+      recording.enable("com.example.StoreCall");
+      recording.start();
+      try (RequestContext context = RequestContext.start(Metrics.Intent.EXECUTE, "7")) {
+        RequestContext.setUserId("user");
+        RequestContext.target("curtain", "action.devices.commands.OpenClose");
+        RequestContext.target("curtain", "action.devices.commands.OpenClose");
+        store.getDevices("user", Collections.singleton("curtain"));
+      }
+      recording.stop();
+      recording.dump(file);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    assertEquals(2, events.size());
+    RecordedEvent call = event(events, "com.example.StoreCall");
+    assertEquals("MemoryDeviceStore", call.getString("store"));
+    assertEquals("getDevices", call.getString("operation"));
+    assertEquals("7", call.getString("requestId"));
+    assertEquals("curtain", call.getString("deviceId"));
+    assertEquals(1, call.getInt("documents"));
+    assertFalse(call.getBoolean("failed"));
+
+    RecordedEvent intent = event(events, "com.example.Intent");
+    assertEquals("EXECUTE", intent.getString("intent"));
+    assertEquals("user", intent.getString("userId"));
+    assertEquals("curtain", intent.getString("deviceIds"));
+    assertEquals("action.devices.commands.OpenClose", intent.getString("commands"));
+    assertTrue(intent.getDuration().compareTo(call.getDuration()) >= 0);
+  }
+
+  @Test
+  void testRecordsNothingWhenNotRecording() {
+    assertNull(FlightEvents.beginIntent());
+    assertNull(FlightEvents.beginPublish());
+  }
+}
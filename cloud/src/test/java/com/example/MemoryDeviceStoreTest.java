@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MemoryDeviceStoreTest {
+  private static final String USER_ID = "user";
+
+  @TempDir Path dir;
+
+  private static Map<String, Object> curtain(int openPercent) {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("openPercent", openPercent);
+    Map<String, Object> device = new HashMap<>();
+    device.put("deviceId", "curtain");
+    device.put("name", "Patio curtain");
+    device.put("states", states);
+    return device;
+  }
+
+  private static Map<String, Map<String, Object>> update(String path, Object value) {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put(path, value);
+    Map<String, Map<String, Object>> updates = new HashMap<>();
+    updates.put("curtain", fields);
+    return updates;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object state(DeviceStore store, String name) throws Exception {
+    Map<String, Object> device = store.getDevices(USER_ID).get("curtain");
+    return ((Map<String, Object>) device.get("states")).get(name);
+  }
+
+  @Test
+  void testReplaysLogAfterRestart() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(dir, 0, false, null);
+    store.setUser(USER_ID, Collections.singletonMap("fakeAccessToken", "123access"));
+    store.setDevice(USER_ID, "curtain", curtain(0));
+    store.updateDevices(USER_ID, update("states.openPercent", 75));
+    store.updateDevices(USER_ID, update("name", FieldPaths.DELETE));
+
+    // A crash: no snapshot is taken
+    MemoryDeviceStore recovered = new MemoryDeviceStore(dir, 0, false, null);
+    assertEquals(USER_ID, recovered.findUserIdByFakeToken("123access"));
+    assertEquals(75L, state(recovered, "openPercent"));
+    assertEquals(true, state(recovered, "online"));
+    assertFalse(recovered.getDevices(USER_ID).get("curtain").containsKey("name"));
+  }
+
+  @Test
+  void testSnapshotCoversLog() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(dir, 0, false, null);
+    store.setDevice(USER_ID, "curtain", curtain(10));
+    store.snapshot();
+    store.updateDevices(USER_ID, update("states.openPercent", 20));
+    store.close();
+
+    MemoryDeviceStore recovered = new MemoryDeviceStore(dir, 0, false, null);
+    assertEquals(20L, state(recovered, "openPercent"));
+    recovered.updateDevices(USER_ID, update("states.openPercent", 30));
+
+    assertEquals(30L, state(new MemoryDeviceStore(dir, 0, false, null), "openPercent"));
+  }
+
+  @Test
+  void testUpdatesAreAtomic() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    store.setDevice(USER_ID, "curtain", curtain(10));
+    Map<String, Map<String, Object>> updates = update("states.openPercent", 50);
+    updates.put("missing", Collections.singletonMap("states.on", true));
+
+    assertThrows(ExecutionException.class, () -> store.updateDevices(USER_ID, updates));
+    assertEquals(10L, state(store, "openPercent"));
+  }
+
+  @Test
+  void testCompareAndSetUserField() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    store.setUser(USER_ID, Collections.singletonMap("refreshTokenId", "a"));
+
+    assertFalse(store.compareAndSetUserField(USER_ID, "refreshTokenId", "b", "c"));
+    assertTrue(store.compareAndSetUserField(USER_ID, "refreshTokenId", "a", "b"));
+    assertEquals("b", store.getUser(USER_ID).get("refreshTokenId"));
+  }
+
+  @Test
+  void testCompareAndDeleteUserFieldSucceedsOnce() throws Exception {
+    MemoryDeviceStore store = new MemoryDeviceStore(null, 0, false, null);
+    store.setUser(USER_ID, Collections.singletonMap("authorizationCodeId", "a"));
+
+    assertTrue(
+        store.compareAndSetUserField(USER_ID, "authorizationCodeId", "a", FieldPaths.DELETE));
+    assertFalse(store.getUser(USER_ID).containsKey("authorizationCodeId"));
+    assertFalse(
+        store.compareAndSetUserField(USER_ID, "authorizationCodeId", "a", FieldPaths.DELETE));
+  }
+
+  @Test
+  void testKeepsStatesOffHeap() throws Exception {
+    OffHeapStateTable table = new OffHeapStateTable(16);
+    MemoryDeviceStore store = new MemoryDeviceStore(dir, 0, false, table);
+    store.setDevice(USER_ID, "curtain", curtain(10));
+    store.updateDevices(USER_ID, update("states.openPercent", 60));
+
+    assertEquals(1, table.size());
+    assertEquals(60, ((Number) state(store, "openPercent")).intValue());
+    assertEquals("Patio curtain", store.getDevices(USER_ID).get("curtain").get("name"));
+
+    MemoryDeviceStore recovered =
+        new MemoryDeviceStore(dir, 0, false, new OffHeapStateTable(16));
+    assertEquals(60, ((Number) state(recovered, "openPercent")).intValue());
+
+    store.deleteDevice(USER_ID, "curtain");
+    assertEquals(0, table.size());
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+  @Test
+  void testWritesPrometheusText() {
+    Metrics.Timer timer = new Metrics.Timer("test_latency_seconds", "Test latency.", "intent");
+    timer.recordNanos("QUERY", TimeUnit.MILLISECONDS.toNanos(2));
+    timer.recordNanos("QUERY", TimeUnit.MILLISECONDS.toNanos(4));
+    Metrics.Counter counter = new Metrics.Counter("test_total", "Test count.", null);
+    counter.increment();
+
+    StringBuilder out = new StringBuilder();
+    timer.writeSamples(out);
+    counter.writeSamples(out);
+    String text = out.toString();
+
+    assertTrue(text.contains("test_latency_seconds{intent=\"QUERY\",quantile=\"0.5\"} 0.002"));
+    assertTrue(text.contains("test_latency_seconds_sum{intent=\"QUERY\"} 0.006\n"));
+    assertTrue(text.contains("test_latency_seconds_count{intent=\"QUERY\"} 2\n"));
+    assertTrue(text.contains("test_total 1\n"));
+    // Reading the metrics keeps what was recorded before
+    assertEquals(2, timer.histogram("QUERY").getTotalCount());
+  }
+
+  @Test
+  void testLabelsFirestoreOperationsWithTheIntent() {
+    long before = Metrics.FIRESTORE_READS.get("SYNC");
+    try (RequestContext context = RequestContext.start(Metrics.Intent.SYNC, "1")) {
+      Metrics.FIRESTORE_READS.add(Metrics.currentIntent(), 3);
+    }
+
+    assertEquals(before + 3, Metrics.FIRESTORE_READS.get("SYNC"));
+    assertEquals("none", Metrics.currentIntent());
+    assertTrue(Metrics.INTENT_LATENCY.histogram("SYNC").getTotalCount() > 0);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class OffHeapStateTableTest {
+
+  @Test
+  void testStatesRoundTrip() {
+    Map<String, Object> states = new HashMap<>();
+    states.put("online", true);
+    states.put("openPercent", 40L);
+    states.put("thermostatMode", "heatcool");
+    states.put("thermostatTemperatureSetpointHigh", 24.5);
+    states.put("thermostatTemperatureSetpointLow", 18.0);
+    states.put("color", Collections.singletonMap("spectrumRgb", 255L));
+    states.put("currentModeSettings", Collections.singletonMap("speed", "fast"));
+    OffHeapStateTable table = new OffHeapStateTable(16);
+    table.put("user", "thermostat", DeviceState.fromMap(states));
+
+    assertEquals(DeviceState.fromMap(states).toMap(), table.get("user", "thermostat").toMap());
+    assertNull(table.get("user", "other"));
+    assertNull(table.get("other", "thermostat"));
+  }
+
+  @Test
+  void testKeepsUnknownThermostatModes() {
+    OffHeapStateTable table = new OffHeapStateTable(16);
+    table.put(
+        "user",
+        "thermostat",
+        DeviceState.fromMap(Collections.singletonMap("thermostatMode", "smart")));
+
+    assertEquals("smart", table.get("user", "thermostat").get("thermostatMode"));
+  }
+
+  @Test
+  void testMatchesMapUnderChurn() {
+    OffHeapStateTable table = new OffHeapStateTable(16);
+    Map<String, Integer> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 20_000; i++) {
+      String deviceId = "device-" + random.nextInt(2_000);
+      if (random.nextInt(4) == 0) {
+        assertEquals(expected.remove(deviceId) != null, table.remove("user", deviceId));
+      } else {
+        int openPercent = random.nextInt(101);
+        table.put(
+            "user",
+            deviceId,
+            DeviceState.fromMap(Collections.singletonMap("openPercent", openPercent)));
+        expected.put(deviceId, openPercent);
+      }
+    }
+
+    assertEquals(expected.size(), table.size());
+    for (int i = 0; i < 2_000; i++) {
+      String deviceId = "device-" + i;
+      DeviceState states = table.get("user", deviceId);
+      if (expected.containsKey(deviceId)) {
+        assertEquals((int) expected.get(deviceId), states.getOpenPercent());
+      } else {
+        assertNull(states);
+      }
+    }
+  }
+}
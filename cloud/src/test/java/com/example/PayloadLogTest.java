@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class PayloadLogTest {
+
+  @Test
+  void testMasksSecrets() {
+    assertEquals(
+        "{\"access_token\":\"***\",\"expires_in\":3600,\"refresh_token\": \"***\"}",
+        PayloadLog.redact(
+            "{\"access_token\":\"eyJ1.abc\",\"expires_in\":3600,\"refresh_token\": \"eyJ2.def\"}",
+            1000));
+    assertEquals(
+        "{\"execution\":[{\"command\":\"OpenClose\",\"challenge\":{\"pin\":\"***\"}}]}",
+        PayloadLog.redact(
+            "{\"execution\":[{\"command\":\"OpenClose\",\"challenge\":{\"pin\":\"1234\"}}]}",
+            1000));
+    assertEquals(
+        "grant_type=authorization_code&code=***&client_secret=***",
+        PayloadLog.redact("grant_type=authorization_code&code=xyz&client_secret=s3cret", 1000));
+    assertEquals("Authorization: Bearer ***", PayloadLog.redact("Authorization: Bearer abc", 1000));
+    assertEquals(
+        "{\"errorCode\":\"authFailure\"}",
+        PayloadLog.redact("{\"errorCode\":\"authFailure\"}", 1000));
+  }
+
+  @Test
+  void testMasksFieldsNamedLikeSecrets() {
+    // The EXECUTE response to GetGuestNetworkPassword
+    assertEquals(
+        "{\"requestId\":\"7\",\"payload\":{\"commands\":[{\"ids\":[\"router\"],"
+            + "\"status\":\"SUCCESS\",\"states\":{\"online\":true,"
+            + "\"guestNetworkPassword\":\"***\"}}]}}",
+        PayloadLog.redact(
+            "{\"requestId\":\"7\",\"payload\":{\"commands\":[{\"ids\":[\"router\"],"
+                + "\"status\":\"SUCCESS\",\"states\":{\"online\":true,"
+                + "\"guestNetworkPassword\":\"wifi \\\"guest\\\" 2020\"}}]}}",
+            1000));
+    assertEquals(
+        "{\"fakeAccessToken\":\"***\",\"PIN\":***,\"tokenId\":\"abc\"}",
+        PayloadLog.redact(
+            "{\"fakeAccessToken\":\"a b\",\"PIN\":1234,\"tokenId\":\"abc\"}", 1000));
+  }
+
+  @Test
+  void testCapsLength() {
+    assertEquals("abcd... (6 more chars)", PayloadLog.redact("abcdefghij", 4));
+    // The rest of a cut-off token is masked too
+    assertEquals(
+        "{\"access_token\":\"***... (5 more chars)",
+        PayloadLog.redact("{\"access_token\":\"abcdef\"}", 20));
+  }
+
+  @Test
+  void testSamplesAtTheConfiguredRate() {
+    assertFalse(new PayloadLog("test", 0).sample());
+    assertTrue(new PayloadLog("test", 1).sample());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+class RequestContextTest {
+
+  @Test
+  void testAddsUpPhasesOfTheCurrentRequest() {
+    RequestContext context = RequestContext.start(Metrics.Intent.EXECUTE, "1");
+    try {
+      RequestContext.setUserId("user");
+      RequestContext.phase("reportState", System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(2));
+      RequestContext.phase("readDevices", System.nanoTime());
+      RequestContext.phase("reportState", System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1));
+      assertSame(context, RequestContext.current());
+    } finally {
+      context.close();
+    }
+
+    assertNull(RequestContext.current());
+    assertEquals("user", context.userId());
+    assertEquals(2, context.phaseCount());
+    assertEquals("reportState", context.phaseName(0));
+    assertEquals(2, context.phaseCalls(0));
+    assertTrue(context.phaseNanos(0) >= TimeUnit.MILLISECONDS.toNanos(3));
+  }
+
+  @Test
+  void testDetachedContextIsFoundByContinuationsOnOtherThreads() throws Exception {
+    RequestContext context = RequestContext.start(Metrics.Intent.QUERY, "1");
+    context.detach();
+    assertNull(RequestContext.current());
+
+    CompletableFuture.runAsync(
+            () ->
+                RequestContext.within(
+                    context,
+                    () -> {
+                      assertSame(context, RequestContext.current());
+                      RequestContext.phase("readDevices", System.nanoTime());
+                      return null;
+                    }))
+        .get(5, TimeUnit.SECONDS);
+    RequestContext.phase(context, "readDevices", System.nanoTime());
+    context.end();
+
+    assertNull(RequestContext.current());
+    assertEquals(1, context.phaseCount());
+    assertEquals(2, context.phaseCalls(0));
+  }
+
+  @Test
+  void testSlowLogKeepsTheLatestRequests() {
+    SlowRequestLog log = new SlowRequestLog(2);
+    for (int i = 0; i < 3; i++) {
+      Metrics.Intent intent = i == 1 ? Metrics.Intent.QUERY : Metrics.Intent.EXECUTE;
+      RequestContext context = RequestContext.start(intent, Integer.toString(i));
+      RequestContext.phase("readDevices", System.nanoTime() - TimeUnit.MICROSECONDS.toNanos(400));
+      context.close();
+      log.add(context, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    List<SlowRequestLog.Entry> recent = log.recent(10, null);
+    Set<String> requestIds = new HashSet<>();
+    for (SlowRequestLog.Entry entry : recent) {
+      requestIds.add(entry.requestId);
+    }
+    assertEquals(new HashSet<>(Arrays.asList("1", "2")), requestIds);
+    assertEquals(1, log.recent(10, Metrics.Intent.EXECUTE).size());
+
+    JsonObject json = log.recent(1, Metrics.Intent.EXECUTE).get(0).toJson();
+    assertEquals("2", json.get("requestId").getAsString());
+    assertEquals(1.0, json.get("totalMs").getAsDouble());
+    JsonObject phase = json.getAsJsonArray("phases").get(0).getAsJsonObject();
+    assertEquals("readDevices", phase.get("name").getAsString());
+  }
+}
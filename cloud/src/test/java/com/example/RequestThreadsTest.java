@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+class RequestThreadsTest {
+  @Test
+  void testHandOffRunsOffTheCallingThread() throws Exception {
+    assertFalse(RequestThreads.isVirtual());
+    Thread caller = Thread.currentThread();
+    Thread[] ran = new Thread[1];
+    RequestThreads.handOff(() -> ran[0] = Thread.currentThread()).get();
+    assertNotNull(ran[0]);
+    assertNotSame(caller, ran[0]);
+  }
+
+  @Test
+  void testHandOffFailsWithTheExceptionOfTheWork() {
+    CompletableFuture<Void> done =
+        RequestThreads.handOff(
+            () -> {
+              throw new IllegalStateException("report failed");
+            });
+    ExecutionException thrown = assertThrows(ExecutionException.class, done::get);
+    assertTrue(thrown.getCause() instanceof IllegalStateException);
+    assertEquals("report failed", thrown.getCause().getMessage());
+  }
+}
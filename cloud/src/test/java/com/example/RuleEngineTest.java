@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class RuleEngineTest {
+  private static final DeviceKey THERMOSTAT = new DeviceKey("user", "thermostat");
+
+  /** The user ID and the IDs of the rules of each run. */
+  private final List<String> runs = new ArrayList<>();
+  private final RuleEngine engine =
+      new RuleEngine(
+          (userId, rules) -> {
+            StringBuilder run = new StringBuilder(userId).append(':');
+            for (Rule rule : rules) {
+              run.append(' ').append(rule.id);
+            }
+            runs.add(run.toString());
+          });
+
+  private static Rule rule(String id, Object... fields) {
+    Map<String, Object> rule = new HashMap<>();
+    rule.put("state", "thermostatTemperatureAmbient");
+    rule.put("deviceIds", Arrays.asList("curtain"));
+    rule.put("command", "action.devices.commands.OpenClose");
+    rule.put("params", Collections.singletonMap("openPercent", 0L));
+    for (int i = 0; i < fields.length; i += 2) {
+      rule.put((String) fields[i], fields[i + 1]);
+    }
+    return Rule.parse(id, rule);
+  }
+
+  private void report(double temperature, long nowMillis) {
+    Map<String, Object> states =
+        Collections.singletonMap("thermostatTemperatureAmbient", temperature);
+    engine.onStates(THERMOSTAT, states, nowMillis);
+  }
+
+  @Test
+  void testRuleRunsOnceUntilStateGoesBackPastHysteresis() {
+    engine.set(THERMOSTAT, Arrays.asList(rule("hot", "above", 28L, "hysteresis", 1L)));
+
+    report(27.5, 0);
+    assertTrue(runs.isEmpty());
+    report(28.5, 0);
+    assertEquals(Arrays.asList("user: hot"), runs);
+    report(29, 0);
+    // Back under the threshold, but not by the hysteresis
+    report(27.5, 0);
+    report(28.5, 0);
+    assertEquals(1, runs.size());
+    report(26.9, 0);
+    report(28.5, 0);
+    assertEquals(2, runs.size());
+  }
+
+  @Test
+  void testOnlyRulesOfChangedStatesAreEvaluated() {
+    engine.set(
+        THERMOSTAT,
+        Arrays.asList(
+            rule("hot", "above", 28L),
+            rule("cold", "below", 15L),
+            rule("off", "state", "thermostatMode", "equals", "off")));
+    long evaluations = Metrics.RULE_EVALUATIONS.get("");
+
+    engine.onStates(THERMOSTAT, Collections.singletonMap("thermostatMode", "off"), 0);
+    assertEquals(Arrays.asList("user: off"), runs);
+    assertEquals(evaluations + 1, Metrics.RULE_EVALUATIONS.get(""));
+    DeviceKey curtain = new DeviceKey("user", "curtain");
+    engine.onStates(curtain, Collections.singletonMap("openPercent", 0), 0);
+    assertEquals(evaluations + 1, Metrics.RULE_EVALUATIONS.get(""));
+  }
+
+  @Test
+  void testRulesMetTogetherRunInOneBatch() {
+    engine.set(THERMOSTAT, Arrays.asList(rule("hot", "above", 28L), rule("hotter", "above", 27L)));
+    report(30, 0);
+    assertEquals(1, runs.size());
+    assertTrue(runs.get(0).contains("hot") && runs.get(0).contains("hotter"), runs.get(0));
+  }
+
+  @Test
+  void testDebouncedRuleRunsIfConditionStillHolds() {
+    engine.set(THERMOSTAT, Arrays.asList(rule("hot", "above", 28L, "debounceMs", 60_000L)));
+
+    // A spike that ends before the debounce passes
+    report(29, 0);
+    report(27, 30_000);
+    engine.advance(60_000);
+    assertTrue(runs.isEmpty());
+
+    report(29, 100_000);
+    report(29.5, 130_000);
+    engine.advance(159_999);
+    assertTrue(runs.isEmpty());
+    engine.advance(160_000);
+    assertEquals(Arrays.asList("user: hot"), runs);
+    engine.advance(300_000);
+    assertEquals(1, runs.size());
+  }
+
+  @Test
+  void testReplacedRulesDoNotRun() {
+    engine.set(THERMOSTAT, Arrays.asList(rule("hot", "above", 28L, "debounceMs", 1000L)));
+    report(29, 0);
+    engine.set(THERMOSTAT, Collections.emptyList());
+    engine.advance(1000);
+    report(30, 2000);
+    assertTrue(runs.isEmpty());
+  }
+
+  @Test
+  void testReloadingRulesKeepsWhetherUnchangedOnesRan() {
+    engine.set(THERMOSTAT, Arrays.asList(rule("hot", "above", 28L, "hysteresis", 1L)));
+    report(29, 0);
+    engine.setAll(
+        Collections.singletonMap(
+            THERMOSTAT, Arrays.asList(rule("hot", "above", 28.0, "hysteresis", 1L))));
+    report(30, 1000);
+    assertEquals(Arrays.asList("user: hot"), runs);
+
+    // A changed rule starts over, and a device left out loses its rules
+    engine.setAll(
+        Collections.singletonMap(
+            THERMOSTAT, Arrays.asList(rule("hot", "above", 29L, "hysteresis", 1L))));
+    report(31, 2000);
+    engine.setAll(Collections.emptyMap());
+    report(20, 3000);
+    report(31, 4000);
+    assertEquals(Arrays.asList("user: hot", "user: hot"), runs);
+  }
+
+  @Test
+  void testMalformedRulesAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> rule("hot"));
+    assertThrows(IllegalArgumentException.class, () -> rule("hot", "above", 28L, "below", 15L));
+    assertThrows(IllegalArgumentException.class, () -> rule("a.b", "above", 28L));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> rule("hot", "above", 28L, "deviceIds", Collections.emptyList()));
+    assertThrows(IllegalArgumentException.class, () -> rule("hot", "above", "28"));
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ScheduleEngineTest {
+  private static final long DAY = 86_400_000L;
+  private static final long MORNING = Instant.parse("2024-03-01T07:30:00Z").toEpochMilli();
+
+  /** The user ID and the fired devices and schedule IDs of each run, in order. */
+  private final List<String> runs = new ArrayList<>();
+
+  private ScheduleEngine engine(ScheduleEngine.CatchUp catchUp, long catchUpMillis) {
+    return new ScheduleEngine(
+        catchUp,
+        catchUpMillis,
+        (userId, firings) -> {
+          List<String> fired = new ArrayList<>();
+          for (ScheduleEngine.Firing firing : firings) {
+            fired.add(firing.device.deviceId + "/" + firing.schedule.id);
+          }
+          // Schedules due at the same time run in no particular order
+          Collections.sort(fired);
+          runs.add(userId + ": " + String.join(" ", fired));
+          Collections.sort(runs);
+        });
+  }
+
+  private static Schedule daily(String id, String time) {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("at", time);
+    fields.put("command", "action.devices.commands.OpenClose");
+    return Schedule.parse(id, fields);
+  }
+
+  /** A daily schedule as loaded from a device document, with its last run. */
+  private static Schedule lastFired(String time, long lastFiredMillis) {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("at", time);
+    fields.put("command", "action.devices.commands.OpenClose");
+    Map<String, Object> document = new HashMap<>();
+    document.put(Schedule.FIELD, Collections.singletonMap("open", fields));
+    document.put(Schedule.RUNS, Collections.singletonMap("open", lastFiredMillis));
+    return Schedule.of(document).get("open");
+  }
+
+  @Test
+  void testSchedulesDueTogetherRunInOneBatchPerUser() {
+    ScheduleEngine engine = engine(ScheduleEngine.CatchUp.SKIP, 0);
+    long now = MORNING - 60_000;
+    engine.set(new DeviceKey("alice", "bedroom"), Arrays.asList(daily("open", "07:30")), now);
+    engine.set(new DeviceKey("alice", "kitchen"), Arrays.asList(daily("open", "07:30")), now);
+    engine.set(new DeviceKey("bob", "bedroom"), Arrays.asList(daily("open", "07:30")), now);
+    engine.set(new DeviceKey("bob", "kitchen"), Arrays.asList(daily("open", "08:00")), now);
+    assertEquals(4, engine.size());
+
+    engine.fire(MORNING - 1);
+    assertTrue(runs.isEmpty());
+    engine.fire(MORNING);
+    assertEquals(Arrays.asList("alice: bedroom/open kitchen/open", "bob: bedroom/open"), runs);
+    // Every schedule runs again the next day, the one due at 08:00 late along with them
+    assertEquals(4, engine.size());
+    runs.clear();
+    engine.fire(MORNING + DAY);
+    assertEquals(
+        Arrays.asList("alice: bedroom/open kitchen/open", "bob: bedroom/open kitchen/open"), runs);
+  }
+
+  @Test
+  void testReplacedSchedulesDoNotRun() {
+    ScheduleEngine engine = engine(ScheduleEngine.CatchUp.SKIP, 0);
+    DeviceKey device = new DeviceKey("alice", "bedroom");
+    engine.set(device, Arrays.asList(daily("open", "07:30")), MORNING - 60_000);
+    engine.set(device, Arrays.asList(daily("close", "21:00")), MORNING - 60_000);
+    engine.fire(MORNING);
+    assertTrue(runs.isEmpty());
+
+    engine.set(device, Collections.emptyList(), MORNING);
+    assertEquals(0, engine.size());
+    engine.fire(MORNING + DAY);
+    assertTrue(runs.isEmpty());
+  }
+
+  @Test
+  void testLatestMissedRunIsCaughtUpOnce() {
+    ScheduleEngine engine = engine(ScheduleEngine.CatchUp.LATEST, 3_600_000);
+    // Down from before yesterday's run until half an hour after today's
+    long now = MORNING + 30 * 60_000;
+    Schedule schedule = lastFired("07:30", MORNING - 2 * DAY);
+    engine.set(new DeviceKey("alice", "bedroom"), Arrays.asList(schedule), now);
+    engine.fire(now);
+    assertEquals(Arrays.asList("alice: bedroom/open"), runs);
+    engine.fire(now + 1000);
+    assertEquals(1, runs.size());
+  }
+
+  @Test
+  void testRunsMissedTooLongAgoOrSkippedAreNotCaughtUp() {
+    long now = MORNING + 30 * 60_000;
+    Schedule schedule = lastFired("07:30", MORNING - DAY);
+    ScheduleEngine tooLate = engine(ScheduleEngine.CatchUp.LATEST, 10 * 60_000);
+    tooLate.set(new DeviceKey("alice", "bedroom"), Arrays.asList(schedule), now);
+    ScheduleEngine skipping = engine(ScheduleEngine.CatchUp.SKIP, 3_600_000);
+    skipping.set(new DeviceKey("alice", "bedroom"), Arrays.asList(schedule), now);
+
+    tooLate.fire(now);
+    skipping.fire(now);
+    assertTrue(runs.isEmpty());
+    tooLate.fire(MORNING + DAY);
+    skipping.fire(MORNING + DAY);
+    assertEquals(2, runs.size());
+  }
+}
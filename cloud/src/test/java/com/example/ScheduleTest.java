@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ScheduleTest {
+  private static Map<String, Object> schedule(Object... fields) {
+    Map<String, Object> schedule = new HashMap<>();
+    schedule.put("command", "action.devices.commands.OpenClose");
+    schedule.put("params", Collections.singletonMap("openPercent", 100L));
+    for (int i = 0; i < fields.length; i += 2) {
+      schedule.put((String) fields[i], fields[i + 1]);
+    }
+    return schedule;
+  }
+
+  private static long next(Map<String, Object> fields, String after) {
+    return Schedule.parse("morning", fields).nextAfter(Instant.parse(after).toEpochMilli());
+  }
+
+  private static long millis(String time) {
+    return Instant.parse(time).toEpochMilli();
+  }
+
+  private static void assertNear(long expected, long actual, long toleranceMillis) {
+    assertTrue(
+        Math.abs(expected - actual) <= toleranceMillis,
+        Instant.ofEpochMilli(actual) + " is not near " + Instant.ofEpochMilli(expected));
+  }
+
+  @Test
+  void testDailyScheduleRunsAtLocalTimeAcrossDaylightSavingChange() {
+    Map<String, Object> fields = schedule("at", "07:30", "timeZone", "Europe/Paris");
+    // Paris moves to summer time on March 31, 2024
+    assertEquals(millis("2024-03-30T06:30:00Z"), next(fields, "2024-03-30T06:00:00Z"));
+    assertEquals(millis("2024-03-31T05:30:00Z"), next(fields, "2024-03-30T06:30:00Z"));
+  }
+
+  @Test
+  void testCronScheduleSkipsToMatchingDay() {
+    // Friday morning, after the schedule ran
+    assertEquals(
+        millis("2024-03-04T07:30:00Z"),
+        next(schedule("cron", "30 7 * * 1-5"), "2024-03-01T08:00:00Z"));
+    assertEquals(
+        millis("2028-02-29T00:00:00Z"),
+        next(schedule("cron", "0 0 29 2 *"), "2024-03-01T00:00:00Z"));
+    assertEquals(
+        millis("2024-03-01T10:00:00Z"),
+        next(schedule("cron", "*/15 8-18/2 * * *"), "2024-03-01T08:45:00Z"));
+    assertEquals(-1, next(schedule("cron", "0 0 30 2 *"), "2024-03-01T00:00:00Z"));
+  }
+
+  @Test
+  void testCronDayMatchesEitherRestrictedDayField() {
+    // Saturday March 2; the 1st of the month or a Sunday
+    assertEquals(
+        millis("2024-03-03T12:00:00Z"),
+        next(schedule("cron", "0 12 1 * 0"), "2024-03-02T00:00:00Z"));
+    assertEquals(
+        millis("2024-03-03T12:00:00Z"),
+        next(schedule("cron", "0 12 * * 7"), "2024-03-02T00:00:00Z"));
+  }
+
+  @Test
+  void testSolarScheduleRunsAtSunriseWithOffset() {
+    // Sunrise in Paris on the June solstice is around 03:47 UTC
+    Map<String, Object> fields =
+        schedule(
+            "solar",
+            "sunrise",
+            "latitude",
+            48.8566,
+            "longitude",
+            2.3522,
+            "timeZone",
+            "Europe/Paris");
+    long sunrise = next(fields, "2024-06-21T00:00:00Z");
+    assertNear(millis("2024-06-21T03:47:00Z"), sunrise, 5 * 60_000);
+
+    fields.put("offsetMinutes", -30L);
+    assertNear(sunrise - 30 * 60_000, next(fields, "2024-06-21T00:00:00Z"), 1000);
+    // After sunrise, the next one is the following day
+    assertNear(sunrise + 86_400_000L - 30 * 60_000, next(fields, "2024-06-21T04:00:00Z"), 60_000);
+  }
+
+  @Test
+  void testSolarScheduleWaitsOutPolarNight() {
+    // Tromso has no sunrise from late November to mid January
+    Map<String, Object> fields =
+        schedule("solar", "sunrise", "latitude", 69.6492, "longitude", 18.9553);
+    long sunrise = next(fields, "2024-12-21T00:00:00Z");
+    assertTrue(sunrise > millis("2025-01-10T00:00:00Z"), Instant.ofEpochMilli(sunrise).toString());
+    assertTrue(sunrise < millis("2025-01-25T00:00:00Z"), Instant.ofEpochMilli(sunrise).toString());
+  }
+
+  @Test
+  void testMalformedSchedulesAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> Schedule.parse("morning", schedule()));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Schedule.parse("morning", schedule("at", "07:30", "cron", "0 7 * * *")));
+    assertThrows(
+        IllegalArgumentException.class, () -> Schedule.parse("a.b", schedule("at", "07:30")));
+    assertThrows(
+        IllegalArgumentException.class, () -> Schedule.parse("morning", schedule("at", "7h30")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Schedule.parse("morning", schedule("cron", "60 7 * * *")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Schedule.parse("morning", schedule("solar", "sunrise", "latitude", 48.8)));
+  }
+
+  @Test
+  void testDocumentSchedulesWithTheirLastRuns() {
+    Map<String, Object> schedules = new HashMap<>();
+    schedules.put("morning", schedule("at", "07:30"));
+    schedules.put("broken", schedule());
+    Map<String, Object> document = new HashMap<>();
+    document.put(Schedule.FIELD, schedules);
+    document.put(Schedule.RUNS, Collections.singletonMap("morning", 1234L));
+
+    Map<String, Schedule> parsed = Schedule.of(document);
+    assertEquals(Collections.singleton("morning"), parsed.keySet());
+    assertEquals(1234L, parsed.get("morning").lastFiredMillis);
+    assertTrue(Schedule.of(Collections.emptyMap()).isEmpty());
+  }
+}
@@ -31,8 +31,6 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-
 class SmarHomeEndToEndTest {
   private static final String USER_ID = "test-user-id";
   private static final String DEVICE_ID = "test-device-id";
@@ -50,12 +48,12 @@ class SmarHomeEndToEndTest {
     }
     testUser.put("fakeAccessToken", "123access");
     testUser.put("fakeRefreshToken", "123refresh");
-    MyDataStore.getInstance().database.collection("users").document(USER_ID).set(testUser).get();
+    MyDataStore.getInstance().createUser(USER_ID, testUser);
   }
 
   @AfterAll()
   static void tearDownAll() throws ExecutionException, InterruptedException {
-    MyDataStore.getInstance().database.collection("users").document(USER_ID).delete().get();
+    MyDataStore.getInstance().deleteUser(USER_ID);
   }
 
   @Test
@@ -84,7 +82,8 @@ class SmarHomeEndToEndTest {
         .then()
         .statusCode(200);
 
-    QueryDocumentSnapshot deviceCreated = MyDataStore.getInstance().getDevices(USER_ID).get(0);
+    Map<String, Object> deviceCreated =
+        MyDataStore.getInstance().getDevices(USER_ID).get(DEVICE_ID);
     assertEquals(DEVICE_ID, deviceCreated.get("deviceId"));
 
     Map<String, Object> syncRequest = new HashMap<>();
@@ -120,7 +119,8 @@ class SmarHomeEndToEndTest {
         .then()
         .statusCode(200);
 
-    QueryDocumentSnapshot deviceUpdated = MyDataStore.getInstance().getDevices(USER_ID).get(0);
+    Map<String, Object> deviceUpdated =
+        MyDataStore.getInstance().getDevices(USER_ID).get(DEVICE_ID);
     assertEquals(DEVICE_NAME_UPDATED, deviceUpdated.get("name"));
 
     Map<String, Object> deviceDelete = new HashMap<>();
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+class StateVersionsTest {
+  private static final DeviceKey CURTAIN = new DeviceKey("user", "curtain");
+
+  @Test
+  void testVersionsGrowPastObservedOnes() {
+    StateVersions versions = new StateVersions(10, 60_000);
+    long first = versions.next();
+    assertTrue(versions.next() > first);
+
+    long ahead = (System.currentTimeMillis() + 60_000) << 16;
+    versions.observe(ahead);
+    assertTrue(versions.next() > ahead);
+    assertEquals(ahead, StateVersions.of(Collections.singletonMap("stateVersion", ahead)));
+    assertEquals(0, StateVersions.of(null));
+  }
+
+  @Test
+  void testImplausibleVersionsAreNotObserved() {
+    StateVersions versions = new StateVersions(10, 60_000);
+    assertFalse(versions.isPlausible(0));
+    assertFalse(versions.isPlausible(-1));
+    assertFalse(versions.isPlausible(Long.MAX_VALUE));
+    long farAhead = (System.currentTimeMillis() + 3_600_000) << 16;
+    assertFalse(versions.isPlausible(farAhead));
+
+    versions.observe(Long.MAX_VALUE);
+    long next = versions.next();
+    assertTrue(versions.isPlausible(next));
+    // A version stored before versions were checked does not make every write stale
+    assertTrue(versions.acceptNewer(CURTAIN, Long.MAX_VALUE, next));
+  }
+
+  @Test
+  void testDelayedUpdateIsDropped() {
+    StateVersions versions = new StateVersions(10, 60_000);
+    long delayed = versions.next();
+    long newer = versions.next();
+
+    assertTrue(versions.acceptNewer(CURTAIN, 0, newer));
+    // Not written yet, but accepted by this instance
+    assertFalse(versions.acceptNewer(CURTAIN, 0, delayed));
+    // Written by another instance
+    assertFalse(new StateVersions(10, 60_000).acceptNewer(CURTAIN, newer, delayed));
+  }
+
+  @Test
+  void testCompareAndSetFailsIfStatesChangedSinceRead() {
+    StateVersions versions = new StateVersions(10, 60_000);
+    long stored = versions.next();
+    long update = versions.next();
+    long execute = versions.next();
+
+    assertTrue(versions.acceptNewer(CURTAIN, stored, update));
+    assertFalse(versions.compareAndSet(CURTAIN, stored, execute));
+    // Read again after the update was written
+    assertTrue(versions.compareAndSet(CURTAIN, update, execute));
+  }
+
+  @Test
+  void testReleasedVersionDoesNotBlockLaterWrites() {
+    StateVersions versions = new StateVersions(10, 60_000);
+    long failed = versions.next();
+    assertTrue(versions.compareAndSet(CURTAIN, 0, failed));
+    versions.release(CURTAIN, failed);
+    assertTrue(versions.compareAndSet(CURTAIN, 0, versions.next()));
+  }
+}
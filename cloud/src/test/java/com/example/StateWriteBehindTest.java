@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StateWriteBehindTest {
+  private static final String USER_ID = "user";
+  private static final DeviceKey CURTAIN = new DeviceKey(USER_ID, "curtain");
+
+  @TempDir Path dir;
+
+  /** The batches committed, or the failure to throw instead while it is set. */
+  private final List<Map<DeviceKey, Map<String, Object>>> batches = new ArrayList<>();
+  private volatile Exception failure;
+
+  private final StateWriteBehind.Committer committer =
+      writes -> {
+        if (failure != null) {
+          throw failure;
+        }
+        synchronized (batches) {
+          batches.add(new LinkedHashMap<>(writes));
+        }
+      };
+
+  /** Opens the write-behind layer with flushes left to the test. */
+  private StateWriteBehind open() throws IOException {
+    return new StateWriteBehind(committer, dir, 1_000_000, TimeUnit.HOURS.toMillis(1), false);
+  }
+
+  private static Map<String, Map<String, Object>> update(
+      String deviceId, String path, Object value) {
+    Map<String, Object> fields = new LinkedHashMap<>();
+    fields.put(path, value);
+    Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+    updates.put(deviceId, fields);
+    return updates;
+  }
+
+  private Object overlaid(StateWriteBehind writeBehind, String path) {
+    return FieldPaths.get(
+        writeBehind.overlay(USER_ID, "curtain", Collections.emptyMap()), path);
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  /** Returns the journal records left on disk. */
+  private String journaled() throws IOException {
+    StringBuilder records = new StringBuilder();
+    for (Path segment : segments()) {
+      records.append(new String(Files.readAllBytes(segment), StandardCharsets.UTF_8));
+    }
+    return records.toString();
+  }
+
+  @Test
+  void testReplaysTheJournalSkippingATornLastLine() throws Exception {
+    StateWriteBehind crashed = open();
+    crashed.update(USER_ID, update("curtain", "states.openPercent", 40), false).get();
+    crashed.update(USER_ID, update("curtain", "states.on", true), false).get();
+    // The process died while appending the next record
+    List<Path> written = segments();
+    Files.write(
+        written.get(written.size() - 1),
+        "{\"u\":\"user\",\"w\":{\"curt".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    StateWriteBehind recovered = open();
+    assertEquals(40L, overlaid(recovered, "states.openPercent"));
+    assertEquals(true, overlaid(recovered, "states.on"));
+
+    recovered.flushAsync().get();
+    assertEquals(1, batches.size());
+    assertEquals(2, batches.get(0).get(CURTAIN).size());
+  }
+
+  @Test
+  void testCoalescesUpdatesByField() throws Exception {
+    StateWriteBehind writeBehind = open();
+    writeBehind.update(USER_ID, update("curtain", "states.openPercent", 40), false).get();
+    writeBehind.update(USER_ID, update("curtain", "states.on", true), false).get();
+    writeBehind.update(USER_ID, update("curtain", "states.openPercent", 70), false).get();
+
+    writeBehind.flushAsync().get();
+    Map<String, Object> expected = new LinkedHashMap<>();
+    expected.put("states.openPercent", 70);
+    expected.put("states.on", true);
+    assertEquals(Collections.singletonMap(CURTAIN, expected), batches.get(0));
+  }
+
+  @Test
+  void testKeepsARecordWithinOneBatch() throws Exception {
+    StateWriteBehind writeBehind = open();
+    for (String prefix : new String[] {"a", "b"}) {
+      Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+      for (int i = 0; i < StateWriteBehind.MAX_BATCH_WRITES * 3 / 5; i++) {
+        updates.put(prefix + i, Collections.singletonMap("states.on", true));
+      }
+      writeBehind.update(USER_ID, updates, false).get();
+    }
+
+    writeBehind.flushAsync().get();
+    assertEquals(2, batches.size());
+    for (Map<DeviceKey, Map<String, Object>> batch : batches) {
+      assertEquals(StateWriteBehind.MAX_BATCH_WRITES * 3 / 5, batch.size());
+      String prefix = batch.keySet().iterator().next().deviceId.substring(0, 1);
+      assertTrue(batch.keySet().stream().allMatch(key -> key.deviceId.startsWith(prefix)));
+    }
+  }
+
+  @Test
+  void testKeepsSegmentsUntilTheCommitSucceeds() throws Exception {
+    StateWriteBehind writeBehind = open();
+    failure = new ExecutionException(new IOException("unavailable"));
+    CompletableFuture<Void> committed =
+        writeBehind.update(USER_ID, update("curtain", "states.openPercent", 40), true);
+
+    writeBehind.flushAsync().get();
+    // The caller is told, and the update is retried
+    ExecutionException thrown = assertThrows(ExecutionException.class, committed::get);
+    assertTrue(Futures.unwrap(thrown.getCause()) instanceof ExecutionException);
+    assertTrue(journaled().contains("states.openPercent"));
+    assertEquals(40, overlaid(writeBehind, "states.openPercent"));
+
+    failure = null;
+    writeBehind.flushAsync().get();
+    assertEquals(40, batches.get(0).get(CURTAIN).get("states.openPercent"));
+    assertEquals("", journaled());
+  }
+}
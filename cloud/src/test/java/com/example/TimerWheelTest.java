@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+  private static final long START = 1_000_000;
+
+  /** The keys of each batch of expired timers. */
+  private final List<List<String>> batches = new ArrayList<>();
+
+  private TimerWheel<String> wheel(int slots) {
+    return new TimerWheel<>(
+        slots,
+        1000,
+        START,
+        expired -> {
+          List<String> keys = new ArrayList<>();
+          for (TimerWheel.Timer<String> timer : expired) {
+            keys.add(timer.key);
+          }
+          batches.add(keys);
+        });
+  }
+
+  @Test
+  void testTimerExpiresInTheTickOfItsDeadline() {
+    TimerWheel<String> wheel = wheel(8);
+    wheel.schedule("oven", START + 2500);
+
+    wheel.advance(START + 2999);
+    assertTrue(batches.isEmpty());
+    wheel.advance(START + 3000);
+    assertEquals(Arrays.asList(Arrays.asList("oven")), batches);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  void testTimersOfOneTickExpireTogether() {
+    TimerWheel<String> wheel = wheel(8);
+    wheel.schedule("oven", START + 1200);
+    wheel.schedule("kettle", START + 1800);
+    wheel.schedule("washer", START + 5000);
+
+    wheel.advance(START + 2000);
+    assertEquals(1, batches.size());
+    assertEquals(2, batches.get(0).size());
+    assertEquals(1, wheel.size());
+  }
+
+  @Test
+  void testTimerAWholeTurnAwayWaitsForItsTurn() {
+    TimerWheel<String> wheel = wheel(4);
+    wheel.schedule("oven", START + 9000);
+
+    wheel.advance(START + 5000);
+    assertTrue(batches.isEmpty());
+    wheel.advance(START + 9000);
+    assertEquals(Arrays.asList(Arrays.asList("oven")), batches);
+  }
+
+  @Test
+  void testCancelledAndRescheduledTimers() {
+    TimerWheel<String> wheel = wheel(8);
+    wheel.schedule("oven", START + 1000);
+    wheel.schedule("kettle", START + 1000);
+    assertTrue(wheel.cancel("oven"));
+    assertFalse(wheel.cancel("oven"));
+    wheel.schedule("kettle", START + 3000);
+    wheel.scheduleIfAbsent("kettle", START + 3000);
+
+    wheel.advance(START + 2000);
+    assertTrue(batches.isEmpty());
+    wheel.advance(START + 3000);
+    assertEquals(Arrays.asList(Arrays.asList("kettle")), batches);
+  }
+
+  @Test
+  void testOverdueTimerExpiresOnTheNextTick() {
+    TimerWheel<String> wheel = wheel(8);
+    wheel.advance(START + 5000);
+    wheel.schedule("oven", START);
+
+    wheel.advance(START + 6000);
+    assertEquals(Arrays.asList(Arrays.asList("oven")), batches);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class TokenServiceTest {
+  private static final String USER_ID = "test-user-id";
+
+  private final TokenService tokens = new TokenService(new byte[32]);
+
+  @Test
+  void testAccessTokenRoundTrip() {
+    String token = tokens.issueAccessToken(USER_ID);
+    assertTrue(TokenService.isSigned(token));
+    assertEquals(USER_ID, tokens.verifyAccessToken(token));
+  }
+
+  @Test
+  void testRejectsForgedAndMistypedTokens() {
+    String token = tokens.issueAccessToken(USER_ID);
+    char[] forged = token.toCharArray();
+    int i = forged.length - 10;
+    forged[i] = forged[i] == 'A' ? 'B' : 'A';
+    assertNull(tokens.verifyAccessToken(new String(forged)));
+    assertNull(new TokenService(new byte[] {1}).verifyAccessToken(token));
+    assertNull(tokens.verifyAccessToken(tokens.issueRefreshToken(USER_ID, "id")));
+    assertFalse(TokenService.isSigned("123access"));
+  }
+
+  @Test
+  void testRefreshTokenCarriesTokenId() {
+    String tokenId = TokenService.newTokenId();
+    TokenService.Claims claims =
+        tokens.verify(tokens.issueRefreshToken(USER_ID, tokenId), TokenService.REFRESH_TOKEN);
+    assertNotNull(claims);
+    assertEquals(USER_ID, claims.userId);
+    assertEquals(tokenId, claims.tokenId);
+  }
+
+  @Test
+  void testAuthorizationCodeCarriesCodeId() {
+    String codeId = TokenService.newTokenId();
+    String code = tokens.issueAuthorizationCode(USER_ID, codeId);
+    TokenService.Claims claims = tokens.verify(code, TokenService.AUTHORIZATION_CODE);
+    assertNotNull(claims);
+    assertEquals(codeId, claims.tokenId);
+    assertNull(tokens.verify(code, TokenService.REFRESH_TOKEN));
+  }
+}
@@ -22,6 +22,16 @@ const char* user_password = "";
 const char* id = "ESP8266-Curtains";
 boolean OnOff = false;
 
+/**
+ * Group topics to subscribe to, each line starting with "+", or to unsubscribe from, starting with
+ * "-"; see onGroupAnnounced. The string grows as needed, so no announcement is dropped.
+ */
+String pendingGroupChanges = "";
+/** The group topics this device subscribed to, as JSON strings separated by commas. */
+String joinedGroups = "";
+/** Whether loop() should report the state, which changed in the message callback. */
+boolean reportPending = false;
+
 void connect() {
   Serial.print("checking wifi…");
   while (WiFi.status() != WL_CONNECTED) {
@@ -34,11 +44,83 @@ void connect() {
     delay(1000);
   }
   Serial.println("\nconnected!");
+  // A new session has no subscriptions; the retained announcements arrive again
+  pendingGroupChanges = "";
+  joinedGroups = "";
   client.subscribe("/1els-client");
+  // The server announces the groups of this device here, retained, see DeviceGroups
+  client.subscribe("/1els-groups/#");
+  // The server answers with whatever this device has yet to reach, see DeviceShadow
+  reportState();
+}
+
+/**
+ * Tells the server the state this device is in, and the groups it joined: the server only
+ * publishes to a group once each of its devices has reported joining it, see DeviceGroups.
+ */
+void reportState() {
+  String report = OnOff ? "{\"on\":true" : "{\"on\":false";
+  report += ",\"joinedGroups\":[" + joinedGroups + "]}";
+  client.publish("reported//1els", report);
+}
+
+/**
+ * Queues a subscription to the topic of a group this device joined, or an unsubscription if the
+ * group was dropped. The message callback may not subscribe, so loop() applies them.
+ */
+boolean onGroupAnnounced(String &topic, String &payload) {
+  String prefix = "/1els-groups/";
+  if (!topic.startsWith(prefix)) {
+    return false;
+  }
+  pendingGroupChanges += payload.length() > 0 ? "+" : "-";
+  pendingGroupChanges += "groups/" + topic.substring(prefix.length()) + "\n";
+  return true;
+}
+
+/**
+ * Subscribes to or unsubscribes from the announced groups, and reports the groups joined. A change
+ * that fails stays pending for the next loop().
+ */
+void applyGroupChanges() {
+  if (pendingGroupChanges.length() == 0) {
+    return;
+  }
+  // Subscribing handles incoming messages, which may queue more changes
+  String changes = pendingGroupChanges;
+  pendingGroupChanges = "";
+  int start = 0;
+  while (start < changes.length()) {
+    int end = changes.indexOf('\n', start);
+    boolean join = changes.charAt(start) == '+';
+    String group = changes.substring(start + 1, end);
+    String quoted = "\"" + group + "\"";
+    int at = joinedGroups.indexOf(quoted);
+    if (join && at < 0) {
+      if (client.subscribe(group)) {
+        joinedGroups += (joinedGroups.length() > 0 ? "," : "") + quoted;
+      } else {
+        pendingGroupChanges += changes.substring(start, end + 1);
+      }
+    } else if (!join && at >= 0) {
+      if (client.unsubscribe(group)) {
+        // Removes the entry with the comma before it, or after it if it is the first one
+        boolean last = joinedGroups.length() == at + quoted.length();
+        joinedGroups.remove(at > 0 ? at - 1 : at, quoted.length() + (at > 0 || !last ? 1 : 0));
+      } else {
+        pendingGroupChanges += changes.substring(start, end + 1);
+      }
+    }
+    start = end + 1;
+  }
+  reportPending = true;
 }
 
 void onMessageReceived(String &topic, String &payload) {
   Serial.println("incoming: " + topic + " - " + payload);
+  if (onGroupAnnounced(topic, payload)) {
+    return;
+  }
   DynamicJsonBuffer jsonBuffer;
   JsonObject& json = jsonBuffer.parseObject(payload);
   String deviceOn = json["on"];
@@ -52,6 +134,10 @@ void onMessageReceived(String &topic, String &payload) {
     stepMotorOn(STEPS_PER_ROTATION, 0);
     OnOff = false;
   }
+  if (deviceOn == "true" || deviceOn == "false") {
+    // The message callback may not publish, so loop() reports the new state
+    reportPending = true;
+  }
 }
 
 /** Lifecycle - setup */
@@ -71,6 +157,11 @@ void setup() {
 /** Lifecycle - loop */
 void loop() {
   client.loop();
+  applyGroupChanges();
+  if (reportPending) {
+    reportPending = false;
+    reportState();
+  }
   delay(10);  // <- fixes some issues with WiFi stability
   if (!client.connected()) {
     connect();